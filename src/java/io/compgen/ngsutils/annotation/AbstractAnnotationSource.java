@@ -1,84 +1,20 @@
 package io.compgen.ngsutils.annotation;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
 abstract public class AbstractAnnotationSource<T> implements AnnotationSource<T> {
-    public static class RefBin {
-        final private String ref;
-        final private int bin;
+    protected final SortedSet<GenomeAnnotation<T>> annotations = new TreeSet<GenomeAnnotation<T>>();
 
-        public RefBin(String ref, int bin) {
-            super();
-            this.ref = ref;
-            this.bin = bin;
-        }
-        @Override
-        public String toString() {
-            return ref+"/"+bin;
-        }
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + bin;
-            result = prime * result + ((ref == null) ? 0 : ref.hashCode());
-            return result;
-        }
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj) {
-                return true;
-            }
-            if (obj == null) {
-                return false;
-            }
-            if (getClass() != obj.getClass()) {
-                return false;
-            }
-            RefBin other = (RefBin) obj;
-            if (bin != other.bin) {
-                return false;
-            }
-            if (ref == null) {
-                if (other.ref != null) {
-                    return false;
-                }
-            } else if (!ref.equals(other.ref)) {
-                return false;
-            }
-            return true;
-        }
-        public static List<RefBin> getBins(GenomeSpan coord) {
-            
-            if (coord.start == -1) {
-                // whole chromosome - send it all
-                
-            }
-            
-            int start = coord.start / BINSIZE;
-            int end = coord.end / BINSIZE;
+    // all annotations (including those with the same coordinates), in the order they were added
+    private final List<GenomeAnnotation<T>> allAnnotations = new ArrayList<GenomeAnnotation<T>>();
 
-            List<RefBin> bins = new ArrayList<RefBin>();
-            for (int i=start; i<=end; i++) {
-                bins.add(new RefBin(coord.ref, i));
-            }
-             
-            return bins;       
-        }
-    }
-    
-    protected final Map<RefBin,List<GenomeAnnotation<T>>> annotationBins = new HashMap<RefBin, List<GenomeAnnotation<T>>>();
-    protected final SortedSet<GenomeAnnotation<T>> annotations = new TreeSet<GenomeAnnotation<T>>();
-    protected final static int BINSIZE=100_000;
+    // built from allAnnotations on the first query (and rebuilt if more annotations are added)
+    private volatile IntervalIndex<T> index = null;
     
 //    @Override
 //    public List<T> findAnnotation(String ref, int start) {
@@ -104,47 +40,23 @@ abstract public class AbstractAnnotationSource<T> implements AnnotationSource<T>
     public List<T> findAnnotation(final GenomeSpan coord) {
         return findAnnotation(coord, false);
     }
-    public List<T> findAnnotation(final GenomeSpan coord, boolean onlyWithin) {
-        final Set<T> outs = new HashSet<T>();
-       
-        List<RefBin> refbins = new ArrayList<RefBin>();
-        
-        if (coord.start == -1) {
-            // whole chrom
-            for (RefBin bin: annotationBins.keySet()) {
-                if (bin.ref.equals(coord.ref)) {
-                    refbins.add(bin);
+    public List<T> findAnnotation(final GenomeSpan coord, final boolean onlyWithin) {
+        final List<T> outs = new ArrayList<T>();
+        getIndex().query(coord, new IntervalIndex.Visitor<T>() {
+            @Override
+            public boolean visit(GenomeAnnotation<T> ga) {
+                if (onlyWithin ? ga.getCoordinates().contains(coord) : ga.getCoordinates().overlaps(coord)) {
+                    outs.add(ga.getValue());
                 }
-            }
-        } else {
-            refbins = RefBin.getBins(coord);
-        }
-        
-        for (RefBin bin: refbins) {            
-            if (annotationBins.containsKey(bin)) {
-                for (GenomeAnnotation<T> ga: annotationBins.get(bin)) {
-                    if (coord.start != -1 && ga.getCoordinates().start > coord.end) {
-//                        System.err.println("BREAK");
-                        break;
-                    }
-//                    System.err.println("ga.getCoordinates() => " + ga.getCoordinates());
-//                    System.err.println("coord => " + coord);
-//                    System.err.println("ga.getCoordinates().overlap(coord) => " + ga.getCoordinates().overlaps(coord));
-                    if (onlyWithin) {
-                        if (ga.getCoordinates().contains(coord)) {
-                            outs.add(ga.getValue());
-                        }
-                    } else if (ga.getCoordinates().overlaps(coord)) {
-//                        System.err.println("OVERLAP");
-                        outs.add(ga.getValue());
-                    } else {
-//                        System.err.println("NO OVERLAP :(");
-                    }
-                }                
-            }
+                return true;
+            }});
+
+        if (outs.size() < 2) {
+            return outs;
         }
-        
-        return new ArrayList<T>(outs);
+
+        // the same value can be added with more than one set of coordinates
+        return new ArrayList<T>(new LinkedHashSet<T>(outs));
     }
     
 //    @Override
@@ -172,38 +84,41 @@ abstract public class AbstractAnnotationSource<T> implements AnnotationSource<T>
         return hasAnnotation(coord, false);
     }
     @Override
-    public boolean hasAnnotation(final GenomeSpan coord, boolean onlyWithin) {
-        for (RefBin bin: RefBin.getBins(coord)) {
-            if (annotationBins.containsKey(bin)) {
-                for (GenomeAnnotation<T> ga: annotationBins.get(bin)) {
-                    if (ga.getCoordinates().start > coord.end) {
-                        break;
-                    }
-                    if (onlyWithin) {
-                        if (ga.getCoordinates().contains(coord)) {
-                            return true;
-                        }
-                    } else if (ga.getCoordinates().overlaps(coord)) {
-                        return true;
-                    }
-                }                
-            }
-        }
-        return false;
+    public boolean hasAnnotation(final GenomeSpan coord, final boolean onlyWithin) {
+        // the query stops (returns false) at the first match
+        return !getIndex().query(coord, new IntervalIndex.Visitor<T>() {
+            @Override
+            public boolean visit(GenomeAnnotation<T> ga) {
+                if (onlyWithin) {
+                    return !ga.getCoordinates().contains(coord);
+                }
+                return !ga.getCoordinates().overlaps(coord);
+            }});
     }
     
     
     protected void addAnnotation(GenomeSpan coord, T value) {
         GenomeAnnotation<T> ga = new GenomeAnnotation<T>(coord, value);
-        for (RefBin bin: RefBin.getBins(coord)) {
-            if (!annotationBins.containsKey(bin)) {
-                annotationBins.put(bin, new ArrayList<GenomeAnnotation<T>>());
-            }
-            annotationBins.get(bin).add(ga);
-            Collections.sort(annotationBins.get(bin));
+        synchronized (allAnnotations) {
+            allAnnotations.add(ga);
+            index = null;
         }
         annotations.add(ga);
     }
+
+    private IntervalIndex<T> getIndex() {
+        IntervalIndex<T> idx = index;
+        if (idx == null) {
+            synchronized (allAnnotations) {
+                idx = index;
+                if (idx == null) {
+                    idx = new IntervalIndex<T>(allAnnotations);
+                    index = idx;
+                }
+            }
+        }
+        return idx;
+    }
    
     @Override
     public boolean provides(String key) {
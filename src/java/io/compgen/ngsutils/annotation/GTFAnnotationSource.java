@@ -61,6 +61,10 @@ public class GTFAnnotationSource extends AbstractAnnotationSource<GTFGene> {
             return new GenomeSpan(parent.getParent().getRef(), start, end, parent.getParent().getStrand());
         }
 
+        String[] getAttributes() {
+            return attributes;
+        }
+
         public String getAttribute(String key) {
             for (int i=0; i<attributes.length-1; i++) {
                 if (attributes[i].equals(key)) {
@@ -447,10 +451,25 @@ public class GTFAnnotationSource extends AbstractAnnotationSource<GTFGene> {
 
     }
 
-    final private boolean hasBioType;
-    final private boolean hasStatus;
+    private boolean hasBioType;
+    private boolean hasStatus;
 
     public GTFAnnotationSource(String filename, List<String> requiredTags) throws NumberFormatException, IOException {
+        final GTFCacheFile cacheFile = GTFCacheFile.find(filename, requiredTags);
+        if (cacheFile != null) {
+            List<GTFGene> genes = cacheFile.load(this);
+            if (genes != null) {
+                for (GTFGene gene: genes) {
+                    addAnnotation(gene.getCoord(), gene);
+                }
+                this.hasBioType = cacheFile.hasBioType();
+                this.hasStatus = cacheFile.hasStatus();
+                return;
+            }
+        }
+
+        // genes in the order they were added (for the cache)
+        final List<GTFGene> added = new ArrayList<GTFGene>();
         final Map<String, GTFGene> cache = new HashMap<String, GTFGene>();
         
         boolean hasBioType = false;
@@ -480,6 +499,7 @@ public class GTFAnnotationSource extends AbstractAnnotationSource<GTFGene> {
                     final GenomeSpan coord = new GenomeSpan(gene.getRef(),
                             gene.getStart(), gene.getEnd(), gene.getStrand());
                     addAnnotation(coord, gene);
+                    added.add(gene);
                 }
                 cache.clear();
                 lastChrom = chrom;
@@ -594,10 +614,15 @@ public class GTFAnnotationSource extends AbstractAnnotationSource<GTFGene> {
             final GenomeSpan coord = new GenomeSpan(gene.getRef(),
                     gene.getStart(), gene.getEnd(), gene.getStrand());
             addAnnotation(coord, gene);
+            added.add(gene);
         }
 
         this.hasBioType = hasBioType;
         this.hasStatus = hasStatus;
+
+        if (cacheFile != null) {
+            cacheFile.save(added, hasBioType, hasStatus);
+        }
     }
 
     @Override
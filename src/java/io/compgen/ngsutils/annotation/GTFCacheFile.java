@@ -0,0 +1,334 @@
+package io.compgen.ngsutils.annotation;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.compgen.common.StringUtils;
+import io.compgen.ngsutils.annotation.GTFAnnotationSource.GTFExon;
+import io.compgen.ngsutils.annotation.GTFAnnotationSource.GTFGene;
+import io.compgen.ngsutils.annotation.GTFAnnotationSource.GTFTranscript;
+import io.compgen.ngsutils.bam.Strand;
+
+/**
+ * A binary cache of a parsed GTF file, so that the GTF file doesn't need to be re-parsed
+ * each time it is used.
+ *
+ * Caching is off by default. It can be turned on with -Dngsutilsj.gtf.cache=true (the cache is
+ * written next to the GTF file) or -Dngsutilsj.gtf.cache.dir=dir (the cache is written to this
+ * directory).
+ *
+ * The cache is only used if the GTF file size and modification time (and required tags) match
+ * what was used to write it. Otherwise, the GTF file is parsed and the cache is re-written.
+ *
+ * Format (big-endian):
+ *
+ *     magic          "NGSGTFC" + version byte
+ *     gtf size       long
+ *     gtf mtime      long
+ *     tags           int (string index, -1 for none)
+ *     flags          int (1=has biotype, 2=has status)
+ *     n_strings      int
+ *     strings        n_strings * { int length, UTF-8 bytes }
+ *     n_genes        int
+ *     genes          n_genes * gene
+ *
+ *     gene:          int ref, int gene_id, int gene_name, int biotype, int status, int start,
+ *                    int end, int strand, int n_transcripts, n_transcripts * transcript
+ *     transcript:    int transcript_id, then four feature lists (exon, CDS, start_codon, stop_codon)
+ *     feature list:  int n, n * { int start, int end, int n_attr, n_attr * int }
+ *
+ * All strings (refs, ids, names, attribute keys/values) are stored once in the string table and
+ * referenced by index (-1 for null). Genes are stored in the order they were added to the
+ * annotation source, and transcripts/features in the order they are stored in the genes, so
+ * loading the cache gives the same annotation as parsing the GTF file.
+ */
+public class GTFCacheFile {
+    private static final byte[] MAGIC = new byte[] { 'N', 'G', 'S', 'G', 'T', 'F', 'C', 1 };
+
+    private final File gtfFile;
+    private final File cacheFile;
+    private final String tags;
+
+    private boolean hasBioType = false;
+    private boolean hasStatus = false;
+
+    private GTFCacheFile(File gtfFile, File cacheFile, String tags) {
+        this.gtfFile = gtfFile;
+        this.cacheFile = cacheFile;
+        this.tags = tags;
+    }
+
+    /**
+     * @return the cache for this GTF file, or null if caching isn't turned on
+     */
+    public static GTFCacheFile find(String filename, List<String> requiredTags) {
+        if (filename == null || filename.equals("-")) {
+            return null;
+        }
+        File gtfFile = new File(filename);
+        if (!gtfFile.isFile()) {
+            return null;
+        }
+
+        String tags = requiredTags == null ? null : StringUtils.join(",", requiredTags);
+
+        // different required tags get their own cache file
+        String suffix = (tags == null ? "" : "." + Integer.toHexString(tags.hashCode())) + ".ngsutilsj-cache";
+
+        String dir = System.getProperty("ngsutilsj.gtf.cache.dir");
+        if (dir != null) {
+            String path = gtfFile.getAbsolutePath();
+            String name = gtfFile.getName() + "." + Integer.toHexString(path.hashCode()) + suffix;
+            return new GTFCacheFile(gtfFile, new File(dir, name), tags);
+        }
+
+        String prop = System.getProperty("ngsutilsj.gtf.cache");
+        if (prop != null && (prop.equals("true") || prop.equals("1"))) {
+            return new GTFCacheFile(gtfFile, new File(gtfFile.getPath() + suffix), tags);
+        }
+
+        return null;
+    }
+
+    public boolean hasBioType() {
+        return hasBioType;
+    }
+
+    public boolean hasStatus() {
+        return hasStatus;
+    }
+
+    /**
+     * Load the genes from the cache.
+     *
+     * @return the genes (in order), or null if the cache is missing or out of date
+     */
+    public List<GTFGene> load(GTFAnnotationSource source) {
+        if (!cacheFile.isFile() || cacheFile.length() > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "r")) {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (buf.get() != MAGIC[i]) {
+                    return null;
+                }
+            }
+            if (buf.getLong() != gtfFile.length() || buf.getLong() != gtfFile.lastModified()) {
+                return null;
+            }
+
+            int tagIdx = buf.getInt();
+            int flags = buf.getInt();
+
+            String[] strings = new String[buf.getInt()];
+            byte[] tmp = new byte[256];
+            for (int i = 0; i < strings.length; i++) {
+                int len = buf.getInt();
+                if (len > tmp.length) {
+                    tmp = new byte[len];
+                }
+                buf.get(tmp, 0, len);
+                strings[i] = new String(tmp, 0, len, StandardCharsets.UTF_8);
+            }
+
+            String cacheTags = tagIdx == -1 ? null : strings[tagIdx];
+            if (tags == null ? cacheTags != null : !tags.equals(cacheTags)) {
+                return null;
+            }
+
+            int nGenes = buf.getInt();
+            List<GTFGene> genes = new ArrayList<GTFGene>(nGenes);
+            for (int i = 0; i < nGenes; i++) {
+                String ref = str(strings, buf.getInt());
+                String geneId = str(strings, buf.getInt());
+                String geneName = str(strings, buf.getInt());
+                String bioType = str(strings, buf.getInt());
+                String status = str(strings, buf.getInt());
+                int start = buf.getInt();
+                int end = buf.getInt();
+                Strand strand = Strand.values()[buf.getInt()];
+
+                GTFGene gene = source.new GTFGene(geneId, geneName, ref, start, end, strand, bioType, status);
+
+                int nTranscripts = buf.getInt();
+                for (int j = 0; j < nTranscripts; j++) {
+                    String transcriptId = str(strings, buf.getInt());
+                    for (int type = 0; type < 4; type++) {
+                        int n = buf.getInt();
+                        for (int k = 0; k < n; k++) {
+                            int fstart = buf.getInt();
+                            int fend = buf.getInt();
+                            String[] attributes = new String[buf.getInt()];
+                            for (int l = 0; l < attributes.length; l++) {
+                                attributes[l] = str(strings, buf.getInt());
+                            }
+                            switch (type) {
+                            case 0:
+                                gene.addExon(transcriptId, fstart, fend, attributes);
+                                break;
+                            case 1:
+                                gene.addCDS(transcriptId, fstart, fend, attributes);
+                                break;
+                            case 2:
+                                gene.addStartCodon(transcriptId, fstart, fend, attributes);
+                                break;
+                            case 3:
+                                gene.addStopCodon(transcriptId, fstart, fend, attributes);
+                                break;
+                            }
+                        }
+                    }
+                }
+                genes.add(gene);
+            }
+
+            hasBioType = (flags & 0x1) != 0;
+            hasStatus = (flags & 0x2) != 0;
+            return genes;
+        } catch (IOException | RuntimeException e) {
+            // unreadable / truncated cache -- just parse the GTF file
+            return null;
+        }
+    }
+
+    private static String str(String[] strings, int idx) {
+        return idx == -1 ? null : strings[idx];
+    }
+
+    /**
+     * Write the genes to the cache. Errors are ignored (the GTF file will just be parsed next time).
+     */
+    public void save(List<GTFGene> genes, boolean hasBioType, boolean hasStatus) {
+        // first pass -- build the string table
+        final Map<String, Integer> stringIdx = new HashMap<String, Integer>();
+        final List<String> strings = new ArrayList<String>();
+        StringTable table = new StringTable() {
+            @Override
+            public int idx(String s) {
+                if (s == null) {
+                    return -1;
+                }
+                Integer idx = stringIdx.get(s);
+                if (idx == null) {
+                    idx = strings.size();
+                    stringIdx.put(s, idx);
+                    strings.add(s);
+                }
+                return idx;
+            }};
+
+        int tagIdx = table.idx(tags);
+
+        File tmp = null;
+        try {
+            for (GTFGene gene: genes) {
+                writeGene(null, table, gene);
+            }
+
+            File dir = cacheFile.getAbsoluteFile().getParentFile();
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+            tmp = File.createTempFile(".ngsutilsj-cache", ".tmp", dir);
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1024 * 1024))) {
+                out.write(MAGIC);
+                out.writeLong(gtfFile.length());
+                out.writeLong(gtfFile.lastModified());
+                out.writeInt(tagIdx);
+                out.writeInt((hasBioType ? 0x1 : 0) | (hasStatus ? 0x2 : 0));
+
+                out.writeInt(strings.size());
+                for (String s: strings) {
+                    byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(b.length);
+                    out.write(b);
+                }
+
+                // second pass -- write the genes
+                out.writeInt(genes.size());
+                for (GTFGene gene: genes) {
+                    writeGene(out, table, gene);
+                }
+            }
+
+            Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            tmp = null;
+        } catch (IOException e) {
+            System.err.println("Unable to write GTF cache: " + cacheFile + " (" + e.getMessage() + ")");
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private interface StringTable {
+        public int idx(String s);
+    }
+
+    /**
+     * Write a gene (or if out is null, just add the strings to the table)
+     */
+    private static void writeGene(DataOutputStream out, StringTable table, GTFGene gene) throws IOException {
+        int[] vals = new int[] { table.idx(gene.getRef()), table.idx(gene.getGeneId()), table.idx(gene.getGeneName()),
+                table.idx(gene.getBioType()), table.idx(gene.getStatus()), gene.getStart(), gene.getEnd(),
+                gene.getStrand().ordinal() };
+
+        List<GTFTranscript> transcripts = gene.getTranscripts();
+        if (out != null) {
+            for (int v: vals) {
+                out.writeInt(v);
+            }
+            out.writeInt(transcripts.size());
+        }
+
+        for (GTFTranscript t: transcripts) {
+            int transcriptIdx = table.idx(t.getTranscriptId());
+            if (out != null) {
+                out.writeInt(transcriptIdx);
+            }
+            writeFeatures(out, table, t.exons);
+            writeFeatures(out, table, t.cds);
+            writeFeatures(out, table, t.startCodons);
+            writeFeatures(out, table, t.stopCodons);
+        }
+    }
+
+    private static void writeFeatures(DataOutputStream out, StringTable table, List<GTFExon> features) throws IOException {
+        if (out != null) {
+            out.writeInt(features.size());
+        }
+        for (GTFExon f: features) {
+            String[] attributes = f.getAttributes();
+            if (out != null) {
+                out.writeInt(f.getStart());
+                out.writeInt(f.getEnd());
+                out.writeInt(attributes.length);
+            }
+            for (String attr: attributes) {
+                int idx = table.idx(attr);
+                if (out != null) {
+                    out.writeInt(idx);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package io.compgen.ngsutils.annotation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable index of GenomeAnnotations for overlap queries.
+ *
+ * For each reference, the annotations are sorted by start position and stored in primitive
+ * arrays. The sorted array is treated as an implicit binary tree (the node at index i is
+ * at level k, where k is the number of trailing 1 bits in i), and each node keeps the
+ * maximum end position of its subtree. Queries walk down the tree, skipping any subtree
+ * that ends before the query starts. This is the same layout used by cgranges
+ * (https://github.com/lh3/cgranges).
+ *
+ * Queries return candidates that overlap as closed intervals (start <= qend and qstart <= end).
+ * Callers are expected to check the exact overlap (and strand) with GenomeSpan.
+ *
+ * Whole-chromosome annotations (start < 0) are kept separately and are returned for any
+ * query on the reference.
+ */
+public class IntervalIndex<T> {
+    public interface Visitor<T> {
+        /**
+         * @return false to stop the query
+         */
+        public boolean visit(GenomeAnnotation<T> ga);
+    }
+
+    private static class RefIndex<T> {
+        private final int[] starts;
+        private final int[] ends;
+        private final int[] maxEnds;
+        private final GenomeAnnotation<T>[] values;
+        private final int maxLevel;
+        private final List<GenomeAnnotation<T>> wholeRef;
+
+        @SuppressWarnings("unchecked")
+        private RefIndex(List<GenomeAnnotation<T>> anns) {
+            List<GenomeAnnotation<T>> spans = new ArrayList<GenomeAnnotation<T>>(anns.size());
+            List<GenomeAnnotation<T>> whole = new ArrayList<GenomeAnnotation<T>>();
+            for (GenomeAnnotation<T> ga: anns) {
+                if (ga.getCoordinates().start < 0) {
+                    whole.add(ga);
+                } else {
+                    spans.add(ga);
+                }
+            }
+
+            // stable sort, so annotations with the same coordinates stay in the order they were added
+            spans.sort(new Comparator<GenomeAnnotation<T>>() {
+                @Override
+                public int compare(GenomeAnnotation<T> o1, GenomeAnnotation<T> o2) {
+                    int c = Integer.compare(o1.getCoordinates().start, o2.getCoordinates().start);
+                    if (c != 0) {
+                        return c;
+                    }
+                    return Integer.compare(o1.getCoordinates().end, o2.getCoordinates().end);
+                }});
+
+            int n = spans.size();
+            this.starts = new int[n];
+            this.ends = new int[n];
+            this.maxEnds = new int[n];
+            this.values = (GenomeAnnotation<T>[]) spans.toArray(new GenomeAnnotation<?>[n]);
+            this.wholeRef = whole;
+
+            for (int i = 0; i < n; i++) {
+                starts[i] = values[i].getCoordinates().start;
+                ends[i] = values[i].getCoordinates().end;
+            }
+
+            this.maxLevel = buildMaxEnds();
+        }
+
+        /**
+         * Populate maxEnds for each node in the implicit tree
+         *
+         * @return the level of the root node
+         */
+        private int buildMaxEnds() {
+            int n = starts.length;
+            if (n == 0) {
+                return -1;
+            }
+
+            int lastIdx = 0;
+            int last = 0;
+            for (int i = 0; i < n; i += 2) {
+                lastIdx = i;
+                last = maxEnds[i] = ends[i];
+            }
+            for (int i = 1; i < n; i += 2) {
+                maxEnds[i] = ends[i];
+            }
+
+            int k;
+            for (k = 1; (1L << k) <= n; k++) {
+                int x = 1 << (k - 1);
+                int i0 = (x << 1) - 1;
+                int step = x << 2;
+                for (int i = i0; i < n; i += step) {
+                    int el = maxEnds[i - x];
+                    int er = i + x < n ? maxEnds[i + x] : last;
+                    int e = ends[i];
+                    if (el > e) {
+                        e = el;
+                    }
+                    if (er > e) {
+                        e = er;
+                    }
+                    maxEnds[i] = e;
+                }
+                lastIdx = ((lastIdx >> k) & 1) != 0 ? lastIdx - x : lastIdx + x;
+                if (lastIdx < n && maxEnds[lastIdx] > last) {
+                    last = maxEnds[lastIdx];
+                }
+            }
+            return k - 1;
+        }
+
+        private boolean query(int qstart, int qend, Visitor<T> visitor) {
+            for (GenomeAnnotation<T> ga: wholeRef) {
+                if (!visitor.visit(ga)) {
+                    return false;
+                }
+            }
+
+            int n = starts.length;
+            if (n == 0) {
+                return true;
+            }
+
+            if (qstart < 0) {
+                // whole reference query
+                for (int i = 0; i < n; i++) {
+                    if (!visitor.visit(values[i])) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            // stack of {node, level, left child visited}
+            int[] stackNode = new int[64];
+            int[] stackLevel = new int[64];
+            boolean[] stackLeftDone = new boolean[64];
+            int t = 0;
+
+            stackNode[t] = (1 << maxLevel) - 1;
+            stackLevel[t] = maxLevel;
+            stackLeftDone[t] = false;
+            t++;
+
+            while (t > 0) {
+                t--;
+                int x = stackNode[t];
+                int k = stackLevel[t];
+                boolean leftDone = stackLeftDone[t];
+
+                if (k <= 3) {
+                    // small subtree, just scan it
+                    int i0 = x >> k << k;
+                    int i1 = i0 + (1 << (k + 1)) - 1;
+                    if (i1 > n) {
+                        i1 = n;
+                    }
+                    for (int i = i0; i < i1 && starts[i] <= qend; i++) {
+                        if (qstart <= ends[i]) {
+                            if (!visitor.visit(values[i])) {
+                                return false;
+                            }
+                        }
+                    }
+                } else if (!leftDone) {
+                    int y = x - (1 << (k - 1));
+                    stackNode[t] = x;
+                    stackLevel[t] = k;
+                    stackLeftDone[t] = true;
+                    t++;
+                    if (y >= n || maxEnds[y] >= qstart) {
+                        stackNode[t] = y;
+                        stackLevel[t] = k - 1;
+                        stackLeftDone[t] = false;
+                        t++;
+                    }
+                } else if (x < n && starts[x] <= qend) {
+                    if (qstart <= ends[x]) {
+                        if (!visitor.visit(values[x])) {
+                            return false;
+                        }
+                    }
+                    stackNode[t] = x + (1 << (k - 1));
+                    stackLevel[t] = k - 1;
+                    stackLeftDone[t] = false;
+                    t++;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Map<String, RefIndex<T>> refs = new HashMap<String, RefIndex<T>>();
+
+    public IntervalIndex(Collection<GenomeAnnotation<T>> annotations) {
+        Map<String, List<GenomeAnnotation<T>>> byRef = new HashMap<String, List<GenomeAnnotation<T>>>();
+        for (GenomeAnnotation<T> ga: annotations) {
+            String ref = ga.getCoordinates().ref;
+            if (!byRef.containsKey(ref)) {
+                byRef.put(ref, new ArrayList<GenomeAnnotation<T>>());
+            }
+            byRef.get(ref).add(ga);
+        }
+        for (String ref: byRef.keySet()) {
+            refs.put(ref, new RefIndex<T>(byRef.get(ref)));
+        }
+    }
+
+    /**
+     * Visit each annotation that could overlap the query (sorted by start within a reference).
+     *
+     * @return false if the visitor stopped the query
+     */
+    public boolean query(GenomeSpan coord, Visitor<T> visitor) {
+        RefIndex<T> idx = refs.get(coord.ref);
+        if (idx == null) {
+            return true;
+        }
+        return idx.query(coord.start, coord.end, visitor);
+    }
+}
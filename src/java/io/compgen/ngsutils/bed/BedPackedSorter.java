@@ -0,0 +1,510 @@
+package io.compgen.ngsutils.bed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import io.compgen.common.StringUtils;
+import io.compgen.ngsutils.support.LongTripleSort;
+
+/**
+ * Sorts a BED file by coordinate with a fixed memory budget.
+ *
+ * Instead of keeping BedRecords in memory, each line is packed into three longs:
+ * (ref, start), (end, strand), and the line's offset in the file. These keys are sorted (in
+ * parallel) and written to temporary files when the buffer is full. The temporary files are
+ * then merged, and each line is copied from the original file (by offset) to the output.
+ * Lines are written as-is (BedRecord.write() isn't used), so the input must be an
+ * uncompressed file.
+ *
+ * References are sorted in natural order (as in GenomeSpan). Each reference is given an ID
+ * when it is first seen. When a buffer is sorted, the IDs are replaced by the reference's
+ * rank (among the references seen so far). Adding more references doesn't change the order
+ * of the existing ones, so the temporary files are still in order once all references are
+ * known.
+ *
+ * Records with the same coordinates are sorted by strand (+ before -), and then in file order.
+ * Empty lines, comments (#), and lines with fewer than three columns are skipped.
+ */
+public class BedPackedSorter {
+    // memory used for each key (the key and the temporary array used for sorting)
+    public static final int BYTES_PER_RECORD = 48;
+
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    private static final int INITIAL_CAPACITY = 1024 * 1024;
+
+    private final File file;
+    private final long memoryLimit;
+    private final int threads;
+    private File tmpdir = null;
+
+    private final Map<String, Integer> refIds = new HashMap<String, Integer>();
+    private final List<String> refNames = new ArrayList<String>();
+
+    private long[] keys = null;
+    private long[] tmp = null;
+    private int count = 0;
+    private int capacity;
+
+    private final List<File> runs = new ArrayList<File>();
+    private ExecutorService pool = null;
+
+    public BedPackedSorter(File file, long memoryLimit, int threads) {
+        this.file = file;
+        this.memoryLimit = memoryLimit;
+        this.threads = threads < 1 ? 1 : threads;
+
+        long cap = memoryLimit / BYTES_PER_RECORD;
+        this.capacity = (int) Math.max(1024, Math.min(cap, (Integer.MAX_VALUE - 8) / 3));
+    }
+
+    public void setTmpDir(File tmpdir) {
+        this.tmpdir = tmpdir;
+    }
+
+    /**
+     * @return the number of temporary files that were written
+     */
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    public void sort(OutputStream os) throws IOException {
+        // lines are written one at a time, so buffer them (System.out flushes every write)
+        OutputStream out = new BufferedOutputStream(os, 1024 * 1024);
+
+        if (threads > 1) {
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "bed-sort");
+                    t.setDaemon(true);
+                    return t;
+                }});
+        }
+
+        try {
+            readKeys();
+
+            LineCopier copier = new LineCopier(file);
+            if (runs.isEmpty()) {
+                int[] ranks = getRanks();
+                toRank(keys, count, ranks);
+                tmp = new long[count * 3];
+                LongTripleSort.sort(keys, tmp, count, pool, threads);
+                for (int i = 0; i < count; i++) {
+                    copier.copy(keys[i * 3 + 2], out);
+                }
+            } else {
+                if (count > 0) {
+                    spill();
+                }
+                keys = null;
+                tmp = null;
+                merge(copier, out);
+            }
+            copier.close();
+            out.flush();
+        } finally {
+            for (File f: runs) {
+                f.delete();
+            }
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Read the BED file, and pack the coordinates and line offset for each record into keys.
+     */
+    private void readKeys() throws IOException {
+        keys = new long[Math.min(capacity, INITIAL_CAPACITY) * 3];
+
+        InputStream in = new FileInputStream(file);
+        byte[] buf = new byte[READ_BUFFER_SIZE];
+        int pos = 0;
+        int limit = 0;
+        long bufOffset = 0;
+        long lineNum = 0;
+
+        // the last reference name (lines are usually grouped by reference)
+        byte[] lastRef = null;
+        int lastRefId = -1;
+
+        // positions of the first five tabs in the line
+        int[] tabs = new int[5];
+
+        boolean eof = false;
+        while (true) {
+            // find the next line in the buffer
+            int lineEnd = -1;
+            for (int i = pos; i < limit; i++) {
+                if (buf[i] == '\n') {
+                    lineEnd = i;
+                    break;
+                }
+            }
+            if (lineEnd == -1) {
+                if (eof) {
+                    if (pos >= limit) {
+                        break;
+                    }
+                    // last line (no trailing newline)
+                    lineEnd = limit;
+                } else {
+                    // move the partial line to the start of the buffer and read more
+                    int remaining = limit - pos;
+                    if (pos == 0 && remaining == buf.length) {
+                        buf = Arrays.copyOf(buf, buf.length * 2);
+                    } else {
+                        System.arraycopy(buf, pos, buf, 0, remaining);
+                    }
+                    bufOffset += pos;
+                    pos = 0;
+                    limit = remaining;
+                    int n = in.read(buf, limit, buf.length - limit);
+                    if (n == -1) {
+                        eof = true;
+                    } else {
+                        limit += n;
+                    }
+                    continue;
+                }
+            }
+
+            lineNum++;
+            long offset = bufOffset + pos;
+            int start = pos;
+            int end = lineEnd;
+            pos = lineEnd + 1;
+
+            if (end > start && buf[end - 1] == '\r') {
+                end--;
+            }
+            if (end == start || buf[start] == '#') {
+                continue;
+            }
+
+            // find the columns (ref, start, end, strand)
+            int tabCount = 0;
+            for (int i = start; i < end && tabCount < 5; i++) {
+                if (buf[i] == '\t') {
+                    tabs[tabCount++] = i;
+                }
+            }
+            if (tabCount < 2) {
+                continue;
+            }
+
+            int refId;
+            int refLen = tabs[0] - start;
+            if (lastRef != null && lastRef.length == refLen && equals(lastRef, buf, start)) {
+                refId = lastRefId;
+            } else {
+                String ref = new String(buf, start, refLen, StandardCharsets.UTF_8);
+                Integer id = refIds.get(ref);
+                if (id == null) {
+                    id = refNames.size();
+                    refIds.put(ref, id);
+                    refNames.add(ref);
+                }
+                refId = id;
+                lastRef = Arrays.copyOfRange(buf, start, tabs[0]);
+                lastRefId = refId;
+            }
+
+            int startPos = parseInt(buf, tabs[0] + 1, tabs[1], lineNum);
+            int endPos = parseInt(buf, tabs[1] + 1, tabCount > 2 ? tabs[2] : end, lineNum);
+
+            // strand is the 6th column (+ sorts before -)
+            int strand = 0;
+            if (tabCount >= 5) {
+                int strandEnd = end;
+                for (int i = tabs[4] + 1; i < end; i++) {
+                    if (buf[i] == '\t') {
+                        strandEnd = i;
+                        break;
+                    }
+                }
+                if (strandEnd - tabs[4] == 2) {
+                    if (buf[tabs[4] + 1] == '+') {
+                        strand = 1;
+                    } else if (buf[tabs[4] + 1] == '-') {
+                        strand = 2;
+                    }
+                }
+            }
+
+            add(((long) refId << 32) | startPos, ((long) endPos << 2) | strand, offset);
+        }
+        in.close();
+    }
+
+    private void add(long k0, long k1, long offset) throws IOException {
+        if (count * 3 >= keys.length) {
+            if (count >= capacity) {
+                spill();
+            } else {
+                keys = Arrays.copyOf(keys, (int) Math.min((long) keys.length * 2, (long) capacity * 3));
+            }
+        }
+        keys[count * 3] = k0;
+        keys[count * 3 + 1] = k1;
+        keys[count * 3 + 2] = offset;
+        count++;
+    }
+
+    /**
+     * Sort the current keys and write them to a temporary file. The keys are written with the
+     * reference IDs (not ranks), because more references may be found later.
+     */
+    private void spill() throws IOException {
+        int[] ranks = getRanks();
+        int[] ids = new int[ranks.length];
+        for (int i = 0; i < ranks.length; i++) {
+            ids[ranks[i]] = i;
+        }
+
+        toRank(keys, count, ranks);
+        if (tmp == null || tmp.length < count * 3) {
+            tmp = new long[keys.length];
+        }
+        LongTripleSort.sort(keys, tmp, count, pool, threads);
+        toRank(keys, count, ids);
+
+        File temp;
+        if (tmpdir == null) {
+            temp = Files.createTempFile(".ngsutilsj_bed_sort", ".tmp").toFile();
+        } else {
+            temp = Files.createTempFile(tmpdir.toPath(), ".ngsutilsj_bed_sort", ".tmp").toFile();
+        }
+        temp.deleteOnExit();
+        runs.add(temp);
+
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1024 * 1024));
+        for (int i = 0; i < count * 3; i++) {
+            dos.writeLong(keys[i]);
+        }
+        dos.close();
+        count = 0;
+    }
+
+    private static class RunReader {
+        final DataInputStream in;
+        final long[] key = new long[3];
+
+        RunReader(File f) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 64 * 1024));
+        }
+
+        boolean next(int[] ranks) throws IOException {
+            try {
+                key[0] = in.readLong();
+            } catch (EOFException e) {
+                in.close();
+                return false;
+            }
+            key[1] = in.readLong();
+            key[2] = in.readLong();
+            toRank(key, 1, ranks);
+            return true;
+        }
+    }
+
+    private void merge(LineCopier copier, OutputStream out) throws IOException {
+        int[] ranks = getRanks();
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(runs.size(), new Comparator<RunReader>() {
+            @Override
+            public int compare(RunReader o1, RunReader o2) {
+                // offsets are unique, so there are no ties
+                return LongTripleSort.compare(o1.key, 0, o2.key, 0);
+            }});
+
+        for (int i = 0; i < runs.size(); i++) {
+            RunReader reader = new RunReader(runs.get(i));
+            if (reader.next(ranks)) {
+                queue.add(reader);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            RunReader reader = queue.poll();
+            copier.copy(reader.key[2], out);
+            if (reader.next(ranks)) {
+                queue.add(reader);
+            }
+        }
+    }
+
+    /**
+     * @return the rank of each reference ID (in natural sort order)
+     */
+    private int[] getRanks() {
+        List<String> sorted = new ArrayList<String>(refNames);
+        Collections.sort(sorted, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                return StringUtils.naturalCompare(o1, o2);
+            }});
+
+        int[] ranks = new int[refNames.size()];
+        for (int i = 0; i < sorted.size(); i++) {
+            ranks[refIds.get(sorted.get(i))] = i;
+        }
+        return ranks;
+    }
+
+    /**
+     * Replace the reference value in the first long of each key using the mapping
+     */
+    private static void toRank(long[] keys, int n, int[] mapping) {
+        for (int i = 0; i < n; i++) {
+            long k = keys[i * 3];
+            keys[i * 3] = ((long) mapping[(int) (k >>> 32)] << 32) | (k & 0xFFFFFFFFL);
+        }
+    }
+
+    private static boolean equals(byte[] a, byte[] buf, int off) {
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != buf[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int parseInt(byte[] buf, int start, int end, long lineNum) throws IOException {
+        if (start >= end) {
+            throw new IOException("Invalid BED line (" + lineNum + "): missing start/end position");
+        }
+        long val = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buf[i];
+            if (b < '0' || b > '9' || val > Integer.MAX_VALUE) {
+                throw new IOException("Invalid BED line (" + lineNum + "): invalid start/end position: " + new String(buf, start, end - start, StandardCharsets.UTF_8));
+            }
+            val = val * 10 + (b - '0');
+        }
+        if (val > Integer.MAX_VALUE) {
+            throw new IOException("Invalid BED line (" + lineNum + "): invalid start/end position: " + new String(buf, start, end - start, StandardCharsets.UTF_8));
+        }
+        return (int) val;
+    }
+
+    /**
+     * Copies lines from the file (by offset) to an output stream. Lines are read through a
+     * window of the file, so nearby lines don't need another read. The window shrinks when
+     * the lines are scattered (so each read is about one line), and grows when nearby lines
+     * are read together (ex: the input was mostly sorted).
+     */
+    private static class LineCopier {
+        private static final int MIN_READ = 1024;
+        private static final int MAX_READ = 256 * 1024;
+
+        private final FileInputStream fis;
+        private final FileChannel channel;
+        private final long size;
+        private byte[] buf = new byte[MAX_READ];
+        private int readSize = MIN_READ;
+        private long winStart = 0;
+        private int winLen = 0;
+        private int hits = 0;
+
+        LineCopier(File file) throws IOException {
+            this.fis = new FileInputStream(file);
+            this.channel = fis.getChannel();
+            this.size = channel.size();
+        }
+
+        void copy(long offset, OutputStream out) throws IOException {
+            boolean first = true;
+            while (true) {
+                if (offset >= winStart && offset < winStart + winLen) {
+                    int start = (int) (offset - winStart);
+                    int end = -1;
+                    for (int i = start; i < winLen; i++) {
+                        if (buf[i] == '\n') {
+                            end = i;
+                            break;
+                        }
+                    }
+                    if (end == -1 && winStart + winLen == size) {
+                        // last line, without a newline
+                        end = winLen;
+                    }
+                    if (end != -1) {
+                        if (first) {
+                            hits++;
+                        }
+                        if (end > start && buf[end - 1] == '\r') {
+                            end--;
+                        }
+                        out.write(buf, start, end - start);
+                        out.write('\n');
+                        return;
+                    }
+                    if (start == 0) {
+                        // the line is longer than the window
+                        readSize = readSize * 2;
+                        if (buf.length < readSize) {
+                            buf = new byte[readSize];
+                        }
+                    }
+                } else if (first) {
+                    // adjust the window size based on how many lines the last window was used for
+                    if (hits < 4) {
+                        readSize = Math.max(readSize / 2, MIN_READ);
+                    } else {
+                        readSize = Math.min(readSize * 2, Math.max(MAX_READ, readSize));
+                    }
+                }
+                first = false;
+                fill(offset);
+            }
+        }
+
+        private void fill(long offset) throws IOException {
+            ByteBuffer bb = ByteBuffer.wrap(buf, 0, Math.min(readSize, buf.length));
+            winStart = offset;
+            hits = 0;
+            while (bb.hasRemaining()) {
+                int n = channel.read(bb, offset + bb.position());
+                if (n <= 0) {
+                    break;
+                }
+            }
+            winLen = bb.position();
+            if (winLen == 0) {
+                throw new EOFException("Unable to read line at offset: " + offset);
+            }
+        }
+
+        void close() throws IOException {
+            fis.close();
+        }
+    }
+}
@@ -1,15 +1,19 @@
 package io.compgen.ngsutils.cli.bam;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.util.CloseableIterator;
@@ -31,6 +35,7 @@ import io.compgen.ngsutils.bam.support.ReadUtils;
 import io.compgen.ngsutils.pileup.BAMPileup;
 import io.compgen.ngsutils.pileup.PileupRecord;
 import io.compgen.ngsutils.pileup.PileupRecord.PileupBaseCall;
+import io.compgen.ngsutils.pileup.PileupScheduler;
 
 @Command(name="bam-basecall", 
 		 desc="For a BAM file, output the basecalls (ACGTN) at each genomic position.", 
@@ -62,7 +67,26 @@ public class BamBaseCall extends AbstractOutputCommand {
     private boolean exportDepth = false;
     
     private String bedOutputTemplate = null;
-    
+
+    private int threads = 1;
+    private int chunkSize = 1000000;
+
+    @Option(desc="Number of threads to use (regions are split into chunks that are piled up in parallel)", name="threads", defaultValue="1")
+    public void setThreads(int threads) throws CommandArgumentException {
+        if (threads < 1) {
+            throw new CommandArgumentException("--threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    @Option(desc="Chunk size (bp) for --threads", name="chunk-size", defaultValue="1000000")
+    public void setChunkSize(int chunkSize) throws CommandArgumentException {
+        if (chunkSize < 1) {
+            throw new CommandArgumentException("--chunk-size must be at least 1");
+        }
+        this.chunkSize = chunkSize;
+    }
+
     @Option(desc = "Only keep properly paired reads", name = "proper-pairs")
     public void setProperPairs(boolean val) {
         if (val) {
@@ -231,6 +255,10 @@ public class BamBaseCall extends AbstractOutputCommand {
         }
         TabWriter writer=null;
 
+        if (threads > 1) {
+            execThreaded(header, pileup);
+            return;
+        }
         
         if (region != null) {
             writer = setupWriter(out, pileup);
@@ -305,6 +333,101 @@ public class BamBaseCall extends AbstractOutputCommand {
 		}
 	}
 
+    /**
+     * Pile up the regions (or the whole genome) in chunks on separate threads. The output is the
+     * same as the single threaded version.
+     */
+    private void execThreaded(final SAMFileHeader header, BAMPileup pileup) throws IOException, CommandArgumentException {
+        PileupScheduler scheduler = new PileupScheduler(pileup, threads, chunkSize);
+        PileupScheduler.ChunkWriter chunkWriter = new PileupScheduler.ChunkWriter() {
+            @Override
+            public void write(CloseableIterator<PileupRecord> it, GenomeSpan chunk, TabWriter writer) throws IOException {
+                writePileupRecords(it, header, writer, chunk);
+            }};
+
+        if (region != null) {
+            GenomeSpan span = GenomeSpan.parse(region);
+            if (header.getSequence(span.ref) == null) {
+                throw new CommandArgumentException("BAM file missing reference: " + span.ref);
+            }
+            if (span.start < 0) {
+                span = new GenomeSpan(span.ref, 0, header.getSequence(span.ref).getSequenceLength());
+            }
+            writeHeader(out, pileup);
+            scheduler.run(Collections.singletonList(span), chunkWriter, out);
+            out.close();
+
+        } else if (bedFilename != null) {
+            StringLineReader strReader = new StringLineReader(bedFilename);
+            Set<String> chromMissingError = new HashSet<String>();
+            int regionCount=0;
+
+            List<GenomeSpan> spans = new ArrayList<GenomeSpan>();
+            List<String> names = new ArrayList<String>();
+
+            for (String line: strReader) {
+                if (line.startsWith("#") || line.trim().length()==0) {
+                    continue;
+                }
+                String[] cols = StringUtils.strip(line).split("\t");
+                String chrom = cols[0];
+                int start = Integer.parseInt(cols[1]);
+                int end = Integer.parseInt(cols[2]);
+                String name = "region_"+(++regionCount);
+
+                if (cols.length > 3) {
+                    name = cols[3];
+                }
+
+                if (header.getSequence(chrom) == null) {
+                    if (!chromMissingError.contains(chrom)) {
+                        System.err.println("BAM file missing reference: " + chrom);
+                        chromMissingError.add(chrom);
+                    }
+                    continue;
+                }
+
+                spans.add(new GenomeSpan(chrom, start, end));
+                names.add(name);
+            }
+            strReader.close();
+
+            if (bedOutputTemplate != null) {
+                // each region is written to its own file (the chunks in a region run in parallel)
+                for (int i=0; i<spans.size(); i++) {
+                    OutputStream regionOut = new BufferedOutputStream(new FileOutputStream(bedOutputTemplate+names.get(i)+".txt"));
+                    writeHeader(regionOut, pileup);
+                    scheduler.run(Collections.singletonList(spans.get(i)), chunkWriter, regionOut);
+                    regionOut.close();
+                }
+            } else {
+                writeHeader(out, pileup);
+                scheduler.run(spans, chunkWriter, out);
+                out.close();
+            }
+
+        } else {
+            if (minDepth == 0) {
+                // references without any reads aren't written, which we can't tell from a chunk
+                throw new CommandArgumentException("--threads requires --region or --bed when --min-depth is 0");
+            }
+
+            List<GenomeSpan> spans = new ArrayList<GenomeSpan>();
+            for (SAMSequenceRecord seq: header.getSequenceDictionary().getSequences()) {
+                spans.add(new GenomeSpan(seq.getSequenceName(), 0, seq.getSequenceLength()));
+            }
+            writeHeader(out, pileup);
+            scheduler.run(spans, chunkWriter, out);
+            out.close();
+        }
+    }
+
+    private void writeHeader(OutputStream out, BAMPileup pileup) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        setupWriter(buf, pileup).close();
+        out.write(buf.toByteArray());
+    }
+
     private TabWriter setupWriter(OutputStream out, BAMPileup pileup) throws IOException {
         TabWriter writer = new TabWriter(out);
         writer.write_line("## program: " + NGSUtils.getVersion());
@@ -316,7 +439,11 @@ public class BamBaseCall extends AbstractOutputCommand {
               writer.write_line("## region: " + region);
         }
 
-        writer.write("## pileup-cmd: "+StringUtils.join(" ", pileup.getCommand()));
+        if (pileup.useSamtools()) {
+            writer.write("## pileup-cmd: "+StringUtils.join(" ", pileup.getCommand()));
+        } else {
+            writer.write("## pileup: "+pileup.getEngineSettings());
+        }
         writer.eol();
 
         writer.write("chrom", "pos", "ref", "A", "C", "G", "T", "N");
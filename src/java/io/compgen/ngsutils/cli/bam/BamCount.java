@@ -1,14 +1,33 @@
 package io.compgen.ngsutils.cli.bam;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import htsjdk.samtools.SAMFileHeader.SortOrder;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
@@ -21,6 +40,7 @@ import io.compgen.cmdline.impl.AbstractOutputCommand;
 import io.compgen.common.IterUtils;
 import io.compgen.common.StringUtils;
 import io.compgen.common.TabWriter;
+import io.compgen.common.progress.FileChannelStats;
 import io.compgen.common.progress.IncrementingStats;
 import io.compgen.common.progress.ProgressUtils;
 import io.compgen.ngsutils.NGSUtils;
@@ -34,6 +54,7 @@ import io.compgen.ngsutils.cli.bam.count.GTFSpans;
 import io.compgen.ngsutils.cli.bam.count.SpanGroup;
 import io.compgen.ngsutils.cli.bam.count.SpanSource;
 import io.compgen.ngsutils.cli.bam.count.TabixSpans;
+import io.compgen.ngsutils.support.CloseableFinalizer;
 
 @Command(name="bam-count", desc="Counts the number of reads for genes (GTF), within a BED region, or by bins (--gtf, --bed, or --bins required)", category="bam")
 public class BamCount extends AbstractOutputCommand {
@@ -57,6 +78,11 @@ public class BamCount extends AbstractOutputCommand {
     private boolean unique = false;
     
     private boolean startOnly = false;
+    private boolean stream = false;
+    private int threads = 1;
+
+    // span groups per batch for --threads
+    private static final int BATCH_SIZE = 100;
 
     private int filterFlags = 0;
     private int requiredFlags = 0;
@@ -189,6 +215,19 @@ public class BamCount extends AbstractOutputCommand {
         startOnly = val;
     }
 
+    @Option(desc="Read the BAM file once from start to end (must be coordinate sorted), instead of querying each region. Faster when counting many regions (bins, genes).", name="stream")
+    public void setStream(boolean val) {
+        stream = val;
+    }
+
+    @Option(desc="Number of threads to use (each thread counts a batch of regions, requires an indexed BAM file)", name="threads", defaultValue="1")
+    public void setThreads(int threads) throws CommandArgumentException {
+        if (threads < 1) {
+            throw new CommandArgumentException("--threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+
     @Exec
     public void exec() throws CommandArgumentException, IOException {
         int sources = 0;
@@ -208,6 +247,12 @@ public class BamCount extends AbstractOutputCommand {
         if (sources != 1) {
             throw new CommandArgumentException("You must specify one of --bins, --bed, --tabix, --vcf or --gtf!");
         }
+        if (threads > 1 && stream) {
+            throw new CommandArgumentException("--threads can't be used with --stream");
+        }
+        if (threads > 1 && samFilename.equals("-")) {
+            throw new CommandArgumentException("--threads requires an indexed BAM file");
+        }
         
         SamReaderFactory readerFactory = SamReaderFactory.makeDefault();
         if (lenient) {
@@ -241,7 +286,21 @@ public class BamCount extends AbstractOutputCommand {
             writer.write_line("## gtf-tags: " + StringUtils.join(",", requiredTags));
         }
 
-        SamReader reader = readerFactory.open(new File(samFilename));
+        SamReader reader;
+        FileChannel channel = null;
+        if (stream) {
+            FileInputStream fis = new FileInputStream(samFilename);
+            channel = fis.getChannel();
+            reader = readerFactory.open(SamInputResource.of(fis));
+            if (reader.getFileHeader().getSortOrder() != SortOrder.coordinate) {
+                reader.close();
+                writer.close();
+                throw new CommandArgumentException("--stream requires a coordinate-sorted BAM file!");
+            }
+        } else {
+            reader = readerFactory.open(new File(samFilename));
+        }
+
         String name;
         SpanSource spanSource = null;
         if (binSize > 0) {
@@ -288,6 +347,30 @@ public class BamCount extends AbstractOutputCommand {
         writer.eol();
 
         
+        if (threads > 1) {
+            boolean missingReferences;
+            try {
+                missingReferences = execThreaded(readerFactory, reader, spanSource, writer, name);
+            } finally {
+                writer.close();
+                reader.close();
+            }
+            if (missingReferences) {
+                System.err.println("WARNING: Some references/chromosomes in the GTF file were not found in the BAM file");
+            }
+            return;
+        }
+
+        if (stream) {
+            boolean missingReferences = execStream(reader, channel, spanSource, writer);
+            writer.close();
+            reader.close();
+            if (missingReferences) {
+                System.err.println("WARNING: Some references/chromosomes in the GTF file were not found in the BAM file");
+            }
+            return;
+        }
+
         int spanCount = 0;
         boolean missingReferences = false;
         
@@ -305,129 +388,499 @@ public class BamCount extends AbstractOutputCommand {
                 continue;
             }
             
-            int count = 0;
-            int proper_count = 0;
-            int notproper_count = 0;
-            int insert_count = 0;
-            long insert_acc = 0;
-            int inverted_count = 0;
-            
-            Set<String> reads = new HashSet<String>();
+            writeCounts(writer, spanGroup, countGroup(reader, spanGroup));
+        }
 
-            for (GenomeSpan span: spanGroup) {
-                
-                int spanStart = span.start+1;
-                int spanEnd = span.end;
-                SAMRecordIterator it = reader.query(spanGroup.getRefName(), spanStart, spanEnd, contained);
-                while (it.hasNext()) {
-                    SAMRecord read = it.next();
-                    
-                    if ((read.getFlags() & requiredFlags) != requiredFlags) {
-                        // if missing a required flag, skip
-                        continue;
-                    }
+        writer.close();
+        reader.close();
+        if (missingReferences) {
+            System.err.println("WARNING: Some references/chromosomes in the GTF file were not found in the BAM file");
+        }
+    }
+    
+    /**
+     * Running counts for one SpanGroup
+     */
+    private static class SpanCounts {
+        int count = 0;
+        int proper_count = 0;
+        int notproper_count = 0;
+        int insert_count = 0;
+        long insert_acc = 0;
+        int inverted_count = 0;
+
+        void add(SpanCounts other) {
+            count += other.count;
+            proper_count += other.proper_count;
+            notproper_count += other.notproper_count;
+            insert_count += other.insert_count;
+            insert_acc += other.insert_acc;
+            inverted_count += other.inverted_count;
+        }
+    }
 
-                    if ((read.getFlags() & filterFlags) > 0) {
-                        // if has any filter flag, skip
-                        continue;
-                    }
+    /**
+     * Count the reads for a group (using indexed queries for each span)
+     */
+    private SpanCounts countGroup(SamReader reader, SpanGroup spanGroup) {
+        SpanCounts counts = new SpanCounts();
+        Set<String> reads = new HashSet<String>();
+
+        for (GenomeSpan span: spanGroup) {
+            SAMRecordIterator it = reader.query(spanGroup.getRefName(), span.start+1, span.end, contained);
+            while (it.hasNext()) {
+                SAMRecord read = it.next();
+                if (!reads.contains(read.getReadName()) && acceptRead(read, spanGroup, span)) {
+                    reads.add(read.getReadName());
+                    addRead(read, counts);
+                }
+            }
+            it.close();
+        }
+        return counts;
+    }
 
-                    if (!reads.contains(read.getReadName())) {
-                        if (spanGroup.getStrand() == Strand.NONE || orient == Orientation.UNSTRANDED || (ReadUtils.getFragmentEffectiveStrand(read, orient) == spanGroup.getStrand())) {
-                            if (startOnly) {                                
-                                if (read.getReadPairedFlag() && read.getSecondOfPairFlag()) {
-                                    continue;
-                                }
-                                
-                                int startpos;
-                                if (ReadUtils.getFragmentEffectiveStrand(read, orient) == Strand.PLUS) {
-                                    startpos = read.getAlignmentStart()-1;
-                                } else {
-                                    startpos = read.getAlignmentEnd();
-                                }
-                                
-                                if (!span.contains(new GenomeSpan(spanGroup.getRefName(), startpos))) {
-                                    continue;
-                                }
-                                
-                            }
+    /**
+     * Does a read that overlaps a span in a group pass the filters? Each read name (pair)
+     * should only be counted once per group, which is up to the caller.
+     */
+    private boolean acceptRead(SAMRecord read, SpanGroup spanGroup, GenomeSpan span) {
+        if ((read.getFlags() & requiredFlags) != requiredFlags) {
+            // if missing a required flag, skip
+            return false;
+        }
 
-                            // is any part of the read w/in the span?
-                            boolean inspan = false;
-                            for (int j=1; j<=read.getReadLength(); j++) {
-                                int refpos = read.getReferencePositionAtReadPosition(j) - 1;
-                                if (spanStart <=  refpos && refpos < spanEnd) {
-                                    inspan=true;
-                                    break;
-                                }
-                            }
-                            
-                            if (!inspan) {
-                                continue;
-                            }
-                            
-                            reads.add(read.getReadName());
-                            
-                            if (unique && !ReadUtils.isReadUniquelyMapped(read)) {
-                                continue;                                    
-                            }
-                            
-                            count ++;
-                            if (proper) {
-                                if (read.getReadPairedFlag() && read.getProperPairFlag()) {
-                                    proper_count ++;
-                                } else if (read.getReadPairedFlag() && !read.getProperPairFlag()) {
-                                    notproper_count ++;
-                                }
+        if ((read.getFlags() & filterFlags) > 0) {
+            // if has any filter flag, skip
+            return false;
+        }
+
+        if (spanGroup.getStrand() != Strand.NONE && orient != Orientation.UNSTRANDED && (ReadUtils.getFragmentEffectiveStrand(read, orient) != spanGroup.getStrand())) {
+            return false;
+        }
+
+        if (startOnly) {
+            if (read.getReadPairedFlag() && read.getSecondOfPairFlag()) {
+                return false;
+            }
+
+            int startpos;
+            if (ReadUtils.getFragmentEffectiveStrand(read, orient) == Strand.PLUS) {
+                startpos = read.getAlignmentStart()-1;
+            } else {
+                startpos = read.getAlignmentEnd();
+            }
+
+            if (!span.contains(new GenomeSpan(spanGroup.getRefName(), startpos))) {
+                return false;
+            }
+        }
+
+        int spanStart = span.start+1;
+        int spanEnd = span.end;
+
+        // is any part of the read w/in the span?
+        boolean inspan = false;
+        for (int j=1; j<=read.getReadLength(); j++) {
+            int refpos = read.getReferencePositionAtReadPosition(j) - 1;
+            if (spanStart <=  refpos && refpos < spanEnd) {
+                inspan=true;
+                break;
+            }
+        }
+
+        if (!inspan) {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Add an accepted read to the counts
+     */
+    private void addRead(SAMRecord read, SpanCounts counts) {
+        if (unique && !ReadUtils.isReadUniquelyMapped(read)) {
+            return;
+        }
+
+        counts.count ++;
+        if (proper) {
+            if (read.getReadPairedFlag() && read.getProperPairFlag()) {
+                counts.proper_count ++;
+            } else if (read.getReadPairedFlag() && !read.getProperPairFlag()) {
+                counts.notproper_count ++;
+            }
+        }
+        if (insert) {
+            if (read.getReadPairedFlag() && read.getProperPairFlag()) {
+                counts.insert_acc += Math.abs(read.getInferredInsertSize());
+                counts.insert_count ++;
+            }
+        }
+        if (inverted) {
+            if (read.getReadPairedFlag() && read.getProperPairFlag() && read.getReadNegativeStrandFlag() == read.getMateNegativeStrandFlag()) {
+                counts.inverted_count ++;
+            }
+        }
+    }
+
+    private void writeCounts(TabWriter writer, SpanGroup spanGroup, SpanCounts counts) throws IOException {
+        writer.write(spanGroup.getFields());
+        writer.write(counts.count);
+        if (proper) {
+            writer.write(counts.proper_count);
+            writer.write(counts.notproper_count);
+            if (counts.proper_count > 0) {
+                writer.write((double) counts.notproper_count / counts.proper_count);
+            } else {
+                writer.write(0);
+            }
+        }
+        if (insert) {
+            if (counts.insert_count > 0) {
+                writer.write((double) counts.insert_acc / counts.insert_count);
+            } else {
+                writer.write(0);
+            }
+        }
+        if (inverted) {
+            writer.write(counts.inverted_count);
+        }
+        writer.eol();
+    }
+
+    /**
+     * Results for a batch of span groups (null counts for groups on missing references)
+     */
+    private static class CountBatch {
+        final List<SpanGroup> groups;
+        final List<SpanCounts> counts;
+
+        CountBatch(List<SpanGroup> groups, List<SpanCounts> counts) {
+            this.groups = groups;
+            this.counts = counts;
+        }
+    }
+
+    /**
+     * Count batches of span groups in separate threads. Each thread has its own SamReader (and
+     * uses indexed queries, like the single threaded version). Batches are written in the same
+     * order as the span source, so the output is the same as the single threaded version.
+     *
+     * @return true if some spans were on references that aren't in the BAM file
+     */
+    private boolean execThreaded(final SamReaderFactory readerFactory, final SamReader reader, SpanSource spanSource, TabWriter writer, String name) throws CommandArgumentException, IOException {
+        if (!reader.hasIndex()) {
+            throw new CommandArgumentException("--threads requires an indexed BAM file");
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "bam-count");
+                t.setDaemon(true);
+                return t;
+            }});
+
+        // each thread gets its own reader (SamReaders aren't thread-safe)
+        final List<SamReader> opened = Collections.synchronizedList(new ArrayList<SamReader>());
+        final ThreadLocal<SamReader> readers = new ThreadLocal<SamReader>();
+        final SAMSequenceDictionary dict = reader.getFileHeader().getSequenceDictionary();
+
+        Deque<Future<CountBatch>> pending = new ArrayDeque<Future<CountBatch>>();
+        boolean missingReferences = false;
+
+        try {
+            Iterator<SpanGroup> it = ProgressUtils.getIterator(name, spanSource.iterator(), new IncrementingStats(spanSource.size()));
+            while (it.hasNext() || !pending.isEmpty()) {
+                // keep a few batches per thread queued
+                while (it.hasNext() && pending.size() < threads * 4) {
+                    final List<SpanGroup> groups = new ArrayList<SpanGroup>(BATCH_SIZE);
+                    while (it.hasNext() && groups.size() < BATCH_SIZE) {
+                        SpanGroup spanGroup = it.next();
+                        if (spanGroup != null) {
+                            groups.add(spanGroup);
+                        }
+                    }
+                    pending.add(pool.submit(new Callable<CountBatch>() {
+                        @Override
+                        public CountBatch call() throws Exception {
+                            SamReader threadReader = readers.get();
+                            if (threadReader == null) {
+                                threadReader = readerFactory.open(new File(samFilename));
+                                readers.set(threadReader);
+                                opened.add(threadReader);
                             }
-                            if (insert) {
-                                if (read.getReadPairedFlag() && read.getProperPairFlag()) {
-                                    insert_acc += Math.abs(read.getInferredInsertSize());
-                                    insert_count ++;
+                            List<SpanCounts> counts = new ArrayList<SpanCounts>(groups.size());
+                            for (SpanGroup spanGroup: groups) {
+                                if (dict.getSequence(spanGroup.getRefName()) == null) {
+                                    counts.add(null);
+                                } else {
+                                    counts.add(countGroup(threadReader, spanGroup));
                                 }
                             }
-                            if (inverted) {
-                                if (read.getReadPairedFlag() && read.getProperPairFlag() && read.getReadNegativeStrandFlag() == read.getMateNegativeStrandFlag()) {
-                                    inverted_count ++;
-                                }
+                            return new CountBatch(groups, counts);
+                        }}));
+                }
+
+                if (pending.isEmpty()) {
+                    break;
+                }
+
+                CountBatch batch;
+                try {
+                    batch = pending.poll().get();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                }
+
+                for (int i = 0; i < batch.groups.size(); i++) {
+                    if (batch.counts.get(i) == null) {
+                        missingReferences = true;
+                    } else {
+                        writeCounts(writer, batch.groups.get(i), batch.counts.get(i));
+                    }
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            synchronized (opened) {
+                for (SamReader r: opened) {
+                    r.close();
+                }
+            }
+        }
+        return missingReferences;
+    }
+
+    /**
+     * A SpanGroup (and its counts) waiting to be written in --stream mode
+     */
+    private static class StreamGroup {
+        final SpanGroup spanGroup;
+
+        // counts for each read name -- the query mode counts the first read for a name found
+        // (in span order, then read order), so the read that is kept for a name can change if
+        // the spans aren't sorted, or if the pairs have different values (ex: NH tags).
+        Map<String, StreamRead> reads = new HashMap<String, StreamRead>();
+        int remaining;
+        boolean done;
+        boolean missing = false;
+
+        StreamGroup(SpanGroup spanGroup) {
+            this.spanGroup = spanGroup;
+            this.remaining = spanGroup.size();
+            // a group with no spans (ex: a gene without exons) has nothing to count
+            this.done = (remaining == 0);
+        }
+
+        SpanCounts getCounts() {
+            SpanCounts counts = new SpanCounts();
+            for (StreamRead read: reads.values()) {
+                counts.add(read.counts);
+            }
+            return counts;
+        }
+    }
+
+    private static class StreamRead {
+        final int spanIdx;
+        final SpanCounts counts = new SpanCounts();
+
+        StreamRead(int spanIdx) {
+            this.spanIdx = spanIdx;
+        }
+    }
+
+    private static class StreamSpan {
+        final GenomeSpan span;
+        final int spanIdx;
+        final StreamGroup group;
+
+        StreamSpan(GenomeSpan span, int spanIdx, StreamGroup group) {
+            this.span = span;
+            this.spanIdx = spanIdx;
+            this.group = group;
+        }
+    }
+
+    /**
+     * Count reads by reading the BAM file once and sweeping the reads against the spans for
+     * each reference. The spans for a reference must be together in the span source, but the
+     * references can be in any order, and the spans for a reference don't need to be sorted.
+     * Output is written in the same order as the span source.
+     *
+     * @return true if some spans were on references that aren't in the BAM file
+     */
+    private boolean execStream(SamReader reader, FileChannel channel, SpanSource spanSource, TabWriter writer) throws CommandArgumentException, IOException {
+        SAMSequenceDictionary dict = reader.getFileHeader().getSequenceDictionary();
+
+        // groups in output order (written once they are done)
+        Deque<StreamGroup> outQueue = new ArrayDeque<StreamGroup>();
+
+        // groups for references that haven't been counted yet
+        Map<String, List<StreamGroup>> refGroups = new HashMap<String, List<StreamGroup>>();
+        Set<String> finishedRefs = new HashSet<String>();
+        String curRef = null;
+
+        boolean missingReferences = false;
+
+        Iterator<SpanGroup> spanIt = spanSource.iterator();
+
+        Iterator<SAMRecord> it = ProgressUtils.getIterator(new File(samFilename).getName(), reader.iterator(), (channel == null)? null : new FileChannelStats(channel), new CloseableFinalizer<SAMRecord>());
+        SAMRecord read = it.hasNext() ? it.next(): null;
+
+        for (SAMSequenceRecord seq: dict.getSequences()) {
+            String ref = seq.getSequenceName();
+
+            // read spans until we have all of the spans for this reference
+            while (!finishedRefs.contains(ref) && spanIt.hasNext()) {
+                SpanGroup spanGroup = spanIt.next();
+                if (spanGroup == null) {
+                    continue;
+                }
+                StreamGroup group = new StreamGroup(spanGroup);
+                outQueue.add(group);
+
+                if (dict.getSequence(spanGroup.getRefName()) == null) {
+                    group.missing = true;
+                    group.done = true;
+                    missingReferences = true;
+                    continue;
+                }
+
+                if (!spanGroup.getRefName().equals(curRef)) {
+                    if (curRef != null) {
+                        finishedRefs.add(curRef);
+                    }
+                    curRef = spanGroup.getRefName();
+                    if (finishedRefs.contains(curRef)) {
+                        throw new CommandArgumentException("--stream requires the regions for each reference to be together (ex: sorted)! Found " + curRef + " more than once.");
+                    }
+                    refGroups.put(curRef, new ArrayList<StreamGroup>());
+                }
+                refGroups.get(curRef).add(group);
+            }
+            if (!spanIt.hasNext() && curRef != null) {
+                finishedRefs.add(curRef);
+            }
+
+            List<StreamSpan> spans = new ArrayList<StreamSpan>();
+            List<StreamGroup> groups = refGroups.remove(ref);
+            if (groups != null) {
+                for (StreamGroup group: groups) {
+                    for (int i = 0; i < group.spanGroup.size(); i++) {
+                        spans.add(new StreamSpan(group.spanGroup.get(i), i, group));
+                    }
+                }
+            }
+            spans.sort(new Comparator<StreamSpan>() {
+                @Override
+                public int compare(StreamSpan o1, StreamSpan o2) {
+                    return Integer.compare(o1.span.start, o2.span.start);
+                }});
+
+            int nextSpan = 0;
+            List<StreamSpan> active = new ArrayList<StreamSpan>();
+            int lastStart = 0;
+
+            while (read != null && read.getReferenceIndex() == seq.getSequenceIndex()) {
+                if (read.getAlignmentStart() < lastStart) {
+                    throw new CommandArgumentException("BAM file is not sorted by coordinate! (" + read.getReadName() + " " + ref + ":" + read.getAlignmentStart() + ")");
+                }
+                lastStart = read.getAlignmentStart();
+
+                if (!read.getReadUnmappedFlag()) {
+                    int readStart = read.getAlignmentStart();
+                    int readEnd = read.getAlignmentEnd();
+
+                    // add spans that start before this read ends (1-based)
+                    while (nextSpan < spans.size() && spans.get(nextSpan).span.start + 1 <= readEnd) {
+                        active.add(spans.get(nextSpan++));
+                    }
+
+                    // remove spans that end before this read starts, and count the others
+                    int j = 0;
+                    boolean retired = false;
+                    for (int i = 0; i < active.size(); i++) {
+                        StreamSpan s = active.get(i);
+                        if (s.span.end < readStart) {
+                            if (--s.group.remaining == 0) {
+                                s.group.done = true;
+                                retired = true;
                             }
+                            continue;
+                        }
+                        active.set(j++, s);
+
+                        if (s.span.start + 1 > readEnd) {
+                            continue;
+                        }
+                        if (contained && (readStart < s.span.start + 1 || readEnd > s.span.end)) {
+                            continue;
+                        }
+
+                        StreamRead prev = s.group.reads.get(read.getReadName());
+                        if ((prev == null || s.spanIdx < prev.spanIdx) && acceptRead(read, s.group.spanGroup, s.span)) {
+                            StreamRead sr = new StreamRead(s.spanIdx);
+                            addRead(read, sr.counts);
+                            s.group.reads.put(read.getReadName(), sr);
                         }
                     }
+                    while (active.size() > j) {
+                        active.remove(active.size() - 1);
+                    }
+                    if (retired) {
+                        writeDone(writer, outQueue);
+                    }
                 }
-                it.close();
+
+                read = it.hasNext() ? it.next(): null;
             }
 
-            writer.write(spanGroup.getFields());
-            writer.write(count);
-            if (proper) {
-                writer.write(proper_count);
-                writer.write(notproper_count);
-                if (proper_count > 0) {
-                    writer.write((double) notproper_count / proper_count);
-                } else {
-                    writer.write(0);
-                }
+            if (read != null && read.getReferenceIndex() >= 0 && read.getReferenceIndex() < seq.getSequenceIndex()) {
+                throw new CommandArgumentException("BAM file is not sorted by coordinate! (" + read.getReadName() + " " + read.getReferenceName() + ":" + read.getAlignmentStart() + ")");
             }
-            if (insert) {
-                if (insert_count > 0) {
-                    writer.write((double) insert_acc / insert_count);
-                } else {
-                    writer.write(0);
+
+            if (groups != null) {
+                for (StreamGroup group: groups) {
+                    group.done = true;
                 }
             }
-            if (inverted) {
-                writer.write(inverted_count);
+            writeDone(writer, outQueue);
+        }
+
+        // any remaining spans aren't in the BAM file
+        while (spanIt.hasNext()) {
+            if (spanIt.next() != null) {
+                missingReferences = true;
             }
-            writer.eol();
         }
 
-        writer.close();
-        reader.close();
-        if (missingReferences) {
-            System.err.println("WARNING: Some references/chromosomes in the GTF file were not found in the BAM file");
+        writeDone(writer, outQueue);
+        return missingReferences;
+    }
+
+    /**
+     * Write out the finished groups at the front of the queue (the output stays in the same
+     * order as the span source).
+     */
+    private void writeDone(TabWriter writer, Deque<StreamGroup> outQueue) throws IOException {
+        while (!outQueue.isEmpty() && outQueue.peek().done) {
+            StreamGroup group = outQueue.poll();
+            if (!group.missing) {
+                writeCounts(writer, group.spanGroup, group.getCounts());
+            }
+            group.reads = null;
         }
     }
-    
+
     protected int calcTranscriptSize(int[] starts, int[] ends) {
         List<Integer[]> intervals = new ArrayList<Integer[]>();
 
@@ -401,7 +401,11 @@ public class BamPhaseInformativeReads extends AbstractOutputCommand {
         	writer.write_line("## only-snvs");
         }
 
-        writer.write("## pileup-cmd: "+StringUtils.join(" ", pileup.getCommand()));
+        if (pileup.useSamtools()) {
+            writer.write("## pileup-cmd: "+StringUtils.join(" ", pileup.getCommand()));
+        } else {
+            writer.write("## pileup: "+pileup.getEngineSettings());
+        }
         writer.eol();
 
         writer.write("#chrom", "pos", "ref", "alt");
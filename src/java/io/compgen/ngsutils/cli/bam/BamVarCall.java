@@ -1,5 +1,6 @@
 package io.compgen.ngsutils.cli.bam;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -13,6 +14,7 @@ import java.util.Map;
 import java.util.Set;
 
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.util.CloseableIterator;
@@ -36,6 +38,7 @@ import io.compgen.ngsutils.bam.support.BaseTally.BaseCount;
 import io.compgen.ngsutils.bam.support.ReadUtils;
 import io.compgen.ngsutils.pileup.BAMPileup;
 import io.compgen.ngsutils.pileup.PileupRecord;
+import io.compgen.ngsutils.pileup.PileupScheduler;
 import io.compgen.ngsutils.support.stats.StatUtils;
 
 @Command(name="bam-varcall", 
@@ -84,7 +87,25 @@ public class BamVarCall extends AbstractOutputCommand {
 
     private int requiredFlags = 0;
     private int filterFlags = 0;
-    
+
+    private int threads = 1;
+    private int chunkSize = 1000000;
+
+    @Option(desc="Number of threads to use (regions are split into chunks that are piled up in parallel)", name="threads", defaultValue="1")
+    public void setThreads(int threads) throws CommandArgumentException {
+        if (threads < 1) {
+            throw new CommandArgumentException("--threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    @Option(desc="Chunk size (bp) for --threads", name="chunk-size", defaultValue="1000000")
+    public void setChunkSize(int chunkSize) throws CommandArgumentException {
+        if (chunkSize < 1) {
+            throw new CommandArgumentException("--chunk-size must be at least 1");
+        }
+        this.chunkSize = chunkSize;
+    }
     
     @Option(desc = "Use tumor-only statistics for variants calling (set when not including a normal BAM file)", name = "tumor-only")
     public void setTumorOnly(boolean val) {
@@ -282,6 +303,10 @@ public class BamVarCall extends AbstractOutputCommand {
         pileup.setRefFilename(fastaFilename);
         TabWriter writer=null;
 
+        if (threads > 1) {
+            execThreaded(header, pileup);
+            return;
+        }
         
         if (region != null) {
             writer = setupWriter(out, pileup);
@@ -364,6 +389,73 @@ public class BamVarCall extends AbstractOutputCommand {
 		}
 	}
 
+    /**
+     * Call variants for the regions (or the whole genome) in chunks on separate threads. The
+     * output is the same as the single threaded version.
+     */
+    private void execThreaded(SAMFileHeader header, BAMPileup pileup) throws IOException, CommandArgumentException {
+        List<GenomeSpan> spans = new ArrayList<GenomeSpan>();
+
+        if (region != null) {
+            GenomeSpan span = GenomeSpan.parse(region);
+            if (header.getSequence(span.ref) == null) {
+                throw new CommandArgumentException("BAM file missing reference: " + span.ref);
+            }
+            if (span.start < 0) {
+                span = new GenomeSpan(span.ref, 0, header.getSequence(span.ref).getSequenceLength());
+            }
+            spans.add(span);
+
+        } else if (bedFilename != null) {
+            StringLineReader strReader = new StringLineReader(bedFilename);
+            Set<String> chromMissingError = new HashSet<String>();
+
+            for (String line: strReader) {
+                if (line.startsWith("#") || line.trim().length()==0) {
+                    continue;
+                }
+                String[] cols = StringUtils.strip(line).split("\t");
+                String chrom = cols[0];
+                int start = Integer.parseInt(cols[1]);
+                int end = Integer.parseInt(cols[2]);
+
+                if (header.getSequence(chrom) == null) {
+                    if (!chromMissingError.contains(chrom)) {
+                        System.err.println("BAM file missing reference: " + chrom);
+                        chromMissingError.add(chrom);
+                    }
+                    continue;
+                }
+
+                spans.add(new GenomeSpan(chrom, start, end));
+            }
+            strReader.close();
+
+        } else {
+            for (SAMSequenceRecord seq: header.getSequenceDictionary().getSequences()) {
+                spans.add(new GenomeSpan(seq.getSequenceName(), 0, seq.getSequenceLength()));
+            }
+        }
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        setupWriter(buf, pileup).close();
+        out.write(buf.toByteArray());
+
+        PileupScheduler scheduler = new PileupScheduler(pileup, threads, chunkSize);
+        scheduler.setName(new File(bam1Filename).getName());
+        scheduler.run(spans, new PileupScheduler.ChunkWriter() {
+            @Override
+            public void write(CloseableIterator<PileupRecord> it, GenomeSpan chunk, TabWriter writer) throws IOException {
+                while (it.hasNext()) {
+                    PileupRecord record = it.next();
+                    if (record.getSampleRecords(0).calls!=null && record.getSampleRecords(0).calls.size() > 0) {
+                        writeVCFRecord(record, writer);
+                    }
+                }
+            }}, out);
+        out.close();
+    }
+
     private TabWriter setupWriter(OutputStream out, BAMPileup pileup) throws IOException {
         TabWriter writer = new TabWriter(out);
         writer.write_line("##fileformat=VCFv4.2");
@@ -420,7 +512,11 @@ public class BamVarCall extends AbstractOutputCommand {
         }
         
         writer.write_line("##reference=file://"+new File(fastaFilename).getAbsolutePath());
-        writer.write_line("##pileup_cmd="+StringUtils.join(" ", pileup.getCommand()));
+        if (pileup.useSamtools()) {
+            writer.write_line("##pileup_cmd="+StringUtils.join(" ", pileup.getCommand()));
+        } else {
+            writer.write_line("##pileup="+pileup.getEngineSettings());
+        }
         
         writer.write_line("##ngsutilsj_version=" + NGSUtils.getVersion());
         writer.write_line("##ngsutilsj_cmd=" + NGSUtils.getArgs());
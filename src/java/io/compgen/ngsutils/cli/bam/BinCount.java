@@ -15,16 +15,15 @@ import io.compgen.cmdline.annotation.Command;
 import io.compgen.cmdline.annotation.Exec;
 import io.compgen.cmdline.annotation.Option;
 import io.compgen.cmdline.annotation.UnnamedArg;
+import io.compgen.cmdline.exceptions.CommandArgumentException;
 import io.compgen.cmdline.impl.AbstractOutputCommand;
-import io.compgen.common.TabWriter;
 import io.compgen.common.progress.FileChannelStats;
 import io.compgen.common.progress.ProgressMessage;
 import io.compgen.common.progress.ProgressUtils;
 import io.compgen.ngsutils.NGSUtils;
 import io.compgen.ngsutils.bam.Orientation;
-import io.compgen.ngsutils.bam.Strand;
+import io.compgen.ngsutils.cli.bam.count.BinCountWriter;
 import io.compgen.ngsutils.cli.bam.count.BinCounter;
-import io.compgen.ngsutils.cli.bam.count.BinCounter.BinCounterExporter;
 import io.compgen.ngsutils.support.CloseableFinalizer;
 
 @Command(name="bam-bins", desc="Quickly count the number of reads that fall into bins (bins assigned based on 5' end of the first read)", category="bam")
@@ -39,6 +38,7 @@ public class BinCount extends AbstractOutputCommand {
     
     private boolean stranded = false;
     private boolean showAll = false;
+    private boolean bedGraph = false;
     
     private Orientation orient = Orientation.UNSTRANDED;
     
@@ -61,6 +61,11 @@ public class BinCount extends AbstractOutputCommand {
         this.showAll = showAll;
     }
     
+    @Option(desc="Write the counts as a bedGraph file (no header, can't be used with --stranded)", name="bedgraph")
+    public void setBedGraph(boolean bedGraph) {
+        this.bedGraph = bedGraph;
+    }
+
     @Option(desc="Count bins in a strand-specific manner", name="stranded")
     public void setStranded(boolean stranded) {
         this.stranded = stranded;
@@ -98,7 +103,14 @@ public class BinCount extends AbstractOutputCommand {
     }
 
     @Exec
-    public void exec() throws IOException {
+    public void exec() throws IOException, CommandArgumentException {
+        if (bedGraph && stranded) {
+            throw new CommandArgumentException("--bedgraph can't be used with --stranded");
+        }
+        if (binSize < 1) {
+            throw new CommandArgumentException("--bins must be at least 1");
+        }
+
         SamReaderFactory readerFactory = SamReaderFactory.makeDefault();
         if (lenient) {
             readerFactory.validationStringency(ValidationStringency.LENIENT);
@@ -120,40 +132,25 @@ public class BinCount extends AbstractOutputCommand {
             name = f.getName();
         }
 
-        
-        final TabWriter writer = new TabWriter(out);
-        writer.write_line("## program: " + NGSUtils.getVersion());
-        writer.write_line("## cmd: " + NGSUtils.getArgs());
-        writer.write_line("## input: " + filename);
-        writer.write_line("## library-orientation: " + orient.toString());
-
-        
-        writer.write_line("## binsize: " + binSize);
-        writer.write_line("## stranded: " + (stranded? "true": "false"));
-        writer.write_line("## counts: number of reads per bin (bins assigned based on 5' end of the read)");
-
-        writer.write("chrom", "start", "end");
-        if (stranded) {
-            writer.write("strand");
+        BinCountWriter writer = new BinCountWriter(out, stranded);
+        if (!bedGraph) {
+            writer.writeLine("## program: " + NGSUtils.getVersion());
+            writer.writeLine("## cmd: " + NGSUtils.getArgs());
+            writer.writeLine("## input: " + filename);
+            writer.writeLine("## library-orientation: " + orient.toString());
+
+            writer.writeLine("## binsize: " + binSize);
+            writer.writeLine("## stranded: " + (stranded? "true": "false"));
+            writer.writeLine("## counts: number of reads per bin (bins assigned based on 5' end of the read)");
+
+            if (stranded) {
+                writer.writeLine("chrom\tstart\tend\tstrand\tcount");
+            } else {
+                writer.writeLine("chrom\tstart\tend\tcount");
+            }
         }
-        writer.write("count");
-        
-        writer.eol();
 
-        BinCounter counter = new BinCounter(orient, binSize, stranded, showAll, new BinCounterExporter() {
-            @Override
-            public void writeBin(String ref, int start, int end, Strand strand, int count) {
-                if (stranded) {
-                    writer.write(ref, ""+start, ""+end, strand.toString(), ""+count);
-                } else {
-                    writer.write(ref, ""+start, ""+end, ""+count);
-                }
-                try {
-                    writer.eol();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            }});
+        BinCounter counter = new BinCounter(orient, binSize, stranded, showAll, writer);
         
         Iterator<SAMRecord> it = ProgressUtils.getIterator(name, reader.iterator(), new FileChannelStats(channel), new ProgressMessage<SAMRecord>() {
 
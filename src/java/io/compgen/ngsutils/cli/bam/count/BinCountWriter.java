@@ -0,0 +1,103 @@
+package io.compgen.ngsutils.cli.bam.count;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import io.compgen.ngsutils.bam.Strand;
+import io.compgen.ngsutils.cli.bam.count.BinCounter.BinCounterExporter;
+
+/**
+ * Writes bin counts as tab-delimited lines (chrom, start, end, [strand,] count). Without
+ * the strand column, this is the same as a bedGraph file.
+ *
+ * Lines are formatted directly into a byte buffer (there can be one line for every 50bp
+ * of the genome, so we avoid building Strings for each line).
+ */
+public class BinCountWriter implements BinCounterExporter {
+    private final OutputStream out;
+    private final boolean stranded;
+
+    private final byte[] buf = new byte[64 * 1024];
+    private int pos = 0;
+
+    private String lastRef = null;
+    private byte[] lastRefBytes = null;
+
+    public BinCountWriter(OutputStream out, boolean stranded) {
+        this.out = out;
+        this.stranded = stranded;
+    }
+
+    public void writeLine(String line) throws IOException {
+        flushBuffer();
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void writeBin(String ref, int start, int end, Strand strand, int count) throws IOException {
+        if (ref != lastRef) {
+            lastRef = ref;
+            lastRefBytes = ref.getBytes(StandardCharsets.UTF_8);
+        }
+
+        // ref + 4 numbers (and delimiters)
+        if (pos + lastRefBytes.length + 64 > buf.length) {
+            flushBuffer();
+        }
+        if (lastRefBytes.length + 64 > buf.length) {
+            // really long reference name
+            out.write(lastRefBytes);
+        } else {
+            System.arraycopy(lastRefBytes, 0, buf, pos, lastRefBytes.length);
+            pos += lastRefBytes.length;
+        }
+
+        buf[pos++] = '\t';
+        writeInt(start);
+        buf[pos++] = '\t';
+        writeInt(end);
+        if (stranded) {
+            buf[pos++] = '\t';
+            buf[pos++] = (byte) strand.toString().charAt(0);
+        }
+        buf[pos++] = '\t';
+        writeInt(count);
+        buf[pos++] = '\n';
+    }
+
+    private void writeInt(int val) {
+        if (val < 0) {
+            if (val == Integer.MIN_VALUE) {
+                byte[] b = Integer.toString(val).getBytes(StandardCharsets.US_ASCII);
+                System.arraycopy(b, 0, buf, pos, b.length);
+                pos += b.length;
+                return;
+            }
+            buf[pos++] = '-';
+            val = -val;
+        }
+
+        int len = 1;
+        for (int tmp = val; tmp >= 10; tmp /= 10) {
+            len++;
+        }
+        for (int i = pos + len - 1; i >= pos; i--) {
+            buf[i] = (byte) ('0' + (val % 10));
+            val /= 10;
+        }
+        pos += len;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+    }
+
+    public void close() throws IOException {
+        flushBuffer();
+        out.close();
+    }
+}
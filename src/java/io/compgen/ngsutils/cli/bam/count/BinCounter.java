@@ -1,32 +1,42 @@
 package io.compgen.ngsutils.cli.bam.count;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.io.IOException;
+import java.util.Arrays;
 
 import htsjdk.samtools.SAMRecord;
 import io.compgen.ngsutils.bam.Orientation;
 import io.compgen.ngsutils.bam.Strand;
 import io.compgen.ngsutils.bam.support.ReadUtils;
 
+/**
+ * Counts reads in bins for a coordinate sorted BAM file. Bins are written (in order) as
+ * soon as no more reads can be added to them.
+ *
+ * Counts are kept in a ring buffer of ints (one for each strand) that starts at the
+ * current bin. The buffer only needs to cover the bins between the current read's start
+ * and the farthest read end seen (for minus strand reads), so it is usually very small. It
+ * grows as needed (ex: for spliced reads).
+ */
 public class BinCounter {
     public interface BinCounterExporter {
-        public void writeBin(String ref, int start, int end, Strand strand, int count);
+        public void writeBin(String ref, int start, int end, Strand strand, int count) throws IOException;
     }
-    
-    private SortedMap<Integer, Integer> plus = new TreeMap<Integer, Integer>();
-    private SortedMap<Integer, Integer> minus = new TreeMap<Integer, Integer>();
+
+    private static final int INITIAL_SIZE = 64;
+
+    private int[] plus = new int[INITIAL_SIZE];
+    private int[] minus = new int[INITIAL_SIZE];
+    private int mask = INITIAL_SIZE - 1;
 
     private final Orientation orient;
     private final int binSize;
     private final boolean stranded;
     private final boolean includeEmpty;
-    
+
     private BinCounterExporter callback;
-    
+
     private int curBin = 0;
-    
+
     private String refName = null;
     private int refId = -1;
     private int refLength = -1;
@@ -39,133 +49,101 @@ public class BinCounter {
         this.callback = callback;
     }
 
-    public void setCurrentReference(String name, int tid, int length) {
+    public void setCurrentReference(String name, int tid, int length) throws IOException {
         if (this.refName != null) {
             flush();
         }
 
-//        System.err.println("New reference: "+name);
         this.refName = name;
         this.refId = tid;
         this.refLength = length;
         this.curBin = 0;
+
+        // counts past the end of the last reference are dropped
+        Arrays.fill(plus, 0);
+        Arrays.fill(minus, 0);
     }
-    
-    public void flush() {
-//        System.err.println("Flushing reference: "+refName);
+
+    public void flush() throws IOException {
         // flush any remaining counts, add padding if needed
         while ((curBin * binSize) < refLength) {
-            int count = 0;
-            if (plus.containsKey(curBin)) {
-                count = plus.get(curBin);
-                plus.remove(curBin);
-            }
-            if (includeEmpty || count > 0) {                
-                int binEnd = Math.min((curBin + 1) * binSize, refLength);
-                callback.writeBin(refName, curBin * binSize, binEnd, Strand.PLUS, count);
-            }
-            count = 0;
-            if (stranded) {
-                if (minus.containsKey(curBin)) {
-                    count = minus.get(curBin);
-                    minus.remove(curBin);
-                }
-                if (includeEmpty || count > 0) {
-                    int binEnd = Math.min((curBin + 1) * binSize, refLength);
-                    callback.writeBin(refName, curBin * binSize, binEnd, Strand.MINUS, count);
-                }
+            writeCurrentBin();
+        }
+    }
+
+    /**
+     * Write the counts for the current bin, and move to the next bin
+     */
+    private void writeCurrentBin() throws IOException {
+        int idx = curBin & mask;
+        int binEnd = Math.min((curBin + 1) * binSize, refLength);
+
+        int count = plus[idx];
+        plus[idx] = 0;
+        if (includeEmpty || count > 0) {
+            callback.writeBin(refName, curBin * binSize, binEnd, Strand.PLUS, count);
+        }
+        if (stranded) {
+            count = minus[idx];
+            minus[idx] = 0;
+            if (includeEmpty || count > 0) {
+                callback.writeBin(refName, curBin * binSize, binEnd, Strand.MINUS, count);
             }
-            curBin++;
         }
+        curBin++;
     }
 
-    public void addRead(SAMRecord read) {
-        if (read.getReferenceIndex() != this.refId) {
-            setCurrentReference(read.getReferenceName(), read.getReferenceIndex(), read.getHeader().getSequence(read.getReferenceIndex()).getSequenceLength());
+    /**
+     * Make sure the ring buffer can hold counts from curBin to bin
+     */
+    private void ensureCapacity(int bin) {
+        if (bin - curBin < plus.length) {
+            return;
         }
 
-        Strand strand = ReadUtils.getFragmentEffectiveStrand(read, orient);
+        int size = plus.length;
+        while (bin - curBin >= size) {
+            size = size << 1;
+        }
 
-        int startbin = read.getAlignmentStart() / binSize;
-        int endbin = read.getAlignmentEnd() / binSize;
-        
-        // catch up to the current bin.
-        while (curBin < startbin) {
-            int count = 0;
-            if (plus.containsKey(curBin)) {
-                count = plus.get(curBin);
-                plus.remove(curBin);
-            }
-            if (includeEmpty || count > 0) {
-                int binEnd = Math.min((curBin + 1) * binSize, refLength);
-                callback.writeBin(refName, curBin * binSize, binEnd, Strand.PLUS, count);
-            }
-            if (stranded) {
-                count = 0;
-                if (minus.containsKey(curBin)) {
-                    count = minus.get(curBin);
-                    minus.remove(curBin);
-                }
-                if (includeEmpty || count > 0) {
-                    int binEnd = Math.min((curBin + 1) * binSize, refLength);
-                    callback.writeBin(refName, curBin * binSize, binEnd, Strand.MINUS, count);
-                }
-            }
-            curBin++;
+        plus = resize(plus, size);
+        minus = resize(minus, size);
+        mask = size - 1;
+    }
+
+    private int[] resize(int[] buf, int size) {
+        int[] out = new int[size];
+        for (int i = 0; i < buf.length; i++) {
+            int bin = curBin + i;
+            out[bin & (size - 1)] = buf[bin & mask];
         }
-        
-        List<Integer> removeme = new ArrayList<Integer>();
-        for (int bin: plus.keySet()) {
-            if (bin < curBin) {
-                int count = 0;
-                if (plus.containsKey(bin)) {
-                    count = plus.get(bin);
-                    removeme.add(bin);
-//                    System.err.println("flushing plus bin: "+bin);
-                }
-                if (includeEmpty || count > 0) {
-                    int binEnd = Math.min((curBin + 1) * binSize, refLength);
-                    callback.writeBin(refName, bin * binSize, binEnd, Strand.PLUS, count);
-                }
+        return out;
+    }
+
+    public void addRead(SAMRecord read) throws IOException {
+        if (read.getReferenceIndex() != this.refId) {
+            if (read.getReferenceIndex() < this.refId) {
+                throw new IOException("BAM file is not sorted! Found "+read.getReferenceName()+" after "+refName+" ("+read.getReadName()+")");
             }
+            setCurrentReference(read.getReferenceName(), read.getReferenceIndex(), read.getHeader().getSequence(read.getReferenceIndex()).getSequenceLength());
         }
-        for (int bin: removeme) {
-            plus.remove(bin);
+
+        int startbin = read.getAlignmentStart() / binSize;
+        if (startbin < curBin) {
+            throw new IOException("BAM file is not sorted! Found "+refName+":"+read.getAlignmentStart()+" after "+refName+":"+(curBin * binSize)+" ("+read.getReadName()+")");
         }
-        
-        removeme.clear();
-        if (stranded) {
-            for (int bin: minus.keySet()) {
-                if (bin < curBin) {
-                    int count = 0;
-                    if (minus.containsKey(bin)) {
-                        count = minus.get(bin);
-                        removeme.add(bin);
-    //                    System.err.println("flushing minus bin: "+bin);
-                    }
-                    if (includeEmpty || count > 0) {
-                        int binEnd = Math.min((curBin + 1) * binSize, refLength);
-                        callback.writeBin(refName, bin * binSize, binEnd, Strand.MINUS, count);
-                    }
-                }
-            }
-            for (int bin: removeme) {
-                minus.remove(bin);
-            }
+
+        // catch up to the current bin.
+        while (curBin < startbin) {
+            writeCurrentBin();
         }
-        
-        if (!stranded || strand == Strand.PLUS) {
-            if (!plus.containsKey(startbin)) {
-                plus.put(startbin,  1);
-            } else {
-                plus.put(startbin,  plus.get(startbin)+1);
-            }
+
+        if (!stranded || ReadUtils.getFragmentEffectiveStrand(read, orient) == Strand.PLUS) {
+            plus[startbin & mask]++;
         } else {
-            if (!minus.containsKey(endbin)) {
-                minus.put(endbin,  1);
-            } else {
-                minus.put(endbin,  minus.get(endbin)+1);
-            }
+            int endbin = read.getAlignmentEnd() / binSize;
+            ensureCapacity(endbin);
+            minus[endbin & mask]++;
         }
     }
 }
@@ -1,15 +1,15 @@
 package io.compgen.ngsutils.cli.bed;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.charset.StandardCharsets;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.zip.GZIPOutputStream;
+import java.util.Map;
 
 import io.compgen.cmdline.annotation.Command;
 import io.compgen.cmdline.annotation.Exec;
@@ -18,9 +18,12 @@ import io.compgen.cmdline.annotation.UnnamedArg;
 import io.compgen.cmdline.exceptions.CommandArgumentException;
 import io.compgen.cmdline.impl.AbstractOutputCommand;
 import io.compgen.common.IterUtils;
-import io.compgen.common.Pair;
+import io.compgen.ngsutils.annotation.GenomeSpan;
+import io.compgen.ngsutils.bam.Strand;
+import io.compgen.ngsutils.bed.BedPackedSorter;
 import io.compgen.ngsutils.bed.BedReader;
 import io.compgen.ngsutils.bed.BedRecord;
+import io.compgen.ngsutils.support.ExternalSorter;
 
 @Command(name="bed-sort", desc="Sort BED file (by coordinate or name)", category="bed")
 public class BedSort extends AbstractOutputCommand {
@@ -28,6 +31,12 @@ public class BedSort extends AbstractOutputCommand {
     private String filename = null;
     private boolean byCoord = true;
     private int bufferSize = 100000;
+    private long memoryLimit = -1;
+    private int threads = 1;
+    private File tmpdir = null;
+
+    // approximate memory used by a GenomeSpan key (the reference name is shared)
+    private static final int GENOMESPAN_SIZE = 32;
     
     @Option(charName="n", name="name", desc="Sort by name")
     public void setName(boolean val) {
@@ -44,6 +53,25 @@ public class BedSort extends AbstractOutputCommand {
         this.bufferSize = bufferSize;
     }
 
+    @Option(name="mem", desc="Sort packed coordinates with this memory limit (ex: 512M, 2G), and write the lines from the input file as-is (requires an uncompressed file, sorts by coordinate)", helpValue="size")
+    public void setMemoryLimit(String mem) throws CommandArgumentException {
+        try {
+            this.memoryLimit = ExternalSorter.parseMemorySize(mem);
+        } catch (NumberFormatException e) {
+            throw new CommandArgumentException("Invalid --mem value: " + mem);
+        }
+    }
+
+    @Option(name="threads", desc="Number of threads to use for sorting", defaultValue="1")
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    @Option(name="tmp", desc="Write temporary files to this directory")
+    public void setTmpdir(String tmpdir) {
+        this.tmpdir = new File(tmpdir);
+    }
+
     @UnnamedArg(name = "FILE")
     public void setFilename(String filename) throws CommandArgumentException {
         this.filename = filename;
@@ -55,92 +83,163 @@ public class BedSort extends AbstractOutputCommand {
             throw new CommandArgumentException("Missing/invalid arguments!");
         }
 
-        List<File> tmpFiles = new ArrayList<File>();        
-        List<BedRecord> buf1 = new ArrayList<BedRecord>();
-        
-        Comparator<BedRecord> compFunc = new Comparator<BedRecord>() {
-			@Override
-			public int compare(BedRecord o1, BedRecord o2) {
-				if (byCoord) {
-					return o1.getCoord().compareTo(o2.getCoord());
-				} 
-				return o1.getName().compareTo(o2.getName());
-			}};
-        
-		// Read in the BED file, sorting the records and writing them to temp (gzip'd) output files
-			
+        if (memoryLimit > 0) {
+            if (!byCoord) {
+                throw new CommandArgumentException("--mem can only be used to sort by coordinate");
+            }
+            if (filename.equals("-")) {
+                throw new CommandArgumentException("--mem requires an input file (not stdin)");
+            }
+            File file = new File(filename);
+            if (isGzip(file)) {
+                throw new CommandArgumentException("--mem requires an uncompressed BED file");
+            }
+
+            BedPackedSorter sorter = new BedPackedSorter(file, memoryLimit, threads);
+            sorter.setTmpDir(tmpdir);
+            sorter.sort(out);
+            if (verbose) {
+                System.err.println("Temporary files: " + sorter.getRunCount());
+            }
+            return;
+        }
+
+		// Read in the BED file. Sorted chunks of records are written to temp files, and then
+		// merged for the final output. Only a small key (coordinates or name) is kept in memory
+		// with each serialized record.
+
+		if (byCoord) {
+			// the reference names are shared between keys
+			final Map<String, String> refs = new HashMap<String, String>();
+			sort(new ExternalSorter.KeyExtractor<BedRecord, GenomeSpan>() {
+				@Override
+				public GenomeSpan getKey(BedRecord record) {
+					GenomeSpan coord = record.getCoord();
+					String ref = refs.get(coord.ref);
+					if (ref == null) {
+						ref = coord.ref;
+						refs.put(ref, ref);
+					}
+					return new GenomeSpan(ref, coord.start, coord.end, coord.strand);
+				}}, new Comparator<GenomeSpan>() {
+				@Override
+				public int compare(GenomeSpan o1, GenomeSpan o2) {
+					return o1.compareTo(o2);
+				}}, new ExternalSorter.KeySizer<GenomeSpan>() {
+				@Override
+				public int getKeySize(GenomeSpan key) {
+					return GENOMESPAN_SIZE;
+				}});
+		} else {
+			sort(new ExternalSorter.KeyExtractor<BedRecord, String>() {
+				@Override
+				public String getKey(BedRecord record) {
+					return record.getName();
+				}}, new Comparator<String>() {
+				@Override
+				public int compare(String o1, String o2) {
+					return o1.compareTo(o2);
+				}}, new ExternalSorter.KeySizer<String>() {
+				@Override
+				public int getKeySize(String key) {
+					return ExternalSorter.stringSize(key);
+				}});
+		}
+	}
+
+	private <K> void sort(ExternalSorter.KeyExtractor<BedRecord, K> keys, Comparator<K> comparator, ExternalSorter.KeySizer<K> sizer) throws IOException {
+		ExternalSorter<BedRecord, K> sorter = new ExternalSorter<BedRecord, K>(new BedRecordCodec(), keys, comparator);
+		sorter.setKeySizer(sizer);
+		sorter.setMaxRecords(bufferSize);
+		sorter.setMemoryLimit(Runtime.getRuntime().maxMemory() / 4 / Math.max(threads, 1));
+		sorter.setThreads(threads);
+		sorter.setTmpDir(tmpdir);
+		sorter.setTmpPrefix(".ngsutilsj_bed_sort");
+
         for (BedRecord record: IterUtils.wrap(BedReader.readFile(filename))) {
         	if (!byCoord && record.getName() == null) {
         		throw new IOException("Missing name from BED Record: " + record.getCoord());
         	}
-    		buf1.add(record);
-    		
-    		if (buf1.size()>=bufferSize) {
-    			Collections.sort(buf1, compFunc);
-    			
-    			File tmp = File.createTempFile(".ngsutilsj_bed_sort", null);
-    			tmp.deleteOnExit();
-    			GZIPOutputStream os = new GZIPOutputStream( new FileOutputStream(tmp));
-    			for (BedRecord rec: buf1) {
-    				rec.write(os);
-    			}
-    			os.flush();
-    			os.close();
-    			tmpFiles.add(tmp);
-    			buf1.clear();
-    		}
-        }
-        
-        if (buf1.size()>0) {
-			Collections.sort(buf1, compFunc);
-			
-			File tmp = File.createTempFile(".ngsutilsj_bed_sort", null);
-			tmp.deleteOnExit();
-			GZIPOutputStream os = new GZIPOutputStream( new FileOutputStream(tmp));
-			for (BedRecord rec: buf1) {
-				rec.write(os);
-			}
-			os.flush();
-			os.close();
-			tmpFiles.add(tmp);
-			buf1.clear();
+        	sorter.add(record);
         }
-	    
-		// Read in the temp files and sort those records, write to final output
-		LinkedList<Pair<Integer, BedRecord>> merge = new LinkedList<Pair<Integer, BedRecord>>();
-	    List<Iterator<BedRecord>> readers = new ArrayList<Iterator<BedRecord>>();
-	    
-	    for (File f: tmpFiles) {
-	    	readers.add(BedReader.readFile(f));
-	    }
-	    
-	    for (int i=0; i<readers.size(); i++) {
-	    	if (readers.get(i).hasNext()) {
-	    		merge.add(new Pair<Integer, BedRecord>(i, readers.get(i).next()));
-	    	}
-	    }
-	    
-	    while (merge.size() > 0) {
-	    	Collections.sort(merge, new Comparator<Pair<Integer, BedRecord>>(){
 
-				@Override
-				public int compare(Pair<Integer, BedRecord> o1, Pair<Integer, BedRecord> o2) {
-					if (byCoord) {
-						return o1.two.getCoord().compareTo(o2.two.getCoord());
-					}
-					return o1.two.getName().compareTo(o2.two.getName());
-				}});
-	    	
-	    	Pair<Integer, BedRecord> record = merge.remove();
-	    	record.two.write(out);
-	    	if (readers.get(record.one).hasNext()) {
-	    		merge.add(new Pair<Integer, BedRecord>(record.one, readers.get(record.one).next()));
-	    	}
-	    }
+        Iterator<BedRecord> it = sorter.sort();
+        while (it.hasNext()) {
+        	it.next().write(out);
+        }
 
 	    // Remove temp files
-	    for (File f: tmpFiles) {
-	    	f.delete();
-	    }	    
+        sorter.close();
 	}    
+
+	private static boolean isGzip(File file) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		int b1 = fis.read();
+		int b2 = fis.read();
+		fis.close();
+		return b1 == 0x1f && b2 == 0x8b;
+	}
+
+	/**
+	 * Stores the coordinates, name, score, and extra columns of a BED record
+	 */
+	private static class BedRecordCodec implements ExternalSorter.Codec<BedRecord> {
+		@Override
+		public void write(BedRecord record, DataOutput out) throws IOException {
+			GenomeSpan coord = record.getCoord();
+			writeString(out, coord.ref);
+			out.writeInt(coord.start);
+			out.writeInt(coord.end);
+			out.writeByte(coord.strand.ordinal());
+			writeString(out, record.getName());
+			out.writeDouble(record.getScore());
+			if (record.getExtras() == null) {
+				out.writeInt(-1);
+			} else {
+				out.writeInt(record.getExtras().length);
+				for (String extra: record.getExtras()) {
+					writeString(out, extra);
+				}
+			}
+		}
+
+		@Override
+		public BedRecord read(DataInput in) throws IOException {
+			String ref = readString(in);
+			int start = in.readInt();
+			int end = in.readInt();
+			Strand strand = Strand.values()[in.readByte()];
+			String name = readString(in);
+			double score = in.readDouble();
+			String[] extras = null;
+			int extraCount = in.readInt();
+			if (extraCount >= 0) {
+				extras = new String[extraCount];
+				for (int i=0; i<extraCount; i++) {
+					extras[i] = readString(in);
+				}
+			}
+			return new BedRecord(new GenomeSpan(ref, start, end, strand), name, score, extras);
+		}
+
+		private static void writeString(DataOutput out, String s) throws IOException {
+			if (s == null) {
+				out.writeInt(-1);
+			} else {
+				byte[] b = s.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(b.length);
+				out.write(b);
+			}
+		}
+
+		private static String readString(DataInput in) throws IOException {
+			int len = in.readInt();
+			if (len < 0) {
+				return null;
+			}
+			byte[] b = new byte[len];
+			in.readFully(b);
+			return new String(b, StandardCharsets.UTF_8);
+		}
+	}
 }
@@ -25,6 +25,7 @@ public class FastaSplit extends AbstractCommand {
     private Set<String> valid = null;
     private int maxSeqPerFile = -1;
     private boolean gzip = false;
+    private int threads = 1;
 
     @Option(desc="Output template (new files will be named: template${name}.fa or template${num}.fa , set to - for stdout)", name="template")
     public void setTemplate(String template) {
@@ -36,6 +37,11 @@ public class FastaSplit extends AbstractCommand {
         this.gzip = gzip;
     }    
 
+    @Option(desc="Number of threads to use for bgzip compression (--gz)", name="threads", defaultValue="1")
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }    
+
     @Option(desc="Split into files of N sequences per file (default: split by each sequence)", name="split-count")
     public void setMaxSeqPerFile(int maxSeqPerFile) {
         this.maxSeqPerFile = maxSeqPerFile;
@@ -85,7 +91,7 @@ public class FastaSplit extends AbstractCommand {
                                 }
                                 fileCount++;
                 				if (gzip) {
-                        			bos = new BufferedOutputStream(new BGZipOutputStream(template+fileCount+".fa.gz"));
+                        			bos = new BufferedOutputStream(new BGZipOutputStream(template+fileCount+".fa.gz", threads));
                 				} else {
                         			bos = new BufferedOutputStream(new FileOutputStream(template+fileCount+".fa"));
                 				}
@@ -98,7 +104,7 @@ public class FastaSplit extends AbstractCommand {
                         		}
                             }
                 			if (gzip) {
-                				bos = new BufferedOutputStream(new BGZipOutputStream(template+name+".fa.gz"));
+                				bos = new BufferedOutputStream(new BGZipOutputStream(template+name+".fa.gz", threads));
                 			} else {
                 				bos = new BufferedOutputStream(new FileOutputStream(template+name+".fa"));
                 			}
@@ -0,0 +1,379 @@
+package io.compgen.ngsutils.cli.fastq;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Finds which barcodes are present in a read name (or any other byte string), allowing for
+ * some mismatches.
+ *
+ * A barcode matches if there is a substring of the same length that differs from it at no
+ * more than {mismatches} positions. Mismatches are base substitutions (A, C, G, T, or N), so
+ * any other characters in a barcode (ex: the '+' in a dual index) must match exactly. If
+ * wildcards are allowed, an 'N' in a barcode matches any of A, C, G, or T (a read 'N' counts
+ * as a mismatch).
+ *
+ * All of the sequences that match a barcode are precomputed into a hash table, so matching
+ * is one lookup for each position in the read name (for each barcode length). If there would
+ * be too many sequences (many mismatches or wildcards), each barcode is compared to the
+ * read name directly instead.
+ *
+ * Sequences that match more than one barcode are reported as collisions (see getCollisions()).
+ */
+public class BarcodeMatcher {
+    private static final byte[] BASES = new byte[] { 'A', 'C', 'G', 'T', 'N' };
+    private static final int MAX_SEQUENCES = 8 * 1024 * 1024;
+    private static final int HASH_MULT = 31;
+
+    private final byte[][] barcodes;
+    private final int mismatches;
+    private final boolean wildcards;
+
+    // distinct barcode lengths
+    private final int[] lengths;
+
+    private boolean useTable = false;
+
+    // open-addressing hash table. Keys are packed into keyData. Each slot has either one
+    // barcode index (>= 0) or -(i+2) for multiple barcodes (multiValues.get(i)). Empty is -1.
+    private int[] slotKeyOffset;
+    private int[] slotKeyLength;
+    private int[] slotValue;
+    private int mask;
+    private byte[] keyData = new byte[4096];
+    private int keyDataLen = 0;
+    private final List<int[]> multiValues = new ArrayList<int[]>();
+
+    // barcode pairs (i*barcodes.length+j) -> number of sequences that match both
+    private final Map<Long, Integer> collisionCounts = new TreeMap<Long, Integer>();
+
+    /**
+     * @param barcodes - barcode sequences. Empty (or null) barcodes are ignored (they never match).
+     */
+    public BarcodeMatcher(String[] barcodes, int mismatches, boolean wildcards) {
+        this.barcodes = new byte[barcodes.length][];
+        this.mismatches = mismatches < 0 ? 0: mismatches;
+        this.wildcards = wildcards;
+
+        List<Integer> lens = new ArrayList<Integer>();
+        long total = 0;
+        for (int i = 0; i < barcodes.length; i++) {
+            if (barcodes[i] == null || barcodes[i].equals("")) {
+                this.barcodes[i] = null;
+                continue;
+            }
+            this.barcodes[i] = barcodes[i].getBytes(StandardCharsets.UTF_8);
+            if (!lens.contains(this.barcodes[i].length)) {
+                lens.add(this.barcodes[i].length);
+            }
+            total += countSequences(this.barcodes[i], 0, this.mismatches);
+        }
+
+        this.lengths = new int[lens.size()];
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = lens.get(i);
+        }
+
+        if (total <= MAX_SEQUENCES) {
+            buildTable((int) total);
+        }
+        findCollisions();
+    }
+
+    /**
+     * @return true if the sequences were precomputed (false if each barcode is compared directly)
+     */
+    public boolean isPrecomputed() {
+        return useTable;
+    }
+
+    /**
+     * @return a description of each pair of barcodes that can match the same sequence
+     */
+    public List<String> getCollisions() {
+        List<String> out = new ArrayList<String>();
+        for (Long key: collisionCounts.keySet()) {
+            int i = (int) (key / barcodes.length);
+            int j = (int) (key % barcodes.length);
+            out.add(new String(barcodes[i], StandardCharsets.UTF_8) + " (#" + (i + 1) + ") and "
+                    + new String(barcodes[j], StandardCharsets.UTF_8) + " (#" + (j + 1) + "): "
+                    + (useTable ? collisionCounts.get(key) + " shared sequence(s)" : "within " + mismatches + " mismatch(es)"));
+        }
+        return out;
+    }
+
+    /**
+     * Mark which barcodes are found in buf[off, off+len). matched[i] is set to true if barcode i
+     * is found (other values are left unchanged).
+     *
+     * @return true if any barcode matched
+     */
+    public boolean match(byte[] buf, int off, int len, boolean[] matched) {
+        boolean found = false;
+        if (useTable) {
+            for (int l: lengths) {
+                found = matchTable(buf, off, len, l, matched) || found;
+            }
+        } else {
+            for (int i = 0; i < barcodes.length; i++) {
+                if (barcodes[i] != null && scan(barcodes[i], buf, off, len)) {
+                    matched[i] = true;
+                    found = true;
+                }
+            }
+        }
+        return found;
+    }
+
+    public boolean match(String s, boolean[] matched) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        return match(b, 0, b.length, matched);
+    }
+
+    private boolean matchTable(byte[] buf, int off, int len, int l, boolean[] matched) {
+        if (len < l) {
+            return false;
+        }
+
+        int pow = 1;
+        for (int i = 1; i < l; i++) {
+            pow *= HASH_MULT;
+        }
+
+        boolean found = false;
+        int h = hash(buf, off, l);
+        for (int start = off; ; start++) {
+            int slot = findSlot(h, buf, start, l);
+            if (slotValue[slot] != -1) {
+                found = true;
+                int val = slotValue[slot];
+                if (val >= 0) {
+                    matched[val] = true;
+                } else {
+                    for (int idx: multiValues.get(-val - 2)) {
+                        matched[idx] = true;
+                    }
+                }
+            }
+
+            if (start + l >= off + len) {
+                break;
+            }
+            // roll the hash to the next window
+            h = (h - buf[start] * pow) * HASH_MULT + buf[start + l];
+        }
+        return found;
+    }
+
+    /**
+     * Compare the barcode to each position in the buffer
+     */
+    private boolean scan(byte[] barcode, byte[] buf, int off, int len) {
+        for (int start = off; start + barcode.length <= off + len; start++) {
+            int mm = 0;
+            int i = 0;
+            for (; i < barcode.length; i++) {
+                byte b = barcode[i];
+                byte r = buf[start + i];
+                if (wildcards && b == 'N') {
+                    if (r == 'N') {
+                        mm++;
+                    } else if (r != 'A' && r != 'C' && r != 'G' && r != 'T') {
+                        break;
+                    }
+                } else if (b != r) {
+                    if (!isBase(b) || !isBase(r)) {
+                        break;
+                    }
+                    mm++;
+                }
+                if (mm > mismatches) {
+                    break;
+                }
+            }
+            if (i == barcode.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isBase(byte b) {
+        return b == 'A' || b == 'C' || b == 'G' || b == 'T' || b == 'N';
+    }
+
+    /**
+     * @return the number of sequences (upper bound, may include duplicates) that match the
+     * barcode (starting at pos)
+     */
+    private long countSequences(byte[] barcode, int pos, int budget) {
+        if (pos == barcode.length) {
+            return 1;
+        }
+        long count;
+        if (wildcards && barcode[pos] == 'N') {
+            count = 4 * countSequences(barcode, pos + 1, budget);
+            if (budget > 0) {
+                count += countSequences(barcode, pos + 1, budget - 1);
+            }
+        } else {
+            count = countSequences(barcode, pos + 1, budget);
+            if (budget > 0 && isBase(barcode[pos])) {
+                count += 4 * countSequences(barcode, pos + 1, budget - 1);
+            }
+        }
+        return Math.min(count, (long) MAX_SEQUENCES + 1);
+    }
+
+    private void buildTable(int total) {
+        int size = 16;
+        while (size < total * 2L && size < (1 << 30)) {
+            size = size << 1;
+        }
+        slotKeyOffset = new int[size];
+        slotKeyLength = new int[size];
+        slotValue = new int[size];
+        Arrays.fill(slotValue, -1);
+        mask = size - 1;
+
+        for (int i = 0; i < barcodes.length; i++) {
+            if (barcodes[i] != null) {
+                addSequences(i, barcodes[i], new byte[barcodes[i].length], 0, mismatches);
+            }
+        }
+        useTable = true;
+    }
+
+    private void addSequences(int idx, byte[] barcode, byte[] cur, int pos, int budget) {
+        if (pos == barcode.length) {
+            add(cur, idx);
+            return;
+        }
+
+        byte b = barcode[pos];
+        if (wildcards && b == 'N') {
+            for (int i = 0; i < 4; i++) {
+                cur[pos] = BASES[i];
+                addSequences(idx, barcode, cur, pos + 1, budget);
+            }
+            if (budget > 0) {
+                cur[pos] = 'N';
+                addSequences(idx, barcode, cur, pos + 1, budget - 1);
+            }
+            return;
+        }
+
+        cur[pos] = b;
+        addSequences(idx, barcode, cur, pos + 1, budget);
+
+        if (budget > 0 && isBase(b)) {
+            for (byte alt: BASES) {
+                if (alt != b) {
+                    cur[pos] = alt;
+                    addSequences(idx, barcode, cur, pos + 1, budget - 1);
+                }
+            }
+        }
+        cur[pos] = b;
+    }
+
+    private void add(byte[] key, int idx) {
+        int slot = findSlot(hash(key, 0, key.length), key, 0, key.length);
+        int val = slotValue[slot];
+        if (val == -1) {
+            if (keyDataLen + key.length > keyData.length) {
+                keyData = Arrays.copyOf(keyData, Math.max(keyData.length * 2, keyDataLen + key.length));
+            }
+            System.arraycopy(key, 0, keyData, keyDataLen, key.length);
+            slotKeyOffset[slot] = keyDataLen;
+            slotKeyLength[slot] = key.length;
+            slotValue[slot] = idx;
+            keyDataLen += key.length;
+        } else if (val >= 0) {
+            if (val != idx) {
+                multiValues.add(new int[] { val, idx });
+                slotValue[slot] = -(multiValues.size() - 1) - 2;
+            }
+        } else {
+            int[] vals = multiValues.get(-val - 2);
+            for (int v: vals) {
+                if (v == idx) {
+                    return;
+                }
+            }
+            vals = Arrays.copyOf(vals, vals.length + 1);
+            vals[vals.length - 1] = idx;
+            multiValues.set(-val - 2, vals);
+        }
+    }
+
+    private int findSlot(int h, byte[] buf, int off, int len) {
+        int slot = spread(h) & mask;
+        while (slotValue[slot] != -1) {
+            if (slotKeyLength[slot] == len) {
+                int koff = slotKeyOffset[slot];
+                int i = 0;
+                while (i < len && keyData[koff + i] == buf[off + i]) {
+                    i++;
+                }
+                if (i == len) {
+                    return slot;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(byte[] buf, int off, int len) {
+        int h = 0;
+        for (int i = 0; i < len; i++) {
+            h = h * HASH_MULT + buf[off + i];
+        }
+        return h;
+    }
+
+    private static int spread(int h) {
+        h ^= (h >>> 16);
+        h *= 0x45d9f3b;
+        h ^= (h >>> 16);
+        return h;
+    }
+
+    private void addCollision(int i, int j) {
+        if (barcodes[i].length == barcodes[j].length && Arrays.equals(barcodes[i], barcodes[j])) {
+            // the same barcode (ex: for different lanes)
+            return;
+        }
+        long key = (long) Math.min(i, j) * barcodes.length + Math.max(i, j);
+        Integer count = collisionCounts.get(key);
+        collisionCounts.put(key, count == null ? 1 : count + 1);
+    }
+
+    private void findCollisions() {
+        if (useTable) {
+            for (int[] vals: multiValues) {
+                for (int i = 0; i < vals.length; i++) {
+                    for (int j = i + 1; j < vals.length; j++) {
+                        addCollision(vals[i], vals[j]);
+                    }
+                }
+            }
+        } else {
+            // without the table, only look for barcodes that are close to each other
+            for (int i = 0; i < barcodes.length; i++) {
+                for (int j = i + 1; j < barcodes.length; j++) {
+                    if (barcodes[i] != null && barcodes[j] != null && barcodes[i].length == barcodes[j].length) {
+                        if (scan(barcodes[i], barcodes[j], 0, barcodes[j].length) || scan(barcodes[j], barcodes[i], 0, barcodes[i].length)) {
+                            addCollision(i, j);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -9,7 +9,6 @@ import java.math.BigInteger;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Iterator;
 import java.util.zip.GZIPOutputStream;
 
 import io.compgen.cmdline.annotation.Command;
@@ -20,8 +19,8 @@ import io.compgen.cmdline.exceptions.CommandArgumentException;
 import io.compgen.cmdline.impl.AbstractCommand;
 import io.compgen.common.StringLineReader;
 import io.compgen.ngsutils.fastq.Fastq;
-import io.compgen.ngsutils.fastq.FastqRead;
-import io.compgen.ngsutils.fastq.FastqReader;
+import io.compgen.ngsutils.fastq.FastqRecord;
+import io.compgen.ngsutils.fastq.FastqRecordReader;
 
 @Command(name = "fastq-check", desc = "Verify a FASTQ single, paired, or interleaved file(s)", category="fastq")
 public class FastqCheck extends AbstractCommand {
@@ -104,30 +103,27 @@ public class FastqCheck extends AbstractCommand {
 	    }
 	}
 
-	protected boolean checkPaired(FastqRead read1, FastqRead read2) {
+	protected boolean checkPaired(FastqRecord read1, FastqRecord read2) {
 	    if (read2 != null) {
-            if (read1.getName().endsWith("/1") && read2.getName().endsWith("/2")) {
-                String r1 = read1.getName().substring(0, read1.getName().length()-2);
-                String r2 = read2.getName().substring(0, read2.getName().length()-2);
-            
-                if (!r1.equals(r2)) {
+            if (read1.nameEndsWith("/1") && read2.nameEndsWith("/2")) {
+                if (!read1.nameEquals(read2, 2)) {
                     return false;
                 }
 
-            } else if (!read1.getName().equals(read2.getName())) {
+            } else if (!read1.nameEquals(read2)) {
                 return false;
 	        }
 	    }
 	    return true;
 	}
 
-	protected boolean checkSeqQualLength(FastqRead read) {
+	protected boolean checkSeqQualLength(FastqRecord read) {
         if (colorspace) {
-            if ((read.getSeq().length()+1) != read.getQual().length()) {
+            if ((read.getSeqLength()+1) != read.getQualLength()) {
                 // prefixed colorspace
                 return false;
             }
-        } else if (read.getSeq().length() != read.getQual().length()) {
+        } else if (read.getSeqLength() != read.getQualLength()) {
             return false;
         }
         return true;
@@ -143,8 +139,8 @@ public class FastqCheck extends AbstractCommand {
         DigestInputStream dis2 = null;
         String targetHash2 = null;
         
-        final FastqReader reader1;
-        final FastqReader reader2;
+        final FastqRecordReader reader1;
+        final FastqRecordReader reader2;
 
         if (digestFilename != null) {
             
@@ -188,11 +184,11 @@ public class FastqCheck extends AbstractCommand {
             dis1 = new DigestInputStream(fis1, MessageDigest.getInstance(digest));
             dis2 = new DigestInputStream(fis2, MessageDigest.getInstance(digest));
 
-            reader1 = Fastq.open(dis1, null, fis1.getChannel(), filename1);
-            reader2 = Fastq.open(dis2, null, null, filename2);
+            reader1 = Fastq.recordReader(Fastq.open(dis1, null, fis1.getChannel(), filename1));
+            reader2 = Fastq.recordReader(Fastq.open(dis2, null, null, filename2));
         } else {
-            reader1 = Fastq.open(fis1, null, fis1.getChannel(), filename1);
-            reader2 = Fastq.open(fis2, null, null, filename2);
+            reader1 = Fastq.recordReader(Fastq.open(fis1, null, fis1.getChannel(), filename1));
+            reader2 = Fastq.recordReader(Fastq.open(fis2, null, null, filename2));
         }
 
 
@@ -200,9 +196,6 @@ public class FastqCheck extends AbstractCommand {
 //	    final FastqReader reader1 = Fastq.open(filename1);
 //        final FastqReader reader2 = Fastq.open(filename2, true);
 
-        Iterator<FastqRead> it1 = reader1.iterator();
-        Iterator<FastqRead> it2 = reader2.iterator();
-
         OutputStream out1 = null;
         OutputStream out2 = null;
         
@@ -224,9 +217,17 @@ public class FastqCheck extends AbstractCommand {
         long count = 0;
         long errorCount = 0;
         
-        while (it1.hasNext() && it2.hasNext()) {
-            FastqRead one = it1.next();
-            FastqRead two = it2.next();
+        FastqRecord one = new FastqRecord();
+        FastqRecord two = new FastqRecord();
+        boolean hasNext1;
+        boolean hasNext2;
+
+        while (true) {
+            hasNext1 = reader1.next(one);
+            hasNext2 = reader2.next(two);
+            if (!hasNext1 || !hasNext2) {
+                break;
+            }
             
             boolean isGood = checkPair(one, two);
 
@@ -271,7 +272,7 @@ public class FastqCheck extends AbstractCommand {
             }
         } else {
             // If one reader still had reads...
-            if (it1.hasNext() || it2.hasNext()) {
+            if (hasNext1 || hasNext2) {
                 return new long[]{-1,0};
             }
             
@@ -311,7 +312,7 @@ public class FastqCheck extends AbstractCommand {
         return new long[] {count, errorCount};
 	}
 
-    protected boolean checkPair(FastqRead one, FastqRead two) {
+    protected boolean checkPair(FastqRecord one, FastqRecord two) {
         boolean isGood = true;
 
         if (!checkPaired(one, two)) {
@@ -330,7 +331,7 @@ public class FastqCheck extends AbstractCommand {
         return isGood;
     }
 
-    protected boolean checkSingle(FastqRead one) {
+    protected boolean checkSingle(FastqRecord one) {
         boolean isGood = true;
 
         if (!checkSeqQualLength(one)) {
@@ -348,7 +349,7 @@ public class FastqCheck extends AbstractCommand {
         DigestInputStream dis = null;
         String targetHash = null;
         
-        FastqReader reader;
+        FastqRecordReader reader;
         if (digestFilename != null) {
             
             StringLineReader byline = new StringLineReader(digestFilename);
@@ -374,9 +375,9 @@ public class FastqCheck extends AbstractCommand {
             
             System.err.println("Expected " + digest+": " + targetHash);
             dis = new DigestInputStream(fis, MessageDigest.getInstance(digest));
-            reader = Fastq.open(dis, null, fis.getChannel(), filename);
+            reader = Fastq.recordReader(Fastq.open(dis, null, fis.getChannel(), filename));
         } else {
-            reader = Fastq.open(fis, null, fis.getChannel(), filename);
+            reader = Fastq.recordReader(Fastq.open(fis, null, fis.getChannel(), filename));
         }
 
         OutputStream out1 = null;
@@ -394,24 +395,30 @@ public class FastqCheck extends AbstractCommand {
 
         
         boolean paired = false;
-        FastqRead lastRead = null;
+
+        // records are re-used, so for interleaved files, swap between the two mates
+        FastqRecord read = new FastqRecord();
+        FastqRecord lastRead = new FastqRecord();
+        boolean hasLastRead = false;
         
         boolean inHeader = true;
         
-        FastqRead first = null;
-        FastqRead second = null;
+        FastqRecord first = null;
+        FastqRecord second = null;
 		
-		for (FastqRead read : reader) {
+		while (reader.next(read)) {
 		    if (inHeader) {
 		        if (first == null) {
 		            first = read;
+		            read = new FastqRecord();
 		        } else if (second == null) {
 		            second = read;
+		            read = new FastqRecord();
 		        }
 		        
 		        if (first != null && second != null) {
 		            inHeader = false;
-		            if (first.getName().equals(second.getName())) {
+		            if (first.nameEquals(second)) {
 		                System.err.println("Interleaved reads");
 		                paired = true;
 		                boolean isGood = checkPair(first, second);
@@ -464,8 +471,11 @@ public class FastqCheck extends AbstractCommand {
 		        }
 		    } else {
 		        if (paired) {
-		            if (lastRead == null) {
+		            if (!hasLastRead) {
+		                FastqRecord tmp = lastRead;
 		                lastRead = read;
+		                read = tmp;
+		                hasLastRead = true;
 		            } else {
                        boolean isGood = checkPair(lastRead, read);
                         if (isGood) {
@@ -482,7 +492,7 @@ public class FastqCheck extends AbstractCommand {
                                 return new long[] {-1,0};
                             }
                         }
-                        lastRead = null;
+                        hasLastRead = false;
 		            }
 		        } else {
                     boolean isGood = checkSingle(read);
@@ -503,7 +513,7 @@ public class FastqCheck extends AbstractCommand {
 		    }
 		}
 		
-		if (paired && lastRead != null) {
+		if (paired && hasLastRead) {
             System.err.println("Trailing read unpaired!");
             if (out1 != null) {
                 errorCount++;
@@ -8,6 +8,7 @@ import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPOutputStream;
@@ -21,10 +22,12 @@ import io.compgen.cmdline.impl.AbstractCommand;
 import io.compgen.common.StringLineReader;
 import io.compgen.common.StringUtils;
 import io.compgen.ngsutils.fastq.Fastq;
-import io.compgen.ngsutils.fastq.FastqRead;
-import io.compgen.ngsutils.fastq.FastqReader;
+import io.compgen.ngsutils.fastq.FastqRecord;
+import io.compgen.ngsutils.fastq.FastqRecordReader;
 import io.compgen.ngsutils.fastq.filter.FilteringException;
 import io.compgen.ngsutils.support.DigestCmd;
+import io.compgen.ngsutils.support.MultiOutputWriter;
+import io.compgen.ngsutils.tabix.BGZipOutputStream;
 
 @Command(name = "fastq-demux", desc = "Splits a FASTQ file based on lane/barcode values", category="fastq")
 public class FastqDemux extends AbstractCommand {
@@ -41,6 +44,8 @@ public class FastqDemux extends AbstractCommand {
     private boolean calcSHA1 = false;
     private boolean force = false;
     private boolean compress = false;
+    private boolean bgzip = false;
+    private int threads = 1;
     
     private boolean allowWildcards = false;
 
@@ -106,6 +111,16 @@ public class FastqDemux extends AbstractCommand {
         this.compress = compress;
     }
     
+    @Option(desc="Compress output files (bgzip)", name="bgzip")
+    public void setBGZip(boolean bgzip) {
+        this.bgzip = bgzip;
+    }
+
+    @Option(desc="Number of threads to use for writing (compressing) output files", name="threads", defaultValue="1")
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+    
     @Option(desc="Allow wildcards in barcodes (allow 'N' in barcode)", name="wildcard")
     public void setAllowWildcard(boolean allowWildcards) {
         this.allowWildcards = allowWildcards;
@@ -170,6 +185,10 @@ public class FastqDemux extends AbstractCommand {
             throw new CommandArgumentException("Missing input filename!");
         }
 
+        if (compress && bgzip) {
+            throw new CommandArgumentException("You can only use one of --gzip or --bgzip!");
+        }
+
 //        if (outputTemplate == null && unmatchedFname == null) {
 //            throw new CommandArgumentException("Missing --out filename template or --unmatched filename (at least one is required)!");
 //        }
@@ -237,7 +256,9 @@ public class FastqDemux extends AbstractCommand {
         
             for (int i=0; i<readGroups.length; i++) {
                 String fname = outputTemplate.replace("%RGID", readGroups[i]);
-                if (compress) {
+                if (bgzip) {
+                    outs[i] = new BGZipOutputStream(new FileOutputStream(fname), 1);
+                } else if (compress) {
                     outs[i] = new GZIPOutputStream(new FileOutputStream(fname));
                 } else {
                     outs[i] = new FileOutputStream(fname);
@@ -257,7 +278,9 @@ public class FastqDemux extends AbstractCommand {
                 throw new CommandArgumentException("You can't calculate MD5/SHA1 when writing to stdout.");
             }
             outs = new OutputStream[readGroups.length];
-            if (compress) {
+            if (bgzip) {
+                outs[0] = new BGZipOutputStream(System.out, 1);
+            } else if (compress) {
                 outs[0] = new GZIPOutputStream(System.out);
             } else {
                 outs[0] = System.out;
@@ -268,42 +291,101 @@ public class FastqDemux extends AbstractCommand {
 
         OutputStream unmatched = null;
         if (unmatchedFname != null) {
-            if (compress) {
+            if (bgzip) {
+                unmatched = new BGZipOutputStream(new FileOutputStream(unmatchedFname), 1);
+            } else if (compress) {
                 unmatched = new GZIPOutputStream(new FileOutputStream(unmatchedFname));
             } else {
                 unmatched = new FileOutputStream(unmatchedFname);
             }
         }
+
+        // Reads are written (and compressed) by background threads, so that reading and
+        // matching doesn't wait for the output files. The unmatched file is the last output.
+        List<OutputStream> streams = new ArrayList<OutputStream>();
+        if (outs != null) {
+            streams.addAll(Arrays.asList(outs));
+        }
+        if (unmatched != null) {
+            streams.add(unmatched);
+        }
+        MultiOutputWriter writer = new MultiOutputWriter(streams.toArray(new OutputStream[streams.size()]), threads);
+        if (outs != null) {
+            for (int i=0; i<outs.length; i++) {
+                outs[i] = writer.getOutputStream(i);
+            }
+        }
+        if (unmatched != null) {
+            unmatched = writer.getOutputStream(streams.size() - 1);
+        }
         
-        FastqReader reader = Fastq.open(filename);
+        // barcodes are matched with a precomputed lookup table
+        BarcodeMatcher matcher = null;
+        boolean[] barcodeMatch = new boolean[readGroups.length];
+        if (nameSubstr2 != null) {
+            matcher = new BarcodeMatcher(nameSubstr2, mismatches, allowWildcards);
+            for (String collision: matcher.getCollisions()) {
+                System.err.println("WARNING: barcodes can match the same read: " + collision);
+            }
+            if (verbose && !matcher.isPrecomputed()) {
+                System.err.println("Too many barcode sequences to precompute, comparing barcodes directly");
+            }
+        }
+
+        // lanes are usually the same for many groups, so only check each distinct value once
+        List<byte[]> lanes = new ArrayList<byte[]>();
+        int[] laneIdx = new int[readGroups.length];
+        if (nameSubstr1 != null) {
+            List<String> laneVals = new ArrayList<String>();
+            for (int i=0; i<readGroups.length; i++) {
+                if (!laneVals.contains(nameSubstr1[i])) {
+                    laneVals.add(nameSubstr1[i]);
+                    lanes.add(nameSubstr1[i].getBytes());
+                }
+                laneIdx[i] = laneVals.indexOf(nameSubstr1[i]);
+            }
+        }
+        boolean[] laneMatch = new boolean[lanes.size()];
+
+        for (int i=0; i<readGroups.length; i++) {
+            for (int j=i+1; j<readGroups.length; j++) {
+                if ((nameSubstr1 == null || nameSubstr1[i].equals(nameSubstr1[j])) && (nameSubstr2 == null || nameSubstr2[i].equals(nameSubstr2[j]))) {
+                    System.err.println("WARNING: read groups " + readGroups[i] + " and " + readGroups[j] + " have the same lane/barcode values");
+                }
+            }
+        }
+
+        FastqRecordReader reader = Fastq.recordReader(Fastq.open(filename));
 
         if (verbose) {
             System.err.println("Reading file:" + filename);
         }
 
-        for (FastqRead read: reader) {
-            String fqLine = read.getName() + " " + read.getComment();
+        FastqRecord read = new FastqRecord();
+        byte[] fqLine = new byte[256];
+        while (reader.next(read)) {
+            // name + " " + comment
+            int lineLen = read.getNameLength() + 1 + read.getCommentLength();
+            if (fqLine.length < lineLen) {
+                fqLine = new byte[lineLen * 2];
+            }
+            System.arraycopy(read.getNameBytes(), 0, fqLine, 0, read.getNameLength());
+            fqLine[read.getNameLength()] = ' ';
+            System.arraycopy(read.getCommentBytes(), 0, fqLine, read.getNameLength() + 1, read.getCommentLength());
+
             boolean matched = false;
             
-            for (int i=0; i<readGroups.length; i++) {
-                boolean match1 = false;
-                boolean match2 = false;
-
-                if (nameSubstr1 != null) {
-                    if (fqLine.contains(nameSubstr1[i])) {
-                        match1 = true;
-                    }
-                } else {
-                    match1 = true;
-                }
+            for (int i=0; i<lanes.size(); i++) {
+                laneMatch[i] = contains(fqLine, lineLen, lanes.get(i));
+            }
+            if (matcher != null) {
+                Arrays.fill(barcodeMatch, false);
+                matcher.match(fqLine, 0, lineLen, barcodeMatch);
+            }
 
-                if (nameSubstr2 != null && !nameSubstr2[i].equals("")) {
-                    if (matches(fqLine, nameSubstr2[i], mismatches, allowWildcards)) {
-                        match2 = true;
-                    }
-                } else {
-                    match2 = true;
-                }
+            for (int i=0; i<readGroups.length; i++) {
+                boolean match1 = nameSubstr1 == null || laneMatch[laneIdx[i]];
+                boolean match2 = nameSubstr2 == null || nameSubstr2[i].equals("") || barcodeMatch[i];
                 
                 if (match1 && match2) {
                     matched = true;
@@ -321,17 +403,12 @@ public class FastqDemux extends AbstractCommand {
                 }
             }
         }
+        reader.close();
         
-        if (outs != null) {
-            for (OutputStream out: outs) {
-                out.flush();
-                out.close();
-            }
-        }
+        // flushes and closes all of the output files
+        writer.close();
         
         if (unmatched != null) {
-            unmatched.flush();
-            unmatched.close();
             if (unmatchedCount == 0) {
                 // no unmatched reads, remove the file.
                 File f = new File(unmatchedFname);
@@ -366,6 +443,19 @@ public class FastqDemux extends AbstractCommand {
         
     }
 
+    private static boolean contains(byte[] buf, int len, byte[] val) {
+        for (int i=0; i + val.length <= len; i++) {
+            int j = 0;
+            while (j < val.length && buf[i+j] == val[j]) {
+                j++;
+            }
+            if (j == val.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static boolean matches(String fqLine, String barcode, int mismatches, boolean allowWildcards2) {
         if (fqLine.contains(barcode)) {
             return true;
@@ -1,48 +1,54 @@
 package io.compgen.ngsutils.cli.fastq;
 
-import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.file.Files;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
-import java.util.zip.GZIPOutputStream;
 
 import io.compgen.cmdline.annotation.Command;
 import io.compgen.cmdline.annotation.Exec;
 import io.compgen.cmdline.annotation.Option;
 import io.compgen.cmdline.annotation.UnnamedArg;
+import io.compgen.cmdline.exceptions.CommandArgumentException;
 import io.compgen.cmdline.impl.AbstractOutputCommand;
-import io.compgen.common.ComparablePair;
 import io.compgen.ngsutils.fastq.Fastq;
-import io.compgen.ngsutils.fastq.FastqRead;
-import io.compgen.ngsutils.fastq.FastqReader;
+import io.compgen.ngsutils.fastq.FastqRecord;
+import io.compgen.ngsutils.fastq.FastqRecordReader;
+import io.compgen.ngsutils.support.ExternalSorter;
 
 @Command(name="fastq-sort", desc="Sorts a FASTQ file", category="fastq")
 public class FastqSort extends AbstractOutputCommand {
 	private String filename =  null;
 
 	private int bufferSize = 200000;
+	private long memoryLimit = -1;
 	private boolean bySequence = false;
 	private boolean noCompressTemp = false;
 	private boolean verbose = false;
+	private int threads = 1;
+	private int maxFiles = ExternalSorter.DEFAULT_MAX_FILES;
 
 	private File tmpdir = null;
 
-	private ArrayList<String> tempFiles = new ArrayList<String>();
-
 	public FastqSort(){
 	}
 
-	@Option(desc="Number of reads to include in temporary files (default: 200000)", name="buf", defaultValue="200000")
+	@Option(desc="Number of reads to include in temporary files (-1 to only use --mem)", name="buf", defaultValue="200000")
 	public void setBufferSize(int bufferSize) {
 		this.bufferSize = bufferSize;
 	}
 
+	@Option(desc="Approximate memory to use for each temporary file buffer (ex: 512M, 2G; default: 1/4 of the max heap, split between threads)", name="mem")
+	public void setMemoryLimit(String mem) throws CommandArgumentException {
+		try {
+			this.memoryLimit = ExternalSorter.parseMemorySize(mem);
+		} catch (NumberFormatException e) {
+			throw new CommandArgumentException("Invalid --mem value: " + mem);
+		}
+	}
+
 	@Option(desc="Sort by sequence (default: sort by name)", name="seq")
 	public void setBySequence(boolean bySequence) {
 		this.bySequence = bySequence;
@@ -53,7 +59,7 @@ public class FastqSort extends AbstractOutputCommand {
 	    this.filename = filename;
 	}
 
-	@Option(desc="Compress temporary files (default: true)", name="nogz")
+	@Option(desc="Don't compress temporary files (default: Snappy compressed)", name="nogz")
 	public void setNoCompressTemp(boolean noCompressTemp) {
 		this.noCompressTemp = noCompressTemp;
 	}
@@ -63,152 +69,111 @@ public class FastqSort extends AbstractOutputCommand {
 		this.tmpdir = new File(tmpdir);
 	}
 
+	@Option(desc="Number of threads to use for sorting and writing temporary files (each thread holds a buffer of reads)", name="threads", defaultValue="1")
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	@Option(desc="Maximum number of temporary files to merge at once (more are merged in multiple passes)", name="max-files", defaultValue="64")
+	public void setMaxFiles(int maxFiles) {
+		this.maxFiles = maxFiles;
+	}
+
     @Exec
-	public void exec() throws IOException {
-		long readCount = 0;
-		ArrayList<FastqRead> buffer = new ArrayList<FastqRead>();
+	public void exec() throws IOException, CommandArgumentException {
+		if (maxFiles < 2) {
+			throw new CommandArgumentException("--max-files must be at least 2");
+		}
+
+		ExternalSorter<FastqRecord, String> sorter = new ExternalSorter<FastqRecord, String>(new FastqRecordCodec(), new ExternalSorter.KeyExtractor<FastqRecord, String>() {
+			@Override
+			public String getKey(FastqRecord read) {
+				if (bySequence) {
+					return read.getSeq();
+				}
+				return read.getName();
+			}}, new Comparator<String>() {
+			@Override
+			public int compare(String o1, String o2) {
+				return o1.compareTo(o2);
+			}});
+
+		if (memoryLimit <= 0) {
+			// the in-memory size of a read is a few times its serialized size
+			memoryLimit = Runtime.getRuntime().maxMemory() / 4 / Math.max(threads, 1);
+		}
+		sorter.setMemoryLimit(memoryLimit);
+		sorter.setKeySizer(new ExternalSorter.KeySizer<String>() {
+			@Override
+			public int getKeySize(String key) {
+				return ExternalSorter.stringSize(key);
+			}});
+		sorter.setMaxRecords(bufferSize);
+		sorter.setThreads(threads);
+		sorter.setMaxFiles(maxFiles);
+		sorter.setCompress(!noCompressTemp);
+		sorter.setTmpDir(tmpdir);
+		sorter.setTmpPrefix(".fastq-sort-");
+
 		if (verbose) {
 			System.err.println("Splitting into subfiles...");
 		}
 		
-	    FastqReader reader = Fastq.open(filename);
-		
-		for (FastqRead read : reader) {
-			readCount++;
-			buffer.add(read);
-			if (bufferSize > -1) {
-				if (buffer.size() >= bufferSize) {
-					if (verbose) {
-						System.err.println("Reads: "+readCount);
-					}
-					writeTemp(buffer);
-					buffer.clear();
-				}
-			} else if (readCount % 1000 == 0) {
-				// only write temp files when the used memory is over 80%.
-			    // only check every 1000 reads...
-
-			    double usedPercent=(double)(Runtime.getRuntime().totalMemory()
-					    -Runtime.getRuntime().freeMemory())/Runtime.getRuntime().maxMemory();
-				if (usedPercent > 0.80) {
-					writeTemp(buffer);
-					buffer.clear();
-					Runtime.getRuntime().gc();
-				}
-			}
+	    FastqRecordReader reader = Fastq.recordReader(Fastq.open(filename));
+	    FastqRecord read = new FastqRecord();
+		while (reader.next(read)) {
+			sorter.add(read);
 		}
 		reader.close();
-		writeTemp(buffer);
-		buffer.clear();
+
 		if (verbose) {
-			System.err.println("Total reads: "+readCount);
-			System.err.println("Total number of subfiles: "+tempFiles.size());
+			System.err.println("Total reads: "+sorter.getCount());
+			System.err.println("Total number of subfiles: "+sorter.getRunCount());
 			System.err.println("Merging subfiles...");
 		}
-        ArrayList<Iterator<FastqRead>> iterators = new ArrayList<Iterator<FastqRead>>();
-        ArrayList<FastqReader> readers = new ArrayList<FastqReader>();
-		boolean addedRead = true;
-		for (String tmpname : tempFiles) {
-		    FastqReader reader1 = Fastq.open(tmpname);
-		    readers.add(reader1);
-			iterators.add(reader1.iterator());
-			buffer.add(null);
-		}
-
-		readCount = 0;
-		int j = 0;
-
-		while (addedRead) {
-			ArrayList<ComparablePair<String, Integer>> sortList = new ArrayList<ComparablePair<String, Integer>>();
-			addedRead = false;
 
-			for (int i = 0; i < buffer.size(); i++) {
-				if (buffer.get(i) == null) {
-					if (iterators.get(i).hasNext()) {
-						FastqRead read = iterators.get(i).next();
-						buffer.set(i, read);
-					}
-				}
-				if (buffer.get(i) != null) {
-					addedRead = true;
-					if (bySequence) {
-						sortList.add(new ComparablePair<String, Integer>(buffer.get(i)
-								.getSeq(), i));
-					} else {
-						sortList.add(new ComparablePair<String, Integer>(buffer.get(i)
-								.getName(), i));
-					}
-				}
-			}
-
-			Collections.sort(sortList, new Comparator<ComparablePair<String, Integer>>() {
-				@Override
-				public int compare(ComparablePair<String, Integer> o1,
-						ComparablePair<String, Integer> o2) {
-					return o1.one.compareTo(o2.one);
-				}
-			});
-
-			if (addedRead) {
-				int bestIdx = sortList.get(0).two;
-				buffer.get(bestIdx).write(out);
-				buffer.set(bestIdx, null);
-			} else {
-				// Nothing left to read from files... just write them all.
-				for (ComparablePair<String, Integer> pair : sortList) {
-					buffer.get(pair.two).write(out);
-				}
-			}
-			if (j >= bufferSize && verbose) {
-				j = 0;
-				System.err.println("Merged: "+j);
-			}
-			j++;
+		Iterator<FastqRecord> it = sorter.sort();
+		while (it.hasNext()) {
+			it.next().write(out);
 		}
 		close();
-		for (FastqReader reader1: readers) {
-		    reader1.close();		    
-		}
+		sorter.close();
 	}
 
-	private void writeTemp(ArrayList<FastqRead> buffer) throws IOException {
-		Collections.sort(buffer, new Comparator<FastqRead>() {
-			@Override
-			public int compare(FastqRead o1, FastqRead o2) {
-				if (bySequence) {
-					return o1.getSeq().compareTo(o2.getSeq());
-				} else {
-					return o1.getName().compareTo(o2.getName());
-				}
-			}
-		});
-
-		String suffix = ".tmp";
-		if (!noCompressTemp) {
-		    suffix = ".gz"; 
+	/**
+	 * Stores each field as a length-prefixed byte array
+	 */
+	private static class FastqRecordCodec implements ExternalSorter.Codec<FastqRecord> {
+		@Override
+		public void write(FastqRecord read, DataOutput out) throws IOException {
+			out.writeInt(read.getNameLength());
+			out.write(read.getNameBytes(), 0, read.getNameLength());
+			out.writeInt(read.getCommentLength());
+			out.write(read.getCommentBytes(), 0, read.getCommentLength());
+			out.writeInt(read.getSeqLength());
+			out.write(read.getSeqBytes(), 0, read.getSeqLength());
+			out.writeInt(read.getQualLength());
+			out.write(read.getQualBytes(), 0, read.getQualLength());
 		}
-		
-		File temp;
-		if (tmpdir == null) {
-			temp = Files.createTempFile(".fastq-sort-", suffix).toFile();
-		} else {
-			temp = Files.createTempFile(tmpdir.toPath(), ".fastq-sort-", suffix).toFile();
-		}
-		temp.setReadable(true, true);
-		temp.setWritable(true, true);
-		temp.setExecutable(false, false);
-		tempFiles.add(temp.getAbsolutePath());
-		temp.deleteOnExit();
-
-		OutputStream tmpOut;
-		if (noCompressTemp) {
-			tmpOut = new BufferedOutputStream(new FileOutputStream(temp));
-		} else {
-			tmpOut = new GZIPOutputStream(new FileOutputStream(temp));
+
+		@Override
+		public FastqRecord read(DataInput in) throws IOException {
+			FastqRecord read = new FastqRecord();
+			byte[] b = readField(in);
+			read.setName(b, 0, b.length);
+			b = readField(in);
+			read.setComment(b, 0, b.length);
+			b = readField(in);
+			read.setSeq(b, 0, b.length);
+			b = readField(in);
+			read.setQual(b, 0, b.length);
+			return read;
 		}
-		for (FastqRead read1 : buffer) {
-			read1.write(tmpOut);
+
+		private static byte[] readField(DataInput in) throws IOException {
+			byte[] b = new byte[in.readInt()];
+			in.readFully(b);
+			return b;
 		}
-		tmpOut.close();
 	}
 }
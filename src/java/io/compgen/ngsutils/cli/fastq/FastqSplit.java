@@ -21,6 +21,8 @@ import io.compgen.common.IterUtils.EachPair;
 import io.compgen.ngsutils.fastq.Fastq;
 import io.compgen.ngsutils.fastq.FastqRead;
 import io.compgen.ngsutils.fastq.FastqReader;
+import io.compgen.ngsutils.support.MultiOutputWriter;
+import io.compgen.ngsutils.tabix.BGZipOutputStream;
 
 @Command(name = "fastq-split", desc = "Splits an FASTQ file into smaller files", category="fastq")
 public class FastqSplit extends AbstractCommand {
@@ -29,6 +31,8 @@ public class FastqSplit extends AbstractCommand {
 
 	private String outputTemplate = null;
 	private boolean compressOuput = false;
+	private boolean bgzip = false;
+	private int threads = 1;
 	private int num = 2;
 
 	public FastqSplit() {
@@ -54,6 +58,16 @@ public class FastqSplit extends AbstractCommand {
 		this.compressOuput = compressOuput;
 	}
 
+	@Option(desc="Compress output with bgzip (default: false)", name="bgzip")
+	public void setBGZip(boolean bgzip) {
+		this.bgzip = bgzip;
+	}
+
+	@Option(desc="Number of threads to use for writing (compressing) output files", name="threads", defaultValue="1")
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
 	@Option(desc="Ignore Illumina read numbers in read names (/1, /2)", name="ignore-readnum")
     public void setIgnoreReadNum(boolean value) {
         this.ignoreReadNum = value;
@@ -64,6 +78,9 @@ public class FastqSplit extends AbstractCommand {
 	    if (filenames.length != 1 && filenames.length != 2) {
 	        throw new CommandArgumentException("You must specify an one or two input files");
 	    }
+	    if (compressOuput && bgzip) {
+	        throw new CommandArgumentException("You can only use one of --compress or --bgzip");
+	    }
         if (outputTemplate == null) {
             if (filenames[0].equals("-")) {
                 throw new CommandArgumentException("You must specify an output template if reading from stdin");
@@ -78,7 +95,9 @@ public class FastqSplit extends AbstractCommand {
         }
 		final OutputStream[] outs = new OutputStream[num];
 		for (int i=0; i<num; i++) {
-			if (compressOuput) {
+			if (bgzip) {
+				outs[i] = new BGZipOutputStream(new FileOutputStream(outputTemplate+"."+i+".fastq.gz"), 1);
+			} else if (compressOuput) {
 				outs[i] = new GZIPOutputStream(new FileOutputStream(outputTemplate+"."+i+".fastq.gz"));
 
 			} else {
@@ -86,6 +105,12 @@ public class FastqSplit extends AbstractCommand {
 			}
 		}
 
+		// the output files are written (and compressed) by background threads
+		MultiOutputWriter writer = new MultiOutputWriter(outs, threads);
+		for (int i=0; i<num; i++) {
+			outs[i] = writer.getOutputStream(i);
+		}
+
 		if (verbose) {
 		    if (filenames.length > 1) {
                 System.err.println("Merging and splitting files:" + filenames[0] + " " + filenames[1]);
@@ -181,8 +206,6 @@ public class FastqSplit extends AbstractCommand {
 	        readers[0].close();
 	        readers[1].close();
 		}
-        for (OutputStream out: outs) {
-            out.close();
-        }
+        writer.close();
 	}
 }
@@ -15,11 +15,10 @@ import io.compgen.cmdline.annotation.UnnamedArg;
 import io.compgen.cmdline.exceptions.CommandArgumentException;
 import io.compgen.cmdline.impl.AbstractOutputCommand;
 import io.compgen.common.TallyCounts;
-import io.compgen.common.TallyValues;
 import io.compgen.common.io.PassthruInputStream;
 import io.compgen.ngsutils.fastq.Fastq;
-import io.compgen.ngsutils.fastq.FastqRead;
-import io.compgen.ngsutils.fastq.FastqReader;
+import io.compgen.ngsutils.fastq.FastqRecord;
+import io.compgen.ngsutils.fastq.FastqRecordReader;
 
 @Command(name = "fastq-stats", desc = "Statistics about a FASTQ file", category="fastq")
 public class FastqStats extends AbstractOutputCommand {
@@ -80,7 +79,6 @@ public class FastqStats extends AbstractOutputCommand {
         
         boolean interleaved = false;
 
-        String lastName = null;
         int readnum = 1;
         
         long fragmentCount = 0;
@@ -93,11 +91,13 @@ public class FastqStats extends AbstractOutputCommand {
         TallyCounts readGC1 = new TallyCounts();
         TallyCounts readGC2 = new TallyCounts();
         
-        List<TallyValues<Character>> baseFreq1 = new ArrayList<TallyValues<Character>>();;
-        List<TallyValues<Character>> baseFreq2 = new ArrayList<TallyValues<Character>>();;
+        // counts for each base call (by byte value) at each position
+        List<long[]> baseFreq1 = new ArrayList<long[]>();
+        List<long[]> baseFreq2 = new ArrayList<long[]>();
         
-        List<TallyCounts> baseQual1 = new ArrayList<TallyCounts>();;
-        List<TallyCounts> baseQual2 = new ArrayList<TallyCounts>();;
+        // counts for each quality value at each position
+        List<long[]> baseQual1 = new ArrayList<long[]>();
+        List<long[]> baseQual2 = new ArrayList<long[]>();
         
         TallyCounts adapterPos1 = new TallyCounts();
         TallyCounts adapterPos2 = new TallyCounts();
@@ -105,115 +105,95 @@ public class FastqStats extends AbstractOutputCommand {
         TallyCounts medianQvals1 = new TallyCounts();
         TallyCounts medianQvals2 = new TallyCounts();
         
-        FastqReader reader = Fastq.open(is, null, channel, name);
+        byte[] adapter = adapterIllumina.getBytes();
+        long[] readQvals = new long[256];
 
-        for (FastqRead read: reader) {
-            if (lastName == null || !lastName.equals(read.getName())) {
+        FastqRecordReader reader = Fastq.recordReader(Fastq.open(is, null, channel, name));
+
+        // swap between two records so that we can compare the current name to the last one
+        FastqRecord read = new FastqRecord();
+        FastqRecord last = null;
+
+        while (reader.next(read)) {
+            if (last == null || !last.nameEquals(read)) {
                 fragmentCount ++;
-                lastName = read.getName();
                 readnum = 1;
             } else {
-                if (read.getName().equals(lastName)) {
-                    interleaved = true;
-                    readnum = 2;
-                }
+                interleaved = true;
+                readnum = 2;
             }
             
-            TallyCounts readQvals = new TallyCounts();
-            
-            if (readnum == 1) {
-                // read length
-                readLength1.incr(read.getQual().length());
-                if (read.getQual().length() > maxlen1) {
-                    maxlen1 = read.getQual().length();
-                }
+            byte[] seq = read.getSeqBytes();
+            int seqLen = read.getSeqLength();
+            byte[] qual = read.getQualBytes();
+            int qualLen = read.getQualLength();
 
-                // GC % over the read
-                int gc = 0;
+            TallyCounts readLength = (readnum == 1) ? readLength1: readLength2;
+            TallyCounts readGC = (readnum == 1) ? readGC1: readGC2;
+            List<long[]> baseFreq = (readnum == 1) ? baseFreq1: baseFreq2;
+            List<long[]> baseQual = (readnum == 1) ? baseQual1: baseQual2;
+            TallyCounts medianQvals = (readnum == 1) ? medianQvals1: medianQvals2;
+            TallyCounts adapterPos = (readnum == 1) ? adapterPos1: adapterPos2;
 
-                // base call frequency
-                String upper = read.getSeq().toUpperCase();
-                for (int i=0; i<upper.length(); i++) {
-                    if (baseFreq1.size() <= i) {
-                        baseFreq1.add(new TallyValues<Character>());
-                    }
+            // read length
+            readLength.incr(qualLen);
+            if (readnum == 1 && qualLen > maxlen1) {
+                maxlen1 = qualLen;
+            } else if (readnum == 2 && qualLen > maxlen2) {
+                maxlen2 = qualLen;
+            }
 
-                    baseFreq1.get(i).incr(upper.charAt(i));
-                    
-                    if (upper.charAt(i) == 'G' || upper.charAt(i) == 'C') {
-                        gc++;
-                    }
+            // GC % over the read
+            int gc = 0;
+
+            // base call frequency (seq is already upper case)
+            for (int i=0; i<seqLen; i++) {
+                if (baseFreq.size() <= i) {
+                    baseFreq.add(new long[256]);
                 }
-                readGC1.incr(100 * gc / upper.length());
+                baseFreq.get(i)[seq[i] & 0xFF]++;
                 
-                // base quality frequency
-                for (int i=0; i<read.getQual().length(); i++) {
-                    if (baseQual1.size() <= i) {
-                        baseQual1.add(new TallyCounts());
-                    }
-                    int qual = read.getQual().charAt(i) - 33;
-                    baseQual1.get(i).incr(qual);
-                    readQvals.incr(qual);
+                if (seq[i] == 'G' || seq[i] == 'C') {
+                    gc++;
                 }
-                    
-                medianQvals1.incr((int)readQvals.getMedian());
-                
-                if (calcAdapter) {
-                    for (int i=0; i<upper.length()-adapterIllumina.length(); i++ ) {
-                        if (upper.substring(i, i+adapterIllumina.length()).equals(adapterIllumina)) {
-                            adapterPos1.incr(i);
-                            break;
-                        }
-                    }
+            }
+            readGC.incr(100 * gc / seqLen);
+            
+            // base quality frequency
+            for (int i=0; i<qualLen; i++) {
+                if (baseQual.size() <= i) {
+                    baseQual.add(new long[256]);
                 }
-                
-            } else {
-                // read length
-                readLength2.incr(read.getQual().length());
-                if (read.getQual().length() > maxlen2) {
-                    maxlen2 = read.getQual().length();
+                int q = qual[i] - 33;
+                if (q >= 0) {
+                    baseQual.get(i)[q]++;
+                    readQvals[q]++;
                 }
-
-                // GC % over the read
-                int gc = 0;
-
-                // base call frequency
-                String upper = read.getSeq().toUpperCase();
-                for (int i=0; i<upper.length(); i++) {
-                    if (baseFreq2.size() <= i) {
-                        baseFreq2.add(new TallyValues<Character>());
-                    }
-                    
-                    baseFreq2.get(i).incr(upper.charAt(i));
-
-                    if (upper.charAt(i) == 'G' || upper.charAt(i) == 'C') {
-                        gc++;
-                    }
-                }
-                readGC2.incr(100 * gc / upper.length());
+            }
                 
-                // base quality frequency
-                for (int i=0; i<read.getQual().length(); i++) {
-                    if (baseQual2.size() <= i) {
-                        baseQual2.add(new TallyCounts());
-                    }
-                    int qual = read.getQual().charAt(i) - 33;
-                    baseQual2.get(i).incr(qual);
-                    readQvals.incr(qual);
+            medianQvals.incr(getQuantile(readQvals, 0.5));
+            for (int i=0; i<qualLen; i++) {
+                if (qual[i] - 33 >= 0) {
+                    readQvals[qual[i] - 33] = 0;
                 }
-
-                medianQvals2.incr((int)readQvals.getMedian());
-
-                if (calcAdapter) {
-                    for (int i=0; i<upper.length()-adapterIllumina.length(); i++ ) {
-                        if (upper.substring(i, i+adapterIllumina.length()).equals(adapterIllumina)) {
-                            adapterPos2.incr(i);
-                            break;
-                        }
+            }
+            
+            if (calcAdapter) {
+                for (int i=0; i<seqLen-adapter.length; i++ ) {
+                    int j = 0;
+                    while (j < adapter.length && seq[i+j] == adapter[j]) {
+                        j++;
+                    }
+                    if (j == adapter.length) {
+                        adapterPos.incr(i);
+                        break;
                     }
                 }
             }
-            
+
+            FastqRecord tmp = (last == null) ? new FastqRecord(): last;
+            last = read;
+            read = tmp;
         }
         reader.close();
 
@@ -247,11 +227,11 @@ public class FastqStats extends AbstractOutputCommand {
         println();
         println("base-call-freq-read1\tA\tC\tG\tT");
         for (int i=0; i<baseFreq1.size(); i++) {
-            double total = baseFreq1.get(i).getTotal();
-            long A = baseFreq1.get(i).getCount('A');
-            long C = baseFreq1.get(i).getCount('C');
-            long G = baseFreq1.get(i).getCount('G');
-            long T = baseFreq1.get(i).getCount('T');
+            double total = getTotal(baseFreq1.get(i));
+            long A = baseFreq1.get(i)['A'];
+            long C = baseFreq1.get(i)['C'];
+            long G = baseFreq1.get(i)['G'];
+            long T = baseFreq1.get(i)['T'];
             
             printtab(i+1);
             printtab(String.format("%.3f", A/total));
@@ -264,11 +244,11 @@ public class FastqStats extends AbstractOutputCommand {
             println();
             println("base-call-freq-read2\tA\tC\tG\tT");
             for (int i=0; i<baseFreq2.size(); i++) {
-                double total = baseFreq2.get(i).getTotal();
-                long A = baseFreq2.get(i).getCount('A');
-                long C = baseFreq2.get(i).getCount('C');
-                long G = baseFreq2.get(i).getCount('G');
-                long T = baseFreq2.get(i).getCount('T');
+                double total = getTotal(baseFreq2.get(i));
+                long A = baseFreq2.get(i)['A'];
+                long C = baseFreq2.get(i)['C'];
+                long G = baseFreq2.get(i)['G'];
+                long T = baseFreq2.get(i)['T'];
                 
                 printtab(i+1);
                 printtab(String.format("%.3f", A/total));
@@ -283,13 +263,13 @@ public class FastqStats extends AbstractOutputCommand {
         println("base-qual-dist-read1\tmin\t5%\t25%\t50%\t75%\t95%\tmax");
         for (int i=0; i<baseQual1.size(); i++) {
             printtab(i+1);
-            printtab(baseQual1.get(i).getMin());
-            printtab(baseQual1.get(i).getQuantile(0.05));
-            printtab(baseQual1.get(i).getQuantile(0.25));
-            printtab(baseQual1.get(i).getQuantile(0.50));
-            printtab(baseQual1.get(i).getQuantile(0.75));
-            printtab(baseQual1.get(i).getQuantile(0.95));
-            printtab(baseQual1.get(i).getMax());
+            printtab(getMin(baseQual1.get(i)));
+            printtab(getQuantile(baseQual1.get(i), 0.05));
+            printtab(getQuantile(baseQual1.get(i), 0.25));
+            printtab(getQuantile(baseQual1.get(i), 0.50));
+            printtab(getQuantile(baseQual1.get(i), 0.75));
+            printtab(getQuantile(baseQual1.get(i), 0.95));
+            printtab(getMax(baseQual1.get(i)));
             println();
         }
         if (interleaved) {
@@ -297,13 +277,13 @@ public class FastqStats extends AbstractOutputCommand {
             println("base-qual-dist-read2\tmin\t5%\t25%\t50%\t75%\t95%\tmax");
             for (int i=0; i<baseQual2.size(); i++) {
                 printtab(i+1);
-                printtab(baseQual2.get(i).getMin());
-                printtab(baseQual2.get(i).getQuantile(0.05));
-                printtab(baseQual2.get(i).getQuantile(0.25));
-                printtab(baseQual2.get(i).getQuantile(0.50));
-                printtab(baseQual2.get(i).getQuantile(0.75));
-                printtab(baseQual2.get(i).getQuantile(0.95));
-                printtab(baseQual2.get(i).getMax());
+                printtab(getMin(baseQual2.get(i)));
+                printtab(getQuantile(baseQual2.get(i), 0.05));
+                printtab(getQuantile(baseQual2.get(i), 0.25));
+                printtab(getQuantile(baseQual2.get(i), 0.50));
+                printtab(getQuantile(baseQual2.get(i), 0.75));
+                printtab(getQuantile(baseQual2.get(i), 0.95));
+                printtab(getMax(baseQual2.get(i)));
                 println();
             }
         }
@@ -364,8 +344,48 @@ public class FastqStats extends AbstractOutputCommand {
         }
     }
     
+    /*
+     * These match the TallyCounts methods (for a histogram of counts)
+     */
+    private static long getTotal(long[] counts) {
+        long total = 0;
+        for (int i=0; i<counts.length; i++) {
+            total += counts[i];
+        }
+        return total;
+    }
+
+    private static int getMin(long[] counts) {
+        for (int i=0; i<counts.length; i++) {
+            if (counts[i] > 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int getMax(long[] counts) {
+        for (int i=counts.length-1; i>=0; i--) {
+            if (counts[i] > 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int getQuantile(long[] counts, double quantile) {
+        double target = quantile * getTotal(counts);
+        int max = getMax(counts);
+        long acc = 0;
+        for (int i=getMin(counts); i<=max && acc < target; i++) {
+            acc += counts[i];
+            if (acc > target) {
+                return i;
+            }
+        }
+        return max;
+    }
 
-    
     private void println() throws IOException {
         println("");
     }
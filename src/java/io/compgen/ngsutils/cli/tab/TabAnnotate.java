@@ -18,6 +18,7 @@ import io.compgen.common.progress.ProgressMessage;
 import io.compgen.common.progress.ProgressUtils;
 import io.compgen.ngsutils.NGSUtils;
 import io.compgen.ngsutils.support.FileUtils;
+import io.compgen.ngsutils.tabix.BGZBlockCache;
 import io.compgen.ngsutils.tabix.TabixFile;
 import io.compgen.ngsutils.tabix.annotate.BedGraphTabAnnotator;
 import io.compgen.ngsutils.tabix.annotate.TabAnnotator;
@@ -363,6 +364,10 @@ public class TabAnnotate extends AbstractOutputCommand {
             ann.close();
 		}
         tabix.close();
+
+        if (verbose) {
+            System.err.println(BGZBlockCache.getSharedCache().getStats());
+        }
 	}
 
 }
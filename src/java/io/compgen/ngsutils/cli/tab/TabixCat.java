@@ -2,17 +2,24 @@ package io.compgen.ngsutils.cli.tab;
 
 import io.compgen.cmdline.annotation.Command;
 import io.compgen.cmdline.annotation.Exec;
+import io.compgen.cmdline.annotation.Option;
 import io.compgen.cmdline.annotation.UnnamedArg;
 import io.compgen.cmdline.exceptions.CommandArgumentException;
 import io.compgen.cmdline.impl.AbstractOutputCommand;
 import io.compgen.common.IterUtils;
 import io.compgen.ngsutils.tabix.BGZFile;
-import io.compgen.ngsutils.tabix.BGZFile.BGZBlock;
+import io.compgen.ngsutils.tabix.BGZInputStream;
 import io.compgen.ngsutils.tabix.TabixFile;
 
 @Command(name = "tabix-cat", desc = "Decompress a Tabix file", category = "help", hidden = true)
 public class TabixCat extends AbstractOutputCommand {
     private String infile;
+    private int threads = 1;
+
+    @Option(desc="Number of threads to use for decompression", name="threads", defaultValue="1")
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
 
     @UnnamedArg(name = "infile", required = true)
     public void setFilename(String fname) throws CommandArgumentException {
@@ -32,12 +39,13 @@ public class TabixCat extends AbstractOutputCommand {
 	        System.exit(0);
         }
         
-        BGZFile bgz = new BGZFile(infile);
-        BGZBlock block = bgz.readCurrentBlock();
-        while (block != null) {
-        	System.out.write(block.uBuf);
-            block = bgz.readCurrentBlock();
+        BGZInputStream is = new BGZInputStream(new BGZFile(infile), threads);
+        byte[] buf = new byte[65536];
+        int c = 0;
+        while ((c = is.read(buf)) != -1) {
+        	System.out.write(buf, 0, c);
         }
+        is.close();
         System.out.flush();
     }
 }
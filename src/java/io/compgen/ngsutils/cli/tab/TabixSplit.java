@@ -1,5 +1,6 @@
 package io.compgen.ngsutils.cli.tab;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -12,6 +13,7 @@ import io.compgen.cmdline.impl.AbstractCommand;
 import io.compgen.common.IterUtils;
 import io.compgen.ngsutils.tabix.BGZipOutputStream;
 import io.compgen.ngsutils.tabix.TabixFile;
+import io.compgen.ngsutils.tabix.TabixIndexWriter;
 
 @Command(name = "tabix-split", desc = "Splits a tabix file by ref/chrom", category = "annotation")
 public class TabixSplit extends AbstractCommand {
@@ -20,6 +22,9 @@ public class TabixSplit extends AbstractCommand {
     private boolean header = false;
     private boolean byRef = false;
     private int linenum = -1;
+    private int threads = 1;
+    private boolean index = false;
+    private boolean csi = false;
     
     @Option(desc="Output file template ({} will be replaced by the ref/chrom name, default based on infile)", name="templ")
     public void setTemplateName(String templFilename) {
@@ -36,6 +41,21 @@ public class TabixSplit extends AbstractCommand {
         this.linenum = linenum;
     }
     
+    @Option(desc="Number of threads to use for bgzip compression", name="threads", defaultValue="1")
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+    
+    @Option(desc="Write a tabix (.tbi) index for each output file", name="index")
+    public void setIndex(boolean index) {
+        this.index = index;
+    }
+    
+    @Option(desc="Write a CSI (.csi) index for each output file", name="csi")
+    public void setCSI(boolean csi) {
+        this.csi = csi;
+    }
+    
     @Option(desc="Write the header to all files", name="header")
     public void setHeader(boolean val) {
         this.header = val;
@@ -97,7 +117,8 @@ public class TabixSplit extends AbstractCommand {
 	    				bgz.close();
 	    			}
 	    			curSeq = seq;
-	    			bgz = new BGZipOutputStream(templFilename.replaceAll("\\{\\}", curSeq));
+	    			bgz = new BGZipOutputStream(templFilename.replaceAll("\\{\\}", curSeq), threads);
+	    			setIndexWriter(bgz, tabix);
 	    			if (header) {
 	    				for (String hl: headerLines) {
 	    					bgz.writeString(hl+"\n");
@@ -112,7 +133,8 @@ public class TabixSplit extends AbstractCommand {
 	    			}
     				curLineNum=0;
     				fileno++;
-	    			bgz = new BGZipOutputStream(templFilename.replaceAll("\\{\\}", ""+fileno));
+	    			bgz = new BGZipOutputStream(templFilename.replaceAll("\\{\\}", ""+fileno), threads);
+	    			setIndexWriter(bgz, tabix);
 	    			if (header) {
 	    				for (String hl: headerLines) {
 	    					bgz.writeString(hl+"\n");
@@ -130,5 +152,13 @@ public class TabixSplit extends AbstractCommand {
 		if (bgz != null) {
 			bgz.close();
 		}
-    }    
+    }
+    
+    private void setIndexWriter(BGZipOutputStream bgz, TabixFile tabix) throws IOException {
+    	if (!index && !csi) {
+    		return;
+    	}
+    	// header lines are only present if they are copied to each file
+		bgz.setIndexWriter(new TabixIndexWriter(tabix.getFormat(), tabix.getColSeq(), tabix.getColBegin(), tabix.getColEnd(), tabix.getMeta(), header ? tabix.getSkipLines() : 0, csi));
+    }
 }
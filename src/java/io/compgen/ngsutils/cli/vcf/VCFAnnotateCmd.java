@@ -3,6 +3,9 @@ package io.compgen.ngsutils.cli.vcf;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import io.compgen.cmdline.annotation.Command;
 import io.compgen.cmdline.annotation.Exec;
@@ -16,6 +19,7 @@ import io.compgen.ngsutils.vcf.VCFHeader;
 import io.compgen.ngsutils.vcf.VCFReader;
 import io.compgen.ngsutils.vcf.VCFRecord;
 import io.compgen.ngsutils.vcf.VCFWriter;
+import io.compgen.ngsutils.vcf.annotate.AbstractBasicAnnotator;
 import io.compgen.ngsutils.vcf.annotate.AutoID;
 import io.compgen.ngsutils.vcf.annotate.BEDAnnotation;
 import io.compgen.ngsutils.vcf.annotate.ConstantTag;
@@ -28,7 +32,9 @@ import io.compgen.ngsutils.vcf.annotate.Indel;
 import io.compgen.ngsutils.vcf.annotate.InfoInFile;
 import io.compgen.ngsutils.vcf.annotate.MinorStrandPct;
 import io.compgen.ngsutils.vcf.annotate.NullAnnotator;
+import io.compgen.ngsutils.vcf.annotate.ReadAheadAnnotator;
 import io.compgen.ngsutils.vcf.annotate.TabixAnnotation;
+import io.compgen.ngsutils.vcf.annotate.ThreadedAnnotator;
 import io.compgen.ngsutils.vcf.annotate.TransitionTransversion;
 import io.compgen.ngsutils.vcf.annotate.VCFAnnotation;
 import io.compgen.ngsutils.vcf.annotate.VCFAnnotator;
@@ -43,11 +49,15 @@ public class VCFAnnotateCmd extends AbstractOutputCommand {
 	private String altChrom = null;
 	private String altPos = null;
 	private String endPos = null;
+	private int threads = 1;
 	
 	private List<GTFGene> gtfGenes = null;
 	private List<String> requiredGTFTags = null;
 	
 	List<VCFAnnotator> chain = new ArrayList<VCFAnnotator>();
+
+	// records per batch for --threads
+	private static final int BATCH_SIZE = 1000;
 	
     @Option(desc="Only output passing variants", name="passing")
     public void setOnlyPassing(boolean onlyPassing) {
@@ -69,6 +79,14 @@ public class VCFAnnotateCmd extends AbstractOutputCommand {
         this.endPos = key;
     }
     
+    @Option(desc="Number of threads to use (for thread-safe annotations)", name="threads", defaultValue="1")
+    public void setThreads(int threads) throws CommandArgumentException {
+        if (threads < 1) {
+            throw new CommandArgumentException("--threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+    
     @Option(desc="Add distance to nearest variant (INFO:CG_VARDIST)", name="vardist")
     public void setVarDist() throws CommandArgumentException {
         chain.add(new VariantDistance());
@@ -660,6 +678,11 @@ public class VCFAnnotateCmd extends AbstractOutputCommand {
         }
         
 		VCFHeader header = reader.getHeader();
+		if (threads > 1) {
+			execThreaded(reader, nullAnn, header);
+			return;
+		}
+
 		for (int i=0; i< chain.size(); i++) {
 			chain.get(i).setHeader(header);
 			if (i == 0) {
@@ -669,10 +692,7 @@ public class VCFAnnotateCmd extends AbstractOutputCommand {
 			}
 		}
 		
-		header.addLine("##ngsutilsj_vcf_annotateCommand="+NGSUtils.getArgs());
-		if (!header.contains("##ngsutilsj_vcf_annotateVersion="+NGSUtils.getVersion())) {
-			header.addLine("##ngsutilsj_vcf_annotateVersion="+NGSUtils.getVersion());
-		}
+		addHeaderLines(header);
 		
 		VCFWriter writer = new VCFWriter(out, header);
 //		VCFWriter writer;
@@ -695,4 +715,86 @@ public class VCFAnnotateCmd extends AbstractOutputCommand {
 		writer.close();
 	}
 
+	private void addHeaderLines(VCFHeader header) {
+		header.addLine("##ngsutilsj_vcf_annotateCommand="+NGSUtils.getArgs());
+		if (!header.contains("##ngsutilsj_vcf_annotateVersion="+NGSUtils.getVersion())) {
+			header.addLine("##ngsutilsj_vcf_annotateVersion="+NGSUtils.getVersion());
+		}
+	}
+
+	/**
+	 * Multi-threaded version of the annotation chain. The VCF file is read/parsed in
+	 * one thread. Runs of thread-safe annotators are grouped together and run over
+	 * batches of records with a worker pool. Any other annotators (ex: --vardist, or
+	 * ones that read from a file) are still run in order, one record at a time, in the
+	 * main thread. The output order is the same as with one thread.
+	 */
+	private void execThreaded(VCFReader reader, NullAnnotator nullAnn, VCFHeader header) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "vcf-annotate");
+				t.setDaemon(true);
+				return t;
+			}});
+
+		ReadAheadAnnotator readAhead = new ReadAheadAnnotator(BATCH_SIZE, threads * 4);
+		readAhead.setParent(nullAnn);
+
+		List<VCFAnnotator> stages = new ArrayList<VCFAnnotator>();
+		List<AbstractBasicAnnotator> group = null;
+		for (VCFAnnotator ann: chain) {
+			if (ann instanceof AbstractBasicAnnotator && ((AbstractBasicAnnotator) ann).isThreadSafe()) {
+				if (group == null) {
+					group = new ArrayList<AbstractBasicAnnotator>();
+					stages.add(new ThreadedAnnotator(group, pool, BATCH_SIZE, threads * 4));
+				}
+				group.add((AbstractBasicAnnotator) ann);
+			} else {
+				group = null;
+				stages.add(ann);
+			}
+		}
+
+		// the annotators must see the header in the same order as the single-threaded chain
+		for (int i=0; i< stages.size(); i++) {
+			stages.get(i).setHeader(header);
+			if (i == 0) {
+				stages.get(i).setParent(readAhead);
+			} else {
+				stages.get(i).setParent(stages.get(i-1));
+			}
+		}
+
+		addHeaderLines(header);
+
+		VCFWriter writer = new VCFWriter(out, header);
+		VCFAnnotator last = stages.size() > 0 ? stages.get(stages.size()-1) : readAhead;
+
+		if (last instanceof ThreadedAnnotator) {
+			// the records are also written out by the workers
+			ThreadedAnnotator threaded = (ThreadedAnnotator) last;
+			threaded.setRender(true);
+			byte[] buf = threaded.nextRendered();
+			while (buf != null) {
+				writer.writeRaw(buf);
+				buf = threaded.nextRendered();
+			}
+		} else {
+			VCFRecord rec = last.next();
+			while (rec != null) {
+				writer.write(rec);
+				rec = last.next();
+			}
+		}
+
+		for (int i=0; i< stages.size(); i++) {
+			stages.get(i).close();
+		}
+		readAhead.close();
+		pool.shutdown();
+		reader.close();
+		writer.close();
+	}
+
 }
@@ -1,11 +1,20 @@
 package io.compgen.ngsutils.cli.vcf;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
@@ -68,6 +77,12 @@ public class VCFCount extends AbstractOutputCommand {
     
     private boolean skipMissing = false;
 
+    private int threads = 1;
+
+    // for --threads, counts for each chromosome (written in VCF order)
+    private ExecutorService pool = null;
+    private Deque<Future<byte[]>> pending = null;
+
 
     @Option(desc = "Only keep properly paired reads", name = "proper-pairs")
     public void setProperPairs(boolean val) {
@@ -82,7 +97,15 @@ public class VCFCount extends AbstractOutputCommand {
     	this.onlySNVs = val;
     }
 
-    @Option(desc = "Batch variants into blocks of size {val} for mpileup (limits mpileup calls)", name = "batchlen")
+    @Option(desc="Number of threads to use (each thread counts the variants for a chromosome)", name="threads", defaultValue="1")
+    public void setThreads(int threads) throws CommandArgumentException {
+        if (threads < 1) {
+            throw new CommandArgumentException("--threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    @Option(desc = "Batch variants into blocks of size {val} for mpileup (limits mpileup calls, only used with --baq)", name = "batchlen")
     public void setBatchLen(int maxBatchLen) {
         this.maxBatchLen = maxBatchLen;
     }
@@ -233,7 +256,28 @@ public class VCFCount extends AbstractOutputCommand {
             pileup.setRefFilename(refFilename);
         }
 
-        writer.write_line("## pileup-cmd: " + StringUtils.join(" ", pileup.getCommand()));
+        if (pileup.useSamtools()) {
+            writer.write_line("## pileup-cmd: " + StringUtils.join(" ", pileup.getCommand()));
+        } else {
+            writer.write_line("## pileup: " + pileup.getEngineSettings());
+        }
+
+        // without samtools (BAQ), the variants for each chromosome are counted in one pass
+        boolean batchByChrom = !pileup.useSamtools();
+
+        if (threads > 1) {
+            if (!batchByChrom) {
+                throw new CommandArgumentException("--threads can't be used with --baq");
+            }
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "vcf-count");
+                    t.setDaemon(true);
+                    return t;
+                }});
+            pending = new ArrayDeque<Future<byte[]>>();
+        }
 
         writer.write("chrom");
         writer.write("pos");
@@ -269,7 +313,7 @@ public class VCFCount extends AbstractOutputCommand {
             total += reader.getHeader().getContigLength(chr);
         }
         
-        final List<VCFRecord> recordBlock = new ArrayList<VCFRecord>();
+        List<VCFRecord> recordBlock = new ArrayList<VCFRecord>();
         final VCFHeader header = reader.getHeader();
         final long totalF = total;
         
@@ -345,7 +389,13 @@ public class VCFCount extends AbstractOutputCommand {
                 }
 			}
 			
-			if (maxBatchLen > 0) {
+			if (batchByChrom) {
+                if (recordBlock.size() > 0 && !recordBlock.get(0).getChrom().equals(record.getChrom())) {
+                    processChrom(recordBlock, pileup, writer, sampleIdx);
+                    recordBlock = new ArrayList<VCFRecord>();
+                }
+                recordBlock.add(record);
+			} else if (maxBatchLen > 0) {
 				// Batch processing
 				
                 if (recordBlock.size() > 0) {
@@ -386,8 +436,21 @@ public class VCFCount extends AbstractOutputCommand {
 		
 		}
 
-		if (recordBlock.size() > 0) {
-		    processVariants(recordBlock, pileup, writer, sampleIdx);
+		try {
+    		if (recordBlock.size() > 0) {
+    		    if (batchByChrom) {
+    		        processChrom(recordBlock, pileup, writer, sampleIdx);
+    		    } else {
+    		        processVariants(recordBlock, pileup, writer, sampleIdx);
+    		    }
+    		}
+            while (pending != null && !pending.isEmpty()) {
+                writePending();
+            }
+		} finally {
+		    if (pool != null) {
+		        pool.shutdownNow();
+		    }
 		}
 
 		reader.close();
@@ -565,6 +628,65 @@ public class VCFCount extends AbstractOutputCommand {
     }
 
 
+    /**
+     * Count all of the variants for a chromosome with one pileup (the BAM file is read once
+     * for all of the variant positions). With --threads, this is run in the background and
+     * the output is written in order by writePending().
+     */
+    private void processChrom(final List<VCFRecord> records, final BAMPileup pileup, TabWriter writer, final int sampleIdx) throws IOException, VCFAttributeException {
+        if (pool == null) {
+            countChrom(records, pileup, writer, sampleIdx);
+            return;
+        }
+
+        while (pending.size() >= threads * 2) {
+            writePending();
+        }
+
+        pending.add(pool.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                TabWriter chromWriter = new TabWriter(buf);
+                countChrom(records, pileup, chromWriter, sampleIdx);
+                chromWriter.close();
+                return buf.toByteArray();
+            }}));
+    }
+
+    private void writePending() throws IOException {
+        byte[] buf;
+        try {
+            buf = pending.poll().get();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        System.out.write(buf);
+        System.out.flush();
+    }
+
+    private void countChrom(List<VCFRecord> records, BAMPileup pileup, TabWriter writer, int sampleIdx) throws IOException, VCFAttributeException {
+        // variants are matched to the pileup in order, so split the records into sorted runs
+        // (there is only one run if the VCF file is sorted)
+        int start = 0;
+        for (int i=1; i<=records.size(); i++) {
+            if (i == records.size() || records.get(i).getPos() < records.get(i-1).getPos()) {
+                List<VCFRecord> run = records.subList(start, i);
+                List<GenomeSpan> spans = new ArrayList<GenomeSpan>(run.size());
+                for (VCFRecord record: run) {
+                    spans.add(new GenomeSpan(record.getChrom(), record.getPos() - 1));
+                }
+                processVariants(run, pileup.pileup(spans), writer, sampleIdx);
+                start = i;
+            }
+        }
+    }
+
     private void processVariants(List<VCFRecord> records, BAMPileup pileup, TabWriter writer, int sampleIdx) throws IOException, VCFAttributeException {
         // records must have the same chrom.
         
@@ -572,12 +694,17 @@ public class VCFCount extends AbstractOutputCommand {
         int end = records.get(records.size()-1).getPos(); // minus 1?
         
         GenomeSpan span = new GenomeSpan(records.get(0).getChrom(), start, end);
-        CloseableIterator<PileupRecord> it2 = pileup.pileup(span);
-        
+        processVariants(records, pileup.pileup(span), writer, sampleIdx);
+    }
+
+    private void processVariants(List<VCFRecord> records, CloseableIterator<PileupRecord> it2, TabWriter writer, int sampleIdx) throws IOException, VCFAttributeException {
         VCFRecord curRecord = records.get(0);
         int idx = 1;
         
         for (PileupRecord pileupRecord: IterUtils.wrap(it2)) {
+            if (curRecord == null) {
+                break;
+            }
             while (pileupRecord.ref.equals(curRecord.getChrom()) && pileupRecord.pos > curRecord.getPos()-1) {
                 processMissingVariant(curRecord, writer, sampleIdx);
                 if (idx < records.size()) {
@@ -587,7 +714,7 @@ public class VCFCount extends AbstractOutputCommand {
                     break;
                 }
             }
-            while (pileupRecord.ref.equals(curRecord.getChrom()) && pileupRecord.pos == curRecord.getPos()-1) {
+            while (curRecord != null && pileupRecord.ref.equals(curRecord.getChrom()) && pileupRecord.pos == curRecord.getPos()-1) {
                 processVariantRecord(curRecord, pileupRecord, writer, sampleIdx);
                 if (idx < records.size()) {
                     curRecord = records.get(idx++);
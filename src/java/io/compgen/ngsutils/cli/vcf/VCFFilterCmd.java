@@ -1,10 +1,16 @@
 package io.compgen.ngsutils.cli.vcf;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import io.compgen.cmdline.annotation.Command;
 import io.compgen.cmdline.annotation.Exec;
@@ -21,6 +27,8 @@ import io.compgen.common.progress.ProgressMessage;
 import io.compgen.common.progress.ProgressUtils;
 import io.compgen.ngsutils.NGSUtils;
 import io.compgen.ngsutils.support.CloseableFinalizer;
+import io.compgen.ngsutils.tabix.TabixFile;
+import io.compgen.ngsutils.tabix.TabixLine;
 import io.compgen.ngsutils.vcf.VCFHeader;
 import io.compgen.ngsutils.vcf.VCFReader;
 import io.compgen.ngsutils.vcf.VCFRecord;
@@ -48,6 +56,7 @@ import io.compgen.ngsutils.vcf.filter.NotInList;
 import io.compgen.ngsutils.vcf.filter.QualityScore;
 import io.compgen.ngsutils.vcf.filter.SNVFilter;
 import io.compgen.ngsutils.vcf.filter.VCFFilter;
+import io.compgen.ngsutils.vcf.filter.VCFFilterException;
 
 
 @Command(name="vcf-filter", desc="Filter a VCF file", category="vcf", doc="Note: This command will set filters in the VCF file, "
@@ -62,6 +71,15 @@ public class VCFFilterCmd extends AbstractOutputCommand {
     private boolean onlyOutputPass = false;
     private boolean onlyOutputFail = false;
     private String statsFilename=null;
+    private int threads = 1;
+
+	// records per batch for --threads
+	private static final int BATCH_SIZE = 1000;
+
+	private long count = 0;
+	private long filtered = 0;
+	private TallyValues<String> filterCounts = new TallyValues<String>();
+	private TallyValues<String> filterCounts2 = new TallyValues<String>();
 	
     @Option(desc="Filter variants not on these chromosomes (CSV)", name="chrom-pass")
     public void setChromPass(String chroms) {
@@ -73,6 +91,14 @@ public class VCFFilterCmd extends AbstractOutputCommand {
         filterChain.add(new ChromFailFilter(chroms.split(",")));
     }
 	
+    @Option(desc="Number of threads to use (requires a bgzip compressed and tabix indexed VCF file)", name="threads", defaultValue="1")
+    public void setThreads(int threads) throws CommandArgumentException {
+        if (threads < 1) {
+            throw new CommandArgumentException("--threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+    
     @Option(desc="Write filter stats to a file", name="stats")
     public void setStatsFilename(String statsFilename) {
     	this.statsFilename = statsFilename;
@@ -347,51 +373,30 @@ public class VCFFilterCmd extends AbstractOutputCommand {
 		
 		VCFWriter writer = new VCFWriter(out, header);
 		
-		TallyValues<String> filterCounts = new TallyValues<String>();
-		TallyValues<String> filterCounts2 = new TallyValues<String>();
-		
-		FileChannel channel = reader.getChannel();
-		
-		Iterator<VCFRecord> it = ProgressUtils.getIterator(reader.getFilename(), reader.iterator(), (channel == null)? null : new FileChannelStats(channel), new ProgressMessage<VCFRecord>() {
-            public String msg(VCFRecord current) {
-                return current.getChrom()+":"+current.getPos();
-            }}, new CloseableFinalizer<VCFRecord>());
-
-
-		
-		long count = 0;
-		long filtered = 0;
-		
-		for (VCFRecord rec: IterUtils.wrap(it)) {
-//			System.err.println(rec+" ;; " + !onlyOutputPass+" ;; "+!rec.isFiltered());
-			for (VCFFilter filter: filterChain) {
-				filter.filter(rec);
-//				System.err.println("filter: " + filter+ " rec = "+rec);
-				if (rec == null) {
-					break;
-				}
+		if (threads > 1) {
+			if (!reader.isIndexed()) {
+				throw new CommandArgumentException("--threads requires a bgzip compressed and tabix indexed (TBI/CSI) VCF file");
 			}
+			execThreaded(reader.getFilename(), reader.getIndexedSeqNames(), header, writer);
+		} else {
+			FileChannel channel = reader.getChannel();
 			
-//			System.err.println(rec+" ;; " + !onlyOutputPass+" ;; "+!rec.isFiltered());
-			if (!rec.isFiltered()) {
-				if (!onlyOutputFail) {
-					count++;
-					writer.write(rec);
-				}
-			}
-			if (rec.isFiltered()) {
-				filtered++;
-				if (!onlyOutputPass) {
+			Iterator<VCFRecord> it = ProgressUtils.getIterator(reader.getFilename(), reader.iterator(), (channel == null)? null : new FileChannelStats(channel), new ProgressMessage<VCFRecord>() {
+	            public String msg(VCFRecord current) {
+	                return current.getChrom()+":"+current.getPos();
+	            }}, new CloseableFinalizer<VCFRecord>());
+	
+			for (VCFRecord rec: IterUtils.wrap(it)) {
+				if (filterRecord(rec)) {
 					writer.write(rec);
 				}
-				for (String filter: rec.getFilters()) {
-					filterCounts.incr(filter);
+				if (!rec.isFiltered()) {
+					if (!onlyOutputFail) {
+						count++;
+					}
+				} else {
+					tally(rec.getFilters());
 				}
-				List<String> filters = new ArrayList<String>();
-				filters.addAll(rec.getFilters());
-				Collections.sort(filters);
-				String key = StringUtils.join(",", filters);
-				filterCounts2.incr(key);
 			}
 		}
 		
@@ -416,4 +421,159 @@ public class VCFFilterCmd extends AbstractOutputCommand {
 		writer.close();
 	}
 
+	/**
+	 * Run the filters for a record.
+	 * 
+	 * @return true if the record should be written
+	 */
+	private boolean filterRecord(VCFRecord rec) throws VCFFilterException {
+//		System.err.println(rec+" ;; " + !onlyOutputPass+" ;; "+!rec.isFiltered());
+		for (VCFFilter filter: filterChain) {
+			filter.filter(rec);
+//			System.err.println("filter: " + filter+ " rec = "+rec);
+		}
+		
+//		System.err.println(rec+" ;; " + !onlyOutputPass+" ;; "+!rec.isFiltered());
+		if (!rec.isFiltered()) {
+			return !onlyOutputFail;
+		}
+		return !onlyOutputPass;
+	}
+
+	private void tally(List<String> recFilters) {
+		filtered++;
+		for (String filter: recFilters) {
+			filterCounts.incr(filter);
+		}
+		List<String> filters = new ArrayList<String>();
+		filters.addAll(recFilters);
+		Collections.sort(filters);
+		String key = StringUtils.join(",", filters);
+		filterCounts2.incr(key);
+	}
+
+	/**
+	 * Filtered records for part of a reference (written by a worker thread)
+	 */
+	private static class FilterBatch {
+		private final byte[] buf;
+		private final long count;
+		private final List<List<String>> failed;
+		private final Exception error;
+		
+		private FilterBatch(byte[] buf, long count, List<List<String>> failed, Exception error) {
+			this.buf = buf;
+			this.count = count;
+			this.failed = failed;
+			this.error = error;
+		}
+	}
+	
+	// marks the end of a reference
+	private static final FilterBatch END = new FilterBatch(null, 0, null, null);
+
+	/**
+	 * Filter each reference (from the tabix index) in a separate thread. The results are
+	 * written in the same order as the file (the order of the references in the index),
+	 * so the output is the same as the single threaded version.
+	 * 
+	 * Each reference can only be processed by one thread, so the speedup is limited by
+	 * the largest reference. Finished batches are kept in a small queue for each reference,
+	 * so we only keep a few batches in memory for each thread.
+	 */
+	private void execThreaded(final String filename, String[] seqNames, final VCFHeader header, VCFWriter writer) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "vcf-filter");
+				t.setDaemon(true);
+				return t;
+			}});
+
+		// each thread gets its own file (so that reading/inflating blocks isn't shared)
+		final List<TabixFile> opened = Collections.synchronizedList(new ArrayList<TabixFile>());
+		final ThreadLocal<TabixFile> tabix = new ThreadLocal<TabixFile>();
+
+		List<BlockingQueue<FilterBatch>> queues = new ArrayList<BlockingQueue<FilterBatch>>();
+		for (final String ref: seqNames) {
+			final BlockingQueue<FilterBatch> queue = new ArrayBlockingQueue<FilterBatch>(4);
+			queues.add(queue);
+			
+			pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (tabix.get() == null) {
+							TabixFile f = new TabixFile(filename);
+							tabix.set(f);
+							opened.add(f);
+						}
+
+						ByteArrayOutputStream baos = new ByteArrayOutputStream();
+						long count = 0;
+						int lines = 0;
+						List<List<String>> failed = new ArrayList<List<String>>();
+						
+						Iterator<TabixLine> it = tabix.get().queryLines(ref);
+						while (it.hasNext()) {
+							VCFRecord rec = VCFRecord.parseLine(it.next().toString(), false, header);
+							if (filterRecord(rec)) {
+								rec.write(baos);
+							}
+							if (!rec.isFiltered()) {
+								if (!onlyOutputFail) {
+									count++;
+								}
+							} else {
+								failed.add(rec.getFilters());
+							}
+							
+							if (++lines >= BATCH_SIZE) {
+								queue.put(new FilterBatch(baos.toByteArray(), count, failed, null));
+								baos = new ByteArrayOutputStream();
+								count = 0;
+								lines = 0;
+								failed = new ArrayList<List<String>>();
+							}
+						}
+						if (lines > 0) {
+							queue.put(new FilterBatch(baos.toByteArray(), count, failed, null));
+						}
+						queue.put(END);
+					} catch (InterruptedException e) {
+						// shutting down
+					} catch (Exception e) {
+						try {
+							queue.put(new FilterBatch(null, 0, null, e));
+						} catch (InterruptedException e1) {
+						}
+					}
+				}});
+		}
+
+		try {
+			for (BlockingQueue<FilterBatch> queue: queues) {
+				FilterBatch batch = queue.take();
+				while (batch != END) {
+					if (batch.error != null) {
+						throw batch.error;
+					}
+					writer.writeRaw(batch.buf);
+					count += batch.count;
+					for (List<String> recFilters: batch.failed) {
+						tally(recFilters);
+					}
+					batch = queue.take();
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			synchronized (opened) {
+				for (TabixFile f: opened) {
+					f.close();
+				}
+			}
+		}
+	}
+
 }
@@ -18,6 +18,7 @@ import io.compgen.cmdline.exceptions.CommandArgumentException;
 import io.compgen.cmdline.impl.AbstractCommand;
 import io.compgen.ngsutils.NGSUtils;
 import io.compgen.ngsutils.tabix.BGZipOutputStream;
+import io.compgen.ngsutils.tabix.TabixIndexWriter;
 import io.compgen.ngsutils.vcf.VCFReader;
 
 
@@ -27,6 +28,9 @@ public class VCFSplit extends AbstractCommand {
 	private String filename = null;
 	private String baseout = null;
 	private int numVariants = 0;
+	private int threads = 1;
+	private boolean index = false;
+	private boolean csi = false;
     
     @Option(desc="Base output name to use. Outputs will be ${base}.${num}.vcf.gz.", name="out")
     public void setBaseout(String baseout) {
@@ -38,6 +42,21 @@ public class VCFSplit extends AbstractCommand {
         this.numVariants = numVariants;
     }
 
+    @Option(desc="Number of threads to use for bgzip compression", name="threads", defaultValue="1")
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    @Option(desc="Write a tabix (.tbi) index for each output file", name="index")
+    public void setIndex(boolean index) {
+        this.index = index;
+    }
+
+    @Option(desc="Write a CSI (.csi) index for each output file", name="csi")
+    public void setCSI(boolean csi) {
+        this.csi = csi;
+    }
+
     @UnnamedArg(name = "input.vcf", required=true)
     public void setFilenames(String filename) throws CommandArgumentException {
     	this.filename = filename;
@@ -156,7 +175,12 @@ public class VCFSplit extends AbstractCommand {
 					System.err.println(baseout +"."+outFileNum+".vcf.gz");
 				}
 				// write to tmp file first
-				bos = new BufferedOutputStream(new BGZipOutputStream(baseout +"."+outFileNum+".vcf.gz.tmp"));
+				BGZipOutputStream bgz = new BGZipOutputStream(baseout +"."+outFileNum+".vcf.gz.tmp", threads);
+				if (index || csi) {
+					TabixIndexWriter idx = TabixIndexWriter.vcf(csi);
+					bgz.setIndexWriter(idx, baseout +"."+outFileNum+".vcf.gz"+idx.getDefaultExtension());
+				}
+				bos = new BufferedOutputStream(bgz);
 				for (String line: headerLines) {
 					bos.write(line.getBytes());
 				}
@@ -52,41 +52,50 @@ public class IndexedFastaFile extends BasicFastaReader {
         int lineSeqLength = fai.getLineSeqLength(ref);
         int lineOffsetLength = fai.getLineOffsetLength(ref);
         
-        long pos = offset;
-        int linenum = start / lineSeqLength;
-        int lineoff = start % lineSeqLength;
-        pos += linenum * lineOffsetLength + lineoff;
+        if (end <= start) {
+        	return "";
+        }
         
-        String out = "";
+        long pos = offset + ((long) (start / lineSeqLength)) * lineOffsetLength + (start % lineSeqLength);
+        long endPos = offset + ((long) ((end - 1) / lineSeqLength)) * lineOffsetLength + ((end - 1) % lineSeqLength) + 1;
         
-        int chars = 0;
+        // read the whole span (including newlines) at once, then strip out the line endings
+        byte[] buf = new byte[(int) (endPos - pos)];
+        int read = 0;
     	if (file != null) {
     		file.seek(pos);
+    		while (read < buf.length) {
+    			int c = file.read(buf, read, buf.length - read);
+    			if (c == -1) {
+    				break;
+    			}
+    			read += c;
+    		}
     	} else {
     		bgzf.seek(pos);
+    		while (read < buf.length) {
+    			int c = bgzf.read(buf, read, buf.length - read);
+    			if (c == -1) {
+    				break;
+    			}
+    			read += c;
+    		}
+    	}
+    	
+    	StringBuilder sb = new StringBuilder(end - start);
+    	int lineoff = start % lineSeqLength;
+    	int i = 0;
+    	while (i < read && sb.length() < end - start) {
+    		sb.append((char) buf[i]);
+    		i++;
+    		lineoff++;
+    		if (lineoff >= lineSeqLength) {
+    			i += lineOffsetLength - lineSeqLength;
+    			lineoff = 0;
+    		}
     	}
-        while (chars < end-start) {
-        	if (file != null) {
-        		out += (char)file.readByte();
-        	} else {
-        		out += (char)bgzf.readByte();
-        	}
-            chars++;
-            lineoff++;
-            
-            if (lineoff >= lineSeqLength) {
-            	for (int i=0; i<lineOffsetLength - lineSeqLength; i++) {
-	            	if (file != null) {
-	            		file.readByte();
-	            	} else {
-	            		bgzf.readByte();
-	            	}
-            	}
-                lineoff = 0;
-            }
-        }
         
-        return out;        
+        return sb.toString();        
     }
     
     /* (non-Javadoc)
@@ -0,0 +1,36 @@
+package io.compgen.ngsutils.fastq;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+import io.compgen.common.io.PeekableInputStream;
+import io.compgen.ngsutils.tabix.BGZFile;
+import io.compgen.ngsutils.tabix.BGZInputStream;
+
+/**
+ * FASTQ files compressed with bgzip. These are still valid gzip files, but because each
+ * block is compressed separately, the blocks can be inflated in parallel.
+ */
+public class BGZipFastqReaderSource implements FastqReaderSource {
+
+    @Override
+    public FastqReader open(InputStream is, String password, FileChannel channel, String name) throws IOException {
+      return new FastqByteReader(new BGZInputStream(new BGZFile(is), Fastq.getDefaultThreads()), channel, name);
+    }
+
+    @Override
+    public boolean autodetect(PeekableInputStream peek) throws IOException {
+        // GZip magic, FEXTRA flag, and a BC subfield (BSIZE) as the first extra field
+        byte[] magic = peek.peek(16);
+        return magic[0] == 0x1f && magic[1] == (byte) 0x8B && (magic[3] & 0x04) != 0
+                && magic[12] == 66 && magic[13] == 67 && magic[14] == 2 && magic[15] == 0;
+    }
+
+    @Override
+    public int getPriority() {
+        // after BAM files (also BGZF), before gzip
+        return 140;
+    }
+
+}
@@ -13,7 +13,7 @@ public class BZipFastqReaderSource implements FastqReaderSource {
 
     @Override
     public FastqReader open(InputStream is, String password, FileChannel channel, String name) throws IOException {
-      return new FastqTextReader(new BZip2CompressorInputStream(is), channel, name);
+      return new FastqByteReader(new BZip2CompressorInputStream(is), channel, name);
     }
 
     @Override
@@ -7,6 +7,7 @@ import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import io.compgen.common.io.PeekableInputStream;
@@ -33,6 +34,7 @@ public class Fastq {
     static {
         registerSource(BAMFastqReaderSource.class);
         registerSource(BZipFastqReaderSource.class);
+        registerSource(BGZipFastqReaderSource.class);
         registerSource(GZipFastqReaderSource.class);
         registerSource(TextFastqReaderSource.class);
         
@@ -44,6 +46,23 @@ public class Fastq {
             }
     }
     
+    /**
+     * The number of threads to use for decompressing FASTQ files. BGZF files are inflated
+     * on this many threads, and gzip files are inflated on a separate thread (if this is more
+     * than one). This can be set with -Dngsutilsj.fastq.threads=N (default: the number of
+     * processors, up to 4).
+     */
+    public static int getDefaultThreads() {
+        String prop = System.getProperty("ngsutilsj.fastq.threads");
+        if (prop != null && !prop.equals("")) {
+            try {
+                return Math.max(1, Integer.parseInt(prop));
+            } catch (NumberFormatException e) {
+            }
+        }
+        return Math.min(4, Runtime.getRuntime().availableProcessors());
+    }
+
     public static FastqReader open(String filename) throws IOException {
         return open(filename, null, false);
     }
@@ -68,6 +87,47 @@ public class Fastq {
         return open(fis, password, null, file.getName());
     }
 
+    /**
+     * Returns a FastqRecordReader for the reader. If the reader doesn't support reading into
+     * a FastqRecord directly (ex: BAM or SQZ files), the FastqReads from the reader are
+     * copied into the record.
+     */
+    public static FastqRecordReader recordReader(final FastqReader reader) {
+        if (reader instanceof FastqRecordReader) {
+            return (FastqRecordReader) reader;
+        }
+        return new FastqRecordReader() {
+            private Iterator<FastqRead> it = null;
+
+            @Override
+            public boolean next(FastqRecord record) throws IOException {
+                if (it == null) {
+                    it = reader.iterator();
+                }
+                if (!it.hasNext()) {
+                    return false;
+                }
+                record.clear();
+                record.set(it.next());
+                return true;
+            }
+
+            @Override
+            public Iterator<FastqRead> iterator() {
+                return reader.iterator();
+            }
+
+            @Override
+            public void close() throws IOException {
+                reader.close();
+            }
+
+            @Override
+            public boolean hasWarning() {
+                return reader.hasWarning();
+            }};
+    }
+
     public static FastqReader open(InputStream is, String password, FileChannel channel, String name) throws IOException {
         PeekableInputStream peek = new PeekableInputStream(is);
         
@@ -0,0 +1,265 @@
+package io.compgen.ngsutils.fastq;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import io.compgen.common.progress.FileChannelStats;
+import io.compgen.common.progress.Progress;
+import io.compgen.common.progress.ProgressMessage;
+import io.compgen.common.progress.ProgressUtils;
+
+/**
+ * Reads FASTQ text directly from bytes. Lines are found by scanning a large buffer for
+ * newlines, so there is no character decoding or String creation for each line (as there
+ * is with a BufferedReader). Reads are parsed the same way as FastqTextReader (including
+ * wrapped seq/qual lines and warnings for corrupted files).
+ */
+public class FastqByteReader implements FastqRecordReader {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    // how often to update the progress bar when using next()
+    private static final int PROGRESS_INTERVAL = 10000;
+
+    private final InputStream in;
+    private final FileChannel channel;
+    private final String name;
+
+    private byte[] buf = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+
+    // the current line (in buf)
+    private int lineStart = 0;
+    private int lineLen = 0;
+
+    private boolean done = false;
+    protected boolean warningFlag = false;
+
+    private Progress progress = null;
+    private long readCount = 0;
+
+    private FastqRead nextRead = null;
+
+    public FastqByteReader(InputStream is, FileChannel channel, String name) {
+        this.in = is;
+        this.channel = channel;
+        this.name = name;
+    }
+
+    @Override
+    public Iterator<FastqRead> iterator() {
+        final FastqRecord record = new FastqRecord();
+        nextRead = nextRead(record);
+
+        Iterator<FastqRead> it = new Iterator<FastqRead>() {
+            @Override
+            public boolean hasNext() {
+                return (nextRead != null);
+            }
+
+            @Override
+            public FastqRead next() {
+                if (nextRead == null) {
+                    throw new NoSuchElementException();
+                }
+                FastqRead old = nextRead;
+                nextRead = nextRead(record);
+                return old;
+            }
+
+            @Override
+            public void remove() {
+                // doesn't do anything...
+            }};
+
+        if (channel == null) {
+            return it;
+        }
+
+        return ProgressUtils.getIterator((name == null) ? "FASTQ": name, it, new FileChannelStats(channel), new ProgressMessage<FastqRead>() {
+                @Override
+                public String msg(FastqRead current) {
+                    return current.getName();
+                }});
+    }
+
+    private FastqRead nextRead(FastqRecord record) {
+        if (readRecord(record)) {
+            return record.toFastqRead();
+        }
+        return null;
+    }
+
+    @Override
+    public boolean next(FastqRecord record) throws IOException {
+        if (channel != null && progress == null && !done) {
+            progress = ProgressUtils.getProgress((name == null) ? "FASTQ": name);
+            progress.start(channel.size());
+        }
+
+        if (!readRecord(record)) {
+            if (progress != null) {
+                progress.done();
+                progress = null;
+            }
+            return false;
+        }
+
+        if (progress != null && ++readCount % PROGRESS_INTERVAL == 0) {
+            progress.update(channel.position(), record.getName());
+        }
+        return true;
+    }
+
+    private boolean readRecord(FastqRecord record) {
+        if (done) {
+            return false;
+        }
+
+        try {
+            if (!readLine()) {
+                done = true;
+                return false;
+            }
+
+            if (lineLen == 0) {
+                return corrupted();
+            }
+
+            // strip the @, and split the name and comment at the first space
+            int nameStart = lineStart + 1;
+            int lineEnd = lineStart + lineLen;
+            int space = nameStart;
+            while (space < lineEnd && buf[space] != ' ') {
+                space++;
+            }
+            record.clear();
+            record.setName(buf, nameStart, space - nameStart);
+            if (space < lineEnd) {
+                record.setComment(buf, space + 1, lineEnd - space - 1);
+            }
+
+            if (!readLine()) {
+                return corrupted();
+            }
+            record.setSeq(buf, lineStart, lineLen);
+
+            if (!readLine()) {
+                return corrupted();
+            }
+
+            // The seq block may be wrapped (it rarely is, but it's possible)
+            while (lineLen == 0 || buf[lineStart] != '+') {
+                if (lineLen == 0) {
+                    return corrupted();
+                }
+                record.appendSeq(buf, lineStart, lineLen);
+                if (!readLine()) {
+                    return corrupted();
+                }
+            }
+
+            if (!readLine()) {
+                return corrupted();
+            }
+            record.setQual(buf, lineStart, lineLen);
+
+            // The qual block must be the same length as the seq
+            while (record.getQualLength() < record.getSeqLength()) {
+                if (!readLine()) {
+                    return corrupted();
+                }
+                record.appendQual(buf, lineStart, lineLen);
+            }
+            return true;
+        } catch (IOException e) {
+            return corrupted();
+        }
+    }
+
+    private boolean corrupted() {
+        System.err.println("WARNING: POTENTIALLY CORRUPTED INPUT FILE");
+        warningFlag = true;
+        done = true;
+        return false;
+    }
+
+    /**
+     * Find the next line in the buffer (without the trailing \n or \r\n). The line is only
+     * valid until the next call.
+     *
+     * @return false if there are no more lines
+     */
+    private boolean readLine() throws IOException {
+        int scan = pos;
+        while (true) {
+            for (int i = scan; i < limit; i++) {
+                if (buf[i] == '\n') {
+                    setLine(pos, i);
+                    pos = i + 1;
+                    return true;
+                }
+            }
+
+            if (eof) {
+                if (pos < limit) {
+                    // last line (no trailing newline)
+                    setLine(pos, limit);
+                    pos = limit;
+                    return true;
+                }
+                return false;
+            }
+
+            // no newline found, so move the partial line to the start of the buffer
+            // and read some more
+            scan = fill();
+        }
+    }
+
+    private void setLine(int start, int end) {
+        if (end > start && buf[end - 1] == '\r') {
+            end--;
+        }
+        lineStart = start;
+        lineLen = end - start;
+    }
+
+    /**
+     * @return where to resume scanning for a newline
+     */
+    private int fill() throws IOException {
+        int remaining = limit - pos;
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, remaining);
+        } else if (remaining == buf.length) {
+            // a really long line
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        pos = 0;
+        limit = remaining;
+
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n == -1) {
+            eof = true;
+        } else {
+            limit += n;
+        }
+        return remaining;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    @Override
+    public boolean hasWarning() {
+        return warningFlag;
+    }
+}
@@ -0,0 +1,261 @@
+package io.compgen.ngsutils.fastq;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A mutable FASTQ record that is backed by byte arrays. Records are meant to be re-used
+ * (see FastqRecordReader.next()), so the buffers are only re-allocated when a longer read
+ * is seen. This avoids creating Strings for every line of a FASTQ file.
+ *
+ * As with FastqRead, the sequence is upper-cased and an empty comment is the same as no
+ * comment.
+ *
+ * The byte arrays returned by the getXXXBytes() methods may be longer than the values, so
+ * they should always be used with the matching getXXXLength() method. They are only valid
+ * until the record is changed.
+ */
+public class FastqRecord {
+    private static final int INITIAL_SIZE = 256;
+
+    private byte[] name = new byte[INITIAL_SIZE];
+    private byte[] comment = new byte[INITIAL_SIZE];
+    private byte[] seq = new byte[INITIAL_SIZE];
+    private byte[] qual = new byte[INITIAL_SIZE];
+
+    private int nameLen = 0;
+    private int commentLen = 0;
+    private int seqLen = 0;
+    private int qualLen = 0;
+
+    // lazily created Strings
+    private String nameStr = null;
+    private String commentStr = null;
+
+    private byte[] writeBuf = null;
+
+    public FastqRecord() {
+    }
+
+    public FastqRecord(FastqRead read) {
+        set(read);
+    }
+
+    public byte[] getNameBytes() {
+        return name;
+    }
+
+    public int getNameLength() {
+        return nameLen;
+    }
+
+    public byte[] getCommentBytes() {
+        return comment;
+    }
+
+    public int getCommentLength() {
+        return commentLen;
+    }
+
+    public byte[] getSeqBytes() {
+        return seq;
+    }
+
+    public int getSeqLength() {
+        return seqLen;
+    }
+
+    public byte[] getQualBytes() {
+        return qual;
+    }
+
+    public int getQualLength() {
+        return qualLen;
+    }
+
+    public String getName() {
+        if (nameStr == null) {
+            nameStr = new String(name, 0, nameLen, StandardCharsets.UTF_8);
+        }
+        return nameStr;
+    }
+
+    /**
+     * @return the comment, or null if there isn't one
+     */
+    public String getComment() {
+        if (commentLen == 0) {
+            return null;
+        }
+        if (commentStr == null) {
+            commentStr = new String(comment, 0, commentLen, StandardCharsets.UTF_8);
+        }
+        return commentStr;
+    }
+
+    public String getSeq() {
+        return new String(seq, 0, seqLen, StandardCharsets.US_ASCII);
+    }
+
+    public String getQual() {
+        return new String(qual, 0, qualLen, StandardCharsets.US_ASCII);
+    }
+
+    public boolean nameEquals(FastqRecord other) {
+        return nameLen == other.nameLen && nameEquals(other, 0);
+    }
+
+    /**
+     * Are the names the same, ignoring the last trim bytes of each? (ex: to ignore /1, /2
+     * suffixes). Both names must be the same length.
+     */
+    public boolean nameEquals(FastqRecord other, int trim) {
+        if (nameLen != other.nameLen || nameLen < trim) {
+            return false;
+        }
+        for (int i = 0; i < nameLen - trim; i++) {
+            if (name[i] != other.name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean nameEndsWith(String suffix) {
+        byte[] b = suffix.getBytes(StandardCharsets.UTF_8);
+        if (nameLen < b.length) {
+            return false;
+        }
+        for (int i = 0; i < b.length; i++) {
+            if (name[nameLen - b.length + i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void clear() {
+        nameLen = 0;
+        commentLen = 0;
+        seqLen = 0;
+        qualLen = 0;
+        nameStr = null;
+        commentStr = null;
+    }
+
+    public void setName(byte[] buf, int off, int len) {
+        name = ensureCapacity(name, 0, len);
+        System.arraycopy(buf, off, name, 0, len);
+        nameLen = len;
+        nameStr = null;
+    }
+
+    public void setComment(byte[] buf, int off, int len) {
+        comment = ensureCapacity(comment, 0, len);
+        System.arraycopy(buf, off, comment, 0, len);
+        commentLen = len;
+        commentStr = null;
+    }
+
+    public void setSeq(byte[] buf, int off, int len) {
+        seqLen = 0;
+        appendSeq(buf, off, len);
+    }
+
+    /**
+     * Add to the sequence (for wrapped FASTQ files). The new bases are upper-cased.
+     */
+    public void appendSeq(byte[] buf, int off, int len) {
+        seq = ensureCapacity(seq, seqLen, len);
+        for (int i = 0; i < len; i++) {
+            byte b = buf[off + i];
+            if (b >= 'a' && b <= 'z') {
+                b -= 32;
+            }
+            seq[seqLen + i] = b;
+        }
+        seqLen += len;
+    }
+
+    public void setQual(byte[] buf, int off, int len) {
+        qualLen = 0;
+        appendQual(buf, off, len);
+    }
+
+    public void appendQual(byte[] buf, int off, int len) {
+        qual = ensureCapacity(qual, qualLen, len);
+        System.arraycopy(buf, off, qual, qualLen, len);
+        qualLen += len;
+    }
+
+    public void copyFrom(FastqRecord other) {
+        setName(other.name, 0, other.nameLen);
+        setComment(other.comment, 0, other.commentLen);
+        setSeq(other.seq, 0, other.seqLen);
+        setQual(other.qual, 0, other.qualLen);
+    }
+
+    public void set(FastqRead read) {
+        byte[] b = read.getName().getBytes(StandardCharsets.UTF_8);
+        setName(b, 0, b.length);
+        if (read.getComment() != null) {
+            b = read.getComment().getBytes(StandardCharsets.UTF_8);
+            setComment(b, 0, b.length);
+        } else {
+            setComment(b, 0, 0);
+        }
+        b = read.getSeq().getBytes(StandardCharsets.US_ASCII);
+        setSeq(b, 0, b.length);
+        b = read.getQual().getBytes(StandardCharsets.US_ASCII);
+        setQual(b, 0, b.length);
+    }
+
+    public FastqRead toFastqRead() {
+        return new FastqRead(getName(), getSeq(), getQual(), getComment());
+    }
+
+    /**
+     * Writes the record in the same format as FastqRead.write() (with a single call to
+     * out.write()).
+     */
+    public void write(OutputStream out) throws IOException {
+        int len = nameLen + commentLen + seqLen + qualLen + 7;
+        if (writeBuf == null || writeBuf.length < len) {
+            writeBuf = new byte[len];
+        }
+
+        int pos = 0;
+        writeBuf[pos++] = '@';
+        System.arraycopy(name, 0, writeBuf, pos, nameLen);
+        pos += nameLen;
+        if (commentLen > 0) {
+            writeBuf[pos++] = ' ';
+            System.arraycopy(comment, 0, writeBuf, pos, commentLen);
+            pos += commentLen;
+        }
+        writeBuf[pos++] = '\n';
+        System.arraycopy(seq, 0, writeBuf, pos, seqLen);
+        pos += seqLen;
+        writeBuf[pos++] = '\n';
+        writeBuf[pos++] = '+';
+        writeBuf[pos++] = '\n';
+        System.arraycopy(qual, 0, writeBuf, pos, qualLen);
+        pos += qualLen;
+        writeBuf[pos++] = '\n';
+
+        out.write(writeBuf, 0, pos);
+    }
+
+    private static byte[] ensureCapacity(byte[] buf, int used, int len) {
+        if (used + len <= buf.length) {
+            return buf;
+        }
+        int size = buf.length;
+        while (size < used + len) {
+            size = size << 1;
+        }
+        return Arrays.copyOf(buf, size);
+    }
+}
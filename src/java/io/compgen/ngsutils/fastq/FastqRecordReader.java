@@ -0,0 +1,16 @@
+package io.compgen.ngsutils.fastq;
+
+import java.io.IOException;
+
+/**
+ * A FastqReader that can also fill in a re-usable FastqRecord (instead of creating a new
+ * FastqRead for each read). Use either next() or iterator(), but not both.
+ */
+public interface FastqRecordReader extends FastqReader {
+    /**
+     * Read the next record into the given record.
+     * 
+     * @return false if there are no more reads
+     */
+    public boolean next(FastqRecord record) throws IOException;
+}
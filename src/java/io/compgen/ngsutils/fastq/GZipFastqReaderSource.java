@@ -8,12 +8,18 @@ import java.util.Arrays;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 
 import io.compgen.common.io.PeekableInputStream;
+import io.compgen.ngsutils.support.ReadAheadInputStream;
 
 public class GZipFastqReaderSource implements FastqReaderSource {
 
     @Override
     public FastqReader open(InputStream is, String password, FileChannel channel, String name) throws IOException {
-      return new FastqTextReader(new GzipCompressorInputStream(is, true), channel, name);
+      InputStream gz = new GzipCompressorInputStream(is, true);
+      if (Fastq.getDefaultThreads() > 1) {
+          // inflate on a separate thread from parsing
+          gz = new ReadAheadInputStream(gz, "gzip-inflate");
+      }
+      return new FastqByteReader(gz, channel, name);
     }
 
     @Override
@@ -10,7 +10,7 @@ public class TextFastqReaderSource implements FastqReaderSource {
 
     @Override
     public FastqReader open(InputStream is, String password, FileChannel channel, String name) throws IOException {
-      return new FastqTextReader(is, channel, name);
+      return new FastqByteReader(is, channel, name);
     }
 
     @Override
@@ -9,10 +9,13 @@ import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import htsjdk.samtools.util.CloseableIterator;
 import io.compgen.common.StringUtils;
 import io.compgen.ngsutils.annotation.GenomeSpan;
+import io.compgen.ngsutils.bed.BedReader;
+import io.compgen.ngsutils.bed.BedRecord;
 
 public class BAMPileup {
     private final String[] filenames;
@@ -55,7 +58,7 @@ public class BAMPileup {
     }
     
     public CloseableIterator<PileupRecord> pileup() throws IOException {
-        return pileup(null);
+        return pileup((GenomeSpan) null);
     }
 
     public List<String> getCommand() {
@@ -133,7 +136,7 @@ public class BAMPileup {
         
         if (region != null) {
             cmd.add("-r");
-            if (region.start > 0 && region.end > 0) {
+            if (region.start >= 0 && region.end > 0) {
                 cmd.add(region.ref+":"+(region.start+1)+"-"+region.end);
             } else if (region.start > 0) {
                 cmd.add(region.ref+":"+(region.start+1));
@@ -153,8 +156,69 @@ public class BAMPileup {
         return cmd;
     }
     
+    /**
+     * @return a description of the built-in pileup engine and its settings (for output headers,
+     *         when samtools isn't used)
+     */
+    public String getEngineSettings() {
+        List<String> settings = new ArrayList<String>();
+        settings.add("ngsutilsj-pileup");
+        if (minMappingQual > -1) {
+            settings.add("min-mapq=" + minMappingQual);
+        }
+        if (minBaseQual > -1) {
+            settings.add("min-baseq=" + minBaseQual);
+        }
+        if (filterFlags > 0) {
+            settings.add("filter-flags=" + filterFlags);
+        }
+        if (requiredFlags > 0) {
+            settings.add("required-flags=" + requiredFlags);
+        }
+        if (maxDepth > 0) {
+            settings.add("max-depth=" + maxDepth);
+        }
+        if (nogaps) {
+            settings.add("no-gaps");
+        }
+        if (refFilename != null) {
+            settings.add("ref=" + refFilename);
+        }
+        if (bedFilename != null) {
+            settings.add("bed=" + bedFilename);
+        }
+        for (String f: filenames) {
+            settings.add(f);
+        }
+        return StringUtils.join(" ", settings);
+    }
+
+    /**
+     * @return true if the pileup should use samtools mpileup instead of the built-in pileup
+     *         (BAQ calculations are only available with samtools, or -Dngsutilsj.pileup.samtools=true)
+     */
+    public boolean useSamtools() {
+        if (!disableBAQ || extendedBAQ) {
+            return true;
+        }
+        String prop = System.getProperty("ngsutilsj.pileup.samtools");
+        return prop != null && (prop.equals("true") || prop.equals("1"));
+    }
+
     public CloseableIterator<PileupRecord> pileup(GenomeSpan region) throws IOException {
-        
+        if (!useSamtools()) {
+            List<GenomeSpan> spans = null;
+            if (region == null && bedFilename != null) {
+                spans = new ArrayList<GenomeSpan>();
+                Iterator<BedRecord> it = BedReader.readFile(bedFilename);
+                while (it.hasNext()) {
+                    spans.add(it.next().getCoord());
+                }
+            }
+            return new PileupEngine(filenames, region, spans, refFilename, maxDepth, minMappingQual,
+                    minBaseQual, filterFlags, requiredFlags, nogaps, showQname);
+        }
+
         if (tmpPath != null) {
             return tmpPathPileup(region);
         } else {
@@ -234,6 +298,59 @@ public class BAMPileup {
         }
     }
 
+    /**
+     * Pileup for a list of regions (ex: variant positions). Only positions within these regions
+     * are returned, in the same order as the BAM file. The BAM files are read once, so this is
+     * much faster than calling pileup(region) for each region.
+     *
+     * (If samtools is used, this still calls pileup(region) for each region.)
+     */
+    public CloseableIterator<PileupRecord> pileup(final List<GenomeSpan> regions) throws IOException {
+        if (!useSamtools()) {
+            return new PileupEngine(filenames, null, regions, refFilename, maxDepth, minMappingQual,
+                    minBaseQual, filterFlags, requiredFlags, nogaps, showQname);
+        }
+
+        return new CloseableIterator<PileupRecord>() {
+            Iterator<GenomeSpan> spans = regions.iterator();
+            CloseableIterator<PileupRecord> it = null;
+
+            @Override
+            public boolean hasNext() {
+                while (it == null || !it.hasNext()) {
+                    if (it != null) {
+                        it.close();
+                        it = null;
+                    }
+                    if (!spans.hasNext()) {
+                        return false;
+                    }
+                    try {
+                        it = pileup(spans.next());
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public PileupRecord next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return it.next();
+            }
+
+            @Override
+            public void close() {
+                if (it != null) {
+                    it.close();
+                    it = null;
+                }
+            }};
+    }
+
     private CloseableIterator<PileupRecord> tmpPathPileup(GenomeSpan region) throws IOException {
         final ProcessBuilder pb = new ProcessBuilder(getCommand(region));
 
@@ -0,0 +1,798 @@
+package io.compgen.ngsutils.pileup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.CloseableIterator;
+import io.compgen.ngsutils.annotation.GenomeSpan;
+import io.compgen.ngsutils.fasta.IndexedFastaFile;
+import io.compgen.ngsutils.pileup.PileupRecord.PileupBaseCall;
+import io.compgen.ngsutils.pileup.PileupRecord.PileupBaseCallOp;
+
+/**
+ * An in-process pileup of one or more coordinate sorted BAM files. This returns the same
+ * PileupRecords as running "samtools mpileup -B -Q 0 -O" and parsing the output with
+ * PileupReader, but without the extra process and text round-trip.
+ *
+ * This follows the samtools/htslib defaults:
+ *
+ *   - reads with any of the filter flags are skipped (default: UNMAP, SECONDARY, QCFAIL, DUP)
+ *   - if there are required flags, reads must have at least one of them
+ *   - paired reads that aren't properly paired (orphans) are skipped
+ *   - reads below the minimum MAPQ are skipped
+ *   - for overlapping read pairs, the base quality of one read is set to 0 where the reads
+ *     overlap (and the other is adjusted)
+ *   - once a position has max-depth reads, more reads starting at that position are skipped
+ *     (default: 8000 per file)
+ *
+ * BAQ isn't calculated, so this is only used when BAQ is disabled (-B).
+ *
+ * If a region is given, only positions within the region are returned. If a list of regions
+ * (ex: from a BED file, or variant positions) is given, only positions within these regions
+ * are returned. If the BAM files are indexed, only the reads for these regions are read.
+ */
+class PileupEngine implements CloseableIterator<PileupRecord> {
+    // samtools mpileup default: UNMAP, SECONDARY, QCFAIL, DUP
+    private static final int DEFAULT_FILTER_FLAGS = 0x704;
+    private static final int DEFAULT_MAX_DEPTH = 8000;
+
+    // reference sequence is loaded in chunks of this size
+    private static final int REF_CHUNK_SIZE = 64 * 1024;
+
+    // regions closer than this are read with one query (the reads in between are usually in
+    // the same BGZF blocks, so a new query would just re-read them)
+    private static final int QUERY_GAP = 1024;
+
+    private final SamReader[] readers;
+    private final SAMSequenceDictionary dict;
+    private final IndexedFastaFile fasta;
+
+    private final int maxDepth;
+    private final int minMappingQual;
+    private final int minBaseQual;
+    private final int filterFlags;
+    private final int requiredFlags;
+    private final boolean nogaps;
+    private final boolean showQname;
+
+    // regions to query (null to read the whole file)
+    private final Iterator<GenomeSpan> regions;
+
+    // BED regions (by reference) used to filter positions
+    private final Map<String, List<GenomeSpan>> bedRegions;
+
+    private GenomeSpan curRegion = null;
+    private Sample[] samples = null;
+    private PileupRecord next = null;
+    private boolean closed = false;
+
+    private String refChunkName = null;
+    private int refChunkStart = -1;
+    private String refChunk = null;
+    private int refLength = -1;
+
+    PileupEngine(String[] filenames, GenomeSpan region, List<GenomeSpan> spans, String refFilename, int maxDepth,
+            int minMappingQual, int minBaseQual, int filterFlags, int requiredFlags, boolean nogaps, boolean showQname) throws IOException {
+        this.maxDepth = maxDepth > 0 ? maxDepth : DEFAULT_MAX_DEPTH;
+        this.minMappingQual = minMappingQual;
+        this.minBaseQual = minBaseQual;
+        this.filterFlags = filterFlags > 0 ? filterFlags : DEFAULT_FILTER_FLAGS;
+        this.requiredFlags = requiredFlags > 0 ? requiredFlags : 0;
+        this.nogaps = nogaps;
+        this.showQname = showQname;
+
+        SamReaderFactory factory = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT);
+        this.readers = new SamReader[filenames.length];
+        boolean indexed = true;
+        for (int i = 0; i < filenames.length; i++) {
+            readers[i] = factory.open(new File(filenames[i]));
+            if (!readers[i].hasIndex()) {
+                indexed = false;
+            }
+        }
+        this.dict = readers[0].getFileHeader().getSequenceDictionary();
+        this.fasta = refFilename == null ? null : new IndexedFastaFile(refFilename);
+
+        if (region != null) {
+            // same as the samtools region string (ref, ref:start, or ref:start-end)
+            if (region.start >= 0 && region.end > 0) {
+                this.regions = Collections.singletonList(new GenomeSpan(region.ref, region.start, region.end)).iterator();
+            } else if (region.start > 0) {
+                this.regions = Collections.singletonList(new GenomeSpan(region.ref, region.start, Integer.MAX_VALUE)).iterator();
+            } else {
+                this.regions = Collections.singletonList(new GenomeSpan(region.ref, 0, Integer.MAX_VALUE)).iterator();
+            }
+            this.bedRegions = null;
+        } else if (spans != null) {
+            List<GenomeSpan> merged = mergeSpans(spans, 0);
+
+            this.bedRegions = new HashMap<String, List<GenomeSpan>>();
+            for (GenomeSpan span: merged) {
+                if (!bedRegions.containsKey(span.ref)) {
+                    bedRegions.put(span.ref, new ArrayList<GenomeSpan>());
+                }
+                bedRegions.get(span.ref).add(span);
+            }
+
+            if (indexed) {
+                // nearby regions are read with one query (positions are still filtered by region)
+                this.regions = mergeSpans(merged, QUERY_GAP).iterator();
+            } else {
+                this.regions = null;
+            }
+        } else {
+            this.regions = null;
+            this.bedRegions = null;
+        }
+
+        if (this.regions == null) {
+            samples = new Sample[readers.length];
+            for (int i = 0; i < readers.length; i++) {
+                samples[i] = new Sample(readers[i].iterator());
+            }
+        }
+    }
+
+    /**
+     * @return the spans (on references in the BAM file), sorted in the same order as the BAM
+     *         file and merged if they are within gap bases of each other
+     */
+    private List<GenomeSpan> mergeSpans(List<GenomeSpan> spans, int gap) {
+        List<GenomeSpan> sorted = new ArrayList<GenomeSpan>();
+        for (GenomeSpan span: spans) {
+            if (dict.getSequenceIndex(span.ref) > -1) {
+                sorted.add(span);
+            }
+        }
+
+        sorted.sort(new Comparator<GenomeSpan>() {
+            @Override
+            public int compare(GenomeSpan o1, GenomeSpan o2) {
+                int c = Integer.compare(dict.getSequenceIndex(o1.ref), dict.getSequenceIndex(o2.ref));
+                if (c != 0) {
+                    return c;
+                }
+                return Integer.compare(o1.start, o2.start);
+            }});
+
+        List<GenomeSpan> merged = new ArrayList<GenomeSpan>();
+        GenomeSpan cur = null;
+        for (GenomeSpan span: sorted) {
+            if (cur != null && cur.ref.equals(span.ref) && span.start <= cur.end + gap) {
+                if (span.end > cur.end) {
+                    cur = new GenomeSpan(cur.ref, cur.start, span.end);
+                }
+            } else {
+                if (cur != null) {
+                    merged.add(cur);
+                }
+                cur = new GenomeSpan(span.ref, span.start, span.end);
+            }
+        }
+        if (cur != null) {
+            merged.add(cur);
+        }
+        return merged;
+    }
+
+    private static boolean isMatch(CigarOperator op) {
+        return op == CigarOperator.M || op == CigarOperator.EQ || op == CigarOperator.X;
+    }
+
+    /**
+     * A read in the pileup, with a cursor into its CIGAR for the current position
+     */
+    private static class ReadState {
+        final SAMRecord read;
+        final int tid;
+        final int start;
+        final int last;
+        final boolean rev;
+        final byte[] bases;
+        final byte[] quals;
+
+        final CigarOperator[] ops;
+        final int[] lens;
+
+        // cigar cursor (op index, ref pos at the start of the op, query pos at the start of the op)
+        int k = 0;
+        int x;
+        int y = 0;
+
+        // resolved for the current position
+        int qpos;
+        boolean isDel;
+        boolean isRefskip;
+        int indel;
+
+        ReadState(SAMRecord read) {
+            this.read = read;
+            this.tid = read.getReferenceIndex();
+            this.start = read.getAlignmentStart() - 1;
+            this.last = read.getAlignmentEnd() - 1;
+            this.rev = read.getReadNegativeStrandFlag();
+            this.bases = read.getReadBases();
+
+            byte[] q = read.getBaseQualities();
+            if (q.length == 0) {
+                // missing qualities are stored as 0xFF in the BAM file
+                q = new byte[bases.length];
+                for (int i = 0; i < q.length; i++) {
+                    q[i] = (byte) 0xFF;
+                }
+            } else {
+                // quals can be changed for overlapping pairs
+                q = q.clone();
+            }
+            this.quals = q;
+
+            Cigar cigar = read.getCigar();
+            this.ops = new CigarOperator[cigar.numCigarElements()];
+            this.lens = new int[ops.length];
+            int i = 0;
+            for (CigarElement el: cigar.getCigarElements()) {
+                ops[i] = el.getOperator();
+                lens[i] = el.getLength();
+                i++;
+            }
+
+            // skip to the first op that is aligned to the reference
+            this.x = start;
+            while (k < ops.length && !ops[k].consumesReferenceBases()) {
+                if (ops[k].consumesReadBases()) {
+                    y += lens[k];
+                }
+                k++;
+            }
+        }
+
+        boolean hasAlignment() {
+            return k < ops.length && last >= start;
+        }
+
+        /**
+         * Move the CIGAR cursor to pos (positions must increase)
+         */
+        void resolve(int pos) {
+            while (x + lens[k] <= pos) {
+                if (ops[k].consumesReadBases()) {
+                    y += lens[k];
+                }
+                x += lens[k];
+                k++;
+                while (k < ops.length && !ops[k].consumesReferenceBases()) {
+                    if (ops[k].consumesReadBases()) {
+                        y += lens[k];
+                    }
+                    k++;
+                }
+            }
+
+            CigarOperator op = ops[k];
+            indel = 0;
+
+            // peek at the next op for indels (only at the last base of this op)
+            if (x + lens[k] - 1 == pos && k + 1 < ops.length) {
+                CigarOperator op2 = ops[k + 1];
+                if (op2 == CigarOperator.D && op != CigarOperator.D) {
+                    indel = -lens[k + 1];
+                    for (int j = k + 2; j < ops.length && ops[j] == CigarOperator.D; j++) {
+                        indel -= lens[j];
+                    }
+                } else if (op2 == CigarOperator.I) {
+                    indel = lens[k + 1];
+                    for (int j = k + 2; j < ops.length; j++) {
+                        if (ops[j] == CigarOperator.I) {
+                            indel += lens[j];
+                        } else if (ops[j] != CigarOperator.P) {
+                            break;
+                        }
+                    }
+                } else if (op2 == CigarOperator.P && k + 2 < ops.length) {
+                    int l3 = 0;
+                    for (int j = k + 2; j < ops.length; j++) {
+                        if (ops[j] == CigarOperator.I) {
+                            l3 += lens[j];
+                        } else if (ops[j] == CigarOperator.D || isMatch(ops[j])) {
+                            break;
+                        }
+                    }
+                    if (l3 > 0) {
+                        indel = l3;
+                    }
+                }
+            }
+
+            if (isMatch(op)) {
+                qpos = y + (pos - x);
+                isDel = false;
+                isRefskip = false;
+            } else {
+                qpos = y;
+                isDel = true;
+                isRefskip = op == CigarOperator.N;
+            }
+        }
+
+        /**
+         * @return the reference positions for each aligned base (-1 for unaligned bases)
+         */
+        int[] refPositions() {
+            int[] refpos = new int[bases.length];
+            for (int i = 0; i < refpos.length; i++) {
+                refpos[i] = -1;
+            }
+            int r = start;
+            int q = 0;
+            for (int i = 0; i < ops.length; i++) {
+                if (isMatch(ops[i])) {
+                    for (int j = 0; j < lens[i]; j++) {
+                        if (q + j < refpos.length) {
+                            refpos[q + j] = r + j;
+                        }
+                    }
+                }
+                if (ops[i].consumesReadBases()) {
+                    q += lens[i];
+                }
+                if (ops[i].consumesReferenceBases()) {
+                    r += lens[i];
+                }
+            }
+            return refpos;
+        }
+    }
+
+    /**
+     * The reads for one BAM file
+     */
+    private class Sample {
+        private final SAMRecordIterator it;
+        private SAMRecord nextRead = null;
+
+        private final List<ReadState> buffer = new ArrayList<ReadState>();
+        private final Map<String, ReadState> overlaps = new HashMap<String, ReadState>();
+
+        private int curTid = -1;
+        private int curPos = -1;
+        private int lastTid = -1;
+        private int lastStart = -1;
+        private boolean hasColumn = false;
+
+        Sample(SAMRecordIterator it) {
+            this.it = it;
+            readNext();
+        }
+
+        private void readNext() {
+            nextRead = null;
+            while (it.hasNext()) {
+                SAMRecord read = it.next();
+                if (read.getReadUnmappedFlag() || read.getReferenceIndex() < 0) {
+                    if (read.getReferenceIndex() < 0) {
+                        // unmapped reads at the end of the file
+                        return;
+                    }
+                    continue;
+                }
+                int flags = read.getFlags();
+                if (requiredFlags > 0 && (requiredFlags & flags) == 0) {
+                    continue;
+                }
+                if ((filterFlags & flags) > 0) {
+                    continue;
+                }
+                if (read.getReadPairedFlag() && !read.getProperPairFlag()) {
+                    // samtools skips orphan reads by default
+                    continue;
+                }
+                if (read.getMappingQuality() < minMappingQual) {
+                    continue;
+                }
+                nextRead = read;
+                return;
+            }
+        }
+
+        private void expire(int pos) {
+            int j = 0;
+            for (int i = 0; i < buffer.size(); i++) {
+                ReadState rs = buffer.get(i);
+                if (rs.tid != curTid || rs.last < pos) {
+                    overlaps.remove(rs.read.getReadName());
+                } else {
+                    buffer.set(j++, rs);
+                }
+            }
+            while (buffer.size() > j) {
+                buffer.remove(buffer.size() - 1);
+            }
+        }
+
+        private void push(SAMRecord read) {
+            ReadState rs = new ReadState(read);
+            if (!rs.hasAlignment()) {
+                return;
+            }
+
+            boolean first = rs.tid != lastTid || rs.start != lastStart;
+            if (!first && buffer.size() + 1 > maxDepth) {
+                overlaps.remove(read.getReadName());
+                return;
+            }
+            lastTid = rs.tid;
+            lastStart = rs.start;
+
+            checkOverlap(rs);
+            buffer.add(rs);
+        }
+
+        /**
+         * For overlapping pairs, the quality of the bases in both reads is adjusted
+         * (following htslib).
+         */
+        private void checkOverlap(ReadState b) {
+            SAMRecord read = b.read;
+            if (!read.getReadPairedFlag() || read.getMateUnmappedFlag() || !read.getProperPairFlag()) {
+                return;
+            }
+            if (read.getMateReferenceIndex() >= 0 && read.getMateReferenceIndex() != b.tid) {
+                return;
+            }
+            int mpos = read.getMateAlignmentStart() - 1;
+            if (Math.abs(read.getInferredInsertSize()) >= 2 * b.bases.length && mpos >= b.last + 1) {
+                return;
+            }
+
+            ReadState a = overlaps.get(read.getReadName());
+            if (a == null) {
+                // only keep reads where the mate is still to come
+                if (mpos >= b.start || (read.getReadPairedFlag() && mpos == -1)) {
+                    overlaps.put(read.getReadName(), b);
+                }
+                return;
+            }
+            overlaps.remove(read.getReadName());
+
+            int[] aRefPos = a.refPositions();
+            int[] bRefPos = b.refPositions();
+            Map<Integer, Integer> aQpos = new HashMap<Integer, Integer>();
+            for (int i = 0; i < aRefPos.length; i++) {
+                if (aRefPos[i] >= b.start) {
+                    aQpos.put(aRefPos[i], i);
+                }
+            }
+
+            for (int bi = 0; bi < bRefPos.length; bi++) {
+                if (bRefPos[bi] < 0) {
+                    continue;
+                }
+                Integer ai = aQpos.get(bRefPos[bi]);
+                if (ai == null) {
+                    continue;
+                }
+                int aq = a.quals[ai] & 0xFF;
+                int bq = b.quals[bi] & 0xFF;
+                if (Character.toUpperCase(a.bases[ai]) == Character.toUpperCase(b.bases[bi])) {
+                    // we are very confident about this base
+                    int qual = aq + bq;
+                    a.quals[ai] = (byte) (qual > 200 ? 200 : qual);
+                    b.quals[bi] = 0;
+                } else if (aq >= bq) {
+                    a.quals[ai] = (byte) (int) (0.8 * aq);
+                    b.quals[bi] = 0;
+                } else {
+                    b.quals[bi] = (byte) (int) (0.8 * bq);
+                    a.quals[ai] = 0;
+                }
+            }
+        }
+
+        /**
+         * Find the next position with reads (at or after the current position)
+         *
+         * @return false if there are no more reads
+         */
+        boolean findColumn() {
+            if (hasColumn) {
+                return true;
+            }
+
+            // reads ending before the previous position (kept for the max-depth count)
+            expire(curPos - 1);
+
+            if (buffer.isEmpty()) {
+                if (nextRead == null) {
+                    return false;
+                }
+                if (nextRead.getReferenceIndex() != curTid || nextRead.getAlignmentStart() - 1 > curPos) {
+                    curTid = nextRead.getReferenceIndex();
+                    curPos = nextRead.getAlignmentStart() - 1;
+                }
+            }
+
+            while (nextRead != null && nextRead.getReferenceIndex() == curTid && nextRead.getAlignmentStart() - 1 <= curPos) {
+                push(nextRead);
+                readNext();
+            }
+
+            expire(curPos);
+            if (buffer.isEmpty()) {
+                // all of the new reads were skipped
+                curPos++;
+                return findColumn();
+            }
+            hasColumn = true;
+            return true;
+        }
+
+        /**
+         * Add the calls for the current position to the record and move to the next position
+         */
+        void addColumn(PileupRecord record) throws IOException {
+            List<PileupBaseCall> calls = new ArrayList<PileupBaseCall>();
+            for (ReadState rs: buffer) {
+                rs.resolve(curPos);
+
+                int readPos = rs.qpos + 1;
+                String qname = showQname ? rs.read.getReadName() : null;
+
+                int qual = rs.qpos < rs.quals.length ? rs.quals[rs.qpos] & 0xFF : 0;
+                if (qual > 93) {
+                    // max printable quality
+                    qual = 93;
+                }
+
+                if (!rs.isDel) {
+                    if (qual >= minBaseQual) {
+                        char base = rs.qpos < rs.bases.length ? (char) rs.bases[rs.qpos] : 'N';
+                        String call;
+                        if (base == '=') {
+                            call = rs.rev ? record.refBase.toLowerCase() : record.refBase;
+                        } else {
+                            call = rs.rev ? ("" + base).toLowerCase() : ("" + base).toUpperCase();
+                        }
+                        calls.add(record.new PileupBaseCall(PileupBaseCallOp.Match, call, qual, record.refBase, readPos, qname));
+                    }
+                } else if (rs.isRefskip) {
+                    if (qual > minBaseQual && !nogaps) {
+                        calls.add(record.new PileupBaseCall(PileupBaseCallOp.Gap, rs.rev ? "<" : ">", qual, record.refBase, readPos, qname));
+                    }
+                }
+
+                if (rs.indel > 0) {
+                    StringBuilder sb = new StringBuilder();
+                    for (int j = 1; j <= rs.indel; j++) {
+                        sb.append(rs.qpos + j < rs.bases.length ? (char) rs.bases[rs.qpos + j] : 'N');
+                    }
+                    String ins = rs.rev ? sb.toString().toLowerCase() : sb.toString().toUpperCase();
+                    calls.add(record.new PileupBaseCall(PileupBaseCallOp.Ins, ins, -1, readPos, qname));
+                } else if (rs.indel < 0) {
+                    StringBuilder sb = new StringBuilder();
+                    for (int j = 1; j <= -rs.indel; j++) {
+                        sb.append(refBase(record.ref, curPos + j));
+                    }
+                    String del = rs.rev ? sb.toString().toLowerCase() : sb.toString().toUpperCase();
+                    calls.add(record.new PileupBaseCall(PileupBaseCallOp.Del, del, -1, readPos, qname));
+                }
+            }
+            record.addSampleRecord(buffer.size(), calls);
+
+            curPos++;
+            hasColumn = false;
+        }
+
+        /**
+         * Skip the current position
+         */
+        void skipColumn() {
+            curPos++;
+            hasColumn = false;
+        }
+
+        void close() {
+            it.close();
+        }
+    }
+
+    private char refBase(String ref, int pos) throws IOException {
+        if (fasta == null) {
+            return 'N';
+        }
+        if (!ref.equals(refChunkName)) {
+            refChunkName = ref;
+            refChunk = null;
+            refLength = fasta.getReferenceNames().contains(ref) ? (int) fasta.getReferenceLength(ref) : -1;
+        }
+        if (pos < 0 || pos >= refLength) {
+            return 'N';
+        }
+        if (refChunk == null || pos < refChunkStart || pos >= refChunkStart + refChunk.length()) {
+            refChunkStart = pos;
+            refChunk = fasta.fetchSequence(ref, pos, Math.min(pos + REF_CHUNK_SIZE, refLength));
+            if (refChunk.length() == 0) {
+                return 'N';
+            }
+        }
+        return Character.toUpperCase(refChunk.charAt(pos - refChunkStart));
+    }
+
+    private boolean inBed(String ref, int pos) {
+        List<GenomeSpan> spans = bedRegions.get(ref);
+        if (spans == null) {
+            return false;
+        }
+        int lo = 0;
+        int hi = spans.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            GenomeSpan span = spans.get(mid);
+            if (pos < span.start) {
+                hi = mid - 1;
+            } else if (pos >= span.end) {
+                lo = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void closeSamples() {
+        if (samples != null) {
+            for (Sample s: samples) {
+                s.close();
+            }
+            samples = null;
+        }
+    }
+
+    /**
+     * Open the next region (if we are querying regions)
+     *
+     * @return false if there are no more regions
+     */
+    private boolean nextRegion() {
+        closeSamples();
+        while (regions.hasNext()) {
+            curRegion = regions.next();
+            int tid = dict.getSequenceIndex(curRegion.ref);
+            if (tid < 0) {
+                continue;
+            }
+            int end = curRegion.end == Integer.MAX_VALUE ? -1 : curRegion.end;
+            samples = new Sample[readers.length];
+            for (int i = 0; i < readers.length; i++) {
+                samples[i] = new Sample(readers[i].queryOverlapping(new QueryInterval[] { new QueryInterval(tid, curRegion.start + 1, end) }));
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void populate() throws IOException {
+        while (next == null && !closed) {
+            if (samples == null) {
+                if (regions == null || !nextRegion()) {
+                    close();
+                    return;
+                }
+            }
+
+            // find the next position (with reads in any sample)
+            int minTid = -1;
+            int minPos = -1;
+            for (Sample s: samples) {
+                if (s.findColumn()) {
+                    if (minTid == -1 || s.curTid < minTid || (s.curTid == minTid && s.curPos < minPos)) {
+                        minTid = s.curTid;
+                        minPos = s.curPos;
+                    }
+                }
+            }
+
+            if (minTid == -1) {
+                closeSamples();
+                if (regions == null) {
+                    close();
+                }
+                continue;
+            }
+
+            String ref = dict.getSequence(minTid).getSequenceName();
+
+            boolean keep = true;
+            if (curRegion != null && (minPos < curRegion.start || minPos >= curRegion.end)) {
+                keep = false;
+            } else if (bedRegions != null && !inBed(ref, minPos)) {
+                keep = false;
+            }
+
+            if (!keep) {
+                for (Sample s: samples) {
+                    if (s.hasColumn && s.curTid == minTid && s.curPos == minPos) {
+                        s.skipColumn();
+                    }
+                }
+                if (curRegion != null && minPos >= curRegion.end) {
+                    // past the end of the region
+                    closeSamples();
+                }
+                continue;
+            }
+
+            PileupRecord record = new PileupRecord(ref, minPos, "" + refBase(ref, minPos), null);
+            for (Sample s: samples) {
+                if (s.hasColumn && s.curTid == minTid && s.curPos == minPos) {
+                    s.addColumn(record);
+                } else {
+                    record.addSampleRecord(0, null);
+                }
+            }
+            next = record;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                populate();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public PileupRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        PileupRecord tmp = next;
+        next = null;
+        return tmp;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closeSamples();
+        for (SamReader reader: readers) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (fasta != null) {
+            try {
+                fasta.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
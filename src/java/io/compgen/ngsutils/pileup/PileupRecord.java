@@ -276,7 +276,7 @@ public class PileupRecord {
 		return record;
 	}
 
-	private void addSampleRecord(int coverage, List<PileupBaseCall> calls) {
+	void addSampleRecord(int coverage, List<PileupBaseCall> calls) {
 		this.records.add(new PileupSampleRecord(coverage, calls));		
 	}
 
@@ -0,0 +1,158 @@
+package io.compgen.ngsutils.pileup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import htsjdk.samtools.util.CloseableIterator;
+import io.compgen.common.TabWriter;
+import io.compgen.common.progress.ProgressMessage;
+import io.compgen.common.progress.ProgressStats;
+import io.compgen.common.progress.ProgressUtils;
+import io.compgen.ngsutils.annotation.GenomeSpan;
+
+/**
+ * Runs a pileup over a list of regions in parallel. Regions are split into chunks (of at most
+ * chunkSize bases) and each chunk is piled up and written on a worker thread to its own buffer.
+ * The buffers are then written to the output in the same order as the regions, so the output
+ * is the same as processing each region in order.
+ *
+ * Chunks only see the reads that overlap them, so anything written for a chunk must only depend
+ * on the pileup records for that chunk.
+ */
+public class PileupScheduler {
+    public interface ChunkWriter {
+        public void write(CloseableIterator<PileupRecord> it, GenomeSpan chunk, TabWriter writer) throws IOException;
+    }
+
+    private final BAMPileup pileup;
+    private final int threads;
+    private final int chunkSize;
+
+    private String name = null;
+
+    public PileupScheduler(BAMPileup pileup, int threads, int chunkSize) {
+        this.pileup = pileup;
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * If set, show a progress bar with this name
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the regions split into chunks (of at most chunkSize bases)
+     */
+    public List<GenomeSpan> split(List<GenomeSpan> regions) {
+        List<GenomeSpan> chunks = new ArrayList<GenomeSpan>();
+        for (GenomeSpan region: regions) {
+            int start = region.start;
+            while (start < region.end) {
+                int end = (int) Math.min((long) start + chunkSize, region.end);
+                chunks.add(new GenomeSpan(region.ref, start, end));
+                start = end;
+            }
+        }
+        return chunks;
+    }
+
+    public void run(List<GenomeSpan> regions, final ChunkWriter chunkWriter, OutputStream out) throws IOException {
+        final List<GenomeSpan> chunks = split(regions);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "pileup");
+                t.setDaemon(true);
+                return t;
+            }});
+
+        long total = 0;
+        for (GenomeSpan chunk: chunks) {
+            total += chunk.length();
+        }
+        final long totalSize = total;
+        final long[] done = new long[] {0};
+
+        Iterator<GenomeSpan> it = chunks.iterator();
+        if (name != null) {
+            it = ProgressUtils.getIterator(name, it, new ProgressStats() {
+                @Override
+                public long size() {
+                    return totalSize;
+                }
+
+                @Override
+                public long position() {
+                    return done[0];
+                }}, new ProgressMessage<GenomeSpan>() {
+                @Override
+                public String msg(GenomeSpan chunk) {
+                    return chunk.ref+":"+chunk.start;
+                }});
+        }
+
+        Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        Deque<GenomeSpan> pendingChunks = new ArrayDeque<GenomeSpan>();
+
+        try {
+            while (it.hasNext() || !pending.isEmpty()) {
+                // keep a couple of chunks per thread queued (each chunk's output is kept in memory)
+                while (it.hasNext() && pending.size() < threads * 2) {
+                    final GenomeSpan chunk = it.next();
+                    pendingChunks.add(chunk);
+                    pending.add(pool.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws Exception {
+                            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                            TabWriter writer = new TabWriter(buf);
+                            CloseableIterator<PileupRecord> records = pileup.pileup(chunk);
+                            try {
+                                chunkWriter.write(records, chunk, writer);
+                            } finally {
+                                records.close();
+                            }
+                            writer.close();
+                            return buf.toByteArray();
+                        }}));
+                }
+
+                if (pending.isEmpty()) {
+                    break;
+                }
+
+                byte[] buf;
+                try {
+                    buf = pending.poll().get();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                }
+
+                out.write(buf);
+                done[0] += pendingChunks.poll().length();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
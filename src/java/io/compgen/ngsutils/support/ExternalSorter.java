@@ -0,0 +1,790 @@
+package io.compgen.ngsutils.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.xerial.snappy.Snappy;
+
+/**
+ * Sorts more values than will fit in memory (external merge sort).
+ *
+ * Values are serialized with a Codec as they are added, and their sort keys are taken with a
+ * KeyExtractor (so keys are only computed once). When the in-memory buffer reaches the memory
+ * limit (or record limit), it is sorted and written to a temporary "run" file. Runs are sorted
+ * and written by a pool of worker threads (setThreads()), while more values are added.
+ *
+ * Run files are a series of length-prefixed binary records, written in blocks that are
+ * compressed with Snappy (if the native library is available). Runs are merged with a priority
+ * queue. If there are more runs than can be opened at once (setMaxFiles()), groups of runs are
+ * merged into larger runs first.
+ *
+ * The sort is stable: values with the same key are returned in the order they were added. If
+ * everything fits in memory, no temporary files are written.
+ *
+ * The memory limit is approximate. It counts the serialized size of each value, plus a fixed
+ * overhead for each record (for the object headers), plus the size of each key (if a KeySizer
+ * is set). Keys should be small (ex: a name or coordinates), not the value itself.
+ */
+public class ExternalSorter<T, K> implements Closeable {
+    /**
+     * Converts values to/from their binary form in the temporary files. read() can be called
+     * from more than one thread at a time (when runs are merged in parallel).
+     */
+    public interface Codec<T> {
+        public void write(T value, DataOutput out) throws IOException;
+        public T read(DataInput in) throws IOException;
+    }
+
+    /**
+     * Returns the sort key for a value.
+     */
+    public interface KeyExtractor<T, K> {
+        public K getKey(T value);
+    }
+
+    /**
+     * Returns the approximate number of bytes used by a key (in memory).
+     */
+    public interface KeySizer<K> {
+        public int getKeySize(K key);
+    }
+
+    private static class Entry<K> {
+        final K key;
+        final byte[] rec;
+
+        Entry(K key, byte[] rec) {
+            this.key = key;
+            this.rec = rec;
+        }
+    }
+
+    public static final long DEFAULT_MEMORY_LIMIT = 256 * 1024 * 1024;
+    public static final int DEFAULT_MAX_FILES = 64;
+
+    // approximate memory for each record, in addition to the serialized value
+    private static final int RECORD_OVERHEAD = 64;
+    private static final int BLOCK_SIZE = 256 * 1024;
+
+    private final Codec<T> codec;
+    private final KeyExtractor<T, K> keys;
+    private KeySizer<? super K> keySizer = null;
+    private final Comparator<Entry<K>> entryComparator;
+
+    private long memoryLimit = DEFAULT_MEMORY_LIMIT;
+    private int maxRecords = -1;
+    private int threads = 1;
+    private int maxFiles = DEFAULT_MAX_FILES;
+    private boolean compress = true;
+    private File tmpdir = null;
+    private String prefix = ".ngsutilsj-sort-";
+
+    private List<Entry<K>> entries = new ArrayList<Entry<K>>();
+    private long memoryUsed = 0;
+    private long count = 0;
+
+    private final RecordBuffer encodeBuf = new RecordBuffer();
+    private final DataOutputStream encodeOut = new DataOutputStream(encodeBuf);
+
+    private List<File> runs = new ArrayList<File>();
+    private ExecutorService pool = null;
+    private final Deque<Future<Void>> pending = new ArrayDeque<Future<Void>>();
+    private final List<RunReader> openReaders = new ArrayList<RunReader>();
+    private boolean sorted = false;
+
+    public ExternalSorter(Codec<T> codec, KeyExtractor<T, K> keys, final Comparator<? super K> comparator) {
+        this.codec = codec;
+        this.keys = keys;
+        this.entryComparator = new Comparator<Entry<K>>() {
+            @Override
+            public int compare(Entry<K> o1, Entry<K> o2) {
+                return comparator.compare(o1.key, o2.key);
+            }};
+    }
+
+    /**
+     * @param memoryLimit - approximate number of bytes to buffer before writing a temporary file
+     */
+    public void setMemoryLimit(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * @param maxRecords - maximum number of records to buffer before writing a temporary file (-1 for no limit)
+     */
+    public void setMaxRecords(int maxRecords) {
+        this.maxRecords = maxRecords;
+    }
+
+    /**
+     * @param threads - number of threads to use for sorting and writing temporary files. Each
+     *                  thread can hold a full buffer (memory limit) of records.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads < 1 ? 1 : threads;
+    }
+
+    /**
+     * @param maxFiles - maximum number of temporary files to merge at once
+     */
+    public void setMaxFiles(int maxFiles) {
+        this.maxFiles = maxFiles < 2 ? 2 : maxFiles;
+    }
+
+    /**
+     * @param keySizer - used to count the size of each key against the memory limit
+     */
+    public void setKeySizer(KeySizer<? super K> keySizer) {
+        this.keySizer = keySizer;
+    }
+
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    public void setTmpDir(File tmpdir) {
+        this.tmpdir = tmpdir;
+    }
+
+    /**
+     * @param prefix - prefix for temporary filenames
+     */
+    public void setTmpPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * @return the number of values added
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the number of temporary files written (so far)
+     */
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    public void add(T value) throws IOException {
+        if (sorted) {
+            throw new IOException("Values can't be added after sorting");
+        }
+
+        encodeBuf.reset();
+        codec.write(value, encodeOut);
+        byte[] rec = encodeBuf.toByteArray();
+
+        K key = keys.getKey(value);
+        entries.add(new Entry<K>(key, rec));
+        memoryUsed += rec.length + RECORD_OVERHEAD;
+        if (keySizer != null) {
+            memoryUsed += keySizer.getKeySize(key);
+        }
+        count++;
+
+        if ((maxRecords > 0 && entries.size() >= maxRecords) || memoryUsed >= memoryLimit) {
+            spill();
+        }
+    }
+
+    /**
+     * Sort the current buffer and write it to a temporary file (on a worker thread, if there is
+     * more than one thread).
+     */
+    private void spill() throws IOException {
+        final List<Entry<K>> run = entries;
+        entries = new ArrayList<Entry<K>>();
+        memoryUsed = 0;
+
+        // the temp file is created here so that the runs stay in order
+        final File temp = createTemp();
+        runs.add(temp);
+
+        submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Collections.sort(run, entryComparator);
+                RunWriter writer = new RunWriter(temp);
+                for (Entry<K> entry: run) {
+                    writer.write(entry.rec, 0, entry.rec.length);
+                }
+                writer.close();
+                return null;
+            }});
+
+        // only keep a limited number of buffers in memory
+        waitForPending(threads - 1);
+    }
+
+    /**
+     * Finish adding values and return them in sorted order. This can only be called once.
+     */
+    public Iterator<T> sort() throws IOException {
+        if (sorted) {
+            throw new IOException("Values have already been sorted");
+        }
+        sorted = true;
+
+        if (runs.isEmpty()) {
+            // everything fit in memory
+            Collections.sort(entries, entryComparator);
+            final Iterator<Entry<K>> it = entries.iterator();
+            entries = null;
+            return new Iterator<T>() {
+                final RecordInput in = new RecordInput();
+
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public T next() {
+                    Entry<K> entry = it.next();
+                    try {
+                        return in.read(entry.rec, entry.rec.length);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }};
+        }
+
+        if (!entries.isEmpty()) {
+            spill();
+        }
+        entries = null;
+        waitForPending(0);
+
+        // If there are too many runs to open at once, merge groups of runs into larger runs
+        // first. Groups are consecutive, so values with the same key stay in order.
+        while (runs.size() > maxFiles) {
+            List<File> next = new ArrayList<File>();
+            for (int i = 0; i < runs.size(); i += maxFiles) {
+                final List<File> group = runs.subList(i, Math.min(i + maxFiles, runs.size()));
+                if (group.size() == 1) {
+                    next.add(group.get(0));
+                    continue;
+                }
+                final File temp = createTemp();
+                next.add(temp);
+                submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        RunWriter writer = new RunWriter(temp);
+                        Merger merger = new Merger(group);
+                        while (merger.hasNext()) {
+                            RunReader head = merger.poll();
+                            writer.write(head.rec, 0, head.len);
+                            merger.advance(head);
+                        }
+                        writer.close();
+                        for (File f: group) {
+                            f.delete();
+                        }
+                        return null;
+                    }});
+            }
+            waitForPending(0);
+            runs = next;
+        }
+
+        final Merger merger = new Merger(runs);
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return merger.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (!merger.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                RunReader head = merger.poll();
+                T value = head.value;
+                try {
+                    merger.advance(head);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return value;
+            }};
+    }
+
+    /**
+     * Remove any temporary files (and stop the worker threads).
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (openReaders) {
+            for (RunReader reader: openReaders) {
+                reader.close();
+            }
+            openReaders.clear();
+        }
+        for (File f: runs) {
+            f.delete();
+        }
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Merges runs with a priority queue. Ties are broken by the run index, so the merge is
+     * stable.
+     */
+    private class Merger {
+        private final PriorityQueue<RunReader> queue;
+
+        Merger(List<File> files) throws IOException {
+            queue = new PriorityQueue<RunReader>(Math.max(files.size(), 1), new Comparator<RunReader>() {
+                @Override
+                public int compare(RunReader o1, RunReader o2) {
+                    int cmp = entryComparator.compare(o1.entry, o2.entry);
+                    if (cmp != 0) {
+                        return cmp;
+                    }
+                    return Integer.compare(o1.idx, o2.idx);
+                }});
+
+            for (int i = 0; i < files.size(); i++) {
+                RunReader reader = new RunReader(files.get(i), i);
+                synchronized (openReaders) {
+                    openReaders.add(reader);
+                }
+                advance(reader);
+            }
+        }
+
+        boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        RunReader poll() {
+            return queue.poll();
+        }
+
+        /**
+         * Read the next value from the reader, and add it back to the queue (or close it)
+         */
+        void advance(RunReader reader) throws IOException {
+            if (reader.next()) {
+                queue.add(reader);
+            } else {
+                reader.close();
+                synchronized (openReaders) {
+                    openReaders.remove(reader);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes length-prefixed records to a run file
+     */
+    private class RunWriter {
+        private final DataOutputStream out;
+
+        RunWriter(File file) throws IOException {
+            this.out = new DataOutputStream(new BlockOutputStream(new FileOutputStream(file), compress));
+        }
+
+        void write(byte[] rec, int off, int len) throws IOException {
+            out.writeInt(len);
+            out.write(rec, off, len);
+        }
+
+        void close() throws IOException {
+            // end of the run
+            out.writeInt(-1);
+            out.close();
+        }
+    }
+
+    /**
+     * Reads records from a run file (and decodes the current value)
+     */
+    private class RunReader {
+        private final int idx;
+        private final DataInputStream in;
+        private final RecordInput decoder = new RecordInput();
+
+        private byte[] rec = new byte[256];
+        private int len = 0;
+        private T value = null;
+        private Entry<K> entry = null;
+        private boolean closed = false;
+
+        RunReader(File file, int idx) throws IOException {
+            this.idx = idx;
+            this.in = new DataInputStream(new BlockInputStream(new FileInputStream(file)));
+        }
+
+        boolean next() throws IOException {
+            if (closed) {
+                return false;
+            }
+            len = in.readInt();
+            if (len < 0) {
+                value = null;
+                entry = null;
+                return false;
+            }
+            if (rec.length < len) {
+                rec = new byte[Math.max(len, rec.length * 2)];
+            }
+            in.readFully(rec, 0, len);
+            value = decoder.read(rec, len);
+            entry = new Entry<K>(keys.getKey(value), null);
+            return true;
+        }
+
+        void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Decodes values from a record (byte array)
+     */
+    private class RecordInput {
+        private final ResettableInputStream bytes = new ResettableInputStream();
+        private final DataInputStream in = new DataInputStream(bytes);
+
+        T read(byte[] rec, int len) throws IOException {
+            bytes.reset(rec, len);
+            return codec.read(in);
+        }
+    }
+
+    private static class ResettableInputStream extends ByteArrayInputStream {
+        ResettableInputStream() {
+            super(new byte[0]);
+        }
+
+        void reset(byte[] buf, int len) {
+            this.buf = buf;
+            this.pos = 0;
+            this.count = len;
+            this.mark = 0;
+        }
+    }
+
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer() {
+            super(256);
+        }
+    }
+
+    /**
+     * Writes data in blocks: [int raw length][int stored length][stored bytes]. If compress is
+     * set (and Snappy is available), the stored bytes are compressed with Snappy. Blocks are
+     * only stored compressed if that is smaller, so equal lengths mean an uncompressed block.
+     */
+    private static class BlockOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final boolean compress;
+        private final byte[] buf = new byte[BLOCK_SIZE];
+        private byte[] cbuf = null;
+        private int pos = 0;
+
+        BlockOutputStream(OutputStream out, boolean compress) {
+            this.out = out;
+            this.compress = compress && isSnappyAvailable();
+            if (this.compress) {
+                cbuf = new byte[8 + Snappy.maxCompressedLength(BLOCK_SIZE)];
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (pos == buf.length) {
+                writeBlock();
+            }
+            buf[pos++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (pos == buf.length) {
+                    writeBlock();
+                }
+                int n = Math.min(len, buf.length - pos);
+                System.arraycopy(b, off, buf, pos, n);
+                pos += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            if (pos == 0) {
+                return;
+            }
+            int clen = pos;
+            if (compress) {
+                try {
+                    clen = Snappy.rawCompress(buf, 0, pos, cbuf, 8);
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+            if (clen < pos) {
+                writeInt(cbuf, 0, pos);
+                writeInt(cbuf, 4, clen);
+                out.write(cbuf, 0, clen + 8);
+            } else {
+                // not compressed (or it didn't help), so the stored length is the same as the raw length
+                byte[] header = new byte[8];
+                writeInt(header, 0, pos);
+                writeInt(header, 4, pos);
+                out.write(header);
+                out.write(buf, 0, pos);
+            }
+            pos = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            writeBlock();
+            out.close();
+        }
+    }
+
+    private static class BlockInputStream extends InputStream {
+        private final InputStream in;
+        private final byte[] header = new byte[8];
+        private byte[] buf = new byte[BLOCK_SIZE];
+        private byte[] cbuf = null;
+        private int pos = 0;
+        private int limit = 0;
+
+        BlockInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return false at the end of the file
+         */
+        private boolean readBlock() throws IOException {
+            if (!readFully(header, 0, 8, true)) {
+                return false;
+            }
+            int rawLen = readInt(header, 0);
+            int storedLen = readInt(header, 4);
+            if (buf.length < rawLen) {
+                buf = new byte[rawLen];
+            }
+            if (storedLen == rawLen) {
+                readFully(buf, 0, rawLen, false);
+            } else {
+                if (cbuf == null || cbuf.length < storedLen) {
+                    cbuf = new byte[storedLen];
+                }
+                readFully(cbuf, 0, storedLen, false);
+                try {
+                    Snappy.rawUncompress(cbuf, 0, storedLen, buf, 0);
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+            pos = 0;
+            limit = rawLen;
+            return true;
+        }
+
+        private boolean readFully(byte[] b, int off, int len, boolean eofOk) throws IOException {
+            int total = 0;
+            while (total < len) {
+                int n = in.read(b, off + total, len - total);
+                if (n == -1) {
+                    if (eofOk && total == 0) {
+                        return false;
+                    }
+                    throw new EOFException("Truncated temporary file");
+                }
+                total += n;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos >= limit && !readBlock()) {
+                return -1;
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos >= limit && !readBlock()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static void writeInt(byte[] b, int off, int val) {
+        b[off] = (byte) (val >>> 24);
+        b[off + 1] = (byte) (val >>> 16);
+        b[off + 2] = (byte) (val >>> 8);
+        b[off + 3] = (byte) val;
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    private static Boolean snappyAvailable = null;
+
+    /**
+     * @return true if the Snappy native library can be loaded
+     */
+    public static synchronized boolean isSnappyAvailable() {
+        if (snappyAvailable == null) {
+            try {
+                Snappy.compress(new byte[] { 0 });
+                snappyAvailable = true;
+            } catch (Throwable t) {
+                snappyAvailable = false;
+            }
+        }
+        return snappyAvailable;
+    }
+
+    /**
+     * Approximate memory used by a String (object header, array header, and one byte per char).
+     */
+    public static int stringSize(String s) {
+        if (s == null) {
+            return 0;
+        }
+        return 40 + s.length();
+    }
+
+    /**
+     * Parse a memory size (ex: 512M, 2G). Without a suffix, the value is in bytes.
+     */
+    public static long parseMemorySize(String val) throws NumberFormatException {
+        String s = val.trim().toUpperCase();
+        if (s.endsWith("B")) {
+            s = s.substring(0, s.length() - 1);
+        }
+        long mult = 1;
+        if (s.endsWith("K")) {
+            mult = 1024L;
+        } else if (s.endsWith("M")) {
+            mult = 1024L * 1024;
+        } else if (s.endsWith("G")) {
+            mult = 1024L * 1024 * 1024;
+        }
+        if (mult > 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+        return (long) (Double.parseDouble(s) * mult);
+    }
+
+    private File createTemp() throws IOException {
+        File temp;
+        if (tmpdir == null) {
+            temp = Files.createTempFile(prefix, ".tmp").toFile();
+        } else {
+            temp = Files.createTempFile(tmpdir.toPath(), prefix, ".tmp").toFile();
+        }
+        temp.deleteOnExit();
+        return temp;
+    }
+
+    /**
+     * Run the task on the worker pool (or in this thread if there is only one thread)
+     */
+    private void submit(Callable<Void> task) throws IOException {
+        if (threads <= 1) {
+            try {
+                task.call();
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            return;
+        }
+
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "external-sort");
+                    t.setDaemon(true);
+                    return t;
+                }});
+        }
+        pending.add(pool.submit(task));
+    }
+
+    /**
+     * Wait until there are no more than max tasks pending
+     */
+    private void waitForPending(int max) throws IOException {
+        while (pending.size() > max) {
+            try {
+                pending.removeFirst().get();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package io.compgen.ngsutils.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes to many output streams (ex: one gzip file for each read group) from a single thread,
+ * without waiting for the streams. Data for each output is collected in a buffer, and full
+ * buffers are queued for that output. A pool of worker threads writes the queued buffers to
+ * the streams (where the compression happens).
+ *
+ * Each output is only written by one worker at a time, and in order, so the streams don't
+ * need to be thread-safe and the files are the same as writing to the streams directly.
+ * Different outputs are written in parallel.
+ *
+ * The number of queued buffers is limited, so if the workers fall behind, write() will block
+ * until a buffer has been written.
+ */
+public class MultiOutputWriter {
+    private class Output {
+        final OutputStream out;
+        final Queue<Buffer> queue = new ConcurrentLinkedQueue<Buffer>();
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        Buffer cur = null;
+
+        Output(OutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * Write all queued buffers to the stream. Only one drain is active for each output.
+         */
+        final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    Buffer buf;
+                    while ((buf = queue.poll()) != null) {
+                        try {
+                            if (error == null) {
+                                out.write(buf.buf, 0, buf.len);
+                            }
+                        } catch (IOException e) {
+                            error = e;
+                        } catch (RuntimeException e) {
+                            error = new IOException(e);
+                        }
+                        release(buf);
+                    }
+                    scheduled.set(false);
+                    // something may have been queued after the last poll
+                    if (queue.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                }
+            }};
+    }
+
+    private static class Buffer {
+        final byte[] buf;
+        int len = 0;
+
+        Buffer(int size) {
+            this.buf = new byte[size];
+        }
+    }
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final Output[] outputs;
+    private final int bufferSize;
+    private final ExecutorService pool;
+
+    // limits the number of full buffers that are queued (but not written yet). Each output
+    // also has one buffer that is being filled.
+    private final Semaphore queued;
+    private final Queue<Buffer> free = new ConcurrentLinkedQueue<Buffer>();
+
+    private volatile IOException error = null;
+    private boolean closed = false;
+
+    public MultiOutputWriter(OutputStream[] outs, int threads) {
+        this(outs, threads, DEFAULT_BUFFER_SIZE);
+    }
+
+    public MultiOutputWriter(OutputStream[] outs, int threads, int bufferSize) {
+        this.outputs = new Output[outs.length];
+        for (int i = 0; i < outs.length; i++) {
+            outputs[i] = new Output(outs[i]);
+        }
+        this.bufferSize = bufferSize;
+        this.queued = new Semaphore(Math.max(threads, 1) * 8);
+        this.pool = Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "output-writer");
+                t.setDaemon(true);
+                return t;
+            }});
+    }
+
+    public int size() {
+        return outputs.length;
+    }
+
+    public void write(int idx, byte[] b, int off, int len) throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        Output output = outputs[idx];
+        while (len > 0) {
+            if (output.cur == null) {
+                output.cur = newBuffer();
+            }
+            int n = Math.min(len, output.cur.buf.length - output.cur.len);
+            System.arraycopy(b, off, output.cur.buf, output.cur.len, n);
+            output.cur.len += n;
+            off += n;
+            len -= n;
+
+            if (output.cur.len == output.cur.buf.length) {
+                submit(output);
+            }
+        }
+    }
+
+    /**
+     * @return an OutputStream that writes to output idx (with this writer)
+     */
+    public OutputStream getOutputStream(final int idx) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                MultiOutputWriter.this.write(idx, new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                MultiOutputWriter.this.write(idx, b, off, len);
+            }
+
+            @Override
+            public void close() {
+                // the streams are closed by MultiOutputWriter.close()
+            }};
+    }
+
+    private Buffer newBuffer() {
+        Buffer buf = free.poll();
+        if (buf == null) {
+            buf = new Buffer(bufferSize);
+        }
+        buf.len = 0;
+        return buf;
+    }
+
+    private void release(Buffer buf) {
+        free.add(buf);
+        queued.release();
+    }
+
+    private void submit(Output output) throws IOException {
+        try {
+            queued.acquire();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        output.queue.add(output.cur);
+        output.cur = null;
+        if (output.scheduled.compareAndSet(false, true)) {
+            pool.execute(output.drain);
+        }
+    }
+
+    /**
+     * Write any remaining data, wait for the workers to finish, and close all of the streams.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        for (Output output: outputs) {
+            if (output.cur != null) {
+                if (output.cur.len > 0) {
+                    submit(output);
+                } else {
+                    output.cur = null;
+                }
+            }
+        }
+
+        pool.shutdown();
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                // keep waiting
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+
+        for (Output output: outputs) {
+            try {
+                output.out.flush();
+                output.out.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package io.compgen.ngsutils.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads from the parent stream on a background thread, so that (for example) decompressing
+ * a gzip file and parsing the uncompressed data can happen at the same time.
+ *
+ * The parent stream is read in chunks of bufferSize bytes, and at most bufferCount chunks
+ * are kept in memory. The parent stream shouldn't be used by anything else once this has been
+ * created. It is closed by the background thread when it finishes (at the end of the stream,
+ * on an error, or when this stream is closed).
+ */
+public class ReadAheadInputStream extends InputStream {
+    private static class Chunk {
+        final byte[] buf;
+        int len = 0;
+
+        Chunk(int size) {
+            this.buf = new byte[size];
+        }
+    }
+
+    // marks the end of the parent stream (or an error)
+    private static final Chunk END = new Chunk(0);
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    public static final int DEFAULT_BUFFER_COUNT = 4;
+
+    private final BlockingQueue<Chunk> full;
+    private final BlockingQueue<Chunk> empty;
+    private final Thread thread;
+
+    private volatile IOException error = null;
+    private volatile boolean closed = false;
+
+    private Chunk cur = null;
+    private int pos = 0;
+    private boolean eof = false;
+
+    public ReadAheadInputStream(InputStream parent, String name) {
+        this(parent, name, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+    }
+
+    public ReadAheadInputStream(final InputStream parent, String name, int bufferSize, int bufferCount) {
+        this.full = new ArrayBlockingQueue<Chunk>(bufferCount + 1);
+        this.empty = new ArrayBlockingQueue<Chunk>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            empty.add(new Chunk(bufferSize));
+        }
+
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!closed) {
+                        Chunk chunk = empty.take();
+                        chunk.len = 0;
+                        while (chunk.len < chunk.buf.length) {
+                            int n = parent.read(chunk.buf, chunk.len, chunk.buf.length - chunk.len);
+                            if (n == -1) {
+                                break;
+                            }
+                            chunk.len += n;
+                        }
+                        if (chunk.len == 0) {
+                            break;
+                        }
+                        full.put(chunk);
+                        if (chunk.len < chunk.buf.length) {
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } catch (InterruptedException e) {
+                    // closed
+                } catch (Throwable t) {
+                    // ex: a RuntimeException from a decompressor
+                    error = new IOException(t);
+                } finally {
+                    try {
+                        parent.close();
+                    } catch (IOException e) {
+                        if (error == null) {
+                            error = e;
+                        }
+                    }
+                    // there is always room for END (there are only bufferCount chunks)
+                    full.add(END);
+                }
+            }}, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @return false if there is no more data
+     */
+    private boolean nextChunk() throws IOException {
+        while (!eof && (cur == null || pos >= cur.len)) {
+            if (cur != null) {
+                empty.add(cur);
+                cur = null;
+            }
+
+            Chunk chunk;
+            try {
+                chunk = full.take();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+
+            if (chunk == END) {
+                eof = true;
+                if (error != null) {
+                    throw error;
+                }
+            } else {
+                cur = chunk;
+                pos = 0;
+            }
+        }
+        return !eof;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        return cur.buf[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int n = Math.min(len, cur.len - pos);
+        System.arraycopy(cur.buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (cur == null) {
+            return 0;
+        }
+        return cur.len - pos;
+    }
+
+    /**
+     * Stop the background thread and wait for it to close the parent stream. If the thread is
+     * in the middle of reading from the parent, this waits for that read to finish.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -6,34 +6,41 @@ package io.compgen.ngsutils.support.stats;
  *
  */
 public class FisherExact {
-	private double[] logVals = null;
+	// this is only replaced once it has been filled, so it can be shared between threads
+	private volatile double[] logVals = null;
 	
 	public FisherExact() {
 	}
 
-	private void recalculateCache(int n) {
-		if (logVals != null && logVals.length > n) {
-			return;
+	private double[] recalculateCache(int n) {
+		double[] vals = logVals;
+		if (vals != null && vals.length > n) {
+			return vals;
 		}
 
-		int start;
-		if (logVals == null) {
-			start = 1;
-
-			logVals = new double[n+1];
-			logVals[0] = 0.0;
-		} else {
-			start = logVals.length;
+		synchronized (this) {
+			vals = logVals;
+			if (vals != null && vals.length > n) {
+				return vals;
+			}
 
+			int start;
 			double[] tmp = new double[n+1];
-			for (int i=0; i<logVals.length; i++) {
-				tmp[i] = logVals[i];
+			if (vals == null) {
+				start = 1;
+				tmp[0] = 0.0;
+			} else {
+				start = vals.length;
+				for (int i=0; i<vals.length; i++) {
+					tmp[i] = vals[i];
+				}
 			}
-			logVals = tmp;
-		}
 
-		for (int i=start; i<=n; i++) {
-			logVals[i] = logVals[i-1]+Math.log(i);
+			for (int i=start; i<=n; i++) {
+				tmp[i] = tmp[i-1]+Math.log(i);
+			}
+			logVals = tmp;
+			return tmp;
 		}
 	}
 	
@@ -54,7 +61,7 @@ public class FisherExact {
 	 */
 	public final double calcPvalue(int a, int b, int c, int d) {
 		int n = a + b + c + d;
-		recalculateCache(n);
+		double[] logVals = recalculateCache(n);
 		return Math.exp((logVals[a+b] + logVals[c+d] + logVals[a+c] + logVals[b+d]) - (logVals[a]+logVals[b]+logVals[c]+logVals[d]+logVals[n]));
 	}
 
@@ -0,0 +1,224 @@
+package io.compgen.ngsutils.tabix;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.compgen.ngsutils.tabix.BGZFile.BGZBlock;
+
+/**
+ * A size-bounded LRU cache of uncompressed BGZF blocks.
+ *
+ * The cache is split into lock-striped segments. Each segment is an access-ordered
+ * LinkedHashMap, so lookups, LRU updates, and evictions are all O(1). Entries are
+ * keyed by file and compressed offset, so one cache can be shared between many
+ * BGZFile/TabixFile instances (and threads).
+ *
+ * The default size of the shared cache is 32MB, but can be set with -Dngsutilsj.bgzf.cache.mb=N
+ */
+public class BGZBlockCache {
+	private static final int DEFAULT_SEGMENTS = 16;
+	private static final int MIN_BLOCKS_PER_SEGMENT = 8;
+	private static final int BLOCK_SIZE = 65536;
+
+	private static BGZBlockCache sharedCache = null;
+
+	private static class Key {
+		private final Object fileKey;
+		private final long cPos;
+		private final int hash;
+
+		private Key(Object fileKey, long cPos) {
+			this.fileKey = fileKey;
+			this.cPos = cPos;
+			this.hash = 31 * fileKey.hashCode() + Long.hashCode(cPos);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return cPos == other.cPos && fileKey.equals(other.fileKey);
+		}
+	}
+
+	private class Segment {
+		private final LinkedHashMap<Key, BGZBlock> map = new LinkedHashMap<Key, BGZBlock>(16, 0.75f, true);
+		private final long maxSize;
+		private long size = 0;
+
+		private Segment(long maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		private synchronized BGZBlock get(Key key) {
+			return map.get(key);
+		}
+
+		private synchronized void put(Key key, BGZBlock block) {
+			if (map.containsKey(key)) {
+				// touch
+				map.get(key);
+				return;
+			}
+
+			Iterator<Map.Entry<Key, BGZBlock>> it = map.entrySet().iterator();
+			while (size + block.uBuf.length > maxSize && it.hasNext()) {
+				BGZBlock eldest = it.next().getValue();
+				it.remove();
+				size -= eldest.uBuf.length;
+				evictions.increment();
+			}
+
+			map.put(key, block);
+			size += block.uBuf.length;
+		}
+
+		private synchronized void clear() {
+			map.clear();
+			size = 0;
+		}
+
+		private synchronized long size() {
+			return size;
+		}
+
+		private synchronized int count() {
+			return map.size();
+		}
+	}
+
+	private final Segment[] segments;
+	private final long maxSize;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public BGZBlockCache() {
+		this(getDefaultCacheSize());
+	}
+
+	public BGZBlockCache(long maxSize) {
+		this(maxSize, DEFAULT_SEGMENTS);
+	}
+
+	public BGZBlockCache(long maxSize, int numSegments) {
+		// don't make the segments so small that they can only hold a few blocks
+		while (numSegments > 1 && maxSize / numSegments < MIN_BLOCKS_PER_SEGMENT * BLOCK_SIZE) {
+			numSegments = numSegments / 2;
+		}
+		if (numSegments < 1) {
+			numSegments = 1;
+		}
+
+		this.maxSize = maxSize;
+		this.segments = new Segment[numSegments];
+		for (int i=0; i<numSegments; i++) {
+			segments[i] = new Segment(maxSize / numSegments);
+		}
+	}
+
+	/**
+	 * A cache that is shared by all BGZFiles opened by filename that don't have a specific
+	 * cache set. Blocks are keyed by the file's canonical path.
+	 */
+	public static synchronized BGZBlockCache getSharedCache() {
+		if (sharedCache == null) {
+			sharedCache = new BGZBlockCache();
+		}
+		return sharedCache;
+	}
+
+	public static long getDefaultCacheSize() {
+		String prop = System.getProperty("ngsutilsj.bgzf.cache.mb");
+		long mb = 32;
+		if (prop != null && !prop.equals("")) {
+			try {
+				mb = Long.parseLong(prop);
+			} catch (NumberFormatException e) {
+				mb = 32;
+			}
+		}
+		if (mb < 1) {
+			mb = 1;
+		}
+		return mb * 1024 * 1024;
+	}
+
+	private Segment segmentFor(Key key) {
+		int h = key.hash;
+		h ^= (h >>> 16);
+		return segments[(h & 0x7FFFFFFF) % segments.length];
+	}
+
+	public BGZBlock get(Object fileKey, long cPos) {
+		Key key = new Key(fileKey, cPos);
+		BGZBlock block = segmentFor(key).get(key);
+		if (block == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return block;
+	}
+
+	public void put(Object fileKey, BGZBlock block) {
+		Key key = new Key(fileKey, block.cPos);
+		segmentFor(key).put(key, block);
+	}
+
+	public void clear() {
+		for (Segment seg: segments) {
+			seg.clear();
+		}
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public long getSize() {
+		long size = 0;
+		for (Segment seg: segments) {
+			size += seg.size();
+		}
+		return size;
+	}
+
+	public int getBlockCount() {
+		int count = 0;
+		for (Segment seg: segments) {
+			count += seg.count();
+		}
+		return count;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public String getStats() {
+		long h = getHits();
+		long m = getMisses();
+		double rate = (h + m) > 0 ? ((double) h) / (h + m) : 0.0;
+		return "BGZF cache: hits=" + h + ", misses=" + m + ", evictions=" + getEvictions() + ", hit-rate="
+				+ String.format("%.3f", rate) + ", blocks=" + getBlockCount() + ", size=" + getSize() + "/" + maxSize;
+	}
+}
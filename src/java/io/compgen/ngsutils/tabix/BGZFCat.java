@@ -9,6 +9,7 @@ import java.io.RandomAccessFile;
 
 import io.compgen.cmdline.annotation.Command;
 import io.compgen.cmdline.annotation.Exec;
+import io.compgen.cmdline.annotation.Option;
 import io.compgen.cmdline.annotation.UnnamedArg;
 import io.compgen.cmdline.exceptions.CommandArgumentException;
 import io.compgen.cmdline.impl.AbstractOutputCommand;
@@ -17,6 +18,12 @@ import io.compgen.cmdline.impl.AbstractOutputCommand;
 public class BGZFCat extends AbstractOutputCommand {
     private String infile;
     private String outfile;
+    private int threads = 1;
+
+    @Option(desc="Number of threads to use for decompression", name="threads", defaultValue="1")
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
 
     @UnnamedArg(name = "infile outfile", required = true)
     public void setFilename(String[] args) throws CommandArgumentException {
@@ -33,7 +40,7 @@ public class BGZFCat extends AbstractOutputCommand {
         
         final RandomAccessFile raf = new RandomAccessFile(infile, "r");
         final BGZFile bgzf = new BGZFile(raf);
-        final InputStream is = new BufferedInputStream(new BGZInputStream(bgzf));
+        final InputStream is = new BufferedInputStream(new BGZInputStream(bgzf, threads));
 
         final OutputStream os;
         if (outfile.equals("-")) {
@@ -42,9 +49,10 @@ public class BGZFCat extends AbstractOutputCommand {
             os = new BufferedOutputStream(new FileOutputStream(outfile));
         }
         
+        byte[] buf = new byte[65536];
         int c = 0;
-        while ((c = is.read()) != -1) {
-            os.write(c);
+        while ((c = is.read(buf)) != -1) {
+            os.write(buf, 0, c);
         }
         
         is.close();
@@ -1,18 +1,19 @@
 package io.compgen.ngsutils.tabix;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
-import java.util.Deque;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
 import io.compgen.common.io.DataIO;
 
@@ -30,96 +31,68 @@ public class BGZFile {
         }
     }
 
-    public class BGZFileCache {
-        protected Map<Long, BGZBlock> blockCache = new HashMap<Long, BGZBlock>();
-        protected Deque<Long> lru = new LinkedList<Long>();
-        protected long size = 0;
-        protected long maxSize = 0; // max size of the uncompressed data is maxSize
-        protected long resetSize = 0;  // if the cache needs to be emptied, 
-        							   // remove blocks until the size smaller than resetSize.
-        
-        private BGZFileCache() {
-            this(getDefaultBGZCacheSize());
-        }
-
-        private BGZFileCache(long maxSize) {
-        	this(maxSize, (maxSize * 3) / 4);
-        }
-
-        private BGZFileCache(long maxSize, long resetSize) {
-        	if (maxSize < resetSize) {
-        		resetSize = maxSize;
-        	}
-        	
-            this.maxSize = maxSize;
-            this.resetSize = resetSize;
-        }
-        
-        
-        
-        private BGZBlock get(long cPos) {
-            if (!blockCache.containsKey(cPos)) {
-                return null;
-            }
-            
-            lru.remove(cPos);
-            lru.add(cPos);
-            
-            return blockCache.get(cPos);
-        }
+    /**
+     * A block that has been read from disk, but not yet inflated
+     */
+    public class BGZRawBlock {
+        public final long cPos;
+        public final int cLength;
+        public final int isize;
+        private final ByteBuffer cdata;
         
-        private void put(BGZBlock block) {
-        	if (blockCache.containsKey(block.cPos)) {
-                lru.remove(block.cPos);
-                lru.add(block.cPos);
-                return;
-        	}
-        	
-            if (block.uBuf.length + this.size > this.maxSize) {
-				while (block.uBuf.length + this.size > this.resetSize) {
-	                removeItem();
-	            }
-            }
-            
-            blockCache.put(block.cPos, block);
-            lru.add(block.cPos);
-            this.size += block.uBuf.length;
-//            System.err.println("Stored block: " + block.cPos + " (" + this.size + ")");
-            
-        }
-
-        private void removeItem() {
-            if (lru.size() > 0) {
-                Long key = lru.pop();
-//                System.err.println("Removing: " + key + " from cache");
-                BGZBlock payload = blockCache.remove(key);
-//                if (payload != null) {
-                	this.size = this.size - payload.uBuf.length;
-//                	System.err.println("Removed: " + key + " from cache (" + this.size + ")");
-//                } else {
-//                	System.err.println("Cache payload not found");
-//                	System.err.println("LRU:");
-//                	for (Long l: lru) {
-//                    	System.err.println("  " + l);
-//                	}
-//                	System.exit(1);
-//                }
-            }
+        private BGZRawBlock(long cPos, int cLength, int isize, ByteBuffer cdata) {
+            this.cPos = cPos;
+            this.cLength = cLength;
+            this.isize = isize;
+            this.cdata = cdata;
         }
     }
-    
-    
+
 	protected String filename="-";
 	protected RandomAccessFile file;
-	protected BGZFileCache cache;
+	protected BGZBlockCache cache;
+	protected Object cacheKey;
+	protected Queue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+	// Optional streaming backend (ex: stdin). Streams can only be read sequentially.
+	protected InputStream stream = null;
+	protected long streamPos = 0;
+
+	// Optional memory-mapped backend. The file is mapped in (overlapping) segments so
+	// that any block starting in a segment is fully contained in it.
+	private static final long MMAP_SEGMENT_SIZE = 1L << 30;
+	private static final long MMAP_SEGMENT_OVERLAP = 1L << 16;
+	protected MappedByteBuffer[] mapped = null;
+	protected long mappedLength = 0;
+	protected long mappedPos = 0;
 	
     public BGZFile(String filename, boolean verbose) throws IOException {
+        this(filename, verbose, null);
+    }
+
+    public BGZFile(String filename, boolean verbose, BGZBlockCache cache) throws IOException {
+        this(filename, verbose, cache, isMemoryMappedDefault());
+    }
+
+    /**
+     * @param filename
+     * @param verbose
+     * @param cache - the block cache to use (can be shared between files/threads). If null, the shared cache is used.
+     * @param mmap - read blocks from a memory-mapped buffer instead of with seek/read calls.
+     * @throws IOException
+     */
+    public BGZFile(String filename, boolean verbose, BGZBlockCache cache, boolean mmap) throws IOException {
         if (!isBGZFile(filename, verbose)) {
             throw new IOException("File: "+filename+" is not a valid BGZ file!");
         }
         this.filename = filename;
         this.file = new RandomAccessFile(filename, "r");
-        this.cache = new BGZFileCache();
+        this.cache = cache == null ? BGZBlockCache.getSharedCache() : cache;
+        this.cacheKey = new File(filename).getCanonicalPath();
+        
+        if (mmap) {
+        	map();
+        }
     }
 
 
@@ -132,36 +105,111 @@ public class BGZFile {
             throw new IOException("RandomAccessFile is not a valid BGZ file!");
         }
         this.file = raf;
-        this.cache = new BGZFileCache();
+        this.cache = new BGZBlockCache();
+        this.cacheKey = this;
+    }
+
+    /**
+     * Reads BGZF blocks sequentially from a stream (ex: stdin or a FASTQ file that has
+     * already been opened). The stream can't seek, so only readCurrentBlock() and
+     * readCurrentRawBlock() can be used (or readBlock() for the current position). Blocks
+     * aren't cached.
+     * 
+     * The caller is responsible for checking that the stream is BGZF.
+     */
+    public BGZFile(InputStream is) {
+        this.stream = is;
+        this.cache = new BGZBlockCache();
+        this.cacheKey = this;
     }
 
-    
     public String getFilename() {
     	return filename;
     }
     
     public FileChannel getChannel() { 
+        if (file == null) {
+            return null;
+        }
         return file.getChannel();
     }
 
-    private static long getDefaultBGZCacheSize() {
-        String prop = System.getProperty("ngsutilsj.bgzf.cache.mb");
-        long mb = 32;
-        if (prop != null && !prop.equals("")) {
-            try {
-                mb = Long.parseLong(prop);
-            } catch (NumberFormatException e) {
-                mb = 32;
+    public BGZBlockCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Memory-mapping is off by default, but can be turned on with -Dngsutilsj.bgzf.mmap=true
+     */
+    public static boolean isMemoryMappedDefault() {
+        String prop = System.getProperty("ngsutilsj.bgzf.mmap");
+        return prop != null && (prop.equals("true") || prop.equals("1"));
+    }
+
+    public boolean isMemoryMapped() {
+        return mapped != null;
+    }
+
+    private void map() throws IOException {
+        FileChannel channel = file.getChannel();
+        mappedLength = channel.size();
+        int n = (int) ((mappedLength + MMAP_SEGMENT_SIZE - 1) / MMAP_SEGMENT_SIZE);
+        mapped = new MappedByteBuffer[n];
+        for (int i=0; i<n; i++) {
+            long start = i * MMAP_SEGMENT_SIZE;
+            long size = Math.min(MMAP_SEGMENT_SIZE + MMAP_SEGMENT_OVERLAP, mappedLength - start);
+            mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        }
+    }
+
+    private long getPosition() throws IOException {
+        if (stream != null) {
+            return streamPos;
+        }
+        if (mapped != null) {
+            return mappedPos;
+        }
+        return file.getFilePointer();
+    }
+
+    private void setPosition(long pos) throws IOException {
+        if (stream != null) {
+            if (pos != streamPos) {
+                throw new IOException("Can't seek in a BGZF stream!");
             }
+            return;
         }
-        if (mb < 1) {
-            mb = 1;
+        if (mapped != null) {
+            mappedPos = pos;
+        } else {
+            file.seek(pos);
         }
-        return mb * 1024 * 1024;
+    }
+
+    private long length() throws IOException {
+        if (stream != null) {
+            // unknown
+            return Long.MAX_VALUE;
+        }
+        if (mapped != null) {
+            return mappedLength;
+        }
+        return file.length();
     }
     
 	public void close() throws IOException {
-		file.close();
+		// mapped buffers are released when they are GC'd
+		mapped = null;
+		if (file != null) {
+			file.close();
+		}
+		if (stream != null) {
+			stream.close();
+		}
+		Inflater inf;
+		while ((inf = inflaters.poll()) != null) {
+			inf.end();
+		}
 	}
 
 	
@@ -211,36 +259,71 @@ public class BGZFile {
 		return buf;
 	}
 
-	public BGZBlock readBlock(long offset) throws IOException {
-	    BGZBlock b = cache.get(offset);
+	public synchronized BGZBlock readBlock(long offset) throws IOException {
+	    BGZBlock b = cache.get(cacheKey, offset);
 	    if (b == null) {
-	        if (file.getFilePointer()!=offset) {
-	            if (offset >= file.length()) {
+	        if (getPosition()!=offset) {
+	            if (offset >= length()) {
 	                return null;
 	            }
 
-	            file.seek(offset);
+	            setPosition(offset);
 	        }
-	        b = readCurrentBlock();
-	        cache.put(b);
+	        b = loadCurrentBlock();
 	    }
         return b;
     }
 
-	public BGZBlock readCurrentBlock() throws IOException {
+	public synchronized BGZBlock readCurrentBlock() throws IOException {
 		
-		long curOffset = file.getFilePointer();
+		long curOffset = getPosition();
 		
 		// If this block is in the cache, return it and seek to the next block
-	    BGZBlock b = cache.get(curOffset);
+	    BGZBlock b = cache.get(cacheKey, curOffset);
 	    if (b != null) {
-	    	file.seek(curOffset + b.cLength);
+	    	setPosition(curOffset + b.cLength);
 	    	return b;
 	    }
 
+	    return loadCurrentBlock();
+	}
+
+	/**
+	 * Read and inflate the block at the current position (skipping the cache lookup) 
+	 */
+	private BGZBlock loadCurrentBlock() throws IOException {
+	    BGZRawBlock raw = readCurrentRawBlock();
+	    if (raw == null) {
+	    	return null;
+	    }
+
+		BGZBlock b = inflate(raw);
+		if (stream == null) {
+			cache.put(cacheKey, b);
+		}
+		return b;
+	}
+
+	/**
+	 * Reads the compressed block at the current file position, but doesn't inflate it.
+	 * The file pointer is left at the start of the next block. Blocks read this way
+	 * bypass the cache.
+	 * 
+	 * @return the compressed block or null if we are at the end of the file
+	 * @throws IOException
+	 */
+	public synchronized BGZRawBlock readCurrentRawBlock() throws IOException {
+		if (stream != null) {
+			return readStreamRawBlock();
+		}
+		if (mapped != null) {
+			return readMappedRawBlock();
+		}
+
+		long curOffset = file.getFilePointer();
+
 //		System.err.println("reading chunk -- fname  = " + filename+ ", curpos = " + file.getFilePointer() +", length = " + file.length());
 
-		
 		if (curOffset >= file.length()) {
 //			System.err.println(filename+" is all done!");
 			return null;
@@ -289,72 +372,157 @@ public class BGZFile {
 
 		// payload
 		byte[] cdata = DataIO.readRawBytes(file, bsize - xlen - 19);
-//		file.skipBytes(bsize - xlen - 19);
 		// crc
 		//long crc = DataIO.readUint32(file);
 		file.skipBytes(4);
 		
 		// Uncompressed size [0, 65536]
 		long isize = DataIO.readUint32(file);
-//        System.err.println("isize => " + isize);
-
-//		System.out.println("magic1: "+ magic1);
-//		System.out.println("magic2: "+ magic2);
-//		System.out.println("cm    : "+ cm);
-//		System.out.println("flg   : "+ flg);
-//		System.out.println("mtime : "+ mtime);
-//		System.out.println("xfl   : "+ xfl);
-//		System.out.println("os    : "+ os);
-//		System.out.println("xlen  : "+ xlen);
-//		System.out.println("bsize : "+ bsize);
-//		System.out.println("cdata : <"+ cdata.length+" bytes>");
-//		System.out.println("crc : "+ crc);
-//		System.out.println("isize : "+ isize);
-		
-        // Now that we know all of the sizes, let's read in the compressed chunk and decompress the 
-        // full GZip record (naked inflate on cdata was acting funny...)
 
-		// jump back to the beginning of the record
-		// and read it into a byte array
-		
-//		byte[] cBuf = new byte[bsize+1];
-//		file.seek(curOffset);
-//		file.readFully(cBuf, 0, cBuf.length);
-//
-//		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(cBuf));
-//		byte[] uBuf = new byte[(int) isize];
-//		int readPos = 0;
-//		while (readPos < isize) {
-//			int c = in.read(uBuf, readPos, uBuf.length - readPos);
-//			if (c == -1) {
-//				break;
-//			}
-//			readPos += c;
-////			System.err.println("================================");
-////	        System.err.println("reading chunk -- fname  = " + filename+ ", curOffset = " + curOffset +", clen = "+(bsize+1)+", ulen = "+isize);
-////            System.err.println("["+curOffset+"] Read "+c+" bytes from BGZF record // strlen=" + new String(uBuf).length()+", readPos="+readPos);
-////            System.err.println(new String(uBuf).substring(0,readPos));
-//		}
-//
-//		in.close();
-//		System.err.println("read chunk -- fname  = " + filename+ ", curpos = " + file.getFilePointer() +", length = " + file.length());
-
-		byte[] uBuf = new byte[(int) isize];
-		ByteArrayInputStream bis = new ByteArrayInputStream(cdata);
-		InflaterInputStream iis = new InflaterInputStream(bis, new Inflater(true));
-		int readPos = 0;
-		while (readPos < isize) {
-			int c = iis.read(uBuf, readPos, uBuf.length - readPos);
-			if (c == -1) {
+		return new BGZRawBlock(curOffset, bsize+1, (int) isize, ByteBuffer.wrap(cdata));
+	}
+
+	/**
+	 * Reads the block header from the mapped buffer. The compressed payload isn't
+	 * copied -- the raw block holds a slice of the mapped region.
+	 */
+	private BGZRawBlock readMappedRawBlock() throws IOException {
+		long curOffset = mappedPos;
+		if (curOffset >= mappedLength) {
+			return null;
+		}
+
+		ByteBuffer buf = mapped[(int) (curOffset / MMAP_SEGMENT_SIZE)];
+		int p = (int) (curOffset % MMAP_SEGMENT_SIZE);
+
+		if ((buf.get(p) & 0xFF) != 31) {
+			throw new IOException("Bad Magic byte1");
+		}
+		if ((buf.get(p+1) & 0xFF) != 139) {
+			throw new IOException("Bad Magic byte2");
+		}
+
+		int xlen = mappedUint16(buf, p + 10);
+		int bsize = 0;
+		int x = p + 12;
+		while (x + 4 <= p + 12 + xlen) {
+			int s1 = buf.get(x) & 0xFF;
+			int s2 = buf.get(x+1) & 0xFF;
+			int slen = mappedUint16(buf, x + 2);
+			if (s1 == 66 && s2 == 67) {
+				bsize = mappedUint16(buf, x + 4);
 				break;
 			}
-			readPos += c;
+			x += 4 + slen;
+		}
+
+		if (bsize == 0) {
+		    throw new IOException("Invalid BGZF chunk (missing BSIZE)!");
+		}
+
+		int cstart = p + 12 + xlen;
+		int clen = bsize - xlen - 19;
+		long isize = mappedUint16(buf, p + bsize - 3) | ((long) mappedUint16(buf, p + bsize - 1) << 16);
+
+		ByteBuffer cdata = buf.duplicate();
+		cdata.limit(cstart + clen);
+		cdata.position(cstart);
+
+		mappedPos = curOffset + bsize + 1;
+		return new BGZRawBlock(curOffset, bsize+1, (int) isize, cdata.slice());
+	}
+
+	/**
+	 * Reads the next block from the stream. The header is read in one go (assuming
+	 * a single BC subfield, as written by bgzip/htslib) and then the rest of the block.
+	 */
+	private BGZRawBlock readStreamRawBlock() throws IOException {
+		long curOffset = streamPos;
+
+		byte[] header = new byte[18];
+		int n = readFully(stream, header, 0, header.length);
+		if (n == 0) {
+			return null;
+		} else if (n < header.length) {
+			throw new IOException("Truncated BGZF block at offset: "+curOffset);
+		}
+
+		if ((header[0] & 0xFF) != 31) {
+			throw new IOException("Bad Magic byte1");
+		}
+		if ((header[1] & 0xFF) != 139) {
+			throw new IOException("Bad Magic byte2");
+		}
+
+		int xlen = DataIO.bytesUint16(new byte[] {header[10], header[11]});
+		if (xlen < 6 || header[12] != 66 || header[13] != 67 || header[14] != 2 || header[15] != 0) {
+		    throw new IOException("Invalid BGZF chunk (missing BSIZE)!");
+		}
+		int bsize = DataIO.bytesUint16(new byte[] {header[16], header[17]});
+
+		// rest of the extra field + cdata + crc + isize
+		byte[] rest = new byte[bsize + 1 - header.length];
+		if (readFully(stream, rest, 0, rest.length) < rest.length) {
+			throw new IOException("Truncated BGZF block at offset: "+curOffset);
+		}
+
+		int cstart = xlen - 6;
+		int clen = bsize - xlen - 19;
+		long isize = DataIO.bytesUint32(Arrays.copyOfRange(rest, rest.length - 4, rest.length));
+
+		streamPos = curOffset + bsize + 1;
+		return new BGZRawBlock(curOffset, bsize+1, (int) isize, ByteBuffer.wrap(rest, cstart, clen).slice());
+	}
+
+	private static int readFully(InputStream is, byte[] buf, int off, int len) throws IOException {
+		int total = 0;
+		while (total < len) {
+			int n = is.read(buf, off + total, len - total);
+			if (n == -1) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	private static int mappedUint16(ByteBuffer buf, int pos) {
+		return (buf.get(pos) & 0xFF) | ((buf.get(pos+1) & 0xFF) << 8);
+	}
+
+	/**
+	 * Inflates a compressed block. This is safe to call from multiple threads. 
+	 * 
+	 * @param raw
+	 * @return
+	 * @throws IOException
+	 */
+	public BGZBlock inflate(BGZRawBlock raw) throws IOException {
+		Inflater inf = inflaters.poll();
+		if (inf == null) {
+			inf = new Inflater(true);
+		} else {
+			inf.reset();
 		}
-		iis.close();
 		
-		b = new BGZBlock(curOffset,bsize+1,uBuf);
-		cache.put(b);
-		return b;
+		byte[] uBuf = new byte[raw.isize];
+		try {
+			inf.setInput(raw.cdata.duplicate());
+			int readPos = 0;
+			while (readPos < raw.isize && !inf.finished()) {
+				int c = inf.inflate(uBuf, readPos, uBuf.length - readPos);
+				if (c == 0 && (inf.needsInput() || inf.needsDictionary())) {
+					break;
+				}
+				readPos += c;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid BGZF chunk at offset: "+raw.cPos, e);
+		} finally {
+			inflaters.add(inf);
+		}
+
+		return new BGZBlock(raw.cPos, raw.cLength, uBuf);
 	}
 
 //	public void dumpIndex() throws IOException {
@@ -1,40 +1,167 @@
 package io.compgen.ngsutils.tabix;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import io.compgen.ngsutils.tabix.BGZFile.BGZBlock;
+import io.compgen.ngsutils.tabix.BGZFile.BGZRawBlock;
 
+/**
+ * Streams the uncompressed contents of a BGZF file.
+ *
+ * If threads > 1, then the next blocks are read ahead and inflated on a pool of
+ * background threads. In this mode, the blocks bypass the BGZFile cache, so the
+ * underlying BGZFile shouldn't be used for anything else while the stream is open.
+ *
+ * The default number of threads can be set with -Dngsutilsj.bgzf.threads=N
+ */
 public class BGZInputStream extends InputStream {
 	protected BGZFile bgzf;
-	protected ByteArrayInputStream buf=null;
-	
+	protected byte[] buf=null;
+	protected int pos=0;
+
+	private final int threads;
+	private ExecutorService pool = null;
+	private final Deque<Future<BGZBlock>> pending = new ArrayDeque<Future<BGZBlock>>();
+	private boolean eof = false;
+
     public BGZInputStream(String filename) throws IOException {
-        bgzf = new BGZFile(filename);
+        this(new BGZFile(filename));
+    }
+
+    public BGZInputStream(String filename, int threads) throws IOException {
+        this(new BGZFile(filename), threads);
     }
-    
+
     public BGZInputStream(BGZFile bgzf) throws IOException {
+        this(bgzf, getDefaultThreads());
+    }
+
+    public BGZInputStream(BGZFile bgzf, int threads) throws IOException {
         this.bgzf = bgzf;
+        this.threads = threads < 1 ? 1 : threads;
+
+        if (this.threads > 1) {
+            this.pool = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "bgzip-inflate");
+                    t.setDaemon(true);
+                    return t;
+                }});
+        }
+    }
+
+    public static int getDefaultThreads() {
+        String prop = System.getProperty("ngsutilsj.bgzf.threads");
+        int threads = 1;
+        if (prop != null && !prop.equals("")) {
+            try {
+                threads = Integer.parseInt(prop);
+            } catch (NumberFormatException e) {
+                threads = 1;
+            }
+        }
+        if (threads < 1) {
+            threads = 1;
+        }
+        return threads;
     }
-    
+
 	public void close() throws IOException {
+		if (pool != null) {
+			pool.shutdownNow();
+			pending.clear();
+		}
 		bgzf.close();
 	}
 
+	/**
+	 * Loads the next block into buf.
+	 * @return false if there are no more blocks
+	 * @throws IOException
+	 */
+	private boolean nextBlock() throws IOException {
+		while (buf == null || pos >= buf.length) {
+			BGZBlock block;
+			if (pool == null) {
+				block = bgzf.readCurrentBlock();
+			} else {
+				block = nextReadAheadBlock();
+			}
+		    if (block == null || block.uBuf == null) {
+		        buf = null;
+		        return false;
+		    }
+		    buf = block.uBuf;
+		    pos = 0;
+		}
+		return true;
+	}
+
+	private BGZBlock nextReadAheadBlock() throws IOException {
+		// keep the queue full
+		while (!eof && pending.size() < threads * 2) {
+			final BGZRawBlock raw = bgzf.readCurrentRawBlock();
+			if (raw == null) {
+				eof = true;
+				break;
+			}
+			pending.add(pool.submit(new Callable<BGZBlock>() {
+				@Override
+				public BGZBlock call() throws Exception {
+					return bgzf.inflate(raw);
+				}}));
+		}
+
+		Future<BGZBlock> f = pending.poll();
+		if (f == null) {
+			return null;
+		}
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
 	@Override
 	public int read() throws IOException {
-		if (buf == null || buf.available() == 0) {
-		    BGZBlock block = bgzf.readCurrentBlock();
-		    if (block == null) {
-		        return -1;
-		    }
-		    byte[] cur = block.uBuf;
-		    if (cur == null ) {
-		        return -1;
-		    }
-            buf = new ByteArrayInputStream(cur);
-		}		
-		return buf.read();
+		if (!nextBlock()) {
+			return -1;
+		}
+		return buf[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!nextBlock()) {
+			return -1;
+		}
+		int n = Math.min(len, buf.length - pos);
+		System.arraycopy(buf, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		if (buf == null) {
+			return 0;
+		}
+		return buf.length - pos;
 	}
 }
@@ -0,0 +1,122 @@
+package io.compgen.ngsutils.tabix;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import io.compgen.ngsutils.tabix.BGZFile.BGZBlock;
+
+/**
+ * Reads lines from a BGZF file starting at a virtual offset. Lines are loaded into a
+ * TabixLine view of the block buffer (only lines that span blocks are copied).
+ */
+class BGZLineReader {
+    private final BGZFile bgzf;
+
+    private BGZBlock block = null;
+    private int blockPos = 0;
+    private byte[] spanBuf = new byte[1024];
+
+    BGZLineReader(BGZFile bgzf) {
+        this.bgzf = bgzf;
+    }
+
+    /**
+     * @param voffset - virtual offset (coffset << 16 | uoffset)
+     */
+    void seek(long voffset) throws IOException {
+        block = bgzf.readBlock((voffset >> 16) & 0xFFFFFFFFFFFFL);
+        blockPos = (int) (voffset & 0xFFFF);
+    }
+
+    /**
+     * @return the virtual offset of the next line (or -1 if at EOF)
+     */
+    long getOffset() {
+        if (block == null) {
+            return -1;
+        }
+        return (block.cPos << 16) | blockPos;
+    }
+
+    BGZFile getBGZFile() {
+        return bgzf;
+    }
+
+    /**
+     * Make sure we are pointing at an unread byte
+     */
+    private boolean nextBlock() throws IOException {
+        while (block != null && blockPos >= block.uBuf.length) {
+            if (block.uBuf.length == 0) {
+                // EOF block
+                block = null;
+                return false;
+            }
+            block = bgzf.readBlock(block.cPos + block.cLength);
+            blockPos = 0;
+        }
+        return block != null;
+    }
+
+    /**
+     * Read the next line
+     *
+     * @param limit - don't read lines that start at or after this virtual offset (-1 for no limit)
+     * @return false if there are no more lines
+     */
+    boolean readLine(TabixLine line, long limit) throws IOException {
+        if (!nextBlock()) {
+            return false;
+        }
+        if (limit > -1 && getOffset() >= limit) {
+            return false;
+        }
+
+        byte[] buf = block.uBuf;
+        int lineStart = blockPos;
+        int i = blockPos;
+        while (i < buf.length && buf[i] != '\n') {
+            i++;
+        }
+
+        if (i < buf.length) {
+            // the whole line is in this block
+            line.set(buf, lineStart, (i > lineStart && buf[i-1] == '\r') ? i - 1 : i);
+            blockPos = i + 1;
+            return true;
+        }
+
+        // this line spans blocks, so we need to copy it
+        int len = 0;
+        while (true) {
+            int n = i - lineStart;
+            if (len + n > spanBuf.length) {
+                spanBuf = Arrays.copyOf(spanBuf, Math.max(spanBuf.length * 2, len + n));
+            }
+            System.arraycopy(buf, lineStart, spanBuf, len, n);
+            len += n;
+
+            if (i < buf.length) {
+                blockPos = i + 1;
+                break;
+            }
+
+            blockPos = buf.length;
+            if (!nextBlock()) {
+                break;
+            }
+            buf = block.uBuf;
+            lineStart = 0;
+            i = 0;
+            while (i < buf.length && buf[i] != '\n') {
+                i++;
+            }
+        }
+
+        if (len > 0 && spanBuf[len-1] == '\r') {
+            len--;
+        }
+        line.set(spanBuf, 0, len);
+        return true;
+    }
+}
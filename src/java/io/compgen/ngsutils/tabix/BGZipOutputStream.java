@@ -1,13 +1,22 @@
 package io.compgen.ngsutils.tabix;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.CRC32;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 import io.compgen.common.io.DataIO;
 
@@ -18,114 +27,331 @@ public class BGZipOutputStream extends OutputStream {
 	}
 
 	// part of bgzip spec. Seems small to me.
-	private int uncompressedMaxBlock = 65280;
+	private static final int uncompressedMaxBlock = 65280;
+
+	// The last block is empty and has a fixed 28 bytes
+	private static final byte[] EOF_BLOCK = new byte[] {0x1f,(byte)0x8b,0x08,0x04,0x00,0x00,0x00,0x00,0x00,(byte)0xff,0x06,0x00,0x42,0x43,0x02,0x00,0x1b,0x00,0x03,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00};
 
 	private OutputStream os;
 	private byte[] curBuffer = new byte[uncompressedMaxBlock];
 	private int curpos = 0;
 
+	// Deflaters (and uncompressed block buffers) are expensive to create, so they
+	// are recycled between blocks. With threads > 1, blocks are compressed by a
+	// worker pool and written out in the order they were submitted.
+	private final int threads;
+	private ExecutorService pool = null;
+	private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+	private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+	private boolean closed = false;
+
+	// For on-the-fly indexing, we need to track the compressed offset of each block.
+	private TabixIndexWriter indexWriter = null;
+	private String indexFilename = null;
+	private long blockNum = 0;
+	private long cPos = 0;
+	private long[] blockOffsets = null;
+	private int writtenBlocks = 0;
 
 	public BGZipOutputStream(String filename) throws IOException {
-		super();
+		this(filename, 1);
+	}
+
+	public BGZipOutputStream(String filename, int threads) throws IOException {
+		this(new FileOutputStream(filename), threads);
 		this.filename = filename;
-		this.os = new FileOutputStream(filename);
 	}
-	
+
+	public BGZipOutputStream(OutputStream os, int threads) {
+		super();
+		this.os = os;
+		this.threads = threads < 1 ? 1 : threads;
+
+		if (this.threads > 1) {
+			this.pool = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "bgzip-deflate");
+					t.setDaemon(true);
+					return t;
+				}});
+		}
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Build a TBI/CSI index while writing this file. The index will be written when
+	 * the stream is closed. This must be set before anything is written.
+	 * 
+	 * @param indexWriter
+	 * @param indexFilename - the index filename (if null, {filename}.tbi or {filename}.csi)
+	 * @throws IOException
+	 */
+	public void setIndexWriter(TabixIndexWriter indexWriter, String indexFilename) throws IOException {
+		if (blockNum > 0 || curpos > 0) {
+			throw new IOException("The index must be set before writing any data");
+		}
+		if (indexFilename == null) {
+			if (filename == null) {
+				throw new IOException("Missing index filename");
+			}
+			indexFilename = filename + indexWriter.getDefaultExtension();
+		}
+		this.indexWriter = indexWriter;
+		this.indexFilename = indexFilename;
+		this.blockOffsets = new long[1024];
+	}
+
+	public void setIndexWriter(TabixIndexWriter indexWriter) throws IOException {
+		setIndexWriter(indexWriter, null);
+	}
+
 	// Each string/line should be written to the same block, so if
 	// this string would cause a block to get written in the middle,
 	// then flush the current block first.
-	
+
 	public void writeString(String line) throws IOException {
 		write(line.getBytes(Charset.defaultCharset()), true);
 	}
-	
+
 	public void writeBytes(byte[] bytes) throws IOException {
 		write(bytes, false);
 	}
 
 	public void write(byte[] bytes, boolean keepTogether) throws IOException {
-		
+
 		// if we need to keep these bytes in the same block, flush the current block if
 		// {bytes} is large enough to cause a split block.
 		//
-		// note: writeBlock only operates if we have written anything (curpos > 0), so 
+		// note: writeBlock only operates if we have written anything (curpos > 0), so
 		//       no need to worry about writing an empty block.
-		
-		if (keepTogether && curpos + bytes.length >= this.uncompressedMaxBlock) {
+
+		if (keepTogether && curpos + bytes.length >= uncompressedMaxBlock) {
 			writeBlock();
 		}
-		for (int i=0; i<bytes.length; i++) {
-			write(bytes[i]);
+		write(bytes, 0, bytes.length);
+	}
+
+	@Override
+	public void write(byte[] bytes, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, uncompressedMaxBlock - curpos);
+			if (indexWriter != null) {
+				indexWriter.update(bytes, off, n, blockNum, curpos, uncompressedMaxBlock);
+			}
+			System.arraycopy(bytes, off, curBuffer, curpos, n);
+			curpos += n;
+			off += n;
+			len -= n;
+			if (curpos >= uncompressedMaxBlock) {
+				writeBlock();
+			}
 		}
 	}
 
 	public void write(byte b) throws IOException {
+		if (indexWriter != null) {
+			indexWriter.update(b, blockNum, curpos, uncompressedMaxBlock);
+		}
 		curBuffer[curpos++] = b;
-		if (curpos >= this.uncompressedMaxBlock) {
+		if (curpos >= uncompressedMaxBlock) {
 			writeBlock();
 		}
 	}
 
 
 	public void close() throws IOException {
-		writeBlock();
-		
-		// The last block is empty and has a fixed 28 bytes
-		int[] last = new int[] {0x1f,0x8b,0x08,0x04,0x00,0x00,0x00,0x00,0x00,0xff,0x06,0x00,0x42,0x43,0x02,0x00,0x1b,0x00,0x03,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00};
-		for (int i: last) {
-			DataIO.writeRawByte(os, (byte) (i & 0xFF));
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		// if a block can't be written, the file is still closed, but without the EOF block
+		// or index (the original exception is thrown)
+		boolean success = false;
+		try {
+			writeBlock();
+			while (!pending.isEmpty()) {
+				writePending();
+			}
+			if (indexWriter != null) {
+				indexWriter.finish(blockNum << 16);
+				// the EOF block
+				recordBlock(EOF_BLOCK.length);
+			}
+			DataIO.writeRawBytes(os, EOF_BLOCK);
+			os.flush();
+			success = true;
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+			Deflater def;
+			while ((def = deflaters.poll()) != null) {
+				def.end();
+			}
+			if (success) {
+				os.close();
+			} else {
+				try {
+					os.close();
+				} catch (IOException e) {
+					// ignore, so that the original exception isn't lost
+				}
+			}
+		}
+
+		if (indexWriter != null) {
+			indexWriter.write(indexFilename, blockOffsets);
 		}
-		os.flush();
-		os.close();
 	}
-	
+
 	/**
-	 * Writes a block to the BGZip file
+	 * Writes a block to the BGZip file (or queues it for compression if we are
+	 * using multiple threads)
 	 * @throws IOException
 	 */
 	private void writeBlock() throws IOException {
-//		System.err.println("Flushing (curpos="+curpos+") ");
 		if (curpos == 0 ) {
 			return;
 		}
-//		byte[] bufferBytes = curBuffer.getBytes(Charset.defaultCharset());
-		int isize = curpos;
-		
-		Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+		if (pool == null) {
+			Deflater def = takeDeflater();
+			byte[] block = compressBlock(def, curBuffer, curpos);
+			deflaters.add(def);
+			recordBlock(block.length);
+			DataIO.writeRawBytes(os, block);
+			blockNum++;
+			curpos = 0;
+			return;
+		}
+
+		// keep a bounded number of blocks in flight so that a slow disk
+		// doesn't cause us to buffer the entire input in memory.
+		while (pending.size() >= threads * 4) {
+			writePending();
+		}
+
+		final byte[] buf = curBuffer;
+		final int len = curpos;
+		pending.add(pool.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				Deflater def = takeDeflater();
+				try {
+					return compressBlock(def, buf, len);
+				} finally {
+					deflaters.add(def);
+					buffers.add(buf);
+				}
+			}}));
+
+		blockNum++;
+		curBuffer = buffers.poll();
+		if (curBuffer == null) {
+			curBuffer = new byte[uncompressedMaxBlock];
+		}
+		curpos = 0;
+	}
+
+	/**
+	 * Waits for the oldest queued block to finish compressing and writes it.
+	 * @throws IOException
+	 */
+	private void writePending() throws IOException {
+		Future<byte[]> f = pending.poll();
+		try {
+			byte[] block = f.get();
+			recordBlock(block.length);
+			DataIO.writeRawBytes(os, block);
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Keep track of the compressed offset of each block (needed for indexing)
+	 */
+	private void recordBlock(int len) {
+		if (blockOffsets != null) {
+			if (writtenBlocks >= blockOffsets.length) {
+				blockOffsets = Arrays.copyOf(blockOffsets, blockOffsets.length * 2);
+			}
+			blockOffsets[writtenBlocks++] = cPos;
+		}
+		cPos += len;
+	}
+
+	private Deflater takeDeflater() {
+		Deflater def = deflaters.poll();
+		if (def == null) {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+		def.reset();
+		return def;
+	}
+
+	/**
+	 * Compresses {len} bytes of {buf} into a complete BGZF block (header,
+	 * deflated payload, crc, and isize).
+	 */
+	protected static byte[] compressBlock(Deflater def, byte[] buf, int len) {
 		CRC32 crc = new CRC32();
-		
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();		
-		DeflaterOutputStream dos = new DeflaterOutputStream(baos, def);
-		dos.write(curBuffer, 0, curpos);
-		dos.close();
-
-		crc.reset();
-		crc.update(curBuffer, 0, curpos);
-				
-		byte[] cdata = baos.toByteArray();
-		long crcVal = crc.getValue();
-
-		DataIO.writeRawByte(os, (byte) (31 & 0xFF)); // write magic bytes
-		DataIO.writeRawByte(os, (byte) (139 & 0xFF));
-		DataIO.writeRawByte(os, (byte) (8 & 0xFF)); // compression-method (DEFLATE)
-		DataIO.writeRawByte(os, (byte) (4 & 0xFF)); // flags = 4 => EXTRA follows
-		DataIO.writeUint32(os, 0); // write mtime (uint32)
-		DataIO.writeRawByte(os, (byte) (0 & 0xFF)); // xfl (none)
-		DataIO.writeRawByte(os, (byte) (255 & 0xFF)); // OS (unknown)
-		DataIO.writeUint16(os, 6); // EXTRA length = 6 (hard coded in bgzip!)
-	
+		crc.update(buf, 0, len);
+
+		// the header is 18 bytes, the footer is 8
+		byte[] out = new byte[len + 1024];
+		int pos = 18;
+
+		def.setInput(buf, 0, len);
+		def.finish();
+		while (!def.finished()) {
+			if (pos == out.length - 8) {
+				out = Arrays.copyOf(out, out.length * 2);
+			}
+			pos += def.deflate(out, pos, out.length - 8 - pos);
+		}
+
+		int bsize = pos + 8;
+
+		out[0] = 31; // write magic bytes
+		out[1] = (byte) 139;
+		out[2] = 8; // compression-method (DEFLATE)
+		out[3] = 4; // flags = 4 => EXTRA follows
+		out[4] = out[5] = out[6] = out[7] = 0; // write mtime (uint32)
+		out[8] = 0; // xfl (none)
+		out[9] = (byte) 255; // OS (unknown)
+		writeUint16(out, 10, 6); // EXTRA length = 6 (hard coded in bgzip!)
+
 		// Hard coded EXTRA fields (from in bgzip again)
-		DataIO.writeRawByte(os, (byte) (66 & 0xFF));
-		DataIO.writeRawByte(os, (byte) (67 & 0xFF));
-		DataIO.writeUint16(os, 2); 
-		DataIO.writeUint16(os, cdata.length + 6 + 19); // bsize is cdata + xlen + rest of gzip header
+		out[12] = 66;
+		out[13] = 67;
+		writeUint16(out, 14, 2);
+		writeUint16(out, 16, bsize - 1); // bsize is the total block size - 1
 
-		DataIO.writeRawBytes(os, cdata); // write compressed bytes
-		DataIO.writeUint32(os, crcVal); // write crc32
-		DataIO.writeUint32(os, isize); // uncompressed size
-		os.flush();
+		writeUint32(out, pos, crc.getValue()); // write crc32
+		writeUint32(out, pos + 4, len); // uncompressed size
 
-		curpos = 0;
+		return Arrays.copyOf(out, bsize);
+	}
+
+	private static void writeUint16(byte[] buf, int pos, int val) {
+		buf[pos] = (byte) (val & 0xFF);
+		buf[pos + 1] = (byte) ((val >> 8) & 0xFF);
+	}
+
+	private static void writeUint32(byte[] buf, int pos, long val) {
+		buf[pos] = (byte) (val & 0xFF);
+		buf[pos + 1] = (byte) ((val >> 8) & 0xFF);
+		buf[pos + 2] = (byte) ((val >> 16) & 0xFF);
+		buf[pos + 3] = (byte) ((val >> 24) & 0xFF);
 	}
 
 	@Override
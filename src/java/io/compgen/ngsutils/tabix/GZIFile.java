@@ -30,12 +30,30 @@ public class GZIFile {
 		this.compressedOffsets[0] = 0;
 		this.uncompressedOffsets[0] = 0;
 		
-		for (int i=1; i<this.numBlocks; i++) {
+		for (int i=1; i<=this.numBlocks; i++) {
 			this.compressedOffsets[i] = DataIO.readUint64(fis);
 			this.uncompressedOffsets[i] = DataIO.readUint64(fis);
 			
 //			System.err.println("block " + i + ": " + this.compressedOffsets[i] + " / " + this.uncompressedOffsets[i]);			
 		}
+		fis.close();
+	}
+	
+	/**
+	 * Binary search for the last block that starts at or before uPos 
+	 */
+	private int findBlock(long uPos) {
+		int lo = 0;
+		int hi = this.numBlocks;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (uncompressedOffsets[mid] <= uPos) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
 	}
 	
 	
@@ -47,12 +65,7 @@ public class GZIFile {
 	 * @return
 	 */
 	public long getCompressedOffset(long uPos) {
-		for (int i=1; i<this.numBlocks; i++) {
-			if (uncompressedOffsets[i] > uPos) {
-				return compressedOffsets[i-1];
-			}
-		}
-		return compressedOffsets[compressedOffsets.length-1];
+		return compressedOffsets[findBlock(uPos)];
 	}
 	
 	/**
@@ -63,11 +76,6 @@ public class GZIFile {
 	 * @return the offset to uPos (global pos) within the BGZ block's uncompressed data
 	 */
 	public int getUncompressedBlockOffset(long uPos) {
-		for (int i=1; i<this.numBlocks; i++) {
-			if (uncompressedOffsets[i] > uPos) {
-				return (int) (uPos - uncompressedOffsets[i-1]);
-			}
-		}
-		return (int) (uPos - uncompressedOffsets[uncompressedOffsets.length-1]);
+		return (int) (uPos - uncompressedOffsets[findBlock(uPos)]);
 	}
 }
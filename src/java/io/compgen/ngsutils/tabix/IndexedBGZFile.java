@@ -14,12 +14,16 @@ public class IndexedBGZFile {
 	private long curPos = 0;
 	
 	public IndexedBGZFile(String filename) throws IOException {
+		this(filename, BGZFile.isMemoryMappedDefault());
+	}
+
+	public IndexedBGZFile(String filename, boolean mmap) throws IOException {
 		if (!new File(filename+".gzi").exists()) {
 	        throw new IOException("Missing GZI index file!");
 	    }
 	    
 	    this.gzi = new GZIFile(filename + ".gzi");        
-	    this.bgz = new BGZFile(filename);
+	    this.bgz = new BGZFile(filename, false, null, mmap);
 	}
 	
 	public void close() throws IOException {
@@ -57,4 +61,35 @@ public class IndexedBGZFile {
 		
 //		return curBlock.uBuf[curBlockPos++];
 	}
+
+	/**
+	 * Read up to len bytes from the current position (copied directly from the block buffers).
+	 * 
+	 * @return the number of bytes read (-1 at the end of the file)
+	 */
+	public int read(byte[] buf, int off, int len) throws IOException {
+		if (curBlock == null) {
+			seek(0);
+		}
+
+		int total = 0;
+		while (total < len) {
+			if (curBlockPos >= curBlock.uBuf.length) {
+				seek(curPos);
+				if (curBlock == null || curBlockPos >= curBlock.uBuf.length) {
+					break;
+				}
+			}
+			int n = Math.min(len - total, curBlock.uBuf.length - curBlockPos);
+			System.arraycopy(curBlock.uBuf, curBlockPos, buf, off + total, n);
+			curBlockPos += n;
+			curPos += n;
+			total += n;
+		}
+		
+		if (total == 0 && len > 0) {
+			return -1;
+		}
+		return total;
+	}
 }
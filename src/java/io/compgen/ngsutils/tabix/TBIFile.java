@@ -188,6 +188,33 @@ public class TBIFile implements TabixIndex {
     public String[] getSeqNames() {
     	return Arrays.copyOf(seqNames, seqNames.length);
     }
+
+    /**
+     * The smallest chunk start for any bin in this reference. Chunks only contain lines
+     * for their own reference, so this is the first line for the reference.
+     */
+    @Override
+    public long getFirstOffset(String chrom) {
+        for (int i = 0; i < seqNames.length; i++) {
+            if (seqNames[i].equals(chrom)) {
+                long first = -1;
+                for (Bin bin: refs[i].bins) {
+                    if (bin.bin == 37450) {
+                        // pseudo-bin (stats, not a real chunk)
+                        continue;
+                    }
+                    for (Chunk chunk: bin.chunks) {
+                        long offset = (chunk.coffsetBegin << 16) | chunk.uoffsetBegin;
+                        if (first == -1 || offset < first) {
+                            first = offset;
+                        }
+                    }
+                }
+                return first;
+            }
+        }
+        return -1;
+    }
     
     public void dump() throws IOException {
         System.out.println("magic: " + StringUtils.byteArrayToString(magic) + " => "
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.zip.DataFormatException;
 
 import io.compgen.common.StringLineReader;
@@ -57,6 +58,12 @@ public class TabixFile {
 	public TabixFile(String filename, boolean verbose) throws IOException {
 		this(new BGZFile(filename, verbose), verbose);
 	}
+	/**
+	 * Open a TabixFile using a specific block cache (which can be shared between files and threads). 
+	 */
+	public TabixFile(String filename, BGZBlockCache cache) throws IOException {
+		this(new BGZFile(filename, false, cache), false);
+	}
 	
 	public TabixFile(BGZFile bgzf, boolean verbose) throws IOException {
 		this.bgzf = bgzf;
@@ -82,7 +89,7 @@ public class TabixFile {
 		// it can still be commented, but should be the last skipped line.
 		
 		if (headerNames == null) {
-			StringLineReader reader = new StringLineReader(new BGZInputStream(this.filename));
+			StringLineReader reader = new StringLineReader(new BGZInputStream(this.filename, 1));
 			Iterator<String> it = reader.iterator();
 			
 			int lineNo = 0;
@@ -196,24 +203,7 @@ public class TabixFile {
 			throw new IOException("Missing TBI or CSI index file!");
 		}
 
-        if (!checkChr) {
-            if (ref.startsWith("chr") && !containsSeq(ref) && containsSeq(ref.substring(3))) {
-                LogUtils.printOnce(System.err, "NOTE: Auto converting between UCSC/Ensembl chrom format: chr* => * ("+filename+")");
-                removeChr = true;
-                checkChr = true;
-            } else if (!ref.startsWith("chr") && !containsSeq(ref) && containsSeq("chr"+ref)) {
-                LogUtils.printOnce(System.err, "NOTE: Auto converting between UCSC/Ensembl chrom format: * => chr* ("+filename+")");
-                addChr = true;
-                checkChr = true;
-            }
-        }
-        
-        if (addChr) {
-            ref = "chr"+ref;
-        }
-        if (removeChr) {
-            ref = ref.substring(3);
-        }
+        ref = convertRef(ref);
 
         if (lastIter != null && ref.equals(lastRef) && start == lastStart && end == lastEnd) {
         	if (!lastIter.isExhausted()) {
@@ -233,10 +223,152 @@ public class TabixFile {
         return iter;
 	}
 
+    /**
+     * Auto convert between UCSC/Ensembl chrom names (chr1 vs 1) to match the index
+     */
+    protected String convertRef(String ref) {
+        if (!checkChr) {
+            if (ref.startsWith("chr") && !containsSeq(ref) && containsSeq(ref.substring(3))) {
+                LogUtils.printOnce(System.err, "NOTE: Auto converting between UCSC/Ensembl chrom format: chr* => * ("+filename+")");
+                removeChr = true;
+                checkChr = true;
+            } else if (!ref.startsWith("chr") && !containsSeq(ref) && containsSeq("chr"+ref)) {
+                LogUtils.printOnce(System.err, "NOTE: Auto converting between UCSC/Ensembl chrom format: * => chr* ("+filename+")");
+                addChr = true;
+                checkChr = true;
+            }
+        }
+        
+        if (addChr) {
+            return "chr"+ref;
+        }
+        if (removeChr) {
+            return ref.substring(3);
+        }
+        return ref;
+    }
+
     public Iterator<String> query(GenomeSpan span) throws IOException, DataFormatException {
     	return query(span.ref, span.start, span.end);
     }
 
+    /**
+     * Returns lines from the TABIX file that overlap the query range (same overlap rules as query()),
+     * but as re-used TabixLine views instead of Strings. Lines are returned in file order.
+     * 
+     * Note: the TabixLine object is re-used, so it is only valid until the next call to next(). 
+     * 
+     * @param ref
+     * @param start - zero-based
+     * @param end
+     * @return
+     * @throws IOException
+     */
+    public Iterator<TabixLine> queryLines(String ref, int start, int end) throws IOException {
+		if (closed) {
+			throw new IOException("File closed");
+		}
+		if (index == null) {
+			throw new IOException("Missing TBI or CSI index file!");
+		}
+		return new TabixLineIterator(convertRef(ref), start, end, index, bgzf);
+    }
+
+    public Iterator<TabixLine> queryLines(GenomeSpan span) throws IOException {
+    	return queryLines(span.ref, span.start, span.end);
+    }
+
+    /**
+     * Returns all of the lines for one reference, in file order. The index is only used to
+     * find the first line for the reference, then the file is read forward until the reference
+     * changes. This is the same as the lines from lines() for this reference.
+     *
+     * Note: the TabixLine object is re-used, so it is only valid until the next call to next().
+     *
+     * @param ref
+     * @return
+     * @throws IOException
+     */
+    public Iterator<TabixLine> queryLines(String ref) throws IOException {
+		if (closed) {
+			throw new IOException("File closed");
+		}
+		if (index == null) {
+			throw new IOException("Missing TBI or CSI index file!");
+		}
+
+		final String chrom = convertRef(ref);
+		final long first = index.getFirstOffset(chrom);
+		final BGZLineReader reader = new BGZLineReader(bgzf);
+		final int colSeq = index.getColSeq() - 1;
+		final char meta = index.getMeta();
+		final TabixLine line = new TabixLine();
+
+		if (first > -1) {
+			reader.seek(first);
+		}
+
+		return new Iterator<TabixLine>() {
+			boolean done = first == -1;
+			boolean ready = false;
+
+			private void findNext() throws IOException {
+				while (!done) {
+					if (!reader.readLine(line, -1)) {
+						done = true;
+					} else if (line.getLength() > 0 && line.buf[line.start] != meta) {
+						if (!line.columnEquals(colSeq, chrom)) {
+							// the file is sorted, so we are past the end of this reference
+							done = true;
+						}
+						return;
+					}
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				if (!ready) {
+					try {
+						findNext();
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+					ready = true;
+				}
+				return !done;
+			}
+
+			@Override
+			public TabixLine next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				ready = false;
+				return line;
+			}
+		};
+    }
+
+    /**
+     * Returns a query object for coordinate-sorted queries. Instead of using the index
+     * for each query, the file is read forward once (see TabixSortedQuery).
+     * 
+     * Each caller should use its own TabixSortedQuery (they keep track of their position in the file).
+     * 
+     * @return
+     * @throws IOException
+     */
+    public TabixSortedQuery sortedQuery() throws IOException {
+		if (closed) {
+			throw new IOException("File closed");
+		}
+		if (index == null) {
+			throw new IOException("Missing TBI or CSI index file!");
+		}
+		return new TabixSortedQuery(this, index, bgzf);
+    }
+
     
     public Iterator<String> lines() throws IOException {
 		if (closed) {
@@ -369,4 +501,8 @@ public class TabixFile {
     public FileChannel getChannel() {
         return bgzf.getChannel();
     }
+
+    public BGZBlockCache getBlockCache() {
+        return bgzf.getCache();
+    }
 }
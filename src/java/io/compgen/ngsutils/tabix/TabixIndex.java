@@ -31,6 +31,11 @@ public interface TabixIndex {
     public int getFormat();
     public boolean containsSeq(String name);
     public String[] getSeqNames();
+
+    /**
+     * @return the virtual offset of the first line for this reference (or -1 if not in the index)
+     */
+    public long getFirstOffset(String chrom);
     public void dump() throws IOException;
     public int getSkipLines();
     
@@ -0,0 +1,497 @@
+package io.compgen.ngsutils.tabix;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import io.compgen.common.io.DataIO;
+
+/**
+ * Builds a tabix (TBI) or CSI index on the fly from the lines written to a BGZipOutputStream.
+ *
+ * The output stream passes every byte it writes to update() along with the
+ * (block number, block offset) where it was written. Because blocks may be
+ * compressed in parallel, the compressed offset of a block isn't known until it
+ * has been written to disk. So, while the index is being built, virtual offsets are
+ * stored as (block number << 16 | uoffset) and they are converted to real
+ * virtual offsets (coffset << 16 | uoffset) when the index is written.
+ *
+ * Lines must be sorted by ref/start, just like for tabix.
+ */
+public class TabixIndexWriter {
+    public static final int FORMAT_GENERIC = 0;
+    public static final int FORMAT_SAM = 1;
+    public static final int FORMAT_VCF = 2;
+    public static final int FORMAT_ZERO_BASED = 0x10000;
+
+    private static final int TBI_MIN_SHIFT = 14;
+    private static final int TBI_DEPTH = 5;
+    private static final int CSI_MIN_SHIFT = 14;
+    private static final int CSI_DEPTH = 6;
+
+    protected class Ref {
+        final protected String name;
+        final protected byte[] nameBytes;
+        final protected Map<Long, List<long[]>> bins = new TreeMap<Long, List<long[]>>();
+        protected long[] linear = new long[16];
+        protected int linearLen = 0;
+
+        protected long refBegin = -1;
+        protected long refEnd = -1;
+        protected long nMapped = 0;
+        protected int lastStart = -1;
+
+        protected Ref(String name, byte[] nameBytes) {
+            this.name = name;
+            this.nameBytes = nameBytes;
+        }
+
+        protected void add(int beg, int end, long vBegin, long vEnd) {
+            long bin;
+            if (csi) {
+                bin = CSIFile.reg2bin(beg, end, minShift, depth);
+            } else {
+                bin = TBIFile.reg2bin(beg, end);
+            }
+
+            List<long[]> chunks = bins.get(bin);
+            if (chunks == null) {
+                chunks = new ArrayList<long[]>();
+                bins.put(bin, chunks);
+            }
+
+            // merge with the last chunk if we are adjacent or in the same block
+            if (chunks.size() > 0) {
+                long[] last = chunks.get(chunks.size()-1);
+                if (last[1] == vBegin || (last[1] >> 16) == (vBegin >> 16)) {
+                    last[1] = vEnd;
+                } else {
+                    chunks.add(new long[] {vBegin, vEnd});
+                }
+            } else {
+                chunks.add(new long[] {vBegin, vEnd});
+            }
+
+            int wBegin = beg >> minShift;
+            int wEnd = (end > beg ? end - 1 : beg) >> minShift;
+            if (wEnd >= linear.length) {
+                int newLen = linear.length;
+                while (wEnd >= newLen) {
+                    newLen *= 2;
+                }
+                linear = Arrays.copyOf(linear, newLen);
+            }
+            for (int i = linearLen; i <= wEnd; i++) {
+                linear[i] = -1;
+            }
+            if (wEnd + 1 > linearLen) {
+                linearLen = wEnd + 1;
+            }
+            for (int i = wBegin; i <= wEnd; i++) {
+                if (linear[i] == -1) {
+                    linear[i] = vBegin;
+                }
+            }
+
+            if (refBegin == -1) {
+                refBegin = vBegin;
+            }
+            refEnd = vEnd;
+            nMapped++;
+            lastStart = beg;
+        }
+
+        /**
+         * Returns the linear index, with real virtual offsets and empty windows filled in.
+         */
+        protected long[] resolveLinear(long[] blockOffsets) {
+            long[] out = new long[linearLen];
+            for (int i=0; i<linearLen; i++) {
+                if (linear[i] == -1) {
+                    out[i] = (i == 0) ? 0 : out[i-1];
+                } else {
+                    out[i] = resolve(linear[i], blockOffsets);
+                }
+            }
+            return out;
+        }
+    }
+
+    final protected int format;
+    final protected int colSeq;
+    final protected int colBegin;
+    final protected int colEnd;
+    final protected char meta;
+    final protected int skipLines;
+    final protected boolean csi;
+    final protected int minShift;
+    final protected int depth;
+
+    private List<Ref> refs = new ArrayList<Ref>();
+    private Ref curRef = null;
+
+    private byte[] lineBuf = new byte[1024];
+    private int lineLen = 0;
+    private long lineStart = -1;
+    private long lineNum = 0;
+
+    public TabixIndexWriter(int format, int colSeq, int colBegin, int colEnd, char meta, int skipLines, boolean csi) {
+        this.format = format;
+        this.colSeq = colSeq;
+        this.colBegin = colBegin;
+        this.colEnd = colEnd;
+        this.meta = meta;
+        this.skipLines = skipLines;
+        this.csi = csi;
+
+        if (csi) {
+            this.minShift = CSI_MIN_SHIFT;
+            this.depth = CSI_DEPTH;
+        } else {
+            this.minShift = TBI_MIN_SHIFT;
+            this.depth = TBI_DEPTH;
+        }
+    }
+
+    /**
+     * Use the same settings as an existing index
+     */
+    public TabixIndexWriter(TabixFile template, boolean csi) {
+        this(template.getFormat(), template.getColSeq(), template.getColBegin(), template.getColEnd(), template.getMeta(), template.getSkipLines(), csi);
+    }
+
+    public static TabixIndexWriter vcf(boolean csi) {
+        return new TabixIndexWriter(FORMAT_VCF, 1, 2, 0, '#', 0, csi);
+    }
+
+    public static TabixIndexWriter bed(boolean csi) {
+        return new TabixIndexWriter(FORMAT_GENERIC | FORMAT_ZERO_BASED, 1, 2, 3, '#', 0, csi);
+    }
+
+    public static TabixIndexWriter gff(boolean csi) {
+        return new TabixIndexWriter(FORMAT_GENERIC, 1, 4, 5, '#', 0, csi);
+    }
+
+    public boolean isCSI() {
+        return csi;
+    }
+
+    public String getDefaultExtension() {
+        return csi ? ".csi" : ".tbi";
+    }
+
+    /**
+     * Called for each byte written to the BGZF stream
+     *
+     * @param b - the byte
+     * @param blockNum - the (sequential) number of the BGZF block it was written to
+     * @param blockPos - the position within the uncompressed block
+     * @param blockSize - the max size of an uncompressed block
+     * @throws IOException
+     */
+    protected void update(byte b, long blockNum, int blockPos, int blockSize) throws IOException {
+        if (lineLen == 0) {
+            lineStart = (blockNum << 16) | blockPos;
+        }
+        if (lineLen == lineBuf.length) {
+            lineBuf = Arrays.copyOf(lineBuf, lineBuf.length * 2);
+        }
+        lineBuf[lineLen++] = b;
+
+        if (b == '\n') {
+            long lineEnd;
+            if (blockPos + 1 >= blockSize) {
+                lineEnd = (blockNum + 1) << 16;
+            } else {
+                lineEnd = (blockNum << 16) | (blockPos + 1);
+            }
+            processLine(lineEnd);
+        }
+    }
+
+    protected void update(byte[] buf, int off, int len, long blockNum, int blockPos, int blockSize) throws IOException {
+        for (int i=0; i<len; i++) {
+            update(buf[off + i], blockNum, blockPos + i, blockSize);
+        }
+    }
+
+    /**
+     * Called when the stream is closed. Any remaining (unterminated) line is indexed.
+     * @param endPos - virtual offset of the end of the data
+     * @throws IOException
+     */
+    protected void finish(long endPos) throws IOException {
+        if (lineLen > 0) {
+            processLine(endPos);
+        }
+    }
+
+    private void processLine(long lineEnd) throws IOException {
+        int len = lineLen;
+        lineLen = 0;
+        lineNum++;
+
+        if (lineNum <= skipLines) {
+            return;
+        }
+
+        while (len > 0 && (lineBuf[len-1] == '\n' || lineBuf[len-1] == '\r')) {
+            len--;
+        }
+
+        if (len == 0 || lineBuf[0] == meta) {
+            return;
+        }
+
+        // find the needed columns
+        int maxCol = Math.max(colSeq, Math.max(colBegin, colEnd));
+        if ((format & 0xFFFF) == FORMAT_VCF) {
+            maxCol = Math.max(maxCol, 8);
+        }
+
+        int[] starts = new int[maxCol + 1];
+        int[] ends = new int[maxCol + 1];
+        int col = 1;
+        starts[1] = 0;
+        for (int i=0; i<len && col <= maxCol; i++) {
+            if (lineBuf[i] == '\t') {
+                ends[col] = i;
+                col++;
+                if (col <= maxCol) {
+                    starts[col] = i + 1;
+                }
+            }
+        }
+        if (col <= maxCol) {
+            ends[col] = len;
+            col++;
+        }
+
+        if (col <= colSeq || col <= colBegin) {
+            throw new IOException("Unable to index line "+lineNum+" (missing columns)");
+        }
+
+        int beg = parseInt(starts[colBegin], ends[colBegin]);
+        int end;
+
+        if ((format & 0xFFFF) == FORMAT_VCF) {
+            // VCF: end is based on the REF allele length or INFO/END
+            end = beg + (ends[4] - starts[4]) - 1;
+            if (col > 8) {
+                int infoEnd = findInfoEnd(starts[8], ends[8]);
+                if (infoEnd > end) {
+                    end = infoEnd;
+                }
+            }
+        } else if (colEnd > 0 && col > colEnd) {
+            end = parseInt(starts[colEnd], ends[colEnd]);
+        } else {
+            end = beg;
+            if ((format & FORMAT_ZERO_BASED) == FORMAT_ZERO_BASED) {
+                end = beg + 1;
+            }
+        }
+
+        // convert to zero-based, half-open
+        if ((format & FORMAT_ZERO_BASED) != FORMAT_ZERO_BASED) {
+            beg = beg - 1;
+        }
+        if (end <= beg) {
+            end = beg + 1;
+        }
+
+        int seqLen = ends[colSeq] - starts[colSeq];
+        if (curRef == null || !sameBytes(curRef.nameBytes, lineBuf, starts[colSeq], seqLen)) {
+            byte[] nameBytes = Arrays.copyOfRange(lineBuf, starts[colSeq], ends[colSeq]);
+            String name = new String(nameBytes, Charset.defaultCharset());
+            for (Ref r: refs) {
+                if (r.name.equals(name)) {
+                    throw new IOException("File is not sorted! Found "+name+" again at line "+lineNum);
+                }
+            }
+            curRef = new Ref(name, nameBytes);
+            refs.add(curRef);
+        }
+
+        if (beg < curRef.lastStart) {
+            throw new IOException("File is not sorted! Found "+curRef.name+":"+(beg+1)+" after "+curRef.name+":"+(curRef.lastStart+1)+" at line "+lineNum);
+        }
+
+        curRef.add(beg, end, lineStart, lineEnd);
+    }
+
+    private int findInfoEnd(int start, int end) {
+        for (int i=start; i+4 <= end; i++) {
+            if ((i == start || lineBuf[i-1] == ';') && lineBuf[i] == 'E' && lineBuf[i+1] == 'N' && lineBuf[i+2] == 'D' && lineBuf[i+3] == '=') {
+                int valEnd = i + 4;
+                while (valEnd < end && lineBuf[valEnd] != ';') {
+                    valEnd++;
+                }
+                try {
+                    return parseInt(i + 4, valEnd);
+                } catch (IOException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private int parseInt(int start, int end) throws IOException {
+        if (start >= end) {
+            throw new IOException("Unable to index line "+lineNum+" (missing position)");
+        }
+        int val = 0;
+        for (int i=start; i<end; i++) {
+            int d = lineBuf[i] - '0';
+            if (d < 0 || d > 9) {
+                throw new IOException("Unable to index line "+lineNum+" (invalid position)");
+            }
+            val = val * 10 + d;
+        }
+        return val;
+    }
+
+    private static boolean sameBytes(byte[] a, byte[] b, int off, int len) {
+        if (a.length != len) {
+            return false;
+        }
+        for (int i=0; i<len; i++) {
+            if (a[i] != b[off+i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long resolve(long pseudo, long[] blockOffsets) {
+        return (blockOffsets[(int) (pseudo >> 16)] << 16) | (pseudo & 0xFFFF);
+    }
+
+    /**
+     * Write the index to a file (the index is itself BGZF compressed)
+     *
+     * @param filename
+     * @param blockOffsets - the compressed offset for each block number (including the final EOF block)
+     * @throws IOException
+     */
+    protected void write(String filename, long[] blockOffsets) throws IOException {
+        BGZipOutputStream out = new BGZipOutputStream(filename);
+
+        byte[] names = namesBlock();
+
+        if (csi) {
+            out.write(new byte[] {'C', 'S', 'I', 1});
+            DataIO.writeUint32(out, minShift);
+            DataIO.writeUint32(out, depth);
+            DataIO.writeUint32(out, 28 + names.length);
+            writeTabixHeader(out, names);
+            DataIO.writeUint32(out, refs.size());
+        } else {
+            for (Ref ref: refs) {
+                if (ref.linearLen > 0 && ((long) ref.linearLen << TBI_MIN_SHIFT) > (1L << 29)) {
+                    out.close();
+                    throw new IOException("Positions too large for a TBI index ("+ref.name+"), use a CSI index instead.");
+                }
+            }
+            out.write(new byte[] {'T', 'B', 'I', 1});
+            DataIO.writeUint32(out, refs.size());
+            writeTabixHeader(out, names);
+        }
+
+        long pseudoBin = ((1L << ((depth + 1) * 3)) - 1) / 7 + 1;
+
+        for (Ref ref: refs) {
+            long[] linear = ref.resolveLinear(blockOffsets);
+
+            DataIO.writeUint32(out, ref.bins.size() + 1);
+            for (Long bin: ref.bins.keySet()) {
+                List<long[]> chunks = ref.bins.get(bin);
+                DataIO.writeUint32(out, bin);
+                if (csi) {
+                    DataIO.writeUint64(out, binLOffset(bin, linear));
+                }
+                DataIO.writeUint32(out, chunks.size());
+                for (long[] chunk: chunks) {
+                    DataIO.writeUint64(out, resolve(chunk[0], blockOffsets));
+                    DataIO.writeUint64(out, resolve(chunk[1], blockOffsets));
+                }
+            }
+
+            // pseudo-bin w/ ref offsets and counts
+            DataIO.writeUint32(out, pseudoBin);
+            if (csi) {
+                DataIO.writeUint64(out, 0);
+            }
+            DataIO.writeUint32(out, 2);
+            DataIO.writeUint64(out, resolve(ref.refBegin, blockOffsets));
+            DataIO.writeUint64(out, resolve(ref.refEnd, blockOffsets));
+            DataIO.writeUint64(out, ref.nMapped);
+            DataIO.writeUint64(out, 0);
+
+            if (!csi) {
+                DataIO.writeUint32(out, linear.length);
+                for (long l: linear) {
+                    DataIO.writeUint64(out, l);
+                }
+            }
+        }
+
+        // n_no_coor
+        DataIO.writeUint64(out, 0);
+        out.close();
+    }
+
+    /**
+     * The CSI loffset for a bin is the linear index value for the first window in the bin
+     */
+    private long binLOffset(long bin, long[] linear) {
+        if (linear.length == 0) {
+            return 0;
+        }
+
+        int level = 0;
+        long t = 0;
+        while (level < depth && bin >= t + (1L << (level * 3))) {
+            t += 1L << (level * 3);
+            level++;
+        }
+
+        long begin = (bin - t) << (minShift + (depth - level) * 3);
+        long window = begin >> minShift;
+        if (window >= linear.length) {
+            window = linear.length - 1;
+        }
+        return linear[(int) window];
+    }
+
+    private byte[] namesBlock() {
+        int len = 0;
+        for (Ref ref: refs) {
+            len += ref.nameBytes.length + 1;
+        }
+        byte[] names = new byte[len];
+        int pos = 0;
+        for (Ref ref: refs) {
+            System.arraycopy(ref.nameBytes, 0, names, pos, ref.nameBytes.length);
+            pos += ref.nameBytes.length + 1;
+        }
+        return names;
+    }
+
+    private void writeTabixHeader(OutputStream out, byte[] names) throws IOException {
+        DataIO.writeUint32(out, format);
+        DataIO.writeUint32(out, colSeq);
+        DataIO.writeUint32(out, colBegin);
+        DataIO.writeUint32(out, colEnd);
+        DataIO.writeUint32(out, meta);
+        DataIO.writeUint32(out, skipLines);
+        DataIO.writeUint32(out, names.length);
+        out.write(names);
+    }
+}
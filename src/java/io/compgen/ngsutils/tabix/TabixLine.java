@@ -0,0 +1,206 @@
+package io.compgen.ngsutils.tabix;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A reusable view of one line in a tabix file. The bytes are not copied out of the
+ * uncompressed block (unless the line spans blocks) and columns are only located
+ * when they are asked for. Strings are only built by toString() and getColumn().
+ *
+ * The same object is re-used by TabixLineIterator for each line, so it is only
+ * valid until the next call to next(). Use toString() or copy() to keep a line.
+ */
+public class TabixLine {
+    protected byte[] buf;
+    protected int start;
+    protected int end;
+
+    // tab positions are found lazily
+    private int[] tabs = new int[16];
+    private int tabCount = 0;
+    private int scanPos = 0;
+    private boolean scanDone = false;
+
+    protected int lineStart = -1;
+    protected int lineEnd = -1;
+
+    protected TabixLine() {
+    }
+
+    public TabixLine(byte[] buf, int start, int end) {
+        set(buf, start, end);
+    }
+
+    protected void set(byte[] buf, int start, int end) {
+        this.buf = buf;
+        this.start = start;
+        this.end = end;
+        this.tabCount = 0;
+        this.scanPos = start;
+        this.scanDone = false;
+        this.lineStart = -1;
+        this.lineEnd = -1;
+    }
+
+    /**
+     * Make sure we know where the column (zero-based) ends
+     * @return true if the line has this many columns
+     */
+    private boolean findColumn(int col) {
+        while (tabCount < col && !scanDone) {
+            while (scanPos < end && buf[scanPos] != '\t') {
+                scanPos++;
+            }
+            if (scanPos >= end) {
+                scanDone = true;
+            } else {
+                if (tabCount == tabs.length) {
+                    tabs = Arrays.copyOf(tabs, tabs.length * 2);
+                }
+                tabs[tabCount++] = scanPos;
+                scanPos++;
+            }
+        }
+        return col <= tabCount;
+    }
+
+    /**
+     * @param col (zero-based)
+     * @return the start offset of the column in the buffer, or -1 if missing
+     */
+    public int getColumnStart(int col) {
+        if (col == 0) {
+            return start;
+        }
+        if (!findColumn(col)) {
+            return -1;
+        }
+        return tabs[col - 1] + 1;
+    }
+
+    /**
+     * @param col (zero-based)
+     * @return the end offset (exclusive) of the column in the buffer, or -1 if missing
+     */
+    public int getColumnEnd(int col) {
+        if (findColumn(col + 1)) {
+            return tabs[col];
+        }
+        if (col == tabCount) {
+            return end;
+        }
+        return -1;
+    }
+
+    public int getColumnCount() {
+        findColumn(Integer.MAX_VALUE);
+        return tabCount + 1;
+    }
+
+    /**
+     * @param col (zero-based)
+     * @return the column value, or null if missing
+     */
+    public String getColumn(int col) {
+        int s = getColumnStart(col);
+        if (s == -1) {
+            return null;
+        }
+        int e = getColumnEnd(col);
+        return new String(buf, s, e - s, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compare a column to a string without building a new String
+     */
+    public boolean columnEquals(int col, String val) {
+        int s = getColumnStart(col);
+        if (s == -1) {
+            return false;
+        }
+        int e = getColumnEnd(col);
+        if (e - s != val.length()) {
+            return false;
+        }
+        for (int i = 0; i < val.length(); i++) {
+            if (buf[s + i] != val.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse an integer column
+     * @throws NumberFormatException
+     */
+    public int getColumnInt(int col) {
+        int s = getColumnStart(col);
+        if (s == -1) {
+            throw new NumberFormatException("Missing column: " + (col + 1));
+        }
+        return parseInt(buf, s, getColumnEnd(col));
+    }
+
+    protected static int parseInt(byte[] buf, int s, int e) {
+        if (s >= e) {
+            throw new NumberFormatException("Empty value");
+        }
+        boolean neg = false;
+        if (buf[s] == '-') {
+            neg = true;
+            s++;
+        }
+        int val = 0;
+        for (int i = s; i < e; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9) {
+                throw new NumberFormatException("Not a number: " + new String(buf, s, e - s, StandardCharsets.UTF_8));
+            }
+            val = val * 10 + d;
+        }
+        return neg ? -val : val;
+    }
+
+    /**
+     * @return the zero-based start of the record (as used by the tabix index), if parsed by the iterator
+     */
+    public int getStart() {
+        return lineStart;
+    }
+
+    /**
+     * @return the end of the record (as used by the tabix index), if parsed by the iterator
+     */
+    public int getEnd() {
+        return lineEnd;
+    }
+
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    public int getOffset() {
+        return start;
+    }
+
+    public int getLength() {
+        return end - start;
+    }
+
+    /**
+     * Copy this line to a new TabixLine (with its own buffer)
+     */
+    public TabixLine copy() {
+        TabixLine line = new TabixLine(Arrays.copyOfRange(buf, start, end), 0, end - start);
+        line.lineStart = lineStart;
+        line.lineEnd = lineEnd;
+        return line;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, start, end - start, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,162 @@
+package io.compgen.ngsutils.tabix;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import io.compgen.ngsutils.tabix.TabixIndex.Chunk;
+
+/**
+ * Iterates over the lines in a tabix file that overlap a query, without building
+ * Strings for each line. The lines are returned as a re-used TabixLine view into
+ * the uncompressed block buffer.
+ *
+ * The chunks from the index are sorted and merged before reading, so each line is
+ * only visited once (no need to track which lines have been returned) and lines are
+ * returned in file order.
+ */
+public class TabixLineIterator implements Iterator<TabixLine> {
+    private final String ref;
+    private final int start;
+    private final int end;
+
+    private final int colSeq;
+    private final int colBegin;
+    private final int colEnd;
+    private final char meta;
+    private final boolean zeroBased;
+
+    // merged chunks as virtual offsets {begin, end}
+    private final long[][] chunks;
+    private int chunkIdx = 0;
+
+    private final BGZLineReader reader;
+    private boolean inChunk = false;
+    private long chunkEnd = -1;
+
+    private final TabixLine line = new TabixLine();
+    private boolean hasNext = false;
+    private boolean ready = false;
+
+    public TabixLineIterator(String ref, int start, int end, TabixIndex index, BGZFile bgzf) throws IOException {
+        this.ref = ref;
+        this.start = start;
+        this.end = end;
+        this.reader = new BGZLineReader(bgzf);
+
+        this.colSeq = index.getColSeq() - 1;
+        this.colBegin = index.getColBegin() - 1;
+        this.colEnd = index.getColEnd() - 1;
+        this.meta = index.getMeta();
+        this.zeroBased = index.isZeroBased();
+
+        this.chunks = mergeChunks(index.find(ref, start, end));
+    }
+
+    /**
+     * Sort the chunks by starting offset and merge any that overlap.
+     */
+    protected static long[][] mergeChunks(List<Chunk> chunks) {
+        List<long[]> vals = new ArrayList<long[]>(chunks.size());
+        for (Chunk c: chunks) {
+            vals.add(new long[] { (c.coffsetBegin << 16) | c.uoffsetBegin, (c.coffsetEnd << 16) | c.uoffsetEnd });
+        }
+        vals.sort(new Comparator<long[]>() {
+            @Override
+            public int compare(long[] o1, long[] o2) {
+                return Long.compare(o1[0], o2[0]);
+            }});
+
+        List<long[]> merged = new ArrayList<long[]>();
+        for (long[] v: vals) {
+            if (merged.size() > 0) {
+                long[] last = merged.get(merged.size() - 1);
+                if (v[0] <= last[1]) {
+                    if (v[1] > last[1]) {
+                        last[1] = v[1];
+                    }
+                    continue;
+                }
+            }
+            merged.add(new long[] { v[0], v[1] });
+        }
+        return merged.toArray(new long[merged.size()][]);
+    }
+
+    /**
+     * The same overlap test used by TabixQueryIterator
+     */
+    protected static boolean overlaps(int b, int e, int start, int end) {
+        return (b <= start && start < e) || // query start is within tabix range
+               (start <= b && e < end) ||   // tabix range is contained completely by query
+               (b < end && end <= e);       // query end is within tabix range
+    }
+
+    private void findNext() throws IOException {
+        hasNext = false;
+        while (chunkIdx < chunks.length || inChunk) {
+            if (!inChunk) {
+                long[] chunk = chunks[chunkIdx++];
+                reader.seek(chunk[0]);
+                chunkEnd = chunk[1];
+                inChunk = true;
+            }
+
+            while (reader.readLine(line, chunkEnd)) {
+                if (line.getLength() == 0 || line.buf[line.start] == meta) {
+                    continue;
+                }
+                if (!line.columnEquals(colSeq, ref)) {
+                    continue;
+                }
+
+                int b = line.getColumnInt(colBegin);
+                int e = colEnd > -1 ? line.getColumnInt(colEnd) : b;
+                if (!zeroBased) {
+                    b--;
+                }
+
+                if (b > end) {
+                    // we are past the end of the query, so no more valid lines in this chunk.
+                    break;
+                }
+
+                if (overlaps(b, e, start, end)) {
+                    line.lineStart = b;
+                    line.lineEnd = e;
+                    hasNext = true;
+                    return;
+                }
+            }
+            inChunk = false;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!ready) {
+            try {
+                findNext();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            ready = true;
+        }
+        return hasNext;
+    }
+
+    /**
+     * Note: the returned TabixLine is re-used for each line!
+     */
+    @Override
+    public TabixLine next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ready = false;
+        return line;
+    }
+}
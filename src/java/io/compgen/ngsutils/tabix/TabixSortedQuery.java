@@ -0,0 +1,214 @@
+package io.compgen.ngsutils.tabix;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.compgen.ngsutils.annotation.GenomeSpan;
+
+/**
+ * A streaming join against a tabix file for coordinate-sorted queries.
+ *
+ * TabixFile.query() looks up the chunks in the index and re-reads the BGZF blocks for
+ * every query. When the queries are sorted (for example, when annotating a sorted VCF
+ * file), this isn't necessary. Instead, we walk forward through the file once, keeping
+ * a window of the lines that could still overlap the current (or a later) query. Each
+ * BGZF block is only read once, and the index is only used to find the starting
+ * position for a reference or to skip over large gaps between queries.
+ *
+ * The queries should be sorted by reference and start position. If a query is out of
+ * order, we fall back to using the index for each query (like TabixFile.queryLines()),
+ * so the results are still correct.
+ *
+ * The same overlap rules as TabixFile.query() are used. Lines are returned in file order.
+ */
+public class TabixSortedQuery {
+    // if the next query is this far past the last line we read, use the index to skip ahead
+    private static final int SKIP_DISTANCE = 65536;
+
+    private final TabixFile tabix;
+    private final TabixIndex index;
+    private final BGZLineReader reader;
+
+    private final int colSeq;
+    private final int colBegin;
+    private final int colEnd;
+    private final char meta;
+    private final boolean zeroBased;
+
+    private final TabixLine line = new TabixLine();
+
+    // lines that have been read, but could still overlap a query
+    private List<TabixLine> window = new ArrayList<TabixLine>();
+
+    private String curRef = null;
+    private int lastQueryStart = -1;
+    private int lastLineStart = -1;
+    private boolean positioned = false;
+    private boolean refDone = false;
+    private boolean unsorted = false;
+    private final Set<String> seenRefs = new HashSet<String>();
+
+    protected TabixSortedQuery(TabixFile tabix, TabixIndex index, BGZFile bgzf) {
+        this.tabix = tabix;
+        this.index = index;
+        this.reader = new BGZLineReader(bgzf);
+
+        this.colSeq = index.getColSeq() - 1;
+        this.colBegin = index.getColBegin() - 1;
+        this.colEnd = index.getColEnd() - 1;
+        this.meta = index.getMeta();
+        this.zeroBased = index.isZeroBased();
+    }
+
+    public List<TabixLine> query(GenomeSpan span) throws IOException {
+        return query(span.ref, span.start, span.end);
+    }
+
+    /**
+     * Returns the lines from the TABIX file that overlap the query range. The returned
+     * lines are copies, so they can be kept.
+     *
+     * @param ref
+     * @param start - zero-based
+     * @param end
+     * @return
+     * @throws IOException
+     */
+    public List<TabixLine> query(String ref, int start, int end) throws IOException {
+        ref = tabix.convertRef(ref);
+
+        if (!unsorted && ((ref.equals(curRef) && start < lastQueryStart) || (!ref.equals(curRef) && seenRefs.contains(ref)))) {
+            unsorted = true;
+            window.clear();
+        }
+        if (unsorted) {
+            List<TabixLine> out = new ArrayList<TabixLine>();
+            TabixLineIterator it = new TabixLineIterator(ref, start, end, index, reader.getBGZFile());
+            while (it.hasNext()) {
+                out.add(it.next().copy());
+            }
+            return out;
+        }
+
+        if (!ref.equals(curRef)) {
+            seenRefs.add(ref);
+            curRef = ref;
+            window.clear();
+            positioned = false;
+            refDone = !index.containsSeq(ref);
+        }
+        lastQueryStart = start;
+
+        if (!refDone && (!positioned || (lastLineStart <= end && start - lastLineStart > SKIP_DISTANCE))) {
+            reposition(ref, start, end);
+        } else if (!refDone && lastLineStart <= end) {
+            // nothing in this window will overlap this (or any later) query
+            if (window.size() > 0) {
+                List<TabixLine> keep = new ArrayList<TabixLine>(window.size());
+                for (TabixLine l: window) {
+                    if (l.lineStart >= start || l.lineEnd >= start) {
+                        keep.add(l);
+                    }
+                }
+                window = keep;
+            }
+            readUntil(ref, end);
+        }
+
+        List<TabixLine> out = new ArrayList<TabixLine>();
+        for (TabixLine l: window) {
+            if (TabixLineIterator.overlaps(l.lineStart, l.lineEnd, start, end)) {
+                out.add(l);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Use the index to find the lines for this query, and then set the position
+     * where we can start reading forward.
+     * 
+     * The chunks from the index are read like TabixLineIterator (only lines in the
+     * chunks are read). Any line that isn't in one of these chunks either ends before
+     * {start} or starts after {end}, and because the file is sorted, all lines that
+     * start after {end} are after the last line that we read from the chunks. So,
+     * we can start reading forward from there.
+     */
+    private void reposition(String ref, int start, int end) throws IOException {
+        window.clear();
+        lastLineStart = -1;
+        positioned = false;
+
+        // end+1 so that we also get any lines that start at {end}
+        long[][] chunks = TabixLineIterator.mergeChunks(index.find(ref, start, end + 1));
+        if (chunks.length == 0) {
+            return;
+        }
+
+        long next = chunks[0][0];
+        int nextLineStart = -1;
+        for (long[] chunk: chunks) {
+            reader.seek(chunk[0]);
+            while (reader.readLine(line, chunk[1])) {
+                if (line.getLength() == 0 || line.buf[line.start] == meta) {
+                    continue;
+                }
+                if (!line.columnEquals(colSeq, ref)) {
+                    continue;
+                }
+                parseLine();
+                if (line.lineStart > end) {
+                    // this line will be read again when we read forward
+                    break;
+                }
+                if (line.lineStart >= start || line.lineEnd >= start) {
+                    window.add(line.copy());
+                }
+                next = reader.getOffset();
+                nextLineStart = line.lineStart;
+            }
+        }
+
+        reader.seek(next);
+        lastLineStart = nextLineStart;
+        positioned = true;
+        readUntil(ref, end);
+    }
+
+    private void parseLine() {
+        int b = line.getColumnInt(colBegin);
+        int e = colEnd > -1 ? line.getColumnInt(colEnd) : b;
+        if (!zeroBased) {
+            b--;
+        }
+        line.lineStart = b;
+        line.lineEnd = e;
+        lastLineStart = b;
+    }
+
+    /**
+     * Read lines into the window until we find one that starts after {end}
+     */
+    private void readUntil(String ref, int end) throws IOException {
+        while (lastLineStart <= end) {
+            if (!reader.readLine(line, -1)) {
+                refDone = true;
+                return;
+            }
+            if (line.getLength() == 0 || line.buf[line.start] == meta) {
+                continue;
+            }
+            if (!line.columnEquals(colSeq, ref)) {
+                // the file is sorted, so we are past the end of this reference
+                refDone = true;
+                return;
+            }
+
+            parseLine();
+            window.add(line.copy());
+        }
+    }
+}
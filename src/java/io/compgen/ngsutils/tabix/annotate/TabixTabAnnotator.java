@@ -7,20 +7,22 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.zip.DataFormatException;
 
 import org.apache.commons.math3.stat.StatUtils;
 import org.apache.commons.math3.stat.descriptive.rank.Median;
 
-import io.compgen.common.IterUtils;
 import io.compgen.common.StringUtils;
+import io.compgen.ngsutils.tabix.BGZBlockCache;
 import io.compgen.ngsutils.tabix.TabixFile;
+import io.compgen.ngsutils.tabix.TabixLine;
+import io.compgen.ngsutils.tabix.TabixSortedQuery;
 
 public class TabixTabAnnotator implements TabAnnotator {
     private static Map<String, TabixFile> cache = new HashMap<String, TabixFile>();
 
     private String name;
     private TabixFile tabix;
+    private TabixSortedQuery sortedQuery;
     private int col;
     private boolean collapse;
     private boolean first;
@@ -33,12 +35,14 @@ public class TabixTabAnnotator implements TabAnnotator {
     public TabixTabAnnotator(String name, String fname, int col) throws IOException {
         this.name = name;
         this.tabix = getTabixFile(fname);
+        this.sortedQuery = tabix.sortedQuery();
         this.col = col;
     }
 
     public TabixTabAnnotator(String name, String fname, String colName) throws IOException {
         this.name = name;
         this.tabix = getTabixFile(fname);
+        this.sortedQuery = tabix.sortedQuery();
         
         int col = this.tabix.findColumnByName(colName);
         if (col == -1) {
@@ -52,9 +56,12 @@ public class TabixTabAnnotator implements TabAnnotator {
         this(name, fname, -1);
     }
 
+    /**
+     * Files are opened once (for all annotators), and use the shared block cache.
+     */
     private static TabixFile getTabixFile(String filename) throws IOException {
         if (!cache.containsKey(filename)) {
-            cache.put(filename, new TabixFile(filename));
+            cache.put(filename, new TabixFile(filename, BGZBlockCache.getSharedCache()));
         }
         return cache.get(filename);
     }
@@ -165,28 +172,30 @@ public class TabixTabAnnotator implements TabAnnotator {
     
     @Override
     public String getValue(String ref, int start, int end, String[] qCols) throws IOException {
-        List<String> matches = new ArrayList<String>();
-        try{
-            for (String s: IterUtils.wrap(tabix.query(ref, start, end))) {
-                String[] cols = s.split("\t", -1);
-                if (col > -1 && col < cols.length) {
-                    matches.add(cols[col]);
-                } else {
-                    matches.add(name);
+        // Only build Strings for the column values we need. Flags and counts
+        // don't need anything from the line.
+        if (col == -1 || count) {
+            int matchCount = 0;
+            for (TabixLine line: sortedQuery.query(ref, start, end)) {
+                if (col == -1) {
+                    return name;
                 }
+                matchCount++;
             }
-        } catch(DataFormatException e) {
-            throw new IOException(e);
-        }
-        
-        if (col == -1) {
-            if (matches.size()>0) {
-                return name;
+            if (count) {
+                return "" + matchCount;
             }
+            return "";
         }
 
-        if (count) {
-            return "" + matches.size();
+        List<String> matches = new ArrayList<String>();
+        for (TabixLine line: sortedQuery.query(ref, start, end)) {
+            String val = line.getColumn(col);
+            if (val != null) {
+                matches.add(val);
+            } else {
+                matches.add(name);
+            }
         }
         if (first && matches.size() > 1) {
             return matches.get(0);
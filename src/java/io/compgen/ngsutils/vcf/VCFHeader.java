@@ -6,11 +6,11 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import io.compgen.common.StringUtils;
 import io.compgen.ngsutils.support.GlobUtils;
@@ -39,12 +39,15 @@ public class VCFHeader {
     private Set<String> keepFormat = null;
 //    private Set<String> removeSample = null;
 
-    private Set<String> allowedFilterCache = new HashSet<String>();
-    private Set<String> blockedFilterCache = new HashSet<String>();
-    private Set<String> allowedInfoCache = new HashSet<String>();
-    private Set<String> blockedInfoCache = new HashSet<String>();
-    private Set<String> allowedFormatCache = new HashSet<String>();
-    private Set<String> blockedFormatCache = new HashSet<String>();
+    private Boolean sampleOrderUnchanged = null;
+
+    // records can be parsed from multiple threads (vcf-annotate --threads)
+    private Set<String> allowedFilterCache = ConcurrentHashMap.newKeySet();
+    private Set<String> blockedFilterCache = ConcurrentHashMap.newKeySet();
+    private Set<String> allowedInfoCache = ConcurrentHashMap.newKeySet();
+    private Set<String> blockedInfoCache = ConcurrentHashMap.newKeySet();
+    private Set<String> allowedFormatCache = ConcurrentHashMap.newKeySet();
+    private Set<String> blockedFormatCache = ConcurrentHashMap.newKeySet();
     
 	public VCFHeader() {
 		this("fileformat=VCFv4.2");
@@ -237,6 +240,7 @@ public class VCFHeader {
 
 	
 	public void addSample(String sample) {
+		this.sampleOrderUnchanged = null;
 		this.newSampleOrder.put(sample, this.samples.size());
 		this.samples.add(sample);
 	}
@@ -525,6 +529,37 @@ public class VCFHeader {
         allowedFormatCache.add(name);
         return true;
     }
+
+    /**
+     * @return true if any INFO fields will be removed when records are parsed
+     */
+    public boolean isRemovingInfo() {
+        return removeInfo != null && removeInfo.size() > 0;
+    }
+
+    /**
+     * @return true if any FORMAT fields will be removed when records are parsed
+     */
+    public boolean isRemovingFormat() {
+        return removeFormat != null && removeFormat.size() > 0;
+    }
+
+    /**
+     * @return true if the samples in a record are in the same order as the input file (no samples removed)
+     */
+    public boolean isSampleOrderUnchanged() {
+        if (sampleOrderUnchanged == null) {
+            boolean unchanged = origSamples.size() == samples.size();
+            for (int i=0; unchanged && i<origSamples.size(); i++) {
+                Integer idx = newSampleOrder.get(origSamples.get(i));
+                if (idx == null || idx != i) {
+                    unchanged = false;
+                }
+            }
+            sampleOrderUnchanged = unchanged;
+        }
+        return sampleOrderUnchanged;
+    }
     
     public Set<String> getAlts() {
         return Collections.unmodifiableSet(altDefs.keySet());
@@ -4,6 +4,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import io.compgen.common.StringUtils;
@@ -132,6 +133,17 @@ public class VCFRecord {
 	protected List<VCFAttributes> sampleAttributes = null;
 
 	protected VCFHeader parentHeader = null;
+
+	// For lazy parsing, INFO and FORMAT/sample values are only decoded from the
+	// original line when they are accessed. If they are never accessed (or changed),
+	// the original text is written back out (if it would be written the same way).
+	protected String line = null;
+	protected int lineEnd = -1;
+	protected int infoStart = -1;
+	protected int infoEnd = -1;
+	protected int formatStart = -1;
+	protected boolean infoDecoded = true;
+	protected boolean samplesDecoded = true;
 	
 	public VCFRecord(String chrom, int pos, String ref) {
 		this.chrom = chrom;
@@ -194,13 +206,18 @@ public class VCFRecord {
           outcols.add(StringUtils.join(";", filters));
 		}
 		
-        if (info == null) {
+        if (!infoDecoded && canWriteRawInfo()) {
+        	outcols.add(line.substring(infoStart, infoEnd));
+        } else if (getInfo() == null) {
         	outcols.add(MISSING);
         } else {
         	outcols.add(info.toString());
         }
         
-		if (sampleAttributes != null && sampleAttributes.size() > 0) {
+        if (!samplesDecoded && canWriteRawSamples()) {
+        	// FORMAT and all of the samples
+        	outcols.add(line.substring(formatStart, lineEnd));
+        } else if (getSampleAttributes() != null && sampleAttributes.size() > 0) {
 //			if (formatKeys != null && formatKeys.size() > 0) {
 			List<String> formatKeys = sampleAttributes.get(0).getKeys();
 			// Write FORMAT
@@ -225,23 +242,57 @@ public class VCFRecord {
     }
     
     public static VCFRecord parseLine(String line, boolean removeID, VCFHeader header) throws VCFParseException {
-		String[] cols = line.split("\t");
+        return parseLine(line, removeID, header, true);
+    }
 
-		if (cols.length< 5) {
-			throw new VCFParseException("Missing columns in VCFRecord! => " + StringUtils.join(",", cols));
+    /**
+     * Parse a VCF line.
+     * 
+     * The tab positions are found without splitting the line. The fixed columns
+     * (CHROM-FILTER) are always parsed. If {lazy}, INFO and FORMAT/sample values are
+     * only decoded when they are needed (getInfo(), getSampleAttributes(), etc). Most
+     * filters never look at these, so for VCF files with many samples, this saves
+     * building attributes that are never read.
+     * 
+     * @param line
+     * @param removeID
+     * @param header
+     * @param lazy
+     * @return
+     * @throws VCFParseException
+     */
+    public static VCFRecord parseLine(String line, boolean removeID, VCFHeader header, boolean lazy) throws VCFParseException {
+    	// trailing empty columns are ignored (same as String.split())
+    	int end = line.length();
+    	while (end > 0 && line.charAt(end - 1) == '\t') {
+    		end--;
+    	}
+
+    	// we only need the positions of the first 9 tabs (the rest are samples)
+    	int[] tabs = new int[9];
+    	int tabCount = 0;
+    	int idx = line.indexOf('\t');
+    	while (tabCount < tabs.length && idx > -1 && idx < end) {
+    		tabs[tabCount++] = idx;
+    		idx = line.indexOf('\t', idx + 1);
+    	}
+    	int colCount = tabCount + 1;
+
+		if (colCount < 5) {
+			throw new VCFParseException("Missing columns in VCFRecord! => " + StringUtils.join(",", line.split("\t")));
 		}
-		String chrom = cols[0];
-		int pos = Integer.parseInt(cols[1]);
+		String chrom = line.substring(0, tabs[0]);
+		int pos = Integer.parseInt(line.substring(tabs[0] + 1, tabs[1]));
 		
-		String dbSNPID = cols[2];
+		String dbSNPID = line.substring(tabs[1] + 1, tabs[2]);
 		if (removeID || dbSNPID.equals(MISSING)) {
 			dbSNPID = null;
 		}
 		
-		String ref = cols[3];
-		String altOrig = cols[4];
+		String ref = line.substring(tabs[2] + 1, tabs[3]);
+		String altOrig = line.substring(tabs[3] + 1, colCount > 5 ? tabs[4] : end);
 		List<String> alts = null;
-		for (String a: cols[4].split(",")) {
+		for (String a: altOrig.split(",")) {
 			if (!a.equals(MISSING)) {
 				if (alts == null) {
 					alts = new ArrayList<String>();
@@ -251,19 +302,21 @@ public class VCFRecord {
 		}
 
 		double qual = -1;
-		if (cols.length > 5) {
-			if (!cols[5].equals(MISSING)) {
-				qual = Double.parseDouble(cols[5]);
+		if (colCount > 5) {
+			String q = line.substring(tabs[4] + 1, colCount > 6 ? tabs[5] : end);
+			if (!q.equals(MISSING)) {
+				qual = Double.parseDouble(q);
 			}
 		}
 		
 		List<String> filters = null;
-		if (cols.length > 6) {
-			if (!cols[6].equals(PASS)) {
+		if (colCount > 6) {
+			String filter = line.substring(tabs[5] + 1, colCount > 7 ? tabs[6] : end);
+			if (!filter.equals(PASS)) {
 			    // if filters is null => PASS
 			    // if filters is not null, but empty => MISSING ??
 	
-			    for (String f: cols[6].split(";")) {
+			    for (String f: filter.split(";")) {
 	                if (filters == null) {
 	                    filters = new ArrayList<String>();
 	                }
@@ -274,62 +327,247 @@ public class VCFRecord {
 			}
 		}
 
-//		System.err.println("FILTER: " + cols[6] + " => " + (filters == null ? "<null>": "?"+StringUtils.join(",", filters)));
-		List<String> formatKeys = null;
+		VCFRecord rec = new VCFRecord(chrom, pos, dbSNPID, ref, alts, qual, filters, null, null, altOrig, header);
+		rec.line = line;
+		rec.lineEnd = end;
+		rec.infoDecoded = false;
+		rec.samplesDecoded = false;
+		if (colCount > 7) {
+			rec.infoStart = tabs[6] + 1;
+			rec.infoEnd = colCount > 8 ? tabs[7] : end;
+		}
+		if (colCount > 8) {
+			rec.formatStart = tabs[7] + 1;
+		}
 
-		try {
-			List<VCFAttributes> sampleValues = null;
-			VCFAttributes info = new VCFAttributes();
+		if (!lazy) {
+			rec.decodeInfo();
+			rec.decodeSamples();
+		}
+		return rec;
+	}
 
-			if (cols.length > 7) {
-		        info = VCFAttributes.parseInfo(cols[7], header);
-			
-		//		System.err.println(info.toString());
-				
-				
-				if (cols.length>8) {
-					formatKeys = new ArrayList<String>();
-					for (String k: cols[8].split(":")) {
-						formatKeys.add(k);
-					}
-					
-					if (cols.length>9) {
-						sampleValues = new ArrayList<VCFAttributes>(header.getSamples().size());
-						
-//						System.out.println("header.getSamples().size()=" + header.getSamples().size());
-//						System.out.println("sampleValues.size()=" + sampleValues.size());
-//
-						for (int i=9; i<cols.length; i++) {
-							String origSample = header.getOrigSampleName(i - 9);
-//							System.out.println("origSample=" + origSample);
-							if (origSample != null) {
-								int newSampleIdx = header.getSamplePosByName(origSample);
-//								System.out.println("newSampleIdx=" + newSampleIdx);
-								if (newSampleIdx > -1) {
-									while (sampleValues.size() <= newSampleIdx) {
-										sampleValues.add(null);
-									}
-									sampleValues.set(newSampleIdx, VCFAttributes.parseFormat(cols[i], formatKeys, header));
-								}
-							}
-						}
-					}
+    /**
+     * Parse the INFO column from the original line
+     */
+    protected void decodeInfo() {
+    	if (infoDecoded) {
+    		return;
+    	}
+    	infoDecoded = true;
+    	try {
+    		if (infoStart > -1) {
+    			info = VCFAttributes.parseInfo(line.substring(infoStart, infoEnd), parentHeader);
+    		} else {
+    			info = new VCFAttributes();
+    		}
+		} catch (VCFParseException | VCFAttributeException e) {
+			decodeError(e);
+		}
+    	releaseLine();
+    }
+
+    /**
+     * Parse the FORMAT and sample columns from the original line
+     */
+    protected void decodeSamples() {
+    	if (samplesDecoded) {
+    		return;
+    	}
+    	samplesDecoded = true;
+    	if (formatStart == -1) {
+    		releaseLine();
+    		return;
+    	}
+
+    	try {
+    		int formatEnd = line.indexOf('\t', formatStart);
+    		if (formatEnd == -1 || formatEnd >= lineEnd) {
+    			// no samples
+    			releaseLine();
+    			return;
+    		}
+
+    		List<String> formatKeys = new ArrayList<String>();
+    		for (String k: line.substring(formatStart, formatEnd).split(":")) {
+    			formatKeys.add(k);
+    		}
+
+    		List<VCFAttributes> sampleValues = new ArrayList<VCFAttributes>(parentHeader.getSamples().size());
+
+    		int i = 0;
+    		int colStart = formatEnd + 1;
+    		while (colStart <= lineEnd) {
+    			int colEnd = line.indexOf('\t', colStart);
+    			if (colEnd == -1 || colEnd > lineEnd) {
+    				colEnd = lineEnd;
+    			}
+
+    			String origSample = parentHeader.getOrigSampleName(i);
+    			if (origSample != null) {
+    				int newSampleIdx = parentHeader.getSamplePosByName(origSample);
+    				if (newSampleIdx > -1) {
+    					while (sampleValues.size() <= newSampleIdx) {
+    						sampleValues.add(null);
+    					}
+    					sampleValues.set(newSampleIdx, VCFAttributes.parseFormat(line.substring(colStart, colEnd), formatKeys, parentHeader));
+    				}
+    			}
+
+    			i++;
+    			colStart = colEnd + 1;
+    		}
+    		sampleAttributes = sampleValues;
+
+		} catch (VCFParseException | VCFAttributeException e) {
+			decodeError(e);
+		}
+    	releaseLine();
+    }
+
+    private void releaseLine() {
+    	if (infoDecoded && samplesDecoded) {
+    		line = null;
+    	}
+    }
+
+    private void decodeError(Exception e) {
+		if (!VCFCheck.isQuiet()) {
+            System.err.println("ERROR: processing VCF record ("+ e + ")");
+            System.err.println("ERROR: " + line);
+		}
+        System.exit(2);
+    }
+
+    /**
+     * Can the original INFO text be written as-is? This is true if parsing it and
+     * writing it back out would give the same text (no removed keys, no duplicate
+     * keys, no empty elements, etc).
+     */
+    private boolean canWriteRawInfo() {
+    	if (infoStart == -1 || (parentHeader != null && parentHeader.isRemovingInfo())) {
+    		return false;
+    	}
+    	if (infoEnd - infoStart == 1 && line.charAt(infoStart) == '.') {
+    		return true;
+    	}
+
+    	int[] keyStarts = new int[16];
+    	int[] keyEnds = new int[16];
+    	int keyCount = 0;
+
+    	int elStart = infoStart;
+    	while (elStart <= infoEnd) {
+    		// find the end of this element and the end of the key (the first '=')
+    		int keyEnd = -1;
+    		int elEnd = elStart;
+    		while (elEnd < infoEnd && line.charAt(elEnd) != ';') {
+    			if (keyEnd == -1 && line.charAt(elEnd) == '=') {
+    				keyEnd = elEnd;
+    			}
+    			elEnd++;
+    		}
+
+    		if (elEnd == elStart || elEnd == infoEnd - 1) {
+    			// empty elements (and a trailing ';') would be dropped
+    			return false;
+    		}
+    		if (keyEnd == -1) {
+    			keyEnd = elEnd;
+    		} else if (keyEnd == elEnd - 1) {
+    			// empty value
+    			return false;
+    		}
+
+    		for (int i=0; i<keyCount; i++) {
+    			if (keyEnds[i] - keyStarts[i] == keyEnd - elStart && line.regionMatches(keyStarts[i], line, elStart, keyEnd - elStart)) {
+    				// duplicate key
+    				return false;
+    			}
+    		}
+    		if (keyCount == keyStarts.length) {
+    			keyStarts = Arrays.copyOf(keyStarts, keyCount * 2);
+    			keyEnds = Arrays.copyOf(keyEnds, keyCount * 2);
+    		}
+    		keyStarts[keyCount] = elStart;
+    		keyEnds[keyCount] = keyEnd;
+    		keyCount++;
+
+    		elStart = elEnd + 1;
+    	}
+    	return true;
+    }
+
+    /**
+     * Can the original FORMAT and sample text be written as-is? This is true if the
+     * samples haven't been removed or re-ordered, and the values would be written
+     * the same way (no duplicate FORMAT keys, no extra values, etc).
+     */
+    private boolean canWriteRawSamples() {
+    	if (formatStart == -1 || parentHeader == null || parentHeader.isRemovingFormat() || !parentHeader.isSampleOrderUnchanged()) {
+    		return false;
+    	}
+		int formatEnd = line.indexOf('\t', formatStart);
+		if (formatEnd == -1 || formatEnd >= lineEnd) {
+			return false;
+		}
+
+		// FORMAT keys must be unique and not empty
+		int keyCount = 0;
+		int keyStart = formatStart;
+		while (keyStart <= formatEnd) {
+			int keyEnd = line.indexOf(':', keyStart);
+			if (keyEnd == -1 || keyEnd > formatEnd) {
+				keyEnd = formatEnd;
+			}
+			if (keyEnd == keyStart) {
+				return false;
+			}
+			int prev = formatStart;
+			while (prev < keyStart) {
+				int prevEnd = line.indexOf(':', prev);
+				if (prevEnd - prev == keyEnd - keyStart && line.regionMatches(prev, line, keyStart, keyEnd - keyStart)) {
+					return false;
 				}
+				prev = prevEnd + 1;
 			}
-			
-//			return new VCFRecord(chrom, pos, dbSNPID, ref, alts, qual, filters, info, formatKeys, sampleValues, altOrig, header);
-			return new VCFRecord(chrom, pos, dbSNPID, ref, alts, qual, filters, info, sampleValues, altOrig, header);
+			keyCount++;
+			keyStart = keyEnd + 1;
+		}
 
-		} catch (VCFParseException | VCFAttributeException e) {
-			if (!VCFCheck.isQuiet()) {
-	            System.err.println("ERROR: processing VCF record ("+ e + ")");
-	            System.err.println("ERROR: " + line);
+		int sampleCount = 0;
+		int colStart = formatEnd + 1;
+		while (colStart <= lineEnd) {
+			int colEnd = line.indexOf('\t', colStart);
+			if (colEnd == -1 || colEnd > lineEnd) {
+				colEnd = lineEnd;
+			}
+			if (colEnd == colStart) {
+				return false;
+			}
+
+			// values can't be empty, and extra values would be removed
+			int valCount = 1;
+			int lastStart = colStart;
+			for (int i=colStart; i<colEnd; i++) {
+				if (line.charAt(i) == ':') {
+					if (i == lastStart || i == colEnd - 1) {
+						return false;
+					}
+					valCount++;
+					lastStart = i + 1;
+				}
 			}
-            System.exit(2);
+			if (valCount > keyCount) {
+				return false;
+			}
+
+			sampleCount++;
+			colStart = colEnd + 1;
 		}
-		
-		throw new VCFParseException("Unknown parse exception");
-	}
+
+		return sampleCount <= parentHeader.getSamples().size();
+    }
 
     public String toString() {
     	return chrom + ":" + pos +":"+ref+">"+altOrig;
@@ -411,11 +649,14 @@ public class VCFRecord {
 	}
 
 	public VCFAttributes getInfo() {
+		decodeInfo();
 		return info;
 	}
 
 	public void setInfo(VCFAttributes info) {
+		this.infoDecoded = true;
 		this.info = info;
+		releaseLine();
 	}
 
 	public VCFHeader getParentHeader() {
@@ -423,6 +664,7 @@ public class VCFRecord {
 	}
 	
 	public List<VCFAttributes> getSampleAttributes() {
+		decodeSamples();
 		return sampleAttributes;
 	}
 
@@ -430,7 +672,7 @@ public class VCFRecord {
 		if (parentHeader == null) {
 			throw new VCFAttributeException("Missing header -- cannot extract sample without the header");
 		}
-		if (sampleAttributes == null) {
+		if (getSampleAttributes() == null) {
 			return null;
 		}
 		
@@ -438,7 +680,7 @@ public class VCFRecord {
 	}
 	
 	public void addSampleAttributes(VCFAttributes attrs) {
-		if (sampleAttributes == null) {
+		if (getSampleAttributes() == null) {
 			sampleAttributes = new ArrayList<VCFAttributes>();
 		}
 		sampleAttributes.add(attrs);
@@ -695,11 +937,11 @@ public class VCFRecord {
 		}
 
         writeToStream(baos, "INFO: ");
-        for (String k: info.getKeys()) {
+        for (String k: getInfo().getKeys()) {
         	writeToStream(baos, "    "+ k + " => " + info.get(k));
         }
 
-        for (int i=0; i< sampleAttributes.size(); i++) {
+        for (int i=0; i< getSampleAttributes().size(); i++) {
         	writeToStream(baos, "Sample " + i +":");
 	        for (String k: sampleAttributes.get(0).getKeys()) {
 	        	writeToStream(baos, "    "+ k + " => " + sampleAttributes.get(i).get(k));
@@ -44,4 +44,16 @@ public class VCFWriter {
 		
 		record.write(out);
 	}
-}
+
+	/**
+	 * Write out records that have already been written to a buffer (see ThreadedAnnotator)
+	 */
+	public void writeRaw(byte[] buf) throws IOException {
+		if (!headerWritten) {
+			header.write(out, true);
+			headerWritten = true;
+		}
+		
+		out.write(buf);
+	}
+}
\ No newline at end of file
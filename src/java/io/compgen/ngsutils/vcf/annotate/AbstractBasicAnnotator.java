@@ -21,6 +21,15 @@ public abstract class AbstractBasicAnnotator implements VCFAnnotator {
     }
 
 	
+	/**
+	 * Can annotate() be called from multiple threads at the same time? This should only
+	 * be true if the annotator doesn't keep any state between records.
+	 * (vcf-annotate --threads runs these with a worker pool)
+	 */
+	public boolean isThreadSafe() {
+		return false;
+	}
+
 	@Override
 	public void setParent(VCFAnnotator parent) throws VCFAnnotatorException {
 		this.parent = parent;
@@ -26,4 +26,9 @@ public class AutoID extends AbstractBasicAnnotator {
 		// NO-OP
 		
 	}
-}
\ No newline at end of file
+
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+}
@@ -55,4 +55,9 @@ public class ConstantTag extends AbstractBasicAnnotator {
 			throw new VCFAnnotatorException(e);
 		}
 	}
-}
\ No newline at end of file
+
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+}
@@ -92,4 +92,9 @@ public class CopyNumberLogRatio extends AbstractBasicAnnotator {
 			throw new VCFAnnotatorException(e);
 		}
 	}
-}
\ No newline at end of file
+
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+}
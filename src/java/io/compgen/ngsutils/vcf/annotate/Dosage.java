@@ -53,4 +53,9 @@ public class Dosage extends AbstractBasicAnnotator {
 		    }
 		}
 	}
-}
\ No newline at end of file
+
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+}
@@ -81,4 +81,9 @@ public class FisherStrandBias extends AbstractBasicAnnotator {
 	private double calcFisherStrandBias(int refPlus, int refMinus, int plus, int minus) {
 		return fisher.calcTwoTailedPvalue(refPlus, refMinus, plus, minus);
 	}
-}
\ No newline at end of file
+
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+}
@@ -63,4 +63,9 @@ public class Indel extends AbstractBasicAnnotator {
 			throw new VCFAnnotatorException(e);
 		}
 	}
-}
\ No newline at end of file
+
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+}
@@ -121,4 +121,9 @@ public class InfoInFile extends AbstractBasicAnnotator {
 			
 		}
 	}
-}
\ No newline at end of file
+
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+}
@@ -63,4 +63,9 @@ public class MinorStrandPct extends AbstractBasicAnnotator {
 		    }
 		}
 	}
-}
\ No newline at end of file
+
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+}
@@ -0,0 +1,131 @@
+package io.compgen.ngsutils.vcf.annotate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import io.compgen.ngsutils.vcf.VCFHeader;
+import io.compgen.ngsutils.vcf.VCFRecord;
+
+/**
+ * Pulls records from the parent annotator (usually the NullAnnotator that reads the
+ * VCF file) in a separate thread, so that reading/parsing the input doesn't
+ * happen on the same thread as the rest of the chain.
+ *
+ * Records are passed along in batches.
+ */
+public class ReadAheadAnnotator implements VCFAnnotator {
+	private final int batchSize;
+	private final BlockingQueue<List<VCFRecord>> queue;
+
+	private VCFAnnotator parent = null;
+	private Thread thread = null;
+	private volatile Exception error = null;
+	private volatile boolean closed = false;
+
+	private List<VCFRecord> cur = null;
+	private int curPos = 0;
+	private boolean done = false;
+
+	public ReadAheadAnnotator(int batchSize, int maxBatches) {
+		this.batchSize = batchSize;
+		this.queue = new ArrayBlockingQueue<List<VCFRecord>>(maxBatches);
+	}
+
+	/**
+	 * @return the next batch of records (or null if there are no more)
+	 */
+	public List<VCFRecord> nextBatch() throws VCFAnnotatorException {
+		if (done) {
+			return null;
+		}
+		if (thread == null) {
+			start();
+		}
+		try {
+			List<VCFRecord> batch = queue.take();
+			if (batch.size() == 0) {
+				// the last batch is always empty
+				done = true;
+				if (error != null) {
+					throw new VCFAnnotatorException(error);
+				}
+				return null;
+			}
+			return batch;
+		} catch (InterruptedException e) {
+			throw new VCFAnnotatorException(e);
+		}
+	}
+
+	@Override
+	public VCFRecord next() throws VCFAnnotatorException {
+		while (cur == null || curPos >= cur.size()) {
+			cur = nextBatch();
+			curPos = 0;
+			if (cur == null) {
+				return null;
+			}
+		}
+		return cur.get(curPos++);
+	}
+
+	private void start() {
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					List<VCFRecord> batch = new ArrayList<VCFRecord>(batchSize);
+					VCFRecord rec;
+					while (!closed && (rec = parent.next()) != null) {
+						batch.add(rec);
+						if (batch.size() >= batchSize) {
+							queue.put(batch);
+							batch = new ArrayList<VCFRecord>(batchSize);
+						}
+					}
+					if (batch.size() > 0) {
+						queue.put(batch);
+					}
+				} catch (Exception e) {
+					error = e;
+				}
+				try {
+					queue.put(new ArrayList<VCFRecord>());
+				} catch (InterruptedException e) {
+				}
+			}}, "vcf-reader");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void setHeader(VCFHeader header) throws VCFAnnotatorException {
+	}
+
+	@Override
+	public void setParent(VCFAnnotator parent) throws VCFAnnotatorException {
+		this.parent = parent;
+	}
+
+	@Override
+	public void close() throws VCFAnnotatorException {
+		closed = true;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	@Override
+	public void setAltChrom(String key) throws VCFAnnotatorException {
+	}
+
+	@Override
+	public void setAltPos(String key) throws VCFAnnotatorException {
+	}
+
+	@Override
+	public void setEndPos(String endPos) throws VCFAnnotatorException {
+	}
+}
@@ -5,11 +5,11 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.DataFormatException;
 
-import io.compgen.common.IterUtils;
 import io.compgen.common.StringUtils;
 import io.compgen.ngsutils.tabix.TabixFile;
+import io.compgen.ngsutils.tabix.TabixLine;
+import io.compgen.ngsutils.tabix.TabixSortedQuery;
 import io.compgen.ngsutils.vcf.VCFAnnotationDef;
 import io.compgen.ngsutils.vcf.VCFAttributeException;
 import io.compgen.ngsutils.vcf.VCFAttributeValue;
@@ -23,6 +23,7 @@ public class TabixAnnotation extends AbstractBasicAnnotator {
     final protected String name;
     final protected String filename;
     final protected TabixFile tabix;
+    final protected TabixSortedQuery sortedQuery;
     
     protected int col = -1;
     protected int altCol = -1;
@@ -52,6 +53,7 @@ public class TabixAnnotation extends AbstractBasicAnnotator {
 	    this.filename = filename;
 	    this.sampleName = sampleName;
         this.tabix = getTabixFile(filename);
+        this.sortedQuery = tabix.sortedQuery();
     }
  
 
@@ -145,8 +147,9 @@ public class TabixAnnotation extends AbstractBasicAnnotator {
             List<String> vals = new ArrayList<String>();
             boolean found = false;
             
-            for (String line : IterUtils.wrap(tabix.query(chrom, pos - 1 - extend, endpos + extend))) {
-                String[] spl = line.split("\t");
+            // VCF files are usually sorted, so we can read the tabix file forward instead of querying the index for each record
+            for (TabixLine line : sortedQuery.query(chrom, pos - 1 - extend, endpos + extend)) {
+                String[] spl = line.toString().split("\t");
                 
                 boolean altOk = true;
                 if (altCol > -1) {
@@ -255,7 +258,7 @@ public class TabixAnnotation extends AbstractBasicAnnotator {
                     }
                 }
             }
-        } catch (IOException | DataFormatException e) {
+        } catch (IOException e) {
             throw new VCFAnnotatorException(e);
         }
     }
@@ -0,0 +1,200 @@
+package io.compgen.ngsutils.vcf.annotate;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import io.compgen.ngsutils.vcf.VCFHeader;
+import io.compgen.ngsutils.vcf.VCFRecord;
+
+/**
+ * Runs a group of thread-safe annotators over batches of records using a worker pool.
+ * Batches are returned in the same order they were read, so the output order doesn't
+ * change.
+ *
+ * If this is the last step in the chain, the workers can also write out each batch
+ * (see setRender() and nextRendered()), so that formatting the output lines is also
+ * done in parallel.
+ */
+public class ThreadedAnnotator implements VCFAnnotator {
+	public static class Batch {
+		public final List<VCFRecord> records;
+		public final byte[] rendered;
+
+		private Batch(List<VCFRecord> records, byte[] rendered) {
+			this.records = records;
+			this.rendered = rendered;
+		}
+	}
+
+	private final List<AbstractBasicAnnotator> annotators;
+	private final ExecutorService pool;
+	private final int batchSize;
+	private final int maxPending;
+
+	private final Deque<Future<Batch>> pending = new ArrayDeque<Future<Batch>>();
+
+	private VCFAnnotator parent = null;
+	private boolean render = false;
+	private boolean parentDone = false;
+
+	private List<VCFRecord> cur = null;
+	private int curPos = 0;
+
+	public ThreadedAnnotator(List<AbstractBasicAnnotator> annotators, ExecutorService pool, int batchSize, int maxPending) {
+		this.annotators = annotators;
+		this.pool = pool;
+		this.batchSize = batchSize;
+		this.maxPending = maxPending;
+	}
+
+	/**
+	 * Also write out each batch as VCF lines (in the worker threads).
+	 */
+	public void setRender(boolean render) {
+		this.render = render;
+	}
+
+	private List<VCFRecord> readBatch() throws VCFAnnotatorException {
+		if (parent instanceof ReadAheadAnnotator) {
+			return ((ReadAheadAnnotator) parent).nextBatch();
+		}
+
+		List<VCFRecord> batch = new ArrayList<VCFRecord>(batchSize);
+		VCFRecord rec;
+		while (batch.size() < batchSize && (rec = parent.next()) != null) {
+			batch.add(rec);
+		}
+		if (batch.size() == 0) {
+			return null;
+		}
+		return batch;
+	}
+
+	private void fill() throws VCFAnnotatorException {
+		while (!parentDone && pending.size() < maxPending) {
+			final List<VCFRecord> batch = readBatch();
+			if (batch == null) {
+				parentDone = true;
+				return;
+			}
+			pending.add(pool.submit(new Callable<Batch>() {
+				@Override
+				public Batch call() throws Exception {
+					for (VCFRecord rec: batch) {
+						for (AbstractBasicAnnotator ann: annotators) {
+							ann.annotate(rec);
+						}
+					}
+					if (!render) {
+						return new Batch(batch, null);
+					}
+					ByteArrayOutputStream baos = new ByteArrayOutputStream();
+					for (VCFRecord rec: batch) {
+						rec.write(baos);
+					}
+					return new Batch(batch, baos.toByteArray());
+				}}));
+		}
+	}
+
+	/**
+	 * @return the next annotated batch (in order), or null if there are no more
+	 */
+	public Batch nextBatch() throws VCFAnnotatorException {
+		if (parent == null) {
+			throw new VCFAnnotatorException("Missing parent in chain!");
+		}
+		fill();
+		Future<Batch> future = pending.poll();
+		if (future == null) {
+			return null;
+		}
+		try {
+			Batch batch = future.get();
+			// keep the workers busy while this batch is used
+			fill();
+			return batch;
+		} catch (InterruptedException e) {
+			throw new VCFAnnotatorException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof VCFAnnotatorException) {
+				throw (VCFAnnotatorException) e.getCause();
+			}
+			throw new VCFAnnotatorException(e.getCause());
+		}
+	}
+
+	/**
+	 * @return the next batch of written VCF lines (requires setRender(true)), or null
+	 * if there are no more
+	 */
+	public byte[] nextRendered() throws VCFAnnotatorException {
+		Batch batch = nextBatch();
+		if (batch == null) {
+			return null;
+		}
+		return batch.rendered;
+	}
+
+	@Override
+	public VCFRecord next() throws VCFAnnotatorException {
+		while (cur == null || curPos >= cur.size()) {
+			Batch batch = nextBatch();
+			curPos = 0;
+			if (batch == null) {
+				cur = null;
+				return null;
+			}
+			cur = batch.records;
+		}
+		return cur.get(curPos++);
+	}
+
+	@Override
+	public void setHeader(VCFHeader header) throws VCFAnnotatorException {
+		for (AbstractBasicAnnotator ann: annotators) {
+			ann.setHeader(header);
+		}
+	}
+
+	@Override
+	public void setParent(VCFAnnotator parent) throws VCFAnnotatorException {
+		this.parent = parent;
+	}
+
+	@Override
+	public void close() throws VCFAnnotatorException {
+		for (Future<Batch> future: pending) {
+			future.cancel(true);
+		}
+		pending.clear();
+	}
+
+	@Override
+	public void setAltChrom(String key) throws VCFAnnotatorException {
+		for (AbstractBasicAnnotator ann: annotators) {
+			ann.setAltChrom(key);
+		}
+	}
+
+	@Override
+	public void setAltPos(String key) throws VCFAnnotatorException {
+		for (AbstractBasicAnnotator ann: annotators) {
+			ann.setAltPos(key);
+		}
+	}
+
+	@Override
+	public void setEndPos(String endPos) throws VCFAnnotatorException {
+		for (AbstractBasicAnnotator ann: annotators) {
+			ann.setEndPos(endPos);
+		}
+	}
+}
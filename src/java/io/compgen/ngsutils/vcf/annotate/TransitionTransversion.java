@@ -32,4 +32,9 @@ public class TransitionTransversion extends AbstractBasicAnnotator {
 			// won't happen -- vcf attributes above are hard-coded to be good values
 		}
 	}
-}
\ No newline at end of file
+
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+}
@@ -70,4 +70,9 @@ public class VariantAlleleFrequency extends AbstractBasicAnnotator {
 		    }
 		}
 	}
-}
\ No newline at end of file
+
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+}
@@ -0,0 +1,197 @@
+package io.compgen.ngsutils.annotation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.compgen.common.StringUtils;
+import io.compgen.ngsutils.annotation.GTFAnnotationSource.GTFExon;
+import io.compgen.ngsutils.annotation.GTFAnnotationSource.GTFGene;
+import io.compgen.ngsutils.annotation.GTFAnnotationSource.GTFTranscript;
+
+public class GTFCacheFileTest {
+    private File dir;
+    private File cacheDir;
+    private File gtf;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("gtfcache").toFile();
+        cacheDir = new File(dir, "cache");
+        gtf = new File(dir, "test.gtf");
+
+        PrintWriter pw = new PrintWriter(gtf, "UTF-8");
+        pw.println("#comment");
+        pw.println(gtfLine("chr1", "exon", 101, 200, "+", "A", "A.1", "exon_number \"1\"; tag \"basic\";"));
+        pw.println(gtfLine("chr1", "CDS", 151, 200, "+", "A", "A.1", "tag \"basic\";"));
+        pw.println(gtfLine("chr1", "start_codon", 151, 153, "+", "A", "A.1", "tag \"basic\";"));
+        pw.println(gtfLine("chr1", "exon", 301, 400, "+", "A", "A.1", "exon_number \"2\"; tag \"basic\";"));
+        pw.println(gtfLine("chr1", "CDS", 301, 350, "+", "A", "A.1", "tag \"basic\";"));
+        pw.println(gtfLine("chr1", "stop_codon", 351, 353, "+", "A", "A.1", "tag \"basic\";"));
+        pw.println(gtfLine("chr1", "exon", 121, 400, "+", "A", "A.2", "exon_number \"1\";"));
+        pw.println(gtfLine("chr1", "exon", 1001, 1200, "-", "B", "B.1", "note \"ünïcode\"; tag \"basic\";"));
+        pw.println(gtfLine("chr2", "exon", 51, 80, "-", "C", "C.1", "tag \"basic\";"));
+        pw.println(gtfLine("chr2", "exon", 91, 120, "-", "C", "C.1", "tag \"basic\";"));
+        pw.close();
+
+        System.setProperty("ngsutilsj.gtf.cache.dir", cacheDir.getAbsolutePath());
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("ngsutilsj.gtf.cache.dir");
+        if (cacheDir.isDirectory()) {
+            for (File f: cacheDir.listFiles()) {
+                f.delete();
+            }
+            cacheDir.delete();
+        }
+        for (File f: dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static String gtfLine(String ref, String type, int start, int end, String strand, String gene, String txpt, String attrs) {
+        String bioType = gene.equals("C") ? "lncRNA" : "protein_coding";
+        return ref + "\ttest\t" + type + "\t" + start + "\t" + end + "\t.\t" + strand + "\t.\tgene_id \"" + gene
+                + "\"; gene_name \"" + gene + "-name\"; gene_biotype \"" + bioType + "\"; transcript_id \"" + txpt
+                + "\"; " + attrs;
+    }
+
+    private static List<String> describe(Iterator<GTFGene> it) {
+        List<String> out = new ArrayList<String>();
+        while (it.hasNext()) {
+            GTFGene gene = it.next();
+            out.add(gene.getRef() + ":" + gene.getStart() + "-" + gene.getEnd() + ":" + gene.getStrand() + " "
+                    + gene.getGeneId() + " " + gene.getGeneName() + " " + gene.getBioType() + " " + gene.getStatus());
+            for (GTFTranscript t: gene.getTranscripts()) {
+                out.add("  " + t.getTranscriptId() + " exons=" + features(t.getExons()) + " cds=" + features(t.cds)
+                        + " start=" + features(t.getStartCodons()) + " stop=" + features(t.getStopCodons()));
+            }
+        }
+        return out;
+    }
+
+    private static List<String> describe(AbstractAnnotationSource<GTFGene> source) {
+        final Iterator<GenomeAnnotation<GTFGene>> it = source.iterator();
+        return describe(new Iterator<GTFGene>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public GTFGene next() {
+                return it.next().getValue();
+            }});
+    }
+
+    private static String features(List<GTFExon> features) {
+        List<String> out = new ArrayList<String>();
+        for (GTFExon f: features) {
+            out.add(f.getStart() + "-" + f.getEnd() + Arrays.toString(f.getAttributes()));
+        }
+        return StringUtils.join(",", out);
+    }
+
+    private List<GTFGene> load(GTFAnnotationSource source, List<String> tags) {
+        GTFCacheFile cache = GTFCacheFile.find(gtf.getAbsolutePath(), tags);
+        assertNotNull(cache);
+        return cache.load(source);
+    }
+
+    @Test
+    public void testSaveLoad() throws IOException {
+        GTFAnnotationSource parsed = new GTFAnnotationSource(gtf.getAbsolutePath(), null);
+        assertEquals(1, cacheDir.listFiles().length);
+
+        List<GTFGene> genes = load(parsed, null);
+        assertNotNull(genes);
+        assertEquals(3, genes.size());
+
+        List<String> expected = describe(parsed);
+        assertEquals(7, expected.size());
+        assertEquals(expected, describe(genes.iterator()));
+
+        // the second source is read from the cache
+        GTFAnnotationSource cached = new GTFAnnotationSource(gtf.getAbsolutePath(), null);
+        assertEquals(expected, describe(cached));
+        assertEquals(Arrays.asList(parsed.getAnnotationNames()), Arrays.asList(cached.getAnnotationNames()));
+        assertEquals(1, cacheDir.listFiles().length);
+    }
+
+    @Test
+    public void testRequiredTags() throws IOException {
+        List<String> tags = Arrays.asList("basic");
+        GTFAnnotationSource parsed = new GTFAnnotationSource(gtf.getAbsolutePath(), tags);
+        List<String> expected = describe(parsed);
+
+        // A.2 doesn't have the tag
+        assertEquals(6, expected.size());
+
+        GTFAnnotationSource cached = new GTFAnnotationSource(gtf.getAbsolutePath(), tags);
+        assertEquals(expected, describe(cached));
+        assertEquals(expected, describe(load(parsed, tags).iterator()));
+
+        // a different set of tags isn't read from this cache
+        assertNull(load(parsed, null));
+        assertNull(load(parsed, Arrays.asList("basic", "CCDS")));
+    }
+
+    @Test
+    public void testInvalidate() throws IOException {
+        GTFAnnotationSource parsed = new GTFAnnotationSource(gtf.getAbsolutePath(), null);
+        assertNotNull(load(parsed, null));
+
+        // modification time changes
+        long mtime = gtf.lastModified();
+        gtf.setLastModified(mtime + 10000);
+        assertNull(load(parsed, null));
+
+        // ... and the cache is re-written the next time the GTF is read
+        new GTFAnnotationSource(gtf.getAbsolutePath(), null);
+        assertNotNull(load(parsed, null));
+
+        // size changes (same modification time)
+        mtime = gtf.lastModified();
+        FileWriter fw = new FileWriter(gtf, true);
+        fw.write("#another comment\n");
+        fw.close();
+        gtf.setLastModified(mtime);
+        assertNull(load(parsed, null));
+
+        new GTFAnnotationSource(gtf.getAbsolutePath(), null);
+        assertNotNull(load(parsed, null));
+
+        // tags in the cache don't match (ex: a cache file written with other tags)
+        File untagged = cacheDir.listFiles()[0];
+        new GTFAnnotationSource(gtf.getAbsolutePath(), Arrays.asList("basic"));
+        File tagged = null;
+        for (File f: cacheDir.listFiles()) {
+            if (!f.equals(untagged)) {
+                tagged = f;
+            }
+        }
+        assertNotNull(untagged);
+        assertNotNull(tagged);
+        Files.copy(tagged.toPath(), untagged.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        assertNull(load(parsed, null));
+        assertNotNull(load(parsed, Arrays.asList("basic")));
+    }
+}
@@ -0,0 +1,71 @@
+package io.compgen.ngsutils.annotation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class IntervalIndexTest {
+
+    private List<String> query(IntervalIndex<String> idx, GenomeSpan coord) {
+        final List<String> out = new ArrayList<String>();
+        idx.query(coord, new IntervalIndex.Visitor<String>() {
+            @Override
+            public boolean visit(GenomeAnnotation<String> ga) {
+                out.add(ga.getValue());
+                return true;
+            }});
+        return out;
+    }
+
+    @Test
+    public void testQuery() {
+        List<GenomeAnnotation<String>> anns = new ArrayList<GenomeAnnotation<String>>();
+        anns.add(new GenomeAnnotation<String>(new GenomeSpan("chr1", 300, 400), "B"));
+        anns.add(new GenomeAnnotation<String>(new GenomeSpan("chr1", 100, 200), "A"));
+        anns.add(new GenomeAnnotation<String>(new GenomeSpan("chr1", 350, 650), "C"));
+        anns.add(new GenomeAnnotation<String>(new GenomeSpan("chr2", 100, 200), "X"));
+
+        IntervalIndex<String> idx = new IntervalIndex<String>(anns);
+
+        assertEquals("[A]", query(idx, new GenomeSpan("chr1", 150, 160)).toString());
+        assertEquals("[B, C]", query(idx, new GenomeSpan("chr1", 380, 390)).toString());
+        assertEquals("[C]", query(idx, new GenomeSpan("chr1", 500, 1000)).toString());
+        assertEquals("[]", query(idx, new GenomeSpan("chr1", 700, 800)).toString());
+        assertEquals("[A, B, C]", query(idx, new GenomeSpan("chr1", -1, -1)).toString());
+        assertEquals("[X]", query(idx, new GenomeSpan("chr2", 120, 130)).toString());
+        assertEquals("[]", query(idx, new GenomeSpan("chrX", 120, 130)).toString());
+    }
+
+    @Test
+    public void testRandomQueries() {
+        Random rand = new Random(1);
+        List<GenomeAnnotation<String>> anns = new ArrayList<GenomeAnnotation<String>>();
+        for (int i = 0; i < 5000; i++) {
+            int start = rand.nextInt(1000000);
+            int len = rand.nextInt(100) == 0 ? rand.nextInt(100000) : rand.nextInt(1000);
+            anns.add(new GenomeAnnotation<String>(new GenomeSpan("chr1", start, start + len), "a" + i));
+        }
+
+        IntervalIndex<String> idx = new IntervalIndex<String>(anns);
+
+        for (int i = 0; i < 1000; i++) {
+            int start = rand.nextInt(1000000);
+            int end = start + rand.nextInt(5000);
+
+            List<String> expected = new ArrayList<String>();
+            for (GenomeAnnotation<String> ga: anns) {
+                if (ga.getCoordinates().start <= end && start <= ga.getCoordinates().end) {
+                    expected.add(ga.getValue());
+                }
+            }
+
+            List<String> found = query(idx, new GenomeSpan("chr1", start, end));
+            assertEquals(expected.size(), found.size());
+            assertEquals(true, found.containsAll(expected));
+        }
+    }
+}
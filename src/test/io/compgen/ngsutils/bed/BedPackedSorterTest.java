@@ -0,0 +1,183 @@
+package io.compgen.ngsutils.bed;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import io.compgen.ngsutils.annotation.GenomeSpan;
+import io.compgen.ngsutils.bam.Strand;
+import io.compgen.ngsutils.support.ExternalSorter;
+
+class BedPackedSorterTest {
+    private static final long SMALL_MEM = ExternalSorter.parseMemorySize("100K");
+    private static final long LARGE_MEM = ExternalSorter.parseMemorySize("64M");
+
+    private static File writeFile(File dir, String contents) throws IOException {
+        File f = new File(dir, "test.bed");
+        FileOutputStream fos = new FileOutputStream(f);
+        fos.write(contents.getBytes(StandardCharsets.UTF_8));
+        fos.close();
+        return f;
+    }
+
+    private static String sort(File f, long mem, int threads, int minRuns) throws IOException {
+        BedPackedSorter sorter = new BedPackedSorter(f, mem, threads);
+        sorter.setTmpDir(f.getParentFile());
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        sorter.sort(baos);
+        assertTrue(sorter.getRunCount() >= minRuns);
+        return baos.toString("UTF-8");
+    }
+
+    /**
+     * The lines (without line endings or comments) sorted by GenomeSpan, and then file order.
+     */
+    private static String expected(String contents) {
+        List<String> lines = new ArrayList<String>();
+        final List<GenomeSpan> spans = new ArrayList<GenomeSpan>();
+        for (String line: contents.split("\n")) {
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] cols = line.split("\t");
+            Strand strand = cols.length > 5 ? Strand.parse(cols[5]) : Strand.NONE;
+            spans.add(new GenomeSpan(cols[0], Integer.parseInt(cols[1]), Integer.parseInt(cols[2]), strand));
+            lines.add(line);
+        }
+
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < lines.size(); i++) {
+            order.add(i);
+        }
+        // stable, so ties stay in file order
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return spans.get(o1).compareTo(spans.get(o2));
+            }});
+
+        StringBuilder sb = new StringBuilder();
+        for (int i: order) {
+            sb.append(lines.get(i));
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void deleteDir(File dir) {
+        for (File f: dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static void addLines(StringBuilder sb, Random rand, String[] refs, int n, String eol) {
+        for (int i = 0; i < n; i++) {
+            // a small range, so that there are records with the same coordinates
+            int start = rand.nextInt(500);
+            int end = start + 1 + rand.nextInt(5);
+            sb.append(refs[rand.nextInt(refs.length)] + "\t" + start + "\t" + end + "\tname" + sb.length() + "\t0\t"
+                    + (rand.nextBoolean() ? "+" : "-") + eol);
+        }
+    }
+
+    @Test
+    public void testNewRefsAfterSpill() throws IOException {
+        Random rand = new Random(1);
+        StringBuilder sb = new StringBuilder();
+        // the first runs only have these references...
+        addLines(sb, rand, new String[] { "chr1", "chr2", "chr3" }, 5000, "\n");
+        // ... and later runs add references that sort between (chr10) and after (chrX) them
+        addLines(sb, rand, new String[] { "chr10", "chr2" }, 3000, "\n");
+        addLines(sb, rand, new String[] { "chrX", "chr1" }, 3000, "\n");
+        addLines(sb, rand, new String[] { "chr1", "chr2", "chr3", "chr10", "chrX", "chr2_random" }, 3000, "\n");
+        String contents = sb.toString();
+
+        File dir = Files.createTempDirectory("bedsort").toFile();
+        try {
+            File f = writeFile(dir, contents);
+            String expected = expected(contents);
+            assertEquals(expected, sort(f, SMALL_MEM, 3, 4));
+            assertEquals(expected, sort(f, SMALL_MEM, 1, 4));
+            assertEquals(expected, sort(f, LARGE_MEM, 3, 0));
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void testLineEndings() throws IOException {
+        Random rand = new Random(2);
+        StringBuilder sb = new StringBuilder();
+        sb.append("# comment\r\n");
+        addLines(sb, rand, new String[] { "chr2", "chr1" }, 3000, "\r\n");
+        sb.append("\r\n");
+        // short lines (no strand), and no newline at the end of the file. These end after the
+        // random lines, so there are no ties between stranded and unstranded records.
+        sb.append("chr2\t10\t1000\r\n");
+        sb.append("chr1\t0\t1000");
+        String contents = sb.toString();
+
+        File dir = Files.createTempDirectory("bedsort").toFile();
+        try {
+            File f = writeFile(dir, contents);
+            String expected = expected(contents);
+            assertTrue(expected.contains("\nchr1\t0\t1000\n"));
+            assertEquals(expected, sort(f, SMALL_MEM, 2, 2));
+            assertEquals(expected, sort(f, LARGE_MEM, 1, 0));
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void testLongLines() throws IOException {
+        Random rand = new Random(3);
+        StringBuilder sb = new StringBuilder();
+        addLines(sb, rand, new String[] { "chr1", "chr2" }, 2000, "\n");
+        // lines longer than the copy window (which starts at 1K, and is up to 256K), and
+        // than the read buffer (1M)
+        int[] lengths = new int[] { 1500, 5000, 300 * 1024, 1536 * 1024 };
+        for (int i = 0; i < lengths.length; i++) {
+            StringBuilder name = new StringBuilder();
+            for (int j = 0; j < lengths[i]; j++) {
+                name.append((char) ('a' + rand.nextInt(26)));
+            }
+            sb.append("chr1\t" + (100 * i) + "\t" + (100 * i + 10) + "\t" + name + "\t0\t+\n");
+            addLines(sb, rand, new String[] { "chr1", "chr2" }, 500, "\n");
+        }
+        // the last line is long too, without a newline
+        StringBuilder name = new StringBuilder();
+        for (int j = 0; j < 4000; j++) {
+            name.append('z');
+        }
+        sb.append("chr2\t0\t10\t" + name + "\t0\t-");
+        String contents = sb.toString();
+
+        File dir = Files.createTempDirectory("bedsort").toFile();
+        try {
+            File f = writeFile(dir, contents);
+            String expected = expected(contents);
+            assertEquals(expected, sort(f, SMALL_MEM, 3, 2));
+            assertEquals(expected, sort(f, LARGE_MEM, 1, 0));
+        } finally {
+            deleteDir(dir);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package io.compgen.ngsutils.cli.bam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import io.compgen.cmdline.exceptions.CommandArgumentException;
+
+class BamCountTest {
+    private static File writeBam(File dir) {
+        SAMFileHeader header = new SAMFileHeader();
+        header.addSequence(new SAMSequenceRecord("chr1", 5000));
+        header.addSequence(new SAMSequenceRecord("chr2", 5000));
+        header.setSortOrder(SortOrder.coordinate);
+
+        File bam = new File(dir, "test.bam");
+        SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, false, bam);
+
+        Random rand = new Random(1);
+        for (String ref: new String[] { "chr1", "chr2" }) {
+            List<Integer> starts = new ArrayList<Integer>();
+            for (int i = 0; i < 300; i++) {
+                starts.add(1 + rand.nextInt(2000));
+            }
+            starts.sort(null);
+            for (int i = 0; i < starts.size(); i++) {
+                SAMRecord read = new SAMRecord(header);
+                read.setReadName(ref + "-read" + i);
+                read.setReferenceName(ref);
+                read.setAlignmentStart(starts.get(i));
+                read.setCigarString("50M");
+                read.setMappingQuality(60);
+                read.setReadNegativeStrandFlag(rand.nextBoolean());
+                read.setReadString("ACGTACGTAC".repeat(5));
+                read.setBaseQualityString("I".repeat(50));
+                writer.addAlignment(read);
+            }
+        }
+        writer.close();
+        return bam;
+    }
+
+    private static File writeGTF(File dir) throws IOException {
+        File gtf = new File(dir, "test.gtf");
+        PrintWriter pw = new PrintWriter(gtf, "UTF-8");
+        pw.println(gtfLine("chr1", "gene", 101, 600, "A", null));
+        pw.println(gtfLine("chr1", "exon", 101, 300, "A", "A.1"));
+        pw.println(gtfLine("chr1", "exon", 401, 600, "A", "A.1"));
+        // a gene without any exons
+        pw.println(gtfLine("chr1", "gene", 700, 900, "B", null));
+        pw.println(gtfLine("chr1", "gene", 1001, 1500, "C", null));
+        pw.println(gtfLine("chr1", "exon", 1001, 1500, "C", "C.1"));
+        pw.println(gtfLine("chr2", "gene", 201, 900, "D", null));
+        pw.println(gtfLine("chr2", "exon", 201, 400, "D", "D.1"));
+        pw.println(gtfLine("chr2", "exon", 701, 900, "D", "D.1"));
+        pw.close();
+        return gtf;
+    }
+
+    private static String gtfLine(String ref, String type, int start, int end, String gene, String txpt) {
+        String attrs = "gene_id \"" + gene + "\"; gene_name \"" + gene + "\";";
+        if (txpt != null) {
+            attrs += " transcript_id \"" + txpt + "\";";
+        }
+        return ref + "\ttest\t" + type + "\t" + start + "\t" + end + "\t.\t+\t.\t" + attrs;
+    }
+
+    private static List<String> count(File bam, File gtf, File out, boolean stream, int threads) throws IOException, CommandArgumentException {
+        BamCount cmd = new BamCount();
+        cmd.setFilename(bam.getAbsolutePath());
+        cmd.setGTFFile(gtf.getAbsolutePath());
+        cmd.setStream(stream);
+        cmd.setThreads(threads);
+        cmd.setOutputName(out.getAbsolutePath());
+        cmd.exec();
+        return Files.readAllLines(out.toPath(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testStreamMatchesQuery() throws IOException, CommandArgumentException {
+        File dir = Files.createTempDirectory("bamcount").toFile();
+        try {
+            File bam = writeBam(dir);
+            File gtf = writeGTF(dir);
+
+            List<String> query = count(bam, gtf, new File(dir, "query.txt"), false, 1);
+            List<String> stream = count(bam, gtf, new File(dir, "stream.txt"), true, 1);
+            List<String> threaded = count(bam, gtf, new File(dir, "threads.txt"), false, 2);
+
+            // header + 4 genes
+            int genes = 0;
+            for (String line: query) {
+                if (!line.startsWith("#") && !line.startsWith("gene_id")) {
+                    genes++;
+                }
+            }
+            assertEquals(4, genes);
+            assertTrue(query.get(query.size() - 1).startsWith("D\t"));
+
+            assertEquals(query, stream);
+            assertEquals(query, threaded);
+        } finally {
+            for (File f: dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
@@ -49,4 +49,37 @@ public class FastqBatchSplitTest {
         assertTrue(FastqDemux.matches("ACGTACGT", "NNNNACGT", 0, true));
     }
 
+    @Test
+    public void testBarcodeMatcher() {
+        BarcodeMatcher matcher = new BarcodeMatcher(new String[] {"ACGTAC", "TTGGCA", ""}, 1, false);
+        boolean[] matched = new boolean[3];
+        assertTrue(matcher.match("read1 1:N:0:ACGTAC", matched));
+        assertTrue(matched[0]);
+        assertFalse(matched[1]);
+        assertFalse(matched[2]);
+
+        matched = new boolean[3];
+        assertTrue(matcher.match("read1 1:N:0:TTGNCA", matched));
+        assertFalse(matched[0]);
+        assertTrue(matched[1]);
+
+        matched = new boolean[3];
+        assertFalse(matcher.match("read1 1:N:0:TTNNCA", matched));
+        assertTrue(matcher.getCollisions().isEmpty());
+    }
+
+    @Test
+    public void testBarcodeMatcherWildcard() {
+        BarcodeMatcher matcher = new BarcodeMatcher(new String[] {"NCGTAC", "ACGTAA"}, 0, true);
+        boolean[] matched = new boolean[2];
+        assertTrue(matcher.match("read1 1:N:0:GCGTAC", matched));
+        assertTrue(matched[0]);
+        assertFalse(matched[1]);
+
+        matched = new boolean[2];
+        assertFalse(matcher.match("read1 1:N:0:NCGTAC", matched));
+
+        matcher = new BarcodeMatcher(new String[] {"NCGTAC", "ACGTAA"}, 1, true);
+        assertEquals(1, matcher.getCollisions().size());
+    }
 }
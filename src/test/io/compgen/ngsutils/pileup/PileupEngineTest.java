@@ -0,0 +1,310 @@
+package io.compgen.ngsutils.pileup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.CloseableIterator;
+import io.compgen.ngsutils.annotation.GenomeSpan;
+import io.compgen.ngsutils.pileup.PileupRecord.PileupBaseCall;
+
+/**
+ * Checks the built-in pileup against "samtools mpileup -B -Q 0 -O" output (parsed with
+ * PileupRecord.parse()) for small hand-made BAM files.
+ *
+ * The expected lines are written following the htslib pileup rules (read order, overlapping
+ * pair qualities, flag filters, and max-depth), with MAPQ 60 reads ("^]" at the read start).
+ */
+class PileupEngineTest {
+    //                                   1         2         3         4         5         6
+    //                          123456789012345678901234567890123456789012345678901234567890
+    private static final String REF = "ACGTTGCAAGCTTAGGCATCGATCCGTAAGCTAGCTTGCAGTCAGTCGATGCATGCAACG";
+
+    private File dir;
+    private SAMFileHeader header;
+
+    private void setUp() throws IOException {
+        dir = Files.createTempDirectory("pileup").toFile();
+        header = new SAMFileHeader();
+        header.addSequence(new SAMSequenceRecord("chr1", REF.length()));
+        header.addSequence(new SAMSequenceRecord("chr2", REF.length()));
+        header.setSortOrder(SortOrder.coordinate);
+
+        FileOutputStream fos = new FileOutputStream(new File(dir, "ref.fa"));
+        fos.write((">chr1\n" + REF + "\n>chr2\n" + REF + "\n").getBytes(StandardCharsets.UTF_8));
+        fos.close();
+        fos = new FileOutputStream(new File(dir, "ref.fa.fai"));
+        int offset2 = 6 + REF.length() + 1 + 6;
+        fos.write(("chr1\t" + REF.length() + "\t6\t" + REF.length() + "\t" + (REF.length() + 1) + "\n"
+                + "chr2\t" + REF.length() + "\t" + offset2 + "\t" + REF.length() + "\t" + (REF.length() + 1) + "\n").getBytes(StandardCharsets.UTF_8));
+        fos.close();
+    }
+
+    private void tearDown() {
+        for (File f: dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static String ref(int start, int end) {
+        return REF.substring(start - 1, end);
+    }
+
+    private static byte[] quals(int len, int qual) {
+        byte[] q = new byte[len];
+        Arrays.fill(q, (byte) qual);
+        return q;
+    }
+
+    private SAMRecord read(String name, int flags, String ref, int pos, String cigar, String seq, byte[] quals) {
+        SAMRecord read = new SAMRecord(header);
+        read.setReadName(name);
+        read.setFlags(flags);
+        read.setReferenceName(ref);
+        read.setAlignmentStart(pos);
+        read.setCigarString(cigar);
+        read.setMappingQuality(60);
+        read.setReadString(seq);
+        read.setBaseQualities(quals);
+        return read;
+    }
+
+    private SAMRecord read(String name, int flags, int pos, String cigar, String seq, byte[] quals, int matePos, int isize) {
+        SAMRecord read = read(name, flags, "chr1", pos, cigar, seq, quals);
+        read.setMateReferenceName("chr1");
+        read.setMateAlignmentStart(matePos);
+        read.setInferredInsertSize(isize);
+        return read;
+    }
+
+    private String writeBam(String name, SAMRecord... reads) {
+        File bam = new File(dir, name);
+        SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, bam);
+        for (SAMRecord read: reads) {
+            writer.addAlignment(read);
+        }
+        writer.close();
+        return bam.getAbsolutePath();
+    }
+
+    private BAMPileup newPileup(String... filenames) {
+        BAMPileup pileup = new BAMPileup(filenames);
+        pileup.setRefFilename(new File(dir, "ref.fa").getAbsolutePath());
+        pileup.setMinBaseQual(0);
+        return pileup;
+    }
+
+    private static void assertPileup(CloseableIterator<PileupRecord> it, String... expected) {
+        List<PileupRecord> records = new ArrayList<PileupRecord>();
+        while (it.hasNext()) {
+            records.add(it.next());
+        }
+        it.close();
+
+        assertEquals(expected.length, records.size());
+        for (int i = 0; i < expected.length; i++) {
+            PileupRecord exp = PileupRecord.parse(expected[i], 0, false, false);
+            PileupRecord rec = records.get(i);
+            String where = exp.ref + ":" + (exp.pos + 1);
+
+            assertEquals(where, rec.ref + ":" + (rec.pos + 1));
+            assertEquals(exp.refBase, rec.refBase);
+            assertEquals(exp.getNumSamples(), rec.getNumSamples());
+            for (int j = 0; j < exp.getNumSamples(); j++) {
+                assertEquals(where + " depth " + exp.getSampleDepth(j), where + " depth " + rec.getSampleDepth(j));
+                assertEquals(where + " " + calls(exp, j), where + " " + calls(rec, j));
+            }
+        }
+    }
+
+    private static String calls(PileupRecord record, int sample) {
+        List<PileupBaseCall> calls = record.getSampleRecords(sample).calls;
+        if (calls == null || calls.isEmpty()) {
+            return "[]";
+        }
+        List<String> out = new ArrayList<String>();
+        for (PileupBaseCall call: calls) {
+            out.add(call.op + ":" + call + ":" + (call.plusStrand ? "+" : "-") + ":q" + call.qual + ":p" + call.readPos);
+        }
+        return out.toString();
+    }
+
+    @Test
+    public void testIndels() throws IOException {
+        setUp();
+        try {
+            String bam = writeBam("indel.bam",
+                    read("r1", 0, "chr1", 11, "4M2I4M", ref(11, 14) + "TT" + ref(15, 18), quals(10, 30)),
+                    read("r2", 0x10, "chr1", 12, "3M2D5M", ref(12, 14) + ref(17, 21), quals(8, 35)));
+
+            assertPileup(newPileup(bam).pileup(),
+                    "chr1\t11\tC\t1\t^].\t?\t1",
+                    "chr1\t12\tT\t2\t.^],\t?D\t2,1",
+                    "chr1\t13\tT\t2\t.,\t?D\t3,2",
+                    "chr1\t14\tA\t2\t.+2TT,-2gg\t?D\t4,3",
+                    "chr1\t15\tG\t2\t.*\t?D\t7,4",
+                    "chr1\t16\tG\t2\t.*\t?D\t8,4",
+                    "chr1\t17\tC\t2\t.,\t?D\t9,4",
+                    "chr1\t18\tA\t2\t.$,\t?D\t10,5",
+                    "chr1\t19\tT\t1\t,\tD\t6",
+                    "chr1\t20\tC\t1\t,\tD\t7",
+                    "chr1\t21\tG\t1\t,$\tD\t8");
+        } finally {
+            tearDown();
+        }
+    }
+
+    @Test
+    public void testOverlappingPair() throws IOException {
+        setUp();
+        try {
+            // the second read has mismatches at 28 (lower qual than the first read) and 30 (higher qual)
+            byte[] q2 = new byte[] { 30, 30, 20, 30, 40, 30, 30, 30, 30, 30 };
+            String bam = writeBam("pair.bam",
+                    read("pair", 99, 21, "10M", ref(21, 30), quals(10, 30), 26, 15),
+                    read("pair", 147, 26, "10M", "GTCATCTAGC", q2, 21, -15));
+
+            // overlap: same base -> first = q1+q2, second = 0; mismatch -> higher = 0.8*q, lower = 0
+            assertPileup(newPileup(bam).pileup(),
+                    "chr1\t21\tG\t1\t^].\t?\t1",
+                    "chr1\t22\tA\t1\t.\t?\t2",
+                    "chr1\t23\tT\t1\t.\t?\t3",
+                    "chr1\t24\tC\t1\t.\t?\t4",
+                    "chr1\t25\tC\t1\t.\t?\t5",
+                    "chr1\t26\tG\t2\t.^],\t]!\t6,1",
+                    "chr1\t27\tT\t2\t.,\t]!\t7,2",
+                    "chr1\t28\tA\t2\t.c\t9!\t8,3",
+                    "chr1\t29\tA\t2\t.,\t]!\t9,4",
+                    "chr1\t30\tG\t2\t.$t\t!A\t10,5",
+                    "chr1\t31\tC\t1\t,\t?\t6",
+                    "chr1\t32\tT\t1\t,\t?\t7",
+                    "chr1\t33\tA\t1\t,\t?\t8",
+                    "chr1\t34\tG\t1\t,\t?\t9",
+                    "chr1\t35\tC\t1\t,$\t?\t10");
+        } finally {
+            tearDown();
+        }
+    }
+
+    @Test
+    public void testFlags() throws IOException {
+        setUp();
+        try {
+            String seq = ref(41, 45);
+            String bam = writeBam("flags.bam",
+                    read("unpaired", 0, "chr1", 41, "5M", seq, quals(5, 30)),
+                    // paired, but not proper (orphan)
+                    read("orphan", 0x41, 41, "5M", seq, quals(5, 30), 55, 19),
+                    read("proper1", 0x63, 41, "5M", seq, quals(5, 30), 55, 19),
+                    read("proper2", 0x93, 41, "5M", seq, quals(5, 30), 55, 19),
+                    read("dup", 0x400, "chr1", 41, "5M", seq, quals(5, 30)));
+
+            assertPileup(newPileup(bam).pileup(),
+                    "chr1\t41\tG\t3\t^].^].^],\t???\t1,1,1",
+                    "chr1\t42\tT\t3\t..,\t???\t2,2,2",
+                    "chr1\t43\tC\t3\t..,\t???\t3,3,3",
+                    "chr1\t44\tA\t3\t..,\t???\t4,4,4",
+                    "chr1\t45\tG\t3\t.$.$,$\t???\t5,5,5");
+
+            // --rf: reads need at least one of the flags (READ1 or READ2)
+            BAMPileup pileup = newPileup(bam);
+            pileup.setFlagRequired(0xC0);
+            assertPileup(pileup.pileup(),
+                    "chr1\t41\tG\t2\t^].^],\t??\t1,1",
+                    "chr1\t42\tT\t2\t.,\t??\t2,2",
+                    "chr1\t43\tC\t2\t.,\t??\t3,3",
+                    "chr1\t44\tA\t2\t.,\t??\t4,4",
+                    "chr1\t45\tG\t2\t.$,$\t??\t5,5");
+        } finally {
+            tearDown();
+        }
+    }
+
+    @Test
+    public void testMaxDepth() throws IOException {
+        setUp();
+        try {
+            List<SAMRecord> reads = new ArrayList<SAMRecord>();
+            reads.add(read("early", 0, "chr1", 1, "20M", ref(1, 20), quals(20, 30)));
+            for (int i = 0; i < 5; i++) {
+                reads.add(read("r" + i, 0, "chr1", 5, "10M", ref(5, 14), quals(10, 30)));
+            }
+            String bam1 = writeBam("depth1.bam", reads.toArray(new SAMRecord[0]));
+            String bam2 = writeBam("depth2.bam", reads.toArray(new SAMRecord[0]));
+
+            // max-depth is per file: once there are 3 reads, more reads starting at the same
+            // position are skipped
+            List<String> expected = new ArrayList<String>();
+            for (int pos = 1; pos <= 20; pos++) {
+                String sample;
+                if (pos == 1) {
+                    sample = "1\t^].\t?\t1";
+                } else if (pos < 5 || pos > 14) {
+                    sample = "1\t." + (pos == 20 ? "$" : "") + "\t?\t" + pos;
+                } else if (pos == 5) {
+                    sample = "3\t.^].^].\t???\t5,1,1";
+                } else if (pos < 14) {
+                    sample = "3\t...\t???\t" + pos + "," + (pos - 4) + "," + (pos - 4);
+                } else {
+                    sample = "3\t..$.$\t???\t14,10,10";
+                }
+                expected.add("chr1\t" + pos + "\t" + REF.charAt(pos - 1) + "\t" + sample + "\t" + sample);
+            }
+
+            BAMPileup pileup = newPileup(bam1, bam2);
+            pileup.setMaxDepth(3);
+            assertPileup(pileup.pileup(), expected.toArray(new String[0]));
+        } finally {
+            tearDown();
+        }
+    }
+
+    @Test
+    public void testRegions() throws IOException {
+        setUp();
+        try {
+            String bam = writeBam("regions.bam",
+                    read("s1", 0, "chr1", 1, "30M", ref(1, 30), quals(30, 30)),
+                    read("s2", 0, "chr1", 10, "30M", ref(10, 39), quals(30, 30)),
+                    read("s3", 0, "chr1", 45, "10M", ref(45, 54), quals(10, 30)),
+                    read("s4", 0, "chr2", 3, "5M", ref(3, 7), quals(5, 30)));
+
+            // the chr1 regions are read with one query, chr2 with another. Only positions in
+            // the regions are returned (same as samtools mpileup -r for each region).
+            List<GenomeSpan> regions = new ArrayList<GenomeSpan>();
+            regions.add(new GenomeSpan("chr1", 4, 7));
+            regions.add(new GenomeSpan("chr1", 20, 22));
+            regions.add(new GenomeSpan("chr1", 50, 52));
+            regions.add(new GenomeSpan("chr2", 3, 5));
+
+            assertPileup(newPileup(bam).pileup(regions),
+                    "chr1\t5\tT\t1\t.\t?\t5",
+                    "chr1\t6\tG\t1\t.\t?\t6",
+                    "chr1\t7\tC\t1\t.\t?\t7",
+                    "chr1\t21\tG\t2\t..\t??\t21,12",
+                    "chr1\t22\tA\t2\t..\t??\t22,13",
+                    "chr1\t51\tG\t1\t.\t?\t7",
+                    "chr1\t52\tC\t1\t.\t?\t8",
+                    "chr2\t4\tT\t1\t.\t?\t2",
+                    "chr2\t5\tT\t1\t.\t?\t3");
+        } finally {
+            tearDown();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package io.compgen.ngsutils.support;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class ExternalSorterTest {
+	// {key, original position}
+	private static class IntCodec implements ExternalSorter.Codec<int[]> {
+		@Override
+		public void write(int[] value, DataOutput out) throws IOException {
+			out.writeInt(value[0]);
+			out.writeInt(value[1]);
+		}
+
+		@Override
+		public int[] read(DataInput in) throws IOException {
+			return new int[] { in.readInt(), in.readInt() };
+		}
+	}
+
+	private static ExternalSorter<int[], Integer> newSorter() {
+		return new ExternalSorter<int[], Integer>(new IntCodec(), new ExternalSorter.KeyExtractor<int[], Integer>() {
+			@Override
+			public Integer getKey(int[] value) {
+				return value[0];
+			}}, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Integer.compare(o1, o2);
+			}});
+	}
+
+	private static void assertSorted(ExternalSorter<int[], Integer> sorter, int n) throws IOException {
+		List<int[]> vals = new ArrayList<int[]>();
+		Random rand = new Random(1);
+		for (int i=0; i<n; i++) {
+			int[] val = new int[] { rand.nextInt(100), i };
+			vals.add(val);
+			sorter.add(val);
+		}
+
+		// Collections.sort is stable, so ties should be in the same order
+		Collections.sort(vals, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] o1, int[] o2) {
+				return Integer.compare(o1[0], o2[0]);
+			}});
+
+		Iterator<int[]> it = sorter.sort();
+		for (int[] expected: vals) {
+			int[] val = it.next();
+			assertEquals(expected[0], val[0]);
+			assertEquals(expected[1], val[1]);
+		}
+		assertFalse(it.hasNext());
+		sorter.close();
+	}
+
+	@Test
+	void testInMemory() throws Exception {
+		ExternalSorter<int[], Integer> sorter = newSorter();
+		assertSorted(sorter, 1000);
+		assertEquals(0, sorter.getRunCount());
+	}
+
+	@Test
+	void testRuns() throws Exception {
+		ExternalSorter<int[], Integer> sorter = newSorter();
+		sorter.setMaxRecords(1000);
+		assertSorted(sorter, 10500);
+		assertEquals(11, sorter.getRunCount());
+	}
+
+	@Test
+	void testMultiLevelMerge() throws Exception {
+		ExternalSorter<int[], Integer> sorter = newSorter();
+		sorter.setMemoryLimit(4096);
+		sorter.setMaxFiles(3);
+		sorter.setThreads(3);
+		sorter.setCompress(false);
+		assertSorted(sorter, 20000);
+	}
+
+	@Test
+	void testParseMemorySize() throws Exception {
+		assertEquals(100, ExternalSorter.parseMemorySize("100"));
+		assertEquals(512L * 1024 * 1024, ExternalSorter.parseMemorySize("512M"));
+		assertEquals(2L * 1024 * 1024 * 1024, ExternalSorter.parseMemorySize("2g"));
+		assertEquals(1536, ExternalSorter.parseMemorySize("1.5KB"));
+	}
+}
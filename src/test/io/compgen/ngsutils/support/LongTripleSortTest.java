@@ -0,0 +1,71 @@
+package io.compgen.ngsutils.support;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+
+class LongTripleSortTest {
+	private static long[] randomKeys(int n) {
+		Random rand = new Random(n);
+		long[] data = new long[n * 3];
+		for (int i=0; i<n; i++) {
+			// small ranges, so there are lots of ties in the first two values
+			data[i*3] = rand.nextInt(5);
+			data[i*3+1] = rand.nextInt(50);
+			data[i*3+2] = rand.nextLong();
+		}
+		return data;
+	}
+
+	private static long[] expected(long[] data) {
+		int n = data.length / 3;
+		long[][] keys = new long[n][];
+		for (int i=0; i<n; i++) {
+			keys[i] = Arrays.copyOfRange(data, i*3, i*3+3);
+		}
+		Arrays.sort(keys, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] o1, long[] o2) {
+				for (int i=0; i<3; i++) {
+					int cmp = Long.compare(o1[i], o2[i]);
+					if (cmp != 0) {
+						return cmp;
+					}
+				}
+				return 0;
+			}});
+		long[] out = new long[data.length];
+		for (int i=0; i<n; i++) {
+			System.arraycopy(keys[i], 0, out, i*3, 3);
+		}
+		return out;
+	}
+
+	@Test
+	void testSort() throws Exception {
+		for (int n: new int[] {0, 1, 2, 15, 16, 17, 100, 1000, 12345}) {
+			long[] data = randomKeys(n);
+			long[] exp = expected(data);
+			LongTripleSort.sort(data, new long[data.length], n, null, 1);
+			assertArrayEquals(exp, data);
+		}
+	}
+
+	@Test
+	void testParallelSort() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(3);
+		for (int n: new int[] {10, 100, 1001, 54321}) {
+			long[] data = randomKeys(n);
+			long[] exp = expected(data);
+			LongTripleSort.sort(data, new long[data.length], n, pool, 3);
+			assertArrayEquals(exp, data);
+		}
+		pool.shutdown();
+	}
+}
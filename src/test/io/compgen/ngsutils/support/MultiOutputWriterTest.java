@@ -0,0 +1,140 @@
+package io.compgen.ngsutils.support;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+class MultiOutputWriterTest {
+	/**
+	 * Records the bytes written, and checks that the stream is only used by one thread at a time.
+	 */
+	private static class CheckedOutputStream extends ByteArrayOutputStream {
+		private final AtomicBoolean busy = new AtomicBoolean(false);
+		private volatile boolean concurrent = false;
+		private volatile boolean closed = false;
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			if (!busy.compareAndSet(false, true)) {
+				concurrent = true;
+			}
+			// give other workers a chance to run
+			Thread.yield();
+			super.write(b, off, len);
+			busy.set(false);
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			super.close();
+		}
+	}
+
+	private static class FailingOutputStream extends OutputStream {
+		private final int failAfter;
+		private int count = 0;
+		private boolean closed = false;
+
+		FailingOutputStream(int failAfter) {
+			this.failAfter = failAfter;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			count += len;
+			if (count > failAfter) {
+				throw new IOException("disk full");
+			}
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	@Test
+	public void testInterleavedWrites() throws IOException {
+		int numOutputs = 25;
+		CheckedOutputStream[] outs = new CheckedOutputStream[numOutputs];
+		ByteArrayOutputStream[] expected = new ByteArrayOutputStream[numOutputs];
+		for (int i = 0; i < numOutputs; i++) {
+			outs[i] = new CheckedOutputStream();
+			expected[i] = new ByteArrayOutputStream();
+		}
+
+		// a small buffer, so that most chunks span buffers and many buffers are queued
+		MultiOutputWriter writer = new MultiOutputWriter(outs, 4, 16);
+		OutputStream[] streams = new OutputStream[numOutputs];
+		for (int i = 0; i < numOutputs; i++) {
+			streams[i] = writer.getOutputStream(i);
+		}
+
+		Random rand = new Random(1);
+		byte[] chunk = new byte[100];
+		for (int i = 0; i < 20000; i++) {
+			int idx = rand.nextInt(numOutputs);
+			int len = rand.nextInt(chunk.length);
+			rand.nextBytes(chunk);
+			if (len == 1) {
+				streams[idx].write(chunk[0]);
+			} else {
+				writer.write(idx, chunk, 0, len);
+			}
+			expected[idx].write(chunk, 0, len);
+		}
+		writer.close();
+
+		for (int i = 0; i < numOutputs; i++) {
+			assertTrue(outs[i].closed);
+			assertFalse(outs[i].concurrent);
+			assertEquals(expected[i].size(), outs[i].size());
+			assertTrue(Arrays.equals(expected[i].toByteArray(), outs[i].toByteArray()));
+		}
+	}
+
+	@Test
+	public void testWriteError() throws IOException {
+		CheckedOutputStream good = new CheckedOutputStream();
+		FailingOutputStream bad = new FailingOutputStream(1000);
+		MultiOutputWriter writer = new MultiOutputWriter(new OutputStream[] { good, bad }, 2, 16);
+
+		byte[] chunk = new byte[50];
+		try {
+			for (int i = 0; i < 100; i++) {
+				writer.write(0, chunk, 0, chunk.length);
+				writer.write(1, chunk, 0, chunk.length);
+			}
+		} catch (IOException e) {
+			// the error may show up in write() once a worker has hit it
+		}
+
+		boolean thrown = false;
+		try {
+			writer.close();
+		} catch (IOException e) {
+			thrown = true;
+			assertEquals("disk full", e.getMessage());
+		}
+		assertTrue(thrown);
+
+		// all of the streams are still closed
+		assertTrue(good.closed);
+		assertTrue(bad.closed);
+	}
+}